@@ -0,0 +1,104 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.test.BenchmarkData;
+
+/**
+ * {@link DiskItemFilter#isExcluded(DiskItem)} with the default excludes and
+ * typical user patterns. Time per 10.000 files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskItemFilterBenchmark {
+
+    /**
+     * Number of patterns: None, default excludes only, all, a large set.
+     */
+    @Param({"0", "15", "100", "250"})
+    public int patterns;
+
+    private DiskItemFilter filter;
+    private List<FileInfo> files;
+    private List<String> names;
+
+    @Setup
+    public void setUp() {
+        filter = new DiskItemFilter();
+        List<String> all = BenchmarkData.ignorePatterns();
+        for (int i = 0; i < patterns; i++) {
+            if (i < all.size()) {
+                filter.addPattern(all.get(i));
+            } else if (i % 3 == 0) {
+                // Exact file names as added by "ignore file" in the UI.
+                filter.addPattern("Documents/Q" + i + "/Report-" + i
+                    + ".docx");
+            } else if (i % 3 == 1) {
+                filter.addPattern("*.ext" + i);
+            } else {
+                filter.addPattern("*/tmp" + i + "/*");
+            }
+        }
+        files = BenchmarkData.files(10000, 42);
+        names = BenchmarkData.relativeNames(10000, 42);
+    }
+
+    @Benchmark
+    public int isExcludedFileInfo() {
+        int excluded = 0;
+        for (FileInfo fInfo : files) {
+            if (filter.isExcluded(fInfo)) {
+                excluded++;
+            }
+        }
+        return excluded;
+    }
+
+    @Benchmark
+    public int isExcludedName() {
+        int excluded = 0;
+        for (String name : names) {
+            if (filter.isExcluded(name)) {
+                excluded++;
+            }
+        }
+        return excluded;
+    }
+}
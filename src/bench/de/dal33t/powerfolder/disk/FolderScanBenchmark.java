@@ -0,0 +1,120 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.util.test.BenchmarkData;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * {@link FolderScanner} and {@link FolderStatistic} on a synthetic directory
+ * tree. Runs a controller with a test folder like the
+ * {@link ControllerTestCase}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FolderScanBenchmark {
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private final Fixture fixture = new Fixture();
+    private Folder folder;
+    private FolderScanner scanner;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture.setUp();
+        folder = fixture.createFolder();
+        Path base = folder.getLocalBase();
+        byte[] content = "PowerFolder".getBytes(StandardCharsets.UTF_8);
+        for (String name : BenchmarkData.relativeNames(files, 42)) {
+            Path file = base.resolve(name);
+            Files.createDirectories(file.getParent());
+            Files.write(file, content);
+        }
+        // Initial scan. Afterwards the database is in sync with the disk.
+        TestHelper.scanFolder(folder);
+        scanner = fixture.getScanner();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.tearDown();
+    }
+
+    /**
+     * The regular scan: Nothing changed on disk.
+     */
+    @Benchmark
+    public ScanResult scanUnchanged() {
+        return scanner.scanFolder(folder);
+    }
+
+    @Benchmark
+    public FolderStatistic calculateStatistic() {
+        FolderStatistic statistic = folder.getStatistic();
+        statistic.calculate0();
+        return statistic;
+    }
+
+    private static class Fixture extends ControllerTestCase {
+        @Override
+        public void setUp() throws Exception {
+            super.setUp();
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            super.tearDown();
+        }
+
+        Folder createFolder() {
+            setupTestFolder(SyncProfile.HOST_FILES);
+            return getFolder();
+        }
+
+        FolderScanner getScanner() {
+            return getController().getFolderRepository().getFolderScanner();
+        }
+    }
+}
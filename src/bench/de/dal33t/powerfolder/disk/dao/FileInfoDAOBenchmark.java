@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.test.BenchmarkData;
+
+/**
+ * Store and lookup of {@link FileInfoDAOHashMapImpl}, the in-memory database
+ * of a folder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileInfoDAOBenchmark {
+    private static final String SELF = "self";
+    private static final String REMOTE = "remote";
+
+    @Param({"10000", "100000"})
+    public int files;
+
+    private List<FileInfo> fileInfos;
+    private FileInfoDAOHashMapImpl dao;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        fileInfos = BenchmarkData.files(files, 42);
+        dao = new FileInfoDAOHashMapImpl(SELF, null);
+        dao.store(SELF, fileInfos);
+        dao.store(REMOTE, fileInfos);
+    }
+
+    /**
+     * Re-stores all files, like after a full scan or a received filelist.
+     */
+    @Benchmark
+    public FileInfoDAOHashMapImpl storeAll() {
+        dao.store(REMOTE, fileInfos);
+        return dao;
+    }
+
+    @Benchmark
+    public FileInfo find() {
+        FileInfo fInfo = fileInfos.get(next++ % fileInfos.size());
+        return dao.find(fInfo, REMOTE);
+    }
+
+    @Benchmark
+    public FileInfo findNewestVersion() {
+        FileInfo fInfo = fileInfos.get(next++ % fileInfos.size());
+        return dao.findNewestVersion(fInfo, SELF, REMOTE);
+    }
+
+    /**
+     * Lists a directory, as done by the file browser.
+     */
+    @Benchmark
+    public Collection<FileInfo> findFilesInDirectory() {
+        FileInfoCriteria criteria = new FileInfoCriteria();
+        criteria.addDomain(SELF);
+        criteria.setPath("Projects/Documents");
+        criteria.setRecursive(false);
+        return dao.findFiles(criteria);
+    }
+
+    @Benchmark
+    public Collection<FileInfo> findFilesRecursive() {
+        FileInfoCriteria criteria = new FileInfoCriteria();
+        criteria.addDomain(SELF);
+        criteria.setPath("Projects");
+        criteria.setRecursive(true);
+        return dao.findFiles(criteria);
+    }
+}
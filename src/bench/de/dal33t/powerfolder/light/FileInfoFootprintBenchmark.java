@@ -0,0 +1,144 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.util.test.BenchmarkData;
+
+/**
+ * Memory footprint and access cost of {@link FileInfo}s, which share the
+ * {@link DirectoryPrefix} with consecutive files of the same directory and
+ * build the relative name on demand.
+ * <p>
+ * JMH measures time only. The retained heap per {@link FileInfo} is measured
+ * by {@link #main(String[])}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileInfoFootprintBenchmark {
+
+    @Param({"10000", "100000"})
+    public int files;
+
+    @Param({"1", "20"})
+    public int filesPerDirectory;
+
+    private List<FileInfo> fileInfos;
+
+    @Setup
+    public void setUp() {
+        fileInfos = BenchmarkData.files(files, filesPerDirectory, 42);
+    }
+
+    @Benchmark
+    public Object createFiles() {
+        return BenchmarkData.files(files, filesPerDirectory, 42);
+    }
+
+    @Benchmark
+    public int relativeNames() {
+        int len = 0;
+        for (FileInfo fInfo : fileInfos) {
+            len += fInfo.getRelativeName().length();
+        }
+        return len;
+    }
+
+    @Benchmark
+    public int lookups() {
+        int found = 0;
+        for (FileInfo fInfo : fileInfos) {
+            if (fInfo.equals(FileInfoFactory.lookupInstance(
+                BenchmarkData.FOLDER, fInfo.getRelativeName())))
+            {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Prints the retained heap per {@link FileInfo}, incl. its own strings
+     * and date, excl. the shared folder, member and account. Measured after
+     * all files were used like in a running client: Hashed, compared and
+     * asked for their names.
+     *
+     * @param args
+     *            optional: the number of files and the number of files per
+     *            directory.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int filesPerDirectory = args.length > 1
+            ? Integer.parseInt(args[1])
+            : 20;
+        // Warm up and load classes
+        BenchmarkData.files(1000, 7);
+        long before = usedHeap();
+        List<FileInfo> fileInfos = BenchmarkData.files(n, filesPerDirectory,
+            42);
+        int len = 0;
+        for (FileInfo fInfo : fileInfos) {
+            len += fInfo.getRelativeName().length();
+            len += fInfo.getFilenameOnly().length();
+            len += fInfo.hashCode() & 1;
+        }
+        long after = usedHeap();
+        System.out.println(n + " files, " + filesPerDirectory
+            + " per directory, " + (after - before) / n
+            + " bytes per FileInfo");
+        // Keep reachable until measured
+        System.out.println(fileInfos.get(n - 1).getRelativeName() + len);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
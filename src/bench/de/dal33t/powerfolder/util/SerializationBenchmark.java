@@ -0,0 +1,100 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.util.test.BenchmarkData;
+
+/**
+ * Serialization round-trips of the biggest messages with the
+ * {@link ByteSerializer}: A filelist and a file chunk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    /**
+     * If the filelist uses the compact coding.
+     */
+    @Param({"false", "true"})
+    public boolean compact;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private ByteSerializer serializer;
+    private FileList fileList;
+    private FileChunk chunk;
+
+    @Setup
+    public void setUp() {
+        serializer = new ByteSerializer();
+        List<FileInfo> files = BenchmarkData.files(
+            Constants.FILE_LIST_MAX_FILES_PER_MESSAGE, 42);
+        Message[] msgs = FileList.create4Test(BenchmarkData.FOLDER, files,
+            new DiskItemFilter(), compact);
+        fileList = (FileList) msgs[0];
+        byte[] data = new byte[32 * 1024];
+        new Random(42).nextBytes(data);
+        chunk = new FileChunk(files.get(0), 0, data);
+    }
+
+    @Benchmark
+    public Object fileListRoundTrip() throws IOException,
+        ClassNotFoundException
+    {
+        byte[] data = serializer.serialize(fileList, compress, -1);
+        return ByteSerializer.deserializeStatic(data, compress);
+    }
+
+    @Benchmark
+    public Object fileChunkRoundTrip() throws IOException,
+        ClassNotFoundException
+    {
+        byte[] data = serializer.serialize(chunk, compress, -1);
+        return ByteSerializer.deserializeStatic(data, compress);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delta sync: Building the {@link FilePartsRecord} of a file and matching
+ * the parts against a changed version of the file. Time per 8 MB of data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeltaBenchmark {
+    private static final int DATA_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Part size as calculated by AbstractFileRecordProvider for 8 MB.
+     */
+    @Param({"4096", "16384"})
+    public int partSize;
+
+    private byte[] data;
+    private byte[] changedData;
+    private FilePartsRecord record;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        Random r = new Random(42);
+        data = new byte[DATA_SIZE];
+        r.nextBytes(data);
+        // Insert a few bytes every 512 KB. Shifts all following parts.
+        changedData = new byte[DATA_SIZE];
+        int src = 0;
+        for (int dst = 0; dst < changedData.length; dst++) {
+            changedData[dst] = dst % (512 * 1024) == 0
+                ? (byte) r.nextInt()
+                : data[src++];
+        }
+        record = buildRecord();
+    }
+
+    @Benchmark
+    public FilePartsRecord buildRecord() throws NoSuchAlgorithmException {
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), partSize);
+        byte[] buf = new byte[8192];
+        for (int off = 0; off < data.length; off += buf.length) {
+            int len = Math.min(buf.length, data.length - off);
+            System.arraycopy(data, off, buf, 0, len);
+            builder.update(buf, 0, len);
+        }
+        return builder.getRecord();
+    }
+
+    @Benchmark
+    public int matchParts() throws NoSuchAlgorithmException, IOException,
+        InterruptedException
+    {
+        PartInfoMatcher matcher = new PartInfoMatcher(
+            new ByteArrayInputStream(changedData), new RollingAdler32(
+                record.getPartLength()), MessageDigest.getInstance("SHA-256"),
+            record.getInfos());
+        int matches = 0;
+        while (matcher.nextMatch() != null) {
+            matches++;
+        }
+        matcher.close();
+        return matches;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.intern;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+
+/**
+ * Interning of {@link FolderInfo}s and {@link AccountInfo}s like the
+ * filelist decoding of several connections does: Mostly hits on a small set
+ * of folders and accounts, from several threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class InternBenchmark {
+
+    private FolderInfo[] folders;
+    private AccountInfo[] accounts;
+    private final FolderInfoInternalizer folderInternalizer = new FolderInfoInternalizer();
+    private final AccountInfoInternalizer accountInternalizer = new AccountInfoInternalizer();
+
+    @Setup
+    public void setUp() {
+        folders = new FolderInfo[100];
+        accounts = new AccountInfo[100];
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = folderInternalizer.intern(new FolderInfo("Folder"
+                + i, "folder-id-" + i));
+            accounts[i] = accountInternalizer.intern(new AccountInfo(
+                "account-oid-" + i, "user" + i + "@example.com"));
+        }
+    }
+
+    @Benchmark
+    public FolderInfo internFolderInfo() {
+        FolderInfo foInfo = folders[ThreadLocalRandom.current().nextInt(
+            folders.length)];
+        // A deserialized copy
+        return folderInternalizer.intern(new FolderInfo(foInfo.getName(),
+            foInfo.getId()));
+    }
+
+    @Benchmark
+    public AccountInfo internAccountInfo() {
+        AccountInfo aInfo = accounts[ThreadLocalRandom.current().nextInt(
+            accounts.length)];
+        return accountInternalizer.intern(new AccountInfo(aInfo.getOID(),
+            aInfo.getUsername()));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.logging;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.logging.handlers.AsyncHandler.OverflowPolicy;
+import de.dal33t.powerfolder.util.test.BenchmarkData;
+
+/**
+ * Throughput of the per file logging of the {@link
+ * de.dal33t.powerfolder.disk.FolderScanner} at FINER level with the
+ * synchronous file handler and the {@link
+ * de.dal33t.powerfolder.util.logging.handlers.AsyncHandler}. Several threads
+ * log like the directory crawlers of a scan. "off" is the scan without file
+ * logging.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+
+    @Param({"off", "sync", "async", "asyncDrop"})
+    public String handler;
+
+    private final Logger log = Logger
+        .getLogger("de.dal33t.powerfolder.disk.FolderScanner.benchmark");
+    private final AtomicInteger next = new AtomicInteger();
+    private List<FileInfo> files;
+    private Path logFile;
+    private Handler fileHandler;
+
+    @Setup
+    public void setUp() throws Exception {
+        files = BenchmarkData.files(10000, 42);
+        log.setUseParentHandlers(false);
+        log.setLevel(Level.FINER);
+        if ("off".equals(handler)) {
+            log.setLevel(Level.INFO);
+            return;
+        }
+        OverflowPolicy policy = null;
+        if ("async".equals(handler)) {
+            policy = OverflowPolicy.BLOCK;
+        } else if ("asyncDrop".equals(handler)) {
+            policy = OverflowPolicy.DROP;
+        }
+        logFile = Files.createTempFile("LoggingBenchmark", ".log");
+        fileHandler = LoggingManager.createFileHandler(logFile, Level.FINER,
+            true, policy);
+        log.addHandler(fileHandler);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (fileHandler != null) {
+            log.removeHandler(fileHandler);
+            fileHandler.close();
+            fileHandler = null;
+            Files.deleteIfExists(logFile);
+        }
+    }
+
+    /**
+     * One file found by the scanner.
+     */
+    @Benchmark
+    public String scanFile() {
+        FileInfo fInfo = files.get((next.getAndIncrement() & 0x7FFFFFFF)
+            % files.size());
+        String detail = fInfo.toDetailString();
+        if (log.isLoggable(Level.FINER)) {
+            log.finer("New found: " + detail);
+        }
+        return detail;
+    }
+}
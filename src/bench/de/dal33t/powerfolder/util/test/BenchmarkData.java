@@ -0,0 +1,159 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.pattern.DefaultExcludes;
+
+/**
+ * Synthetic, reproducible data for the benchmarks: File names in a nested
+ * directory structure like in a typical office folder, incl. some temporary
+ * files, which are matched by the default excludes.
+ */
+public class BenchmarkData {
+    public static final FolderInfo FOLDER = new FolderInfo("Benchmark",
+        "benchmark-folder-0000000000000001").intern();
+    public static final MemberInfo MEMBER = new MemberInfo("benchmark",
+        "benchmark-node-00000000000000001", null).intern();
+    public static final AccountInfo ACCOUNT = new AccountInfo(
+        "benchmark-account-0000000000001", "benchmark@powerfolder.com")
+        .intern();
+
+    private static final String[] DIRS = {"Projects", "Documents",
+        "Invoices", "2017", "2018", "Customer A", "Customer B", "Drafts",
+        "Archive", "Photos", "Shared", "Meeting notes", "src", "Q1", "Q2",
+        "Marketing"};
+    private static final String[] WORDS = {"Report", "Offer", "Invoice",
+        "Budget", "Presentation", "IMG", "Minutes", "Contract", "Plan",
+        "Summary"};
+    private static final String[] EXTENSIONS = {"docx", "xlsx", "pptx",
+        "pdf", "jpg", "png", "txt", "zip", "java", "mp3"};
+    private static final String[] TEMP_NAMES = {"~$Report.docx",
+        ".~lock.Budget.xlsx#", "Thumbs.db", ".DS_Store", "download.part",
+        "desktop.ini", "setup.exe.crdownload", "~WRL0001.tmp"};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param n
+     *            the number of names.
+     * @param seed
+     * @return unique relative file names, about 3% of them temporary files.
+     */
+    public static List<String> relativeNames(int n, long seed) {
+        return relativeNames(n, 1, seed);
+    }
+
+    /**
+     * @param n
+     *            the number of names.
+     * @param filesPerDirectory
+     *            the number of consecutive names in the same directory.
+     * @param seed
+     * @return unique relative file names, about 3% of them temporary files.
+     */
+    public static List<String> relativeNames(int n, int filesPerDirectory,
+        long seed)
+    {
+        Random r = new Random(seed);
+        List<String> names = new ArrayList<String>(n);
+        StringBuilder dir = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i % filesPerDirectory == 0) {
+                dir.setLength(0);
+                int depth = 1 + r.nextInt(5);
+                for (int d = 0; d < depth; d++) {
+                    dir.append(DIRS[r.nextInt(DIRS.length)]).append('/');
+                }
+            }
+            StringBuilder b = new StringBuilder(dir);
+            if (r.nextInt(100) < 3) {
+                b.append(i).append('_');
+                b.append(TEMP_NAMES[r.nextInt(TEMP_NAMES.length)]);
+            } else {
+                b.append(WORDS[r.nextInt(WORDS.length)]).append('-').append(i)
+                    .append('.').append(EXTENSIONS[r.nextInt(EXTENSIONS.length)]);
+            }
+            names.add(b.toString());
+        }
+        return names;
+    }
+
+    /**
+     * @param n
+     * @param seed
+     * @return files with the names of {@link #relativeNames(int, long)}.
+     */
+    public static List<FileInfo> files(int n, long seed) {
+        return files(n, 1, seed);
+    }
+
+    /**
+     * @param n
+     * @param filesPerDirectory
+     * @param seed
+     * @return files with the names of
+     *         {@link #relativeNames(int, int, long)}.
+     */
+    public static List<FileInfo> files(int n, int filesPerDirectory, long seed)
+    {
+        Random r = new Random(seed);
+        Date modDate = new Date(1500000000000L);
+        List<FileInfo> files = new ArrayList<FileInfo>(n);
+        for (String name : relativeNames(n, filesPerDirectory, seed)) {
+            files.add(FileInfoFactory.unmarshallExistingFile(FOLDER, name,
+                IdGenerator.makeFileId(), r.nextInt(10 * 1024 * 1024),
+                MEMBER, ACCOUNT, new Date(modDate.getTime()
+                    + r.nextInt(1000000) * 1000L), r.nextInt(5), null, false,
+                null));
+        }
+        return files;
+    }
+
+    /**
+     * @return the default excludes and patterns a user typically adds.
+     */
+    public static List<String> ignorePatterns() {
+        List<String> patterns = new ArrayList<String>();
+        for (DefaultExcludes exclude : DefaultExcludes.values()) {
+            patterns.add(exclude.getPattern());
+        }
+        patterns.add("*.bak");
+        patterns.add("*.log");
+        patterns.add("*/node_modules/*");
+        patterns.add("*/.git/*");
+        patterns.add("Archive/*");
+        patterns.add("Projects/Drafts/*");
+        patterns.add("*/build/*");
+        patterns.add("*.iso");
+        return patterns;
+    }
+}
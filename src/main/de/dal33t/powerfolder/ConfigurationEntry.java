@@ -610,6 +610,65 @@ public enum ConfigurationEntry {
      */
     NET_USE_RELAY_TUNNEL_ON_LAN("net.relaytunnel.lan.enabled", false),
 
+    /**
+     * Use non-blocking I/O for plain TCP connections. A few selector threads
+     * serve all connections instead of one receiver thread per connection.
+     */
+    NET_NIO_ENABLED("net.nio.enabled", false),
+
+    /**
+     * The number of selector threads for non-blocking I/O. 0 = automatic.
+     */
+    NET_NIO_SELECTOR_THREADS("net.nio.selector_threads", 0),
+
+    /**
+     * Handle folder related and transfer messages on worker threads instead
+     * of the receiving thread of the connection.
+     */
+    NET_MESSAGE_DISPATCH_ENABLED("net.message_dispatch.enabled", true),
+
+    /**
+     * Race the connection attempts by TCP, UDT and relay to a node instead of
+     * trying one after another.
+     */
+    NET_CONNECT_RACE_ENABLED("net.connect_race.enabled", true),
+
+    /**
+     * Run connection I/O, uploads and persistent tasks on virtual threads.
+     * Requires Java 21 or later, otherwise platform threads are used.
+     */
+    VIRTUAL_THREADS_ENABLED("threads.virtual", false),
+
+    /**
+     * Record the latency of profiled operations.
+     *
+     * @see de.dal33t.powerfolder.util.Profiling
+     */
+    PROFILING_ENABLED("profiling.enabled", true),
+
+    /**
+     * Publish the core metrics as MBean over JMX.
+     *
+     * @see de.dal33t.powerfolder.util.metrics.MetricsExporter
+     */
+    METRICS_JMX_ENABLED("metrics.jmx.enabled", true),
+
+    /**
+     * The file to periodically write the core metrics to. Relative to the
+     * misc files location. No file is written if blank.
+     */
+    METRICS_DUMP_FILE("metrics.dump.file"),
+
+    /**
+     * The format of the metrics file: "prometheus" or "text".
+     */
+    METRICS_DUMP_FORMAT("metrics.dump.format", "prometheus"),
+
+    /**
+     * The interval in seconds to write the metrics file.
+     */
+    METRICS_DUMP_INTERVAL("metrics.dump.interval", 60),
+
     /**
      * If the {@link RemoteCommandManager} should be started or not.
      */
@@ -867,6 +926,19 @@ public enum ConfigurationEntry {
      */
     LOG_FILE_DELETE_DAYS("log.file.keep.days", 31),
 
+    /**
+     * Format and write file and debug panel logging on a background thread.
+     *
+     * @see de.dal33t.powerfolder.util.logging.handlers.AsyncHandler
+     */
+    LOG_ASYNC("log.async", true),
+
+    /**
+     * BLOCK or DROP: What to do if log records are produced faster than the
+     * background thread writes them.
+     */
+    LOG_ASYNC_POLICY("log.async.policy", "BLOCK"),
+
     /**
      * The loglevel to print to console when verbose=true
      */
@@ -1125,6 +1197,13 @@ public enum ConfigurationEntry {
      */
     FOLDER_SCANNER_MAX_CRAWLERS("sync.folder.max_crawlers", 3),
 
+    /**
+     * Don't descend into directories that are excluded by the ignore
+     * patterns. The known files below stay unchanged until the directory is
+     * no longer excluded.
+     */
+    FOLDER_SCANNER_SKIP_EXCLUDED("sync.folder.skip_excluded", true),
+
     /**
      * Automatically setup all folders the user has access to and also
      * automatically accept folder invites.
@@ -148,6 +148,29 @@ public class Constants {
      */
     public static final int FILE_LIST_MAX_FILES_PER_MESSAGE = 500;
 
+    /**
+     * The time to keep the filelist of a disconnected node for reconciliation
+     * on reconnect.
+     *
+     * @see de.dal33t.powerfolder.message.FileListDigest
+     */
+    public static final long FILE_LIST_RETAIN_TIME = 30L * 60 * 1000;
+
+    /**
+     * The maximum number of filelists of disconnected nodes kept per folder.
+     * The oldest one gets dropped first.
+     */
+    public static final int FILE_LIST_RETAIN_MAX = 20;
+
+    /**
+     * The maximum number of received messages per node waiting to be handled
+     * by workers. The connection is not read further until the workers caught
+     * up.
+     *
+     * @see de.dal33t.powerfolder.net.MessageDispatcher
+     */
+    public static final int MESSAGE_DISPATCH_MAX_PENDING = 200;
+
     /**
      * The number of supernodes to connect if NOT running as supernode.
      */
@@ -217,6 +240,22 @@ public class Constants {
     /** The max number of reconnectors to spawn */
     public static final int MAX_NUMBER_RECONNECTORS = 5;
 
+    /**
+     * The delay in ms until the next reconnection attempt after the first
+     * failed one. Doubles with every further failure.
+     *
+     * @see de.dal33t.powerfolder.net.ReconnectScheduler
+     */
+    public static final long RECONNECT_MIN_BACKOFF = 15L * 1000;
+
+    /**
+     * The maximum delay in ms between two reconnection attempts to the same
+     * node.
+     *
+     * @see de.dal33t.powerfolder.net.ReconnectScheduler
+     */
+    public static final long RECONNECT_MAX_BACKOFF = 30L * 60 * 1000;
+
     /**
      * PFC-2742: Maximum numbers of message in send queue. Will disconnect node
      * if maximum is reached.
@@ -230,6 +269,14 @@ public class Constants {
      */
     public static final long LIMITED_CONNECTIVITY_CHECK_DELAY = 30;
 
+    /**
+     * The time in ms to collect file change events of a folder before firing
+     * them as one to UI listeners.
+     *
+     * @see de.dal33t.powerfolder.event.ListenerSupport#setCoalescing(int)
+     */
+    public static final int FOLDER_LISTENER_COALESCE_TIME = 250;
+
     /**
      * The delay before checking for unsynchronized folders
      */
@@ -254,6 +301,26 @@ public class Constants {
      */
     public static final int SOCKET_CONNECT_TIMEOUT = 30 * 1000;
 
+    /**
+     * The time in ms between the starts of the connection attempts by
+     * different transports (TCP, UDT, relay) to one node.
+     *
+     * @see de.dal33t.powerfolder.net.RacingConnector
+     */
+    public static final long CONNECT_RACE_DELAY = 500;
+
+    /**
+     * The time in ms after which all connection attempts to one node are
+     * given up.
+     */
+    public static final long CONNECT_RACE_TIMEOUT = 3L * 60 * 1000;
+
+    /**
+     * The time in ms to try the transport first, which connected to a node
+     * last time.
+     */
+    public static final long CONNECT_PREFERRED_TRANSPORT_TIME = 30L * 60 * 1000;
+
     /**
      * The number of incoming connections to queue until the connection is
      * throttled. Socket backlog is two times this value.
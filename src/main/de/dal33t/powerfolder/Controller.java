@@ -47,6 +47,9 @@ import de.dal33t.powerfolder.ui.notices.Notice;
 import de.dal33t.powerfolder.ui.util.LimitedConnectivityChecker;
 import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.logging.handlers.AsyncHandler.OverflowPolicy;
+import de.dal33t.powerfolder.util.metrics.MetricsExporter;
+import de.dal33t.powerfolder.util.metrics.MetricsRegistry;
 import de.dal33t.powerfolder.util.net.NetworkUtil;
 import de.dal33t.powerfolder.util.os.OSUtil;
 import de.dal33t.powerfolder.util.os.SystemUtil;
@@ -194,6 +197,12 @@ public class Controller extends PFComponent {
 
     private PersistentTaskManager taskManager;
 
+    /** The core metrics */
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    /** Publishes the metrics over JMX and into a file */
+    private MetricsExporter metricsExporter;
+
     private Callable<TransferManager> transferManagerFactory = new Callable<TransferManager>()
     {
         @Override
@@ -406,9 +415,10 @@ public class Controller extends PFComponent {
                     ByteSerializer.printStats();
                 }
             }, 600000L, 600000L);
-            Profiling.setEnabled(false);
-            Profiling.reset();
         }
+        Profiling.setEnabled(ConfigurationEntry.PROFILING_ENABLED
+            .getValueBoolean(this));
+        Profiling.reset();
 
         String arch = OSUtil.is64BitPlatform() ? "64bit" : "32bit";
         logFine("OS: " + System.getProperty("os.name") + " " + System.getProperty("os.version") + " (" + arch + ")");
@@ -680,6 +690,9 @@ public class Controller extends PFComponent {
         // Setup our background working tasks
         setupPeriodicalTasks();
 
+        metricsExporter = new MetricsExporter(this);
+        metricsExporter.start();
+
         if (MacUtils.isSupported()) {
             if (isFirstStart()) {
                 MacUtils.getInstance().setPFStartup(true, this);
@@ -815,6 +828,12 @@ public class Controller extends PFComponent {
         }
 
         if (verbose) {
+            OverflowPolicy asyncPolicy = "DROP"
+                .equalsIgnoreCase(ConfigurationEntry.LOG_ASYNC_POLICY
+                    .getValue(this)) ? OverflowPolicy.DROP : OverflowPolicy.BLOCK;
+            LoggingManager.setAsyncLogging(
+                ConfigurationEntry.LOG_ASYNC.getValueBoolean(this), asyncPolicy);
+
             String str = ConfigurationEntry.LOG_LEVEL_CONSOLE.getValue(this);
             Level consoleLevel = LoggingManager.levelForName(str);
             LoggingManager.setConsoleLogging(consoleLevel != null
@@ -1165,28 +1184,13 @@ public class Controller extends PFComponent {
             threadPool.scheduleWithFixedDelay(new TimerTask() {
                 @Override
                 public void run() {
-                    logFine(Profiling.dumpStats());
+                    if (isFine()) {
+                        logFine(Profiling.dumpStats());
+                    }
                 }
             }, 0, 1, TimeUnit.MINUTES);
         }
 
-        // ============
-        // Hourly tasks
-        // ============
-        // @todo what's this for? comment?
-        boolean alreadyDetected = ConfigurationEntry.TRANSFER_LIMIT_AUTODETECT
-            .getValueBoolean(this)
-            && ConfigurationEntry.UPLOAD_LIMIT_WAN.getValueInt(this) > 0;
-        // If already detected wait 10 mins before next test. Otherwise start
-        // instantly.
-        long initialDelay = alreadyDetected ? 600 : 5;
-        threadPool.scheduleWithFixedDelay(new TimerTask() {
-            @Override
-            public void run() {
-                performHourly();
-            }
-        }, initialDelay, 3600, TimeUnit.SECONDS);
-
         // =========
         // Profiling
         // =========
@@ -1216,18 +1220,6 @@ public class Controller extends PFComponent {
         }, 1, 5, TimeUnit.MINUTES);
     }
 
-    /**
-     * These tasks get performed every hour.
-     */
-    private void performHourly() {
-        if (ConfigurationEntry.TRANSFER_LIMIT_AUTODETECT.getValueBoolean(this))
-        {
-            FutureTask<Object> recalculateRunnable = transferManager
-                .getRecalculateAutomaticRate();
-            threadPool.execute(recalculateRunnable);
-        }
-    }
-
     private void openBroadcastManager() {
         if (ConfigurationEntry.NET_BROADCAST.getValueBoolean(this)) {
             try {
@@ -1923,13 +1915,18 @@ public class Controller extends PFComponent {
         // saveConfig();
         // }
 
-        if (Profiling.isEnabled()) {
+        if (Profiling.isEnabled() && isFine()) {
             logFine(Profiling.dumpStats());
         }
 
         // Save anything important that has not been handled.
         savePersistentObjects();
 
+        if (metricsExporter != null) {
+            logFine("Shutting down metrics exporter");
+            metricsExporter.shutdown();
+        }
+
         // stop
         boolean wasStarted = started;
         started = false;
@@ -2244,6 +2241,13 @@ public class Controller extends PFComponent {
         return reconnectManager;
     }
 
+    /**
+     * @return the registry of the core metrics.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     public PersistentTaskManager getTaskManager() {
         return taskManager;
     }
@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder;
 
+import de.dal33t.powerfolder.clientserver.RequestExecutor;
 import de.dal33t.powerfolder.clientserver.ServerClient;
 import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.disk.FolderRepository;
@@ -27,11 +28,14 @@ import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.light.SecureIdCache;
 import de.dal33t.powerfolder.message.*;
 import de.dal33t.powerfolder.message.clientserver.AccountStateChanged;
+import de.dal33t.powerfolder.message.clientserver.Response;
 import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.net.InvalidIdentityException;
+import de.dal33t.powerfolder.net.MessageDispatcher;
 import de.dal33t.powerfolder.net.PlainSocketConnectionHandler;
 import de.dal33t.powerfolder.transfer.Download;
 import de.dal33t.powerfolder.transfer.TransferManager;
@@ -42,6 +46,7 @@ import de.dal33t.powerfolder.util.logging.LoggingManager;
 import de.dal33t.powerfolder.util.net.NetworkUtil;
 
 import java.io.Externalizable;
+import java.lang.ref.SoftReference;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.file.Path;
@@ -60,6 +65,17 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Member extends PFComponent implements Comparable<Member> {
 
+    /**
+     * Profiling operation names of message handling per message type.
+     */
+    private static final ClassValue<String> HANDLE_MESSAGE_OPERATIONS = new ClassValue<String>()
+    {
+        @Override
+        protected String computeValue(Class<?> type) {
+            return "Member.handleMessage:" + type.getSimpleName();
+        }
+    };
+
     /** Listener support for incoming messages */
     private MessageListenerSupport messageListenerSupport;
 
@@ -84,6 +100,12 @@ public class Member extends PFComponent implements Comparable<Member> {
     /** The last time, the node was seen on the network */
     private Date lastNetworkConnectTime;
 
+    /** Executes requests on this node. Created on first use */
+    private volatile RequestExecutor requestExecutor;
+
+    /** Handles received messages on workers. Created on first use */
+    private volatile MessageDispatcher messageDispatcher;
+
     /** Lock when peer is going to be initialized */
     private final Object peerInitializeLock = new Object();
 
@@ -102,6 +124,9 @@ public class Member extends PFComponent implements Comparable<Member> {
     private volatile boolean folderListReceived;
     // Last succesffully processed folder list
     private volatile FolderList lastFolderList;
+    // Secure ids of the folders for the magic ids of the current connection
+    private final Map<String, SoftReference<SecureIdCache>> secureIdCaches = Util
+        .createConcurrentHashMap(4);
 
     /**
      * The number of expected deltas to receive to have the filelist completed
@@ -823,12 +848,12 @@ public class Member extends PFComponent implements Comparable<Member> {
             Collection<FolderInfo> folders2node = getFilteredFolderList(
                 remoteFolderList, identity.isRequestFullFolderlist());
             FolderList folderList;
+            SecureIdCache remoteSecureIds = getSecureIdCache(peer
+                .getRemoteMagicId());
             if (getProtocolVersion() >= Identity.PROTOCOL_VERSION_106) {
-                folderList = new FolderListExt(folders2node,
-                    peer.getRemoteMagicId());
+                folderList = new FolderListExt(folders2node, remoteSecureIds);
             } else {
-                folderList = new FolderList(folders2node,
-                    peer.getRemoteMagicId());
+                folderList = new FolderList(folders2node, remoteSecureIds);
             }
             if (isFiner()) {
                 logFiner("Sending CH " + folderList);
@@ -1031,22 +1056,28 @@ public class Member extends PFComponent implements Comparable<Member> {
             // Send filelist of joined folders
 
             Message[] filelistMsgs;
-            if (folder.hasOwnDatabase()) {
+            if (folder.hasOwnDatabase()
+                && folder.supportFileListReconcile(this)
+                && folder.getKnownItemCount() > Constants.FILE_LIST_MAX_FILES_PER_MESSAGE)
+            {
+                // Remote side requests the parts that changed since the last
+                // connection
+                filelistMsgs = new Message[]{FileListDigest.create(folder)};
+            } else if (folder.hasOwnDatabase()) {
                 filelistMsgs = FileList.create(folder,
-                    folder.supportExternalizable(this));
+                    folder.supportExternalizable(this),
+                    folder.supportCompactFileList(this));
             } else {
                 filelistMsgs = new Message[1];
                 filelistMsgs[0] = FileList.createEmpty(folder.getInfo(),
                     folder.supportExternalizable(this));
             }
 
-            for (Message message : filelistMsgs) {
-                try {
-                    sendMessage(message);
-                } catch (ConnectionException e) {
-                    shutdown();
-                    return null;
-                }
+            try {
+                enqueueMessages(filelistMsgs);
+            } catch (ConnectionException e) {
+                shutdown();
+                return null;
             }
             foldersRequested.remove(folder);
         }
@@ -1190,9 +1221,23 @@ public class Member extends PFComponent implements Comparable<Member> {
      */
     public void shutdown() {
         boolean wasHandshaked = handshaked;
+        boolean retainFileLists = wasHandshaked
+            && getProtocolVersion() >= Identity.PROTOCOL_VERSION_113;
 
         shutdownPeer();
 
+        // Fail pending requests
+        RequestExecutor executor = requestExecutor;
+        if (executor != null) {
+            executor.disconnected();
+        }
+
+        // Drop received messages not yet handled
+        MessageDispatcher dispatcher = messageDispatcher;
+        if (dispatcher != null) {
+            dispatcher.clear();
+        }
+
         // Notify waiting locks.
         synchronized (folderListWaiter) {
             folderListWaiter.notifyAll();
@@ -1200,6 +1245,7 @@ public class Member extends PFComponent implements Comparable<Member> {
 
         folderListReceived = false;
         lastFolderList = null;
+        secureIdCaches.clear();
         // Disco, assume completely
         setConnectedToNetwork(false);
         handshaked = false;
@@ -1210,6 +1256,9 @@ public class Member extends PFComponent implements Comparable<Member> {
 
         // Remove filelist to save memory.
         for (Folder folder : getFoldersActuallyJoined()) {
+            if (retainFileLists) {
+                folder.retainFileList(this);
+            }
             folder.getDAO().deleteDomain(getId(), -1);
         }
 
@@ -1286,6 +1335,27 @@ public class Member extends PFComponent implements Comparable<Member> {
         }
     }
 
+    /**
+     * Enqueues multiple messages for sending. Code execution waits while the
+     * send lane of a message is full. Use this for messages of big amounts of
+     * data, like file chunks or filelists. Never call this from the thread
+     * receiving messages.
+     *
+     * @see ConnectionHandler#enqueueMessages(Message...)
+     * @param messages
+     *            the messages to send
+     * @throws ConnectionException
+     */
+    public void enqueueMessages(Message... messages)
+        throws ConnectionException
+    {
+        checkPeer();
+        ConnectionHandler thisPeer = peer;
+        if (thisPeer != null) {
+            thisPeer.enqueueMessages(messages);
+        }
+    }
+
     /**
      * Handles an incomming message from the remote peer (ConnectionHandler)
      *
@@ -1303,11 +1373,47 @@ public class Member extends PFComponent implements Comparable<Member> {
                 "Unable to handle message, message is null");
         }
 
+        // Folder related and transfer messages are handled by workers, keeping
+        // the order per folder and per file. All others are handled right here.
+        boolean dispatch = ConfigurationEntry.NET_MESSAGE_DISPATCH_ENABLED
+            .getValueBoolean(getController());
+        Object orderingKey = dispatch
+            ? MessageDispatcher.orderingKey(message)
+            : null;
+        if (orderingKey == null) {
+            MessageDispatcher dispatcher = messageDispatcher;
+            if (dispatch && dispatcher != null
+                && !MessageDispatcher.mayOvertake(message))
+            {
+                // Not before the messages received earlier
+                dispatcher.awaitPending();
+            }
+            processMessage(message, fromPeer);
+            return;
+        }
+        getMessageDispatcher().dispatch(orderingKey, new Runnable() {
+            @Override
+            public void run() {
+                if (fromPeer != null && !fromPeer.isConnected()) {
+                    if (isFiner()) {
+                        logFiner("Dropping message of closed connection: "
+                            + message);
+                    }
+                    return;
+                }
+                processMessage(message, fromPeer);
+            }
+        });
+    }
+
+    private void processMessage(final Message message,
+        final ConnectionHandler fromPeer)
+    {
         // Profile this execution.
         ProfilingEntry profilingEntry = null;
         if (Profiling.ENABLED) {
-            profilingEntry = Profiling.start("Member.handleMessage", message
-                .getClass().getSimpleName());
+            profilingEntry = Profiling.start(HANDLE_MESSAGE_OPERATIONS
+                .get(message.getClass()));
         }
 
         int expectedTime = -1;
@@ -1336,8 +1442,8 @@ public class Member extends PFComponent implements Comparable<Member> {
 
             // do all the message processing
             // Processing of message also should take only
-            // a short time, because member is not able
-            // to received any other message meanwhile !
+            // a short time. Messages without ordering key block the
+            // receiving of any other message meanwhile !
 
             // Identity is not handled HERE !
             if (message instanceof Ping) {
@@ -1464,7 +1570,9 @@ public class Member extends PFComponent implements Comparable<Member> {
             } else if (message instanceof AbortDownload) {
                 AbortDownload abort = (AbortDownload) message;
                 // Abort the upload
-                logFine("Received " + abort + " from " + this);
+                if (isFine()) {
+                    logFine("Received " + abort + " from " + this);
+                }
                 getController().getTransferManager().abortUpload(abort.file,
                     this);
                 expectedTime = 100;
@@ -1584,16 +1692,15 @@ public class Member extends PFComponent implements Comparable<Member> {
                                     + getNick());
                                 Message[] filelistMsgs = FileList.create(
                                     targetFolder, targetFolder
-                                        .supportExternalizable(Member.this));
-                                for (Message filelistMsg : filelistMsgs) {
-                                    try {
-                                        sendMessage(filelistMsg);
-                                    } catch (ConnectionException e) {
-                                        logWarning("Unable to send new filelist of "
-                                            + targetFolder.getName()
-                                            + " to "
-                                            + getNick() + ". " + e);
-                                    }
+                                        .supportExternalizable(Member.this),
+                                    targetFolder
+                                        .supportCompactFileList(Member.this));
+                                try {
+                                    enqueueMessages(filelistMsgs);
+                                } catch (ConnectionException e) {
+                                    logWarning("Unable to send new filelist of "
+                                        + targetFolder.getName() + " to "
+                                        + getNick() + ". " + e);
                                 }
                             }
                         }
@@ -1601,6 +1708,57 @@ public class Member extends PFComponent implements Comparable<Member> {
                     getController().getIOProvider().startIO(filelistSender);
                 }
 
+            } else if (message instanceof FileListDigest) {
+                final FileListDigest digest = (FileListDigest) message;
+                if (!digest.isValid()) {
+                    logWarning("Received invalid filelist digest: " + digest);
+                } else if (targetFolder != null) {
+                    Runnable digestHandler = new Runnable() {
+                        @Override
+                        public void run() {
+                            targetFolder.fileListDigestReceived(Member.this,
+                                digest);
+                        }
+                    };
+                    getController().getIOProvider().startIO(digestHandler);
+                }
+                expectedTime = 50;
+
+            } else if (message instanceof FileListBucketRequest) {
+                final FileListBucketRequest request = (FileListBucketRequest) message;
+                if (!request.isValid()) {
+                    logWarning("Received invalid filelist request: " + request);
+                } else if (targetFolder != null) {
+                    Runnable filelistSender = new Runnable() {
+                        @Override
+                        public void run() {
+                            Message[] filelistMsgs;
+                            if (targetFolder.hasReadPermission(Member.this)) {
+                                filelistMsgs = FileList.create(targetFolder,
+                                    targetFolder
+                                        .supportExternalizable(Member.this),
+                                    targetFolder
+                                        .supportCompactFileList(Member.this),
+                                    request);
+                            } else {
+                                filelistMsgs = new Message[]{FileList
+                                    .createEmpty(targetFolder.getInfo(),
+                                        targetFolder
+                                            .supportExternalizable(Member.this))};
+                            }
+                            try {
+                                enqueueMessages(filelistMsgs);
+                            } catch (ConnectionException e) {
+                                logWarning("Unable to send filelist of "
+                                    + targetFolder.getName() + " to "
+                                    + getNick() + ". " + e);
+                            }
+                        }
+                    };
+                    getController().getIOProvider().startIO(filelistSender);
+                }
+                expectedTime = 50;
+
             } else if (message instanceof FileList) {
                 final FileList remoteFileList = (FileList) message;
 
@@ -1771,7 +1929,9 @@ public class Member extends PFComponent implements Comparable<Member> {
                 if (dl != null) {
                     dl.uploadStarted(su.getFile());
                 } else if (downloadRecentlyCompleted(su.getFile())) {
-                    logFine("Download invalid or obsolete:" + su.getFile());
+                    if (isFine()) {
+                        logFine("Download invalid or obsolete:" + su.getFile());
+                    }
                     sendMessageAsynchron(new AbortDownload(su.getFile()));
                 }
                 expectedTime = 100;
@@ -1882,6 +2042,11 @@ public class Member extends PFComponent implements Comparable<Member> {
                     logWarning("Ignoring reload config request from non server: "
                         + message);
                 }
+            } else if (message instanceof Response) {
+                RequestExecutor executor = requestExecutor;
+                if (executor != null) {
+                    executor.responseReceived((Response) message);
+                }
             } else {
                 if (isFiner()) {
                     logFiner("Message not known to message handling code, "
@@ -1933,12 +2098,13 @@ public class Member extends PFComponent implements Comparable<Member> {
                 Collection<FolderInfo> folders2node = getFilteredFolderList(
                         fList, fullList);
                 FolderList myFolderList;
+                SecureIdCache remoteSecureIds = getSecureIdCache(remoteMagicId);
                 if (getProtocolVersion() >= Identity.PROTOCOL_VERSION_106) {
                     myFolderList = new FolderListExt(
-                            folders2node, remoteMagicId);
+                            folders2node, remoteSecureIds);
                 } else {
                     myFolderList = new FolderList(folders2node,
-                            remoteMagicId);
+                            remoteSecureIds);
                 }
                 if (isFine()) {
                     logFine("Sending HM " + myFolderList);
@@ -1955,6 +2121,40 @@ public class Member extends PFComponent implements Comparable<Member> {
         }
     }
 
+    private MessageDispatcher getMessageDispatcher() {
+        MessageDispatcher dispatcher = messageDispatcher;
+        if (dispatcher == null) {
+            synchronized (this) {
+                dispatcher = messageDispatcher;
+                if (dispatcher == null) {
+                    dispatcher = new MessageDispatcher(
+                        runnable -> getController().getIOProvider().startIO(
+                            runnable), Constants.MESSAGE_DISPATCH_MAX_PENDING);
+                    messageDispatcher = dispatcher;
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * @return the executor for requests on this node. Multiple requests may
+     *         run concurrently.
+     */
+    public RequestExecutor getRequestExecutor() {
+        RequestExecutor executor = requestExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = requestExecutor;
+                if (executor == null) {
+                    executor = new RequestExecutor(getController(), this);
+                    requestExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
     /**
      * Adds a message listener
      *
@@ -2078,10 +2278,11 @@ public class Member extends PFComponent implements Comparable<Member> {
             Collection<FolderInfo> folders2node = getFilteredFolderList(
                 folderList, fullList);
             FolderList myFolderList;
+            SecureIdCache remoteSecureIds = getSecureIdCache(remoteMagicId);
             if (getProtocolVersion() >= Identity.PROTOCOL_VERSION_106) {
-                myFolderList = new FolderListExt(folders2node, remoteMagicId);
+                myFolderList = new FolderListExt(folders2node, remoteSecureIds);
             } else {
-                myFolderList = new FolderList(folders2node, remoteMagicId);
+                myFolderList = new FolderList(folders2node, remoteSecureIds);
             }
             if (isFiner()) {
                 logFiner("Sending SFM " + myFolderList);
@@ -2114,10 +2315,11 @@ public class Member extends PFComponent implements Comparable<Member> {
             && thisPeer != null
             && StringUtils.isNotBlank(thisPeer.getMyMagicId()))
         {
-            String magicId = thisPeer.getMyMagicId();
+            SecureIdCache secureIds = getSecureIdCache(thisPeer
+                .getMyMagicId());
             folders2node = new LinkedList<FolderInfo>();
             for (FolderInfo folderInfo : allFolders) {
-                if (remoteFolderList.contains(folderInfo, magicId)) {
+                if (remoteFolderList.contains(folderInfo, secureIds)) {
                     folders2node.add(folderInfo);
                 }
             }
@@ -2163,11 +2365,11 @@ public class Member extends PFComponent implements Comparable<Member> {
                 && folderList.secretFolders.length > 0)
             {
                 // Step 1: Calculate secure folder ids for local secret folders
+                SecureIdCache secureIds = getSecureIdCache(myMagicId);
                 Map<String, Folder> localSecretFolders = new HashMap<String, Folder>();
                 for (Folder folder : localFolders) {
                     // Calculate id with my magic id
-                    String secureId = folder.getInfo().calculateSecureId(
-                        myMagicId);
+                    String secureId = secureIds.getSecureId(folder.getInfo());
                     // Add to local secret folder list
                     localSecretFolders.put(secureId, folder);
                 }
@@ -2248,6 +2450,29 @@ public class Member extends PFComponent implements Comparable<Member> {
         return lastFolderList;
     }
 
+    /**
+     * The secure ids are cached until disconnect. They might get dropped
+     * earlier if memory is low.
+     *
+     * @param magicId
+     *            my or the remote magic id of the current connection.
+     * @return the secure ids of the folders for the magic id.
+     */
+    public SecureIdCache getSecureIdCache(String magicId) {
+        SoftReference<SecureIdCache> ref = secureIdCaches.get(magicId);
+        SecureIdCache cache = ref != null ? ref.get() : null;
+        if (cache == null) {
+            cache = new SecureIdCache(magicId);
+            if (secureIdCaches.size() >= 2) {
+                // Only my and the remote magic id of one connection
+                secureIdCaches.clear();
+            }
+            secureIdCaches.put(magicId, new SoftReference<SecureIdCache>(
+                cache));
+        }
+        return cache;
+    }
+
     /**
      * Answers if we received the complete filelist (+all nessesary deltas) on
      * that folder.
@@ -2318,12 +2543,18 @@ public class Member extends PFComponent implements Comparable<Member> {
             return Collections.emptyList();
         }
         String magicId = thisPeer.getMyMagicId();
+        if (StringUtils.isBlank(magicId)) {
+            logWarning("Unable to get folders. Own magic id of peer is blank: "
+                + thisPeer);
+            return Collections.emptyList();
+        }
         // TODO Think about a better way
         FolderList fList = getLastFolderList();
         if (fList == null) {
             logWarning("Unable to get last folder list");
             return Collections.emptyList();
         }
+        SecureIdCache secureIds = getSecureIdCache(magicId);
         List<Folder> requestedFolders = new LinkedList<Folder>();
         for (Folder folder : getController().getFolderRepository().getFolders(
             true))
@@ -2338,7 +2569,7 @@ public class Member extends PFComponent implements Comparable<Member> {
                 }
             }
 
-            if (fList.contains(foInfo, magicId)) {
+            if (fList.contains(foInfo, secureIds)) {
                 requestedFolders.add(folder);
             }
         }
@@ -125,8 +125,7 @@ public class RemoteServiceStubFactory {
                     new StackDump());
             }
             Identity id = remoteSide.getIdentity();
-            RequestExecutor executor = new RequestExecutor(controller,
-                remoteSide);
+            RequestExecutor executor = remoteSide.getRequestExecutor();
             RemoteMethodCallRequest request = new RemoteMethodCallRequest(
                 serviceId, method, args);
             if (id == null || id.isSupportsSerializedRequest()) {
@@ -19,161 +19,222 @@
  */
 package de.dal33t.powerfolder.clientserver;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
-import de.dal33t.powerfolder.event.NodeManagerAdapter;
-import de.dal33t.powerfolder.event.NodeManagerEvent;
-import de.dal33t.powerfolder.message.Message;
-import de.dal33t.powerfolder.message.MessageListener;
 import de.dal33t.powerfolder.message.clientserver.Request;
 import de.dal33t.powerfolder.message.clientserver.Response;
 import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
 
 /**
- * Performs a basic request - response message cycle.
+ * Performs request - response message cycles with a remote node.
  * <p>
- * Rationale: Executes a request on a remote node.
+ * Rationale: Executes requests on a remote node.
  * <p>
- * Is thread safe. Can execute only one request.
+ * Is thread safe. Executes any number of requests concurrently over the
+ * connection to the node. Pending requests are kept by their request id until
+ * the response is received, the request times out or the node disconnects.
+ * There is one executor per node, which receives the responses directly from
+ * the node.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
  * @version $Revision: 1.5 $
+ * @see Member#getRequestExecutor()
  */
 public class RequestExecutor extends PFComponent {
 
-    private Object waitForResponseLock = new Object();
-    private Member node;
+    /**
+     * Additional time {@link #execute(Request, long)} waits for the future
+     * after the request timeout.
+     */
+    private static final long TIMEOUT_MARGIN_MS = 5000L;
 
-    private DisconnectListener discoListener;
-    private ResponseMessageListener messageListener;
-    private String requestId;
-    private Response response;
+    private final Member node;
+    private final ConcurrentMap<String, CompletableFuture<Response>> pendingRequests = Util
+        .createConcurrentHashMap();
 
     public RequestExecutor(Controller controller, Member node) {
         super(controller);
         Reject.ifNull(node, "Node is null");
         this.node = node;
-        this.discoListener = new DisconnectListener();
-        this.messageListener = new ResponseMessageListener();
     }
 
-    public synchronized Response execute(Request request)
+    /**
+     * Executes the request and waits for the response. Times out after
+     * {@link Constants#REQUEST_RESPONSE_TIMEOUT}.
+     *
+     * @param request
+     * @return the response
+     * @throws ConnectionException
+     *             if not connected, disconnected while waiting or timed out.
+     */
+    public Response execute(Request request) throws ConnectionException {
+        return execute(request, 1000L * Constants.REQUEST_RESPONSE_TIMEOUT);
+    }
+
+    /**
+     * Executes the request and waits for the response.
+     *
+     * @param request
+     * @param timeoutMS
+     *            the time to wait for the response
+     * @return the response
+     * @throws ConnectionException
+     *             if not connected, disconnected while waiting or timed out.
+     */
+    public Response execute(Request request, long timeoutMS)
         throws ConnectionException
     {
-        if (!node.isConnected()) {
-            throw new ConnectionException("Not connected to " + node.getNick());
-        }
-
-        // Prepare
-        response = null;
-        requestId = request.getRequestId();
-
-        if (isFiner()) {
-            logFiner("Sending request to " + node.getNick() + " (" + requestId
-                + "): " + request);
-        }
-        // Listen to receive the response
-        getController().getNodeManager().addNodeManagerListener(discoListener);
-        node.addMessageListener(messageListener);
-        node.sendMessage(request);
-
+        CompletableFuture<Response> future = executeAsync(request, timeoutMS);
         try {
-            waitForResponse(Constants.REQUEST_RESPONSE_TIMEOUT);
-
-            if (response == null) {
-                if (!node.isConnected()) {
-                    throw new ConnectionException(node.getNick()
-                        + " disconnected");
-                }
-                throw new ConnectionException("Timeout to " + node.getNick());
-            }
-
+            // Safety net in case the timeout task never runs, e.g. when the
+            // scheduler gets shut down
+            Response response = future.get(timeoutMS + TIMEOUT_MARGIN_MS,
+                TimeUnit.MILLISECONDS);
             if (isFiner()) {
-                logFiner("Response from " + node.getNick() + " (" + requestId
-                    + "): " + response + " to " + request);
+                logFiner("Response from " + node.getNick() + " ("
+                    + request.getRequestId() + "): " + response + " to "
+                    + request);
             }
-        } finally {
-            notifyAndcleanup();
-        }
-
-        return response;
-    }
-
-    // Internal helper ********************************************************
-
-    private void waitForResponse(long seconds) {
-        synchronized (waitForResponseLock) {
-            if (response != null) {
-                // Already got response
-                return;
-            }
-            try {
-                waitForResponseLock.wait(1000L * seconds);
-            } catch (InterruptedException e) {
-                logWarning("Interrupted while waiting for response (" + node
-                    + "): " + e);
-                logFiner("InterruptedException", e);
+            return response;
+        } catch (InterruptedException e) {
+            pendingRequests.remove(request.getRequestId(), future);
+            logWarning("Interrupted while waiting for response (" + node
+                + "): " + e);
+            throw new ConnectionException("Interrupted while waiting for "
+                + node.getNick(), e);
+        } catch (TimeoutException e) {
+            pendingRequests.remove(request.getRequestId(), future);
+            throw new ConnectionException("Timeout to " + node.getNick(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConnectionException) {
+                throw (ConnectionException) e.getCause();
             }
+            throw new ConnectionException("Request to " + node.getNick()
+                + " failed: " + e.getCause(), e.getCause());
         }
     }
 
-    private void notifyAndcleanup() {
-        if (isFiner()) {
-            logFiner("Cleanup of request: " + requestId);
+    /**
+     * Sends the request without waiting for the response.
+     * <p>
+     * ATTENTION: The future gets completed by the thread receiving messages
+     * from the node. Use the <code>...Async</code> methods of the future to
+     * continue with work that may block.
+     *
+     * @param request
+     * @param timeoutMS
+     *            the time after the future gets completed exceptionally if no
+     *            response was received.
+     * @return the future of the response. Gets completed exceptionally with a
+     *         {@link ConnectionException} on timeout or disconnect.
+     * @throws ConnectionException
+     *             if not connected or shutting down.
+     */
+    public CompletableFuture<Response> executeAsync(Request request,
+        long timeoutMS) throws ConnectionException
+    {
+        Reject.ifNull(request, "Request is null");
+        final String requestId = request.getRequestId();
+        final CompletableFuture<Response> future = new CompletableFuture<Response>();
+        // Register before checking the connection. Disconnects later on fail
+        // the request
+        if (pendingRequests.putIfAbsent(requestId, future) != null) {
+            throw new IllegalStateException("Request already pending: "
+                + request);
         }
-        synchronized (waitForResponseLock) {
-            waitForResponseLock.notifyAll();
+        if (!node.isConnected()) {
+            pendingRequests.remove(requestId, future);
+            throw new ConnectionException("Not connected to " + node.getNick());
         }
-        node.removeMessageListener(messageListener);
-        getController().getNodeManager().removeNodeManagerListener(
-            discoListener);
-    }
 
-    private class DisconnectListener extends NodeManagerAdapter {
-        @Override
-        public void nodeConnected(NodeManagerEvent e) {
-            if (!e.getNode().equals(node)) {
-                return;
-            }
-            // Break request
-            // notifyAndcleanup();
+        final ScheduledFuture<?> timeout = getController().schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    if (pendingRequests.remove(requestId, future)) {
+                        future.completeExceptionally(new ConnectionException(
+                            "Timeout to " + node.getNick(),
+                            new TimeoutException()));
+                    }
+                }
+            }, timeoutMS);
+        if (timeout == null) {
+            // Shutting down. Nothing would ever time out the request
+            pendingRequests.remove(requestId, future);
+            throw new ConnectionException("Unable to send request to "
+                + node.getNick() + ": Shutting down");
         }
-
-        @Override
-        public void nodeDisconnected(NodeManagerEvent e) {
-            if (!e.getNode().equals(node)) {
-                return;
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response response, Throwable t) {
+                timeout.cancel(false);
             }
-            // Break request
-            notifyAndcleanup();
-        }
+        });
 
-        public boolean fireInEventDispatchThread() {
-            return false;
+        if (isFiner()) {
+            logFiner("Sending request to " + node.getNick() + " (" + requestId
+                + "): " + request);
         }
+        node.sendMessageAsynchron(request);
+        return future;
     }
 
-    private class ResponseMessageListener implements MessageListener {
+    /**
+     * @return the number of requests waiting for their response.
+     */
+    public int countPendingRequests() {
+        return pendingRequests.size();
+    }
 
-        public void handleMessage(Member source, Message message) {
-            if (!source.equals(node)) {
-                return;
-            }
-            if (!(message instanceof Response)) {
-                return;
-            }
-            Response canidate = (Response) message;
-            if (requestId.equals(canidate.requestId)) {
-                response = canidate;
-                notifyAndcleanup();
+    // Callbacks from the node ************************************************
+
+    /**
+     * Completes the pending request of the response.
+     *
+     * @param response
+     *            the response received from the node.
+     */
+    public void responseReceived(Response response) {
+        CompletableFuture<Response> future = response.requestId != null
+            ? pendingRequests.remove(response.requestId)
+            : null;
+        if (future == null) {
+            if (isFine()) {
+                logFine("Received response for unknown or timed out request ("
+                    + response.requestId + ") from " + node.getNick() + ": "
+                    + response);
             }
+            return;
         }
+        future.complete(response);
+    }
 
-        public boolean fireInEventDispatchThread() {
-            return false;
+    /**
+     * Fails all pending requests. Called when the node disconnects.
+     */
+    public void disconnected() {
+        for (String requestId : pendingRequests.keySet()) {
+            CompletableFuture<Response> future = pendingRequests
+                .remove(requestId);
+            if (future != null) {
+                if (isFiner()) {
+                    logFiner("Cleanup of request: " + requestId);
+                }
+                future.completeExceptionally(new ConnectionException(node
+                    .getNick() + " disconnected"));
+            }
         }
     }
 }
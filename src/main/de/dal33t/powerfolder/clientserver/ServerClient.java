@@ -84,8 +84,8 @@ public class ServerClient extends PFComponent {
      */
     private Properties config;
     private Collection<Member> servers = new CopyOnWriteArrayList<Member>();
-    private SimpleCache<MemberInfo, Boolean> cachedServerPublicKey = new SimpleCache<>(
-        Util.createConcurrentHashMap(), 1, TimeUnit.MINUTES);
+    private ExpiringCache<MemberInfo, Boolean> cachedServerPublicKey = new ExpiringCache<>(
+        1024, 1, TimeUnit.MINUTES);
     private Map<ServerInfo, ServerClient> childClients = Util
         .createConcurrentHashMap();
 
@@ -2192,9 +2192,8 @@ public class ServerClient extends PFComponent {
         }
         boolean folderInCloud = false;
         FolderList fList = server.getLastFolderList();
-        ConnectionHandler conHan = server.getPeer();
-        if (conHan != null && fList != null) {
-            folderInCloud = fList.contains(foInfo, conHan.getMyMagicId());
+        if (fList != null) {
+            folderInCloud = fList.contains(foInfo, server);
         }
         // TODO: #2435
         return folderInCloud;
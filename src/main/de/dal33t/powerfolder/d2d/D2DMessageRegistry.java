@@ -0,0 +1,331 @@
+/*
+ * Copyright 2004 - 2015 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.d2d;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+import com.google.protobuf.WireFormat;
+
+import de.dal33t.powerfolder.message.CreateAccountReply;
+import de.dal33t.powerfolder.message.DownloadQueued;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FolderFilesChangedExt;
+import de.dal33t.powerfolder.message.FolderList;
+import de.dal33t.powerfolder.message.HandshakeCompleted;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.IdentityReply;
+import de.dal33t.powerfolder.message.KnownNodes;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.NodeListReply;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.Problem;
+import de.dal33t.powerfolder.message.ReplyFilePartsRecord;
+import de.dal33t.powerfolder.message.RequestDownload;
+import de.dal33t.powerfolder.message.RequestFilePartsRecord;
+import de.dal33t.powerfolder.message.RequestNodeList;
+import de.dal33t.powerfolder.message.RequestPart;
+import de.dal33t.powerfolder.message.StartUpload;
+import de.dal33t.powerfolder.message.StopUpload;
+import de.dal33t.powerfolder.message.TransferStatus;
+import de.dal33t.powerfolder.message.clientserver.AccountDetailsReply;
+import de.dal33t.powerfolder.message.clientserver.AccountDetailsRequest;
+import de.dal33t.powerfolder.message.clientserver.CertificateSigningReply;
+import de.dal33t.powerfolder.message.clientserver.CertificateSigningRequest;
+import de.dal33t.powerfolder.message.clientserver.CreateAccountRequest;
+import de.dal33t.powerfolder.message.clientserver.FolderCreateReply;
+import de.dal33t.powerfolder.message.clientserver.FolderCreateRequest;
+import de.dal33t.powerfolder.message.clientserver.FolderRemoveReply;
+import de.dal33t.powerfolder.message.clientserver.FolderRemoveRequest;
+import de.dal33t.powerfolder.message.clientserver.FolderRenameReply;
+import de.dal33t.powerfolder.message.clientserver.FolderRenameRequest;
+import de.dal33t.powerfolder.message.clientserver.LoginReply;
+import de.dal33t.powerfolder.message.clientserver.LoginRequest;
+import de.dal33t.powerfolder.message.clientserver.PermissionReply;
+import de.dal33t.powerfolder.message.clientserver.PermissionRequest;
+import de.dal33t.powerfolder.message.clientserver.ReplyStatusCode;
+import de.dal33t.powerfolder.protocol.AccountDetailsReplyProto;
+import de.dal33t.powerfolder.protocol.AccountDetailsRequestProto;
+import de.dal33t.powerfolder.protocol.CertificateSigningReplyProto;
+import de.dal33t.powerfolder.protocol.CertificateSigningRequestProto;
+import de.dal33t.powerfolder.protocol.CreateAccountReplyProto;
+import de.dal33t.powerfolder.protocol.CreateAccountRequestProto;
+import de.dal33t.powerfolder.protocol.DownloadQueuedProto;
+import de.dal33t.powerfolder.protocol.DownloadRequestProto;
+import de.dal33t.powerfolder.protocol.FileListProto;
+import de.dal33t.powerfolder.protocol.FilePartInfoListReplyProto;
+import de.dal33t.powerfolder.protocol.FilePartInfoListRequestProto;
+import de.dal33t.powerfolder.protocol.FilePartReplyProto;
+import de.dal33t.powerfolder.protocol.FilePartRequestProto;
+import de.dal33t.powerfolder.protocol.FolderCreateReplyProto;
+import de.dal33t.powerfolder.protocol.FolderCreateRequestProto;
+import de.dal33t.powerfolder.protocol.FolderFilesChangedProto;
+import de.dal33t.powerfolder.protocol.FolderListProto;
+import de.dal33t.powerfolder.protocol.FolderRemoveReplyProto;
+import de.dal33t.powerfolder.protocol.FolderRemoveRequestProto;
+import de.dal33t.powerfolder.protocol.FolderRenameReplyProto;
+import de.dal33t.powerfolder.protocol.FolderRenameRequestProto;
+import de.dal33t.powerfolder.protocol.HandshakeCompletedProto;
+import de.dal33t.powerfolder.protocol.IdentityProto;
+import de.dal33t.powerfolder.protocol.IdentityReplyProto;
+import de.dal33t.powerfolder.protocol.LoginReplyProto;
+import de.dal33t.powerfolder.protocol.LoginRequestProto;
+import de.dal33t.powerfolder.protocol.NodeListProto;
+import de.dal33t.powerfolder.protocol.NodeListReplyProto;
+import de.dal33t.powerfolder.protocol.NodeListRequestProto;
+import de.dal33t.powerfolder.protocol.PermissionReplyProto;
+import de.dal33t.powerfolder.protocol.PermissionRequestProto;
+import de.dal33t.powerfolder.protocol.PingProto;
+import de.dal33t.powerfolder.protocol.PongProto;
+import de.dal33t.powerfolder.protocol.ProblemProto;
+import de.dal33t.powerfolder.protocol.ReplyStatusCodeProto;
+import de.dal33t.powerfolder.protocol.TransferStatusProto;
+import de.dal33t.powerfolder.protocol.UploadStartProto;
+import de.dal33t.powerfolder.protocol.UploadStopProto;
+
+/**
+ * Table of all D2D messages, which can be received. Maps the name of the
+ * protocol message to its parser and to the factory of the message object.
+ * <p>
+ * Decoding reads the name of the message from the first field
+ * (<code>clazzName</code>) and parses the data once with the registered
+ * parser. No reflection.
+ */
+public final class D2DMessageRegistry {
+
+    /**
+     * Tag of <code>clazzName</code> in all D2D messages: Field number 1,
+     * length delimited.
+     */
+    private static final int CLAZZ_NAME_TAG = 1 << 3
+        | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private static final Map<String, Entry> ENTRIES;
+
+    static {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        // Message package. Names in protocol files may differ
+        register(entries, "CreateAccountReply",
+            CreateAccountReplyProto.CreateAccountReply.parser(),
+            CreateAccountReply::new);
+        register(entries, "DownloadQueued",
+            DownloadQueuedProto.DownloadQueued.parser(), DownloadQueued::new);
+        register(entries, "DownloadRequest",
+            DownloadRequestProto.DownloadRequest.parser(),
+            RequestDownload::new);
+        register(entries, "FileList", FileListProto.FileList.parser(),
+            FileList::new);
+        register(entries, "FilePartInfoListReply",
+            FilePartInfoListReplyProto.FilePartInfoListReply.parser(),
+            ReplyFilePartsRecord::new);
+        register(entries, "FilePartInfoListRequest",
+            FilePartInfoListRequestProto.FilePartInfoListRequest.parser(),
+            RequestFilePartsRecord::new);
+        register(entries, "FilePartReply",
+            FilePartReplyProto.FilePartReply.parser(), FileChunk::new);
+        register(entries, "FilePartRequest",
+            FilePartRequestProto.FilePartRequest.parser(), RequestPart::new);
+        // Workaround for FolderFilesChanged (protected fields)
+        register(entries, "FolderFilesChanged",
+            FolderFilesChangedProto.FolderFilesChanged.parser(),
+            FolderFilesChangedExt::new);
+        register(entries, "FolderList", FolderListProto.FolderList.parser(),
+            FolderList::new);
+        register(entries, "HandshakeCompleted",
+            HandshakeCompletedProto.HandshakeCompleted.parser(),
+            HandshakeCompleted::new);
+        register(entries, "Identity", IdentityProto.Identity.parser(),
+            Identity::new);
+        register(entries, "IdentityReply",
+            IdentityReplyProto.IdentityReply.parser(), IdentityReply::new);
+        register(entries, "NodeList", NodeListProto.NodeList.parser(),
+            KnownNodes::new);
+        register(entries, "NodeListReply",
+            NodeListReplyProto.NodeListReply.parser(), NodeListReply::new);
+        register(entries, "NodeListRequest",
+            NodeListRequestProto.NodeListRequest.parser(),
+            RequestNodeList::new);
+        register(entries, "Ping", PingProto.Ping.parser(), Ping::new);
+        register(entries, "Pong", PongProto.Pong.parser(), Pong::new);
+        register(entries, "Problem", ProblemProto.Problem.parser(),
+            Problem::new);
+        register(entries, "TransferStatus",
+            TransferStatusProto.TransferStatus.parser(), TransferStatus::new);
+        register(entries, "UploadStart", UploadStartProto.UploadStart.parser(),
+            StartUpload::new);
+        register(entries, "UploadStop", UploadStopProto.UploadStop.parser(),
+            StopUpload::new);
+
+        // Client server package
+        register(entries, "AccountDetailsReply",
+            AccountDetailsReplyProto.AccountDetailsReply.parser(),
+            AccountDetailsReply::new);
+        register(entries, "AccountDetailsRequest",
+            AccountDetailsRequestProto.AccountDetailsRequest.parser(),
+            AccountDetailsRequest::new);
+        register(entries, "CertificateSigningReply",
+            CertificateSigningReplyProto.CertificateSigningReply.parser(),
+            CertificateSigningReply::new);
+        register(entries, "CertificateSigningRequest",
+            CertificateSigningRequestProto.CertificateSigningRequest.parser(),
+            CertificateSigningRequest::new);
+        register(entries, "CreateAccountRequest",
+            CreateAccountRequestProto.CreateAccountRequest.parser(),
+            CreateAccountRequest::new);
+        register(entries, "FolderCreateRequest",
+            FolderCreateRequestProto.FolderCreateRequest.parser(),
+            FolderCreateRequest::new);
+        register(entries, "FolderRemoveRequest",
+            FolderRemoveRequestProto.FolderRemoveRequest.parser(),
+            FolderRemoveRequest::new);
+        register(entries, "FolderRenameRequest",
+            FolderRenameRequestProto.FolderRenameRequest.parser(),
+            FolderRenameRequest::new);
+        register(entries, "LoginReply", LoginReplyProto.LoginReply.parser(),
+            LoginReply::new);
+        register(entries, "LoginRequest",
+            LoginRequestProto.LoginRequest.parser(), LoginRequest::new);
+        register(entries, "PermissionReply",
+            PermissionReplyProto.PermissionReply.parser(),
+            PermissionReply::new);
+        register(entries, "PermissionRequest",
+            PermissionRequestProto.PermissionRequest.parser(),
+            PermissionRequest::new);
+        register(entries, "ReplyStatusCode",
+            ReplyStatusCodeProto.ReplyStatusCode.parser(),
+            ReplyStatusCode::new);
+        // Replies without default constructor
+        registerConstructor(entries, "FolderCreateReply",
+            FolderCreateReplyProto.FolderCreateReply.parser(),
+            FolderCreateReply::new);
+        registerConstructor(entries, "FolderRemoveReply",
+            FolderRemoveReplyProto.FolderRemoveReply.parser(),
+            FolderRemoveReply::new);
+        registerConstructor(entries, "FolderRenameReply",
+            FolderRenameReplyProto.FolderRenameReply.parser(),
+            FolderRenameReply::new);
+        ENTRIES = Collections.unmodifiableMap(entries);
+    }
+
+    private D2DMessageRegistry() {
+        // No instance allowed
+    }
+
+    /**
+     * Decodes a D2D message.
+     *
+     * @param data
+     *            the received data
+     * @param len
+     *            the length of the message in data
+     * @return the message
+     * @throws IOException
+     *             if the data is not a valid or a unknown message.
+     */
+    public static Message decode(byte[] data, int len) throws IOException {
+        String clazzName = readClazzName(data, len);
+        if (clazzName == null) {
+            throw new InvalidProtocolBufferException(
+                "Message without class name");
+        }
+        Entry entry = ENTRIES.get(clazzName);
+        if (entry == null) {
+            throw new InvalidProtocolBufferException("Unknown message: "
+                + clazzName);
+        }
+        AbstractMessage proto = entry.parser.parseFrom(data, 0, len);
+        return (Message) entry.factory.apply(proto);
+    }
+
+    /**
+     * @return the names of all registered protocol messages.
+     */
+    public static Set<String> getMessageNames() {
+        return ENTRIES.keySet();
+    }
+
+    /**
+     * Reads the class name without parsing the whole message. Usually it is
+     * the first field.
+     *
+     * @param data
+     * @param len
+     * @return the class name of the message or null if not set.
+     * @throws IOException
+     */
+    static String readClazzName(byte[] data, int len) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(data, 0, len);
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                return null;
+            }
+            if (tag == CLAZZ_NAME_TAG) {
+                return in.readString();
+            }
+            if (!in.skipField(tag)) {
+                return null;
+            }
+        }
+    }
+
+    private static void register(Map<String, Entry> entries, String name,
+        Parser<? extends AbstractMessage> parser,
+        Supplier<? extends D2DObject> factory)
+    {
+        registerConstructor(entries, name, parser, proto -> {
+            D2DObject obj = factory.get();
+            obj.initFromD2D(proto);
+            return obj;
+        });
+    }
+
+    private static void registerConstructor(Map<String, Entry> entries,
+        String name, Parser<? extends AbstractMessage> parser,
+        Function<AbstractMessage, ? extends D2DObject> factory)
+    {
+        if (entries.put(name, new Entry(parser, factory)) != null) {
+            throw new IllegalStateException("Duplicate D2D message: " + name);
+        }
+    }
+
+    private static class Entry {
+        private final Parser<? extends AbstractMessage> parser;
+        private final Function<AbstractMessage, ? extends D2DObject> factory;
+
+        private Entry(Parser<? extends AbstractMessage> parser,
+            Function<AbstractMessage, ? extends D2DObject> factory)
+        {
+            this.parser = parser;
+            this.factory = factory;
+        }
+    }
+}
@@ -21,12 +21,10 @@
 
 package de.dal33t.powerfolder.d2d;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.net.Socket;
 
 import com.google.protobuf.AbstractMessage;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.message.*;
@@ -34,8 +32,6 @@ import de.dal33t.powerfolder.net.AbstractSocketConnectionHandler;
 import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.net.ConnectionHandlerFactory;
-import de.dal33t.powerfolder.protocol.AnyMessageProto;
-import de.dal33t.powerfolder.protocol.FolderFilesChangedProto;
 
 /**
  * Handler for relayed connections to other clients. NO encrypted transfer.
@@ -48,13 +44,6 @@ import de.dal33t.powerfolder.protocol.FolderFilesChangedProto;
 public class D2DSocketConnectionHandler extends AbstractSocketConnectionHandler
     implements ConnectionHandler {
 
-    /* Define full packages here; might be required in the future */
-    private final String[] PACKAGES = new String[] {
-        "de.dal33t.powerfolder.message.%s",
-        "de.dal33t.powerfolder.message.clientserver.%s",
-        "de.dal33t.powerfolder.util.delta.%s"
-    };
-
     /**
      * Builds a new D2D connection manager for the socket.
      * <p>
@@ -88,96 +77,15 @@ public class D2DSocketConnectionHandler extends AbstractSocketConnectionHandler
     protected Object deserialize(byte[] data, int len)
         throws ClassNotFoundException, ConnectionException {
 
-        String klassName = "unknown";
-
         if (isFiner()) {
             logFiner("Got message; parsing it..");
         }
 
         try {
-            AnyMessageProto.AnyMessage anyMessage = AnyMessageProto.AnyMessage
-                .parseFrom(data);
-
-            /* Assemble name and package */
-            klassName = anyMessage.getClazzName();
-            String klassPkg = String.format(
-                "de.dal33t.powerfolder.protocol.%sProto$%s", klassName,
-                klassName);
-
-            // Workaround for FolderFilesChanged (protected variables cannot be
-            // set via reflection)
-            if (klassName.equals("FolderFilesChanged")) {
-                FolderFilesChangedProto.FolderFilesChanged folderFilesChangedProto = 
-                    FolderFilesChangedProto.FolderFilesChanged.parseFrom(data);
-
-                FolderFilesChangedExt folderFilesChangedExt = new FolderFilesChangedExt();
-                folderFilesChangedExt.initFromD2D(folderFilesChangedProto);
-
-                return folderFilesChangedExt;
-            }
-
-            /* Try to create D2D message */
-            Class<?> klass = Class.forName(klassPkg);
-            Method meth = klass.getMethod("parseFrom", byte[].class);
-            AbstractMessage amesg = (AbstractMessage) meth.invoke(null, data);
-
-            // Translate new names defined in protocol files to old message names
-            if (klassName.equals("DownloadAbort")) {
-                klassName = "AbortDownload";
-            } else if (klassName.equals("DownloadRequest")) {
-                klassName = "RequestDownload";
-            } else if (klassName.equals("FilePartInfo")) {
-                klassName = "PartInfo";
-            } else if (klassName.equals("FilePartInfoList")) {
-                klassName = "FilePartsRecord";
-            } else if (klassName.equals("FilePartInfoListReply")) {
-                klassName = "ReplyFilePartsRecord";
-            } else if (klassName.equals("FilePartInfoListRequest")) {
-                klassName = "RequestFilePartsRecord";
-            } else if (klassName.equals("FilePartReply")) {
-                klassName = "FileChunk";
-            } else if (klassName.equals("FilePartRequest")) {
-                klassName = "RequestPart";
-            } else if (klassName.equals("NodeInfo")) {
-                klassName = "MemberInfo";
-            } else if (klassName.equals("NodeList")) {
-                klassName = "KnownNodes";
-            } else if (klassName.equals("NodeListRequest")) {
-                klassName = "RequestNodeList";
-            } else if (klassName.equals("UploadAbort")) {
-                klassName = "AbortUpload";
-            } else if (klassName.equals("UploadStart")) {
-                klassName = "StartUpload";
-            } else if (klassName.equals("UploadStop")) {
-                klassName = "StopUpload";
-            }
-
-            /* Try to find klass in package list and might
-             * cause a NPE when no matching class can be found */
-            for(String pkg : PACKAGES) {
-                try {
-                    klass = Class.forName(String.format(pkg, klassName));
-                } catch (ClassNotFoundException e) {
-                    klass = null; ///< Make this this fails
-                }
-                
-                if(null != klass) break; ///< Exit when done
-            }
-            
-            meth = klass.getMethod("initFromD2D", AbstractMessage.class);
-
-            Object mesg = klass.newInstance();
-
-            meth.invoke(mesg, amesg); ///< Call initFromD2DMessage
-
-            return mesg;
-        } catch (NoSuchMethodException | SecurityException
-            | IllegalArgumentException | InvocationTargetException
-            | InstantiationException | IllegalAccessException
-            | InvalidProtocolBufferException | NullPointerException e)
-        {
+            return D2DMessageRegistry.decode(data, len);
+        } catch (IOException | RuntimeException e) {
             if (isFiner()) {
-                logFiner("Cannot read message(" + klassName + "): " + e.toString());
+                logFiner("Cannot read message: " + e.toString());
             }
 
             throw new ConnectionException(
@@ -198,13 +106,23 @@ public class D2DSocketConnectionHandler extends AbstractSocketConnectionHandler
     @Override
     protected byte[] serialize(Message mesg) throws ConnectionException {
         // Block unsupported messages
-        if (mesg instanceof AddFriendNotification) {
+        Message original = SerializedMessage.unwrap(mesg);
+        if (original instanceof AddFriendNotification) {
             mesg = new Ping();
         }
-        else if (mesg instanceof RelayedMessageExt) {
+        else if (original instanceof RelayedMessageExt) {
             mesg = new Ping();
         }
 
+        // Pre-serialized broadcast
+        if (mesg instanceof SerializedMessage) {
+            byte[] data = ((SerializedMessage) mesg).getD2DData();
+            if (data != null) {
+                return data;
+            }
+            mesg = original;
+        }
+
         byte[] data = null;
 
         if (mesg instanceof D2DObject) {
@@ -44,12 +44,16 @@ import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.pattern.Pattern;
 import de.dal33t.powerfolder.util.pattern.PatternFactory;
+import de.dal33t.powerfolder.util.pattern.PatternSet;
 
 /**
  * Class to hold a number of patterns to filter DiskItems with. The class has
  * two modes: excludeByDefault - DiskItems will be excluded unless they match a
  * pattern (a white list). retainByDefault - DiskItems will be retained unless
  * they match a pattern (a black list).
+ * <p>
+ * The patterns are compiled into one {@link PatternSet}, so the relative name
+ * is read once, independent of the number of patterns.
  */
 public class DiskItemFilter {
 
@@ -73,6 +77,11 @@ public class DiskItemFilter {
      */
     private final Set<Pattern> patterns = new CopyOnWriteArraySet<Pattern>();
 
+    /**
+     * The compiled patterns. Replaced on every change of the patterns.
+     */
+    private volatile PatternSet patternSet = PatternSet.compile(patterns);
+
     /**
      * Whether the patterns have been modified since the last save.
      */
@@ -150,11 +159,13 @@ public class DiskItemFilter {
                 log.fine("Received a pattern file different to own, so loading it.");
                 for (Pattern oldPattern : patterns) {
                     patterns.remove(oldPattern);
+                    patternsChanged();
                     listenerSupport.patternRemoved(new PatternChangedEvent(
                         this, oldPattern.getPatternText(), false));
                 }
                 for (Pattern newPattern : tempPatterns) {
                     patterns.add(newPattern);
+                    patternsChanged();
                     listenerSupport.patternAdded(new PatternChangedEvent(this,
                         newPattern.getPatternText(), true));
                 }
@@ -232,6 +243,7 @@ public class DiskItemFilter {
         }
         try {
             patterns.add(pattern);
+            patternsChanged();
             dirty = true;
             listenerSupport.patternAdded(new PatternChangedEvent(this, pattern
                 .getPatternText(), true));
@@ -244,6 +256,7 @@ public class DiskItemFilter {
     void removeAllPatterns() {
         for (Pattern pattern : patterns) {
             patterns.remove(pattern);
+            patternsChanged();
             dirty = true;
             listenerSupport.patternRemoved(new PatternChangedEvent(this,
                 pattern.getPatternText(), false));
@@ -260,6 +273,7 @@ public class DiskItemFilter {
         for (Pattern pattern : patterns) {
             if (pattern.equals(targetPattern)) {
                 patterns.remove(pattern);
+                patternsChanged();
                 dirty = true;
                 listenerSupport.patternRemoved(new PatternChangedEvent(this,
                     pattern.getPatternText(), false));
@@ -283,24 +297,10 @@ public class DiskItemFilter {
      */
     private boolean isMatches(DiskItem diskItem) {
         if (diskItem instanceof DirectoryInfo) {
-            DirectoryInfo directoryInfo = (DirectoryInfo) diskItem;
-            String dirName = directoryInfo.getRelativeName() + "/*";
-
-            for (Pattern pattern : patterns) {
-                if (pattern.isMatch(dirName)) {
-                    return true;
-                }
-            }
+            return isExcludedDirectory(diskItem.getRelativeName());
         } else if (diskItem instanceof FileInfo) {
-            String name = diskItem.getRelativeName();
-
-            for (Pattern pattern : patterns) {
-                if (pattern.isMatch(name)) {
-                    return true;
-                }
-            }
+            return isExcluded(diskItem.getRelativeName());
         }
-
         return false;
     }
 
@@ -352,15 +352,24 @@ public class DiskItemFilter {
      * @return true if filtered out / excluded
      */
     public boolean isExcluded(String relativeName) {
-        if (patterns.isEmpty()) {
-            return false;
-        }
-        for (Pattern pattern : patterns) {
-            if (pattern.isMatch(relativeName)) {
-                return true;
-            }
-        }
-        return false;
+        return patternSet.isMatch(relativeName);
+    }
+
+    /**
+     * Returns true if the directory is excluded by this filter. Then all items
+     * below the directory are excluded, too. A directory scan may skip the
+     * whole subtree.
+     *
+     * @param relativeName
+     *            the relative name of the directory.
+     * @return true if the directory and its contents are filtered out /
+     *         excluded
+     */
+    public boolean isExcludedDirectory(String relativeName) {
+        // Matches "relativeName/*"
+        return patternSet.start()
+            .next(relativeName, 0, relativeName.length()).next('/')
+            .isMatchAll();
     }
 
     /**
@@ -373,4 +382,10 @@ public class DiskItemFilter {
     public boolean isRetained(DiskItem diskItem) {
         return !isExcluded(diskItem);
     }
+
+    // Internal ***************************************************************
+
+    private void patternsChanged() {
+        patternSet = PatternSet.compile(patterns);
+    }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Hash tree over a filelist. The files are distributed into buckets by their
+ * relative name. Each bucket hash covers all files of the bucket, the root
+ * hash covers all buckets.
+ * <p>
+ * Two peers with equal bucket hashes have the same files in that bucket, so
+ * only the files of differing buckets need to be transferred on reconnect.
+ * The bucket hash is independent of the order of the files.
+ *
+ * @see de.dal33t.powerfolder.message.FileListDigest
+ */
+public final class FileListTree {
+
+    /**
+     * The targeted average number of files per bucket.
+     */
+    public static final int FILES_PER_BUCKET = 64;
+
+    /**
+     * The maximum number of buckets. Limits the size of the digest message.
+     */
+    public static final int MAX_BUCKETS = 1 << 16;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] bucketHashes;
+    private final long root;
+
+    private FileListTree(long[] bucketHashes) {
+        this.bucketHashes = bucketHashes;
+        this.root = rootOf(bucketHashes);
+    }
+
+    /**
+     * Builds the tree over the given files and directories.
+     *
+     * @param nBuckets
+     *            the number of buckets, must be a power of two.
+     * @param files
+     * @param dirs
+     * @param diskItemFilter
+     *            the filter to apply or null to include all items.
+     * @return the tree.
+     */
+    public static FileListTree build(int nBuckets,
+        Collection<? extends FileInfo> files,
+        Collection<? extends FileInfo> dirs, DiskItemFilter diskItemFilter)
+    {
+        Reject.ifFalse(nBuckets > 0 && Integer.bitCount(nBuckets) == 1,
+            "Number of buckets must be a power of two: " + nBuckets);
+        long[] bucketHashes = new long[nBuckets];
+        add(bucketHashes, files, diskItemFilter);
+        add(bucketHashes, dirs, diskItemFilter);
+        return new FileListTree(bucketHashes);
+    }
+
+    private static void add(long[] bucketHashes,
+        Collection<? extends FileInfo> items, DiskItemFilter diskItemFilter)
+    {
+        for (FileInfo fInfo : items) {
+            if (diskItemFilter != null && diskItemFilter.isExcluded(fInfo)) {
+                continue;
+            }
+            bucketHashes[bucketOf(fInfo, bucketHashes.length)] += hash(fInfo);
+        }
+    }
+
+    /**
+     * @param nItems
+     *            the number of files and directories.
+     * @return the number of buckets to use for a list of that size.
+     */
+    public static int bucketCount(int nItems) {
+        int nBuckets = 1;
+        while (nBuckets < MAX_BUCKETS && nBuckets * FILES_PER_BUCKET < nItems)
+        {
+            nBuckets <<= 1;
+        }
+        return nBuckets;
+    }
+
+    /**
+     * @param fInfo
+     * @param nBuckets
+     *            the number of buckets, a power of two.
+     * @return the bucket the file belongs to.
+     */
+    public static int bucketOf(FileInfo fInfo, int nBuckets) {
+        long h = mix(fnv(FNV_OFFSET, fInfo.getRelativeName()));
+        return (int) h & (nBuckets - 1);
+    }
+
+    /**
+     * @param fInfo
+     * @return the hash over all sync relevant fields of the file.
+     */
+    public static long hash(FileInfo fInfo) {
+        long h = fnv(FNV_OFFSET, fInfo.getRelativeName());
+        h = fnv(h, fInfo.isDiretory() ? 1 : 0);
+        h = fnv(h, fInfo.isDeleted() ? 1 : 0);
+        h = fnv(h, fInfo.getVersion());
+        h = fnv(h, fInfo.getSize());
+        Date modDate = fInfo.getModifiedDate();
+        h = fnv(h, modDate != null ? modDate.getTime() : -1);
+        MemberInfo modBy = fInfo.getModifiedBy();
+        h = fnv(h, modBy != null ? modBy.getId() : null);
+        AccountInfo modByAccount = fInfo.getModifiedByAccount();
+        h = fnv(h, modByAccount != null ? modByAccount.getOID() : null);
+        h = fnv(h, fInfo.getOID());
+        h = fnv(h, fInfo.getHashes());
+        h = fnv(h, fInfo.getTags());
+        return mix(h);
+    }
+
+    /**
+     * @param bucketHashes
+     * @return the root hash over the given bucket hashes.
+     */
+    public static long rootOf(long[] bucketHashes) {
+        long h = FNV_OFFSET;
+        for (long bucketHash : bucketHashes) {
+            h = fnv(h, bucketHash);
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return the root hash.
+     */
+    public long getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the hashes of the buckets. Index is the bucket number.
+     */
+    public long[] getBucketHashes() {
+        return bucketHashes;
+    }
+
+    /**
+     * @return the number of buckets.
+     */
+    public int getBucketCount() {
+        return bucketHashes.length;
+    }
+
+    /**
+     * @param otherBucketHashes
+     *            the bucket hashes of the other tree with the same number of
+     *            buckets.
+     * @return the numbers of the buckets that differ.
+     */
+    public int[] diff(long[] otherBucketHashes) {
+        Reject.ifFalse(otherBucketHashes.length == bucketHashes.length,
+            "Number of buckets differ: " + otherBucketHashes.length + " vs "
+                + bucketHashes.length);
+        int n = 0;
+        int[] differing = new int[bucketHashes.length];
+        for (int i = 0; i < bucketHashes.length; i++) {
+            if (bucketHashes[i] != otherBucketHashes[i]) {
+                differing[n++] = i;
+            }
+        }
+        int[] result = new int[n];
+        System.arraycopy(differing, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * @param files
+     * @param nBuckets
+     * @param buckets
+     *            the bucket numbers to select.
+     * @param include
+     *            true to return the files in the given buckets, false to
+     *            return the files in all other buckets.
+     * @return the selected files.
+     */
+    public static <T extends FileInfo> List<T> select(Collection<T> files,
+        int nBuckets, int[] buckets, boolean include)
+    {
+        boolean[] selected = new boolean[nBuckets];
+        for (int bucket : buckets) {
+            selected[bucket] = true;
+        }
+        List<T> result = new ArrayList<T>();
+        for (T fInfo : files) {
+            if (selected[bucketOf(fInfo, nBuckets)] == include) {
+                result.add(fInfo);
+            }
+        }
+        return result;
+    }
+
+    // Internal ***************************************************************
+
+    private static long fnv(long h, String value) {
+        if (value == null) {
+            return fnv(h, -1L);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return fnv(h, (long) value.length());
+    }
+
+    private static long fnv(long h, long value) {
+        for (int i = 0; i < 8; i++) {
+            h ^= value & 0xFF;
+            h *= FNV_PRIME;
+            value >>>= 8;
+        }
+        return h;
+    }
+
+    /**
+     * Final avalanche step, so that close inputs give unrelated hashes.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
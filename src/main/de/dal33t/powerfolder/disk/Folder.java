@@ -26,6 +26,7 @@ import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
 import de.dal33t.powerfolder.disk.problem.*;
 import de.dal33t.powerfolder.disk.problem.Problem;
 import de.dal33t.powerfolder.event.*;
+import de.dal33t.powerfolder.event.ListenerSupport.EventType;
 import de.dal33t.powerfolder.event.api.DeletedFile;
 import de.dal33t.powerfolder.light.*;
 import de.dal33t.powerfolder.message.*;
@@ -38,6 +39,7 @@ import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.compare.FileInfoComparator;
 import de.dal33t.powerfolder.util.compare.ReverseComparator;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.metrics.MetricsRegistry;
 import de.dal33t.powerfolder.util.os.OSUtil;
 import de.dal33t.powerfolder.util.os.Win32.WinUtils;
 import de.dal33t.powerfolder.util.pattern.DefaultExcludes;
@@ -132,6 +134,19 @@ public class Folder extends PFComponent {
     /** All members of this folder. Key == Value. Use Map for concurrency. */
     private final Map<Member, Member> members;
 
+    /**
+     * Filelists of disconnected members, kept for reconciliation on reconnect.
+     * Key is the node id.
+     */
+    private final Map<String, RetainedFileList> retainedFileLists = new ConcurrentHashMap<String, RetainedFileList>();
+
+    /**
+     * The files of retained filelists that are still valid after comparing
+     * with the {@link FileListDigest}. Stored together with the upcoming
+     * {@link FileList}. Key is the node id.
+     */
+    private final Map<String, Collection<FileInfo>> reconciledFiles = new ConcurrentHashMap<String, Collection<FileInfo>>();
+
     /**
      * the folder info, contains important information about
      * id/hash/name/filescount
@@ -185,7 +200,28 @@ public class Folder extends PFComponent {
      */
     private FolderWatcher watcher;
 
-    private final FolderListener folderListenerSupport;
+    private static final EventType<FolderListener, FolderEvent> FILE_CHANGED = ListenerSupport
+        .eventType("fileChanged", FolderListener::fileChanged,
+            FolderEvent::mergeFileEvents);
+    private static final EventType<FolderListener, FolderEvent> FILES_DELETED = ListenerSupport
+        .eventType("filesDeleted", FolderListener::filesDeleted,
+            FolderEvent::mergeFileEvents);
+    private static final EventType<FolderListener, FolderEvent> REMOTE_CONTENTS_CHANGED = ListenerSupport
+        .eventType("remoteContentsChanged",
+            FolderListener::remoteContentsChanged);
+    private static final EventType<FolderListener, FolderEvent> SYNC_PROFILE_CHANGED = ListenerSupport
+        .eventType("syncProfileChanged", FolderListener::syncProfileChanged);
+    private static final EventType<FolderListener, FolderEvent> ARCHIVE_SETTINGS_CHANGED = ListenerSupport
+        .eventType("archiveSettingsChanged",
+            FolderListener::archiveSettingsChanged);
+    private static final EventType<FolderListener, FolderEvent> SCAN_RESULT_COMMITED = ListenerSupport
+        .eventType("scanResultCommited", FolderListener::scanResultCommited);
+    private static final EventType<FolderListener, FolderEvent> STATISTICS_CALCULATED = ListenerSupport
+        .eventType("statisticsCalculated",
+            FolderListener::statisticsCalculated,
+            events -> events.get(events.size() - 1));
+
+    private final ListenerSupport<FolderListener> folderListenerSupport;
     private final FolderMembershipListener folderMembershipListenerSupport;
 
     /**
@@ -239,8 +275,11 @@ public class Folder extends PFComponent {
         currentInfo = new FolderInfo(fInfo.getName(), fInfo.id).intern();
 
         // Create listener support
-        folderListenerSupport = ListenerSupportFactory
-            .createListenerSupport(FolderListener.class);
+        folderListenerSupport = new ListenerSupport<FolderListener>(
+            FolderListener.class);
+        // UI gets file changes in batches
+        folderListenerSupport
+            .setCoalescing(Constants.FOLDER_LISTENER_COALESCE_TIME);
         folderMembershipListenerSupport = ListenerSupportFactory
             .createListenerSupport(FolderMembershipListener.class);
         problemListenerSupport = ListenerSupportFactory
@@ -544,6 +583,17 @@ public class Folder extends PFComponent {
      */
     private void commitScanResult(ScanResult scanResult,
         boolean ignoreLocalMassDeletions)
+    {
+        ProfilingEntry pe = Profiling.start("Folder.commitScanResult");
+        try {
+            commitScanResult0(scanResult, ignoreLocalMassDeletions);
+        } finally {
+            Profiling.end(pe);
+        }
+    }
+
+    private void commitScanResult0(ScanResult scanResult,
+        boolean ignoreLocalMassDeletions)
     {
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not commitScanResult: " + scanResult);
@@ -1073,10 +1123,17 @@ public class Folder extends PFComponent {
         FolderScanner scanner = getController().getFolderRepository()
             .getFolderScanner();
         // Acquire the folder wait
+        MetricsRegistry metrics = getController().getMetrics();
         boolean scannerBusy;
         do {
+            long lockStart = System.nanoTime();
             synchronized (scanLock) {
+                metrics.histogram("pf_lock_wait_us",
+                    "Time waited to acquire a lock", TimeUnit.MICROSECONDS,
+                    "lock", "scan").recordSince(lockStart);
+                long scanStart = System.nanoTime();
                 result = scanner.scanFolder(this);
+                recordScan(metrics, result, System.nanoTime() - scanStart);
             }
             scannerBusy = ScanResult.ResultState.BUSY == result
                 .getResultState();
@@ -1124,6 +1181,24 @@ public class Folder extends PFComponent {
         }
     }
 
+    private static void recordScan(MetricsRegistry metrics, ScanResult result,
+        long nanos)
+    {
+        if (result.getResultState() != ScanResult.ResultState.SCANNED) {
+            return;
+        }
+        metrics.histogram("pf_folder_scan_ms", "Duration of folder scans",
+            TimeUnit.MILLISECONDS).recordNanos(nanos);
+        int nFiles = result.getTotalFilesCount();
+        metrics.counter("pf_folder_scanned_files", "Files scanned").add(
+            nFiles);
+        if (nanos > 0) {
+            metrics.histogram("pf_folder_scan_files_per_second",
+                "Files scanned per second of folder scans", null).record(
+                nFiles * TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+    }
+
     /**
      * @return true if a scan in the background is required of the folder
      */
@@ -1902,7 +1977,8 @@ public class Folder extends PFComponent {
                 for (Member member : getConnectedMembers()) {
                     if (hasReadPermission(member)) {
                         member.sendMessagesAsynchron(FileList.create(this,
-                            supportExternalizable(member)));
+                            supportExternalizable(member),
+                            supportCompactFileList(member)));
                     } else {
                         member.sendMessagesAsynchron(FileList.createEmpty(
                             currentInfo, supportExternalizable(member)));
@@ -2024,7 +2100,7 @@ public class Folder extends PFComponent {
         getController().removeScheduled(persisterFuture);
         dao.stop();
         removeAllListeners();
-        ListenerSupportFactory.removeAllListeners(folderListenerSupport);
+        folderListenerSupport.removeAllListeners();
         ListenerSupportFactory
             .removeAllListeners(folderMembershipListenerSupport);
         diskItemFilter.removeAllListener();
@@ -2044,6 +2120,15 @@ public class Folder extends PFComponent {
      * Stores the current file-database to disk
      */
     private synchronized boolean storeFolderDB() {
+        ProfilingEntry pe = Profiling.start("Folder.storeFolderDB");
+        try {
+            return storeFolderDB0();
+        } finally {
+            Profiling.end(pe);
+        }
+    }
+
+    private boolean storeFolderDB0() {
         Path dbTempFile = getSystemSubDir().resolve(
             Constants.DB_FILENAME
                 + PathUtils.removeInvalidFilenameChars(getController()
@@ -2648,6 +2733,7 @@ public class Folder extends PFComponent {
                     .getValueInt(getController());
             maintainFolderDB(removeBefore);
         }
+        purgeRetainedFileLists();
     }
 
     /**
@@ -2760,7 +2846,8 @@ public class Folder extends PFComponent {
                 Message[] filelistMsgs;
                 if (hasOwnDatabase) {
                     filelistMsgs = FileList.create(this,
-                        supportExternalizable(member));
+                        supportExternalizable(member),
+                        supportCompactFileList(member));
                 } else {
                     filelistMsgs = new Message[1];
                     filelistMsgs[0] = FileList.createEmpty(getInfo(),
@@ -2952,6 +3039,8 @@ public class Folder extends PFComponent {
 
         // remove files of this member in our datastructure
         dao.deleteDomain(member.getId(), -1);
+        retainedFileLists.remove(member.getId());
+        reconciledFiles.remove(member.getId());
 
         // Fire event
         fireMemberLeft(member);
@@ -3492,6 +3581,8 @@ public class Folder extends PFComponent {
      * @param message
      */
     public void broadcastMessages(Message... message) {
+        // Serialize only once for all members
+        message = SerializedMessage.wrap(message);
         for (Member member : getMembersAsCollection()) {
             if (shutdown) {
                 // PFS-2227: Never broadcast messages after shutdown
@@ -3509,7 +3600,8 @@ public class Folder extends PFComponent {
     /**
      * Broadcasts a message through the folder.
      * <p>
-     * Caches the built messages.
+     * Caches the built messages. Each message variant is serialized only once
+     * for all members.
      *
      * @param msgProvider
      */
@@ -3526,14 +3618,16 @@ public class Folder extends PFComponent {
             if (member.isCompletelyConnected()) {
                 if (supportExternalizable(member)) {
                     if (msgsExt == null) {
-                        msgsExt = msgProvider.getMessages(true);
+                        msgsExt = SerializedMessage.wrap(msgProvider
+                            .getMessages(true));
                     }
                     if (msgsExt != null && msgsExt.length > 0) {
                         member.sendMessagesAsynchron(msgsExt);
                     }
                 } else {
                     if (msgs == null) {
-                        msgs = msgProvider.getMessages(false);
+                        msgs = SerializedMessage.wrap(msgProvider
+                            .getMessages(false));
                     }
                     if (msgs != null && msgs.length > 0) {
                         member.sendMessagesAsynchron(msgs);
@@ -3652,6 +3746,15 @@ public class Folder extends PFComponent {
      * @param newList
      */
     public void fileListChanged(Member from, FileList newList) {
+        ProfilingEntry pe = Profiling.start("Folder.fileListChanged:FileList");
+        try {
+            fileListChanged0(from, newList);
+        } finally {
+            Profiling.end(pe);
+        }
+    }
+
+    private void fileListChanged0(Member from, FileList newList) {
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not fileListChanged: " + newList + " received from " + from);
             return;
@@ -3677,6 +3780,10 @@ public class Folder extends PFComponent {
             checkForMassDeletion(from, newList.files);
         }
 
+        // Files still valid from the last connection
+        Collection<FileInfo> reconciled = reconciledFiles.remove(from.getId());
+        retainedFileLists.remove(from.getId());
+
         // Update DAO
         if (newList.isNull()) {
             // Delete files in domain and do nothing
@@ -3685,10 +3792,19 @@ public class Folder extends PFComponent {
         }
         // Store but also deleted/clear domain before.
         int expectedItems = newList.nFollowingDeltas * newList.files.length;
+        if (reconciled != null) {
+            expectedItems += reconciled.size();
+        }
         store(from, expectedItems, newList.files);
+        if (reconciled != null) {
+            store(from, reconciled);
+        }
 
         // Try to find same files
         findSameFiles(from, Arrays.asList(newList.files));
+        if (reconciled != null) {
+            findSameFiles(from, reconciled);
+        }
 
         if (syncProfile.isAutodownload() && from.isCompletelyConnected()) {
             // Trigger file requestor
@@ -3718,6 +3834,16 @@ public class Folder extends PFComponent {
      * @param changes
      */
     public void fileListChanged(Member from, FolderFilesChanged changes) {
+        ProfilingEntry pe = Profiling
+            .start("Folder.fileListChanged:FolderFilesChanged");
+        try {
+            fileListChanged0(from, changes);
+        } finally {
+            Profiling.end(pe);
+        }
+    }
+
+    private void fileListChanged0(Member from, FolderFilesChanged changes) {
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not fileListChanged: " + changes + " received from " + from);
             return;
@@ -4063,6 +4189,129 @@ public class Folder extends PFComponent {
         return member.getProtocolVersion() >= Identity.PROTOCOL_VERSION_110;
     }
 
+    /**
+     * @param member
+     * @return if this member supports the reconciliation of filelists:
+     *         {@link FileListDigest} and {@link FileListBucketRequest}
+     */
+    public boolean supportFileListReconcile(Member member) {
+        return member.getProtocolVersion() >= Identity.PROTOCOL_VERSION_113;
+    }
+
+    /**
+     * Keeps the filelist of a disconnecting member. On reconnect only the
+     * differing parts of the filelist get transferred.
+     *
+     * @param member
+     * @see #fileListDigestReceived(Member, FileListDigest)
+     */
+    public void retainFileList(Member member) {
+        FileInfoCriteria criteria = new FileInfoCriteria();
+        criteria.addMember(member);
+        criteria.setRecursive(true);
+        List<FileInfo> files = new ArrayList<FileInfo>(
+            dao.findFiles(criteria));
+        purgeRetainedFileLists();
+        if (files.isEmpty()) {
+            retainedFileLists.remove(member.getId());
+            return;
+        }
+        retainedFileLists.put(member.getId(), new RetainedFileList(files));
+        while (retainedFileLists.size() > Constants.FILE_LIST_RETAIN_MAX) {
+            String oldest = null;
+            long oldestAt = Long.MAX_VALUE;
+            for (Map.Entry<String, RetainedFileList> entry : retainedFileLists
+                .entrySet())
+            {
+                if (entry.getValue().retainedAt < oldestAt) {
+                    oldest = entry.getKey();
+                    oldestAt = entry.getValue().retainedAt;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            retainedFileLists.remove(oldest);
+        }
+        if (isFine()) {
+            logFine("Retained filelist of " + member.getNick() + " with "
+                + files.size() + " items");
+        }
+    }
+
+    /**
+     * Compares the digest of the filelist of the member with the filelist
+     * retained from the last connection. Requests the differing buckets. The
+     * complete filelist is requested if nothing is retained.
+     *
+     * @param from
+     * @param digest
+     */
+    public void fileListDigestReceived(Member from, FileListDigest digest) {
+        if (shutdown) {
+            return;
+        }
+        RetainedFileList retained = retainedFileLists.remove(from.getId());
+        reconciledFiles.remove(from.getId());
+        int nBuckets = digest.getBucketCount();
+        int[] buckets = null;
+        if (retained != null && !retained.isExpired()) {
+            List<FileInfo> noDirs = Collections.emptyList();
+            FileListTree tree = FileListTree.build(nBuckets, retained.files,
+                noDirs, null);
+            if (tree.getRoot() == digest.getRoot()) {
+                buckets = new int[0];
+            } else {
+                buckets = tree.diff(digest.getBucketHashes());
+            }
+            reconciledFiles.put(from.getId(), FileListTree.select(
+                retained.files, nBuckets, buckets, false));
+            if (isFine()) {
+                logFine("Requesting " + buckets.length + "/" + nBuckets
+                    + " buckets of filelist from " + from.getNick());
+            }
+        } else if (isFine()) {
+            logFine("Requesting complete filelist from " + from.getNick());
+        }
+        from.sendMessageAsynchron(new FileListBucketRequest(currentInfo,
+            nBuckets, buckets));
+    }
+
+    /**
+     * Removes the expired filelists of disconnected members.
+     */
+    private void purgeRetainedFileLists() {
+        for (Iterator<RetainedFileList> it = retainedFileLists.values()
+            .iterator(); it.hasNext();)
+        {
+            if (it.next().isExpired()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class RetainedFileList {
+        private final long retainedAt = System.currentTimeMillis();
+        private final List<FileInfo> files;
+
+        RetainedFileList(List<FileInfo> files) {
+            this.files = files;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - retainedAt > Constants.FILE_LIST_RETAIN_TIME;
+        }
+    }
+
+    /**
+     * @param member
+     * @return if this member supports the compact coding of filelists:
+     *         {@link FileListCompact} and {@link FolderFilesChangedCompact}
+     */
+    public boolean supportCompactFileList(Member member) {
+        return member.getProtocolVersion() >= Identity.PROTOCOL_VERSION_112;
+    }
+
     /**
      * Sets the DB to a dirty state. e.g. through a change. gets stored on next
      * persisting run.
@@ -4099,6 +4348,7 @@ public class Folder extends PFComponent {
             return;
         }
 
+        long start = System.nanoTime();
         int tries = 1;
         boolean success = storeFolderDB();
         while (!success && tries < 10) {
@@ -4120,6 +4370,14 @@ public class Folder extends PFComponent {
                     + tries + " trys.");
             }
         }
+        MetricsRegistry metrics = getController().getMetrics();
+        metrics.histogram("pf_folder_persist_ms",
+            "Duration of folder database writes incl. retries",
+            TimeUnit.MILLISECONDS).recordSince(start);
+        if (!success) {
+            metrics.counter("pf_folder_persist_failures",
+                "Failed folder database writes").increment();
+        }
 
         // Write filelist
         if (LoggingManager.isLogToFile()
@@ -5063,8 +5321,13 @@ public class Folder extends PFComponent {
 
     // PFS-638
     private static final long HAS_PERMISSION_CACHE_TIMEOUT = 987L;
-    private final SimpleCache<Member, Boolean> hasReadCache = new SimpleCache<>(Util.createConcurrentHashMap(), HAS_PERMISSION_CACHE_TIMEOUT, TimeUnit.MILLISECONDS);
-    private final SimpleCache<Member, Boolean> hasWriteCache = new SimpleCache<>(Util.createConcurrentHashMap(), HAS_PERMISSION_CACHE_TIMEOUT, TimeUnit.MILLISECONDS);
+    private static final int HAS_PERMISSION_CACHE_SIZE = 4096;
+    private final ExpiringCache<Member, Boolean> hasReadCache = new ExpiringCache<>(
+        HAS_PERMISSION_CACHE_SIZE, HAS_PERMISSION_CACHE_TIMEOUT,
+        TimeUnit.MILLISECONDS);
+    private final ExpiringCache<Member, Boolean> hasWriteCache = new ExpiringCache<>(
+        HAS_PERMISSION_CACHE_SIZE, HAS_PERMISSION_CACHE_TIMEOUT,
+        TimeUnit.MILLISECONDS);
 
     public boolean hasReadPermission(Member member) {
         Boolean hasRead = hasReadCache.getValidEntry(member);
@@ -5137,11 +5400,11 @@ public class Folder extends PFComponent {
     }
 
     public void addFolderListener(FolderListener listener) {
-        ListenerSupportFactory.addListener(folderListenerSupport, listener);
+        folderListenerSupport.addListener(listener);
     }
 
     public void removeFolderListener(FolderListener listener) {
-        ListenerSupportFactory.removeListener(folderListenerSupport, listener);
+        folderListenerSupport.removeListener(listener);
     }
 
     private void fireMemberJoined(Member member) {
@@ -5191,7 +5454,7 @@ public class Folder extends PFComponent {
             logFiner("fireFileChanged: " + this);
         }
         FolderEvent folderEvent = new FolderEvent(this, fileInfo);
-        folderListenerSupport.fileChanged(folderEvent);
+        folderListenerSupport.fire(FILE_CHANGED, folderEvent);
     }
 
     private void fireFilesChanged(List<FileInfo> fileInfos) {
@@ -5199,7 +5462,7 @@ public class Folder extends PFComponent {
             logFiner("fireFileChanged: " + this);
         }
         FolderEvent folderEvent = new FolderEvent(this, fileInfos, true);
-        folderListenerSupport.fileChanged(folderEvent);
+        folderListenerSupport.fire(FILE_CHANGED, folderEvent);
     }
 
     private void fireFilesDeleted(Collection<FileInfo> fileInfos) {
@@ -5207,7 +5470,7 @@ public class Folder extends PFComponent {
             logFiner("fireFilesDeleted: " + this);
         }
         FolderEvent folderEvent = new FolderEvent(this, fileInfos);
-        folderListenerSupport.filesDeleted(folderEvent);
+        folderListenerSupport.fire(FILES_DELETED, folderEvent);
     }
 
     private void fireRemoteContentsChanged(Member from, FileList list) {
@@ -5215,7 +5478,7 @@ public class Folder extends PFComponent {
             logFiner("fireRemoteContentsChanged: " + this);
         }
         FolderEvent folderEvent = new FolderEvent(this, list, from);
-        folderListenerSupport.remoteContentsChanged(folderEvent);
+        folderListenerSupport.fire(REMOTE_CONTENTS_CHANGED, folderEvent);
     }
 
     private void fireRemoteContentsChanged(Member from, FolderFilesChanged list)
@@ -5224,17 +5487,17 @@ public class Folder extends PFComponent {
             logFiner("fireRemoteContentsChanged: " + this);
         }
         FolderEvent folderEvent = new FolderEvent(this, list, from);
-        folderListenerSupport.remoteContentsChanged(folderEvent);
+        folderListenerSupport.fire(REMOTE_CONTENTS_CHANGED, folderEvent);
     }
 
     private void fireSyncProfileChanged() {
         FolderEvent folderEvent = new FolderEvent(this, syncProfile);
-        folderListenerSupport.syncProfileChanged(folderEvent);
+        folderListenerSupport.fire(SYNC_PROFILE_CHANGED, folderEvent);
     }
 
     private void fireArchiveSettingsChanged() {
         FolderEvent folderEvent = new FolderEvent(this);
-        folderListenerSupport.archiveSettingsChanged(folderEvent);
+        folderListenerSupport.fire(ARCHIVE_SETTINGS_CHANGED, folderEvent);
     }
 
     private void fireScanResultCommited(ScanResult scanResult) {
@@ -5242,7 +5505,7 @@ public class Folder extends PFComponent {
             logFiner("fireScanResultCommited: " + this);
         }
         FolderEvent folderEvent = new FolderEvent(this, scanResult);
-        folderListenerSupport.scanResultCommited(folderEvent);
+        folderListenerSupport.fire(SCAN_RESULT_COMMITED, folderEvent);
     }
 
     /** package protected because fired by FolderStatistics */
@@ -5251,7 +5514,7 @@ public class Folder extends PFComponent {
         checkSync();
 
         FolderEvent folderEvent = new FolderEvent(this);
-        folderListenerSupport.statisticsCalculated(folderEvent);
+        folderListenerSupport.fire(STATISTICS_CALCULATED, folderEvent);
     }
 
     /**
@@ -3174,7 +3174,7 @@ public class FolderRepository extends PFComponent implements Runnable {
 
         public void run() {
             ProfilingEntry pe = Profiling
-                .start("synchronizeAllFolderMemberships");
+                .start("FolderRepository.synchronizeAllFolderMemberships");
             try {
                 if (canceled.get()) {
                     logFine("Not synchronizing Foldermemberships, "
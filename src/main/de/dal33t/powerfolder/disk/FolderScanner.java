@@ -81,6 +81,17 @@ public class FolderScanner extends PFComponent {
      */
     private List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
 
+    /**
+     * The excluded directories that were not scanned, relative names.
+     */
+    private final Set<String> skippedDirectories = Collections
+        .newSetFromMap(Util.<String, Boolean> createConcurrentHashMap());
+
+    /**
+     * Don't scan excluded directories.
+     */
+    private final boolean skipExcluded;
+
     /**
      * Because of multi threading we use a flag to indicate a failed besides
      * returning false
@@ -111,6 +122,8 @@ public class FolderScanner extends PFComponent {
         threadOwnership = new Semaphore(1);
         maxCrawlers = ConfigurationEntry.FOLDER_SCANNER_MAX_CRAWLERS
             .getValueInt(getController());
+        skipExcluded = ConfigurationEntry.FOLDER_SCANNER_SKIP_EXCLUDED
+            .getValueBoolean(getController());
     }
 
     /**
@@ -243,6 +256,17 @@ public class FolderScanner extends PFComponent {
                 }
             }
 
+            // The known files in skipped directories are unchanged
+            if (!skippedDirectories.isEmpty()) {
+                for (Iterator<String> it = remaining.keySet().iterator(); it
+                    .hasNext();)
+                {
+                    if (isInSkippedDirectory(it.next())) {
+                        it.remove();
+                    }
+                }
+            }
+
             if (isWarning()) {
                 if (unableToScanFiles.isEmpty()) {
                     logFiner("Unable to scan " + unableToScanFiles.size()
@@ -263,7 +287,7 @@ public class FolderScanner extends PFComponent {
                     // This file was already flagged as deleted,
                     // = not a freshly deleted file
                     it.remove();
-                } else {
+                } else if (isFine()) {
                     logFine("Deleted file detected: " + fInfo.toDetailString());
                 }
             }
@@ -328,6 +352,7 @@ public class FolderScanner extends PFComponent {
         // allFiles.clear();
         // restoredFiles.clear();
         unableToScanFiles.clear();
+        skippedDirectories.clear();
         // totalFilesCount = 0;
         currentScanResult = new ScanResult(true);
     }
@@ -425,7 +450,8 @@ public class FolderScanner extends PFComponent {
                     }
                 } else if (Files.isDirectory(path)) {
                     if (!PathUtils.isScannable(path, currentScanningFolder)
-                        || currentScanningFolder.isSystemSubDir(path))
+                        || currentScanningFolder.isSystemSubDir(path)
+                        || isSkipped(path.getFileName().toString()))
                     {
                         continue;
                     }
@@ -653,6 +679,47 @@ public class FolderScanner extends PFComponent {
         return true;
     }
 
+    /**
+     * @param dirName
+     *            the relative name of a directory on disk.
+     * @return true if the directory is excluded and should not be scanned.
+     */
+    private boolean isSkipped(String dirName) {
+        if (!skipExcluded) {
+            return false;
+        }
+        String relativeName = FileInfoFactory.decodeIllegalChars(dirName);
+        if (!currentScanningFolder.getDiskItemFilter().isExcludedDirectory(
+            relativeName))
+        {
+            return false;
+        }
+        if (isFiner()) {
+            logFiner("Skipping excluded directory " + relativeName);
+        }
+        skippedDirectories.add(relativeName);
+        return true;
+    }
+
+    /**
+     * @param relativeName
+     * @return true if the item is a skipped directory or below one.
+     */
+    private boolean isInSkippedDirectory(String relativeName) {
+        if (skippedDirectories.contains(relativeName)) {
+            return true;
+        }
+        int slash = relativeName.indexOf('/');
+        while (slash > 0) {
+            if (skippedDirectories.contains(relativeName.substring(0, slash)))
+            {
+                return true;
+            }
+            slash = relativeName.indexOf('/', slash + 1);
+        }
+        return false;
+    }
+
     /**
      * calculates the subdir of this file relative to the location of the folder
      */
@@ -789,6 +856,8 @@ public class FolderScanner extends PFComponent {
                         }
                     } else if (Files.isDirectory(path)) {
                         if (PathUtils.isScannable(path, currentScanningFolder)
+                            && !isSkipped(currentDirName + '/'
+                                + path.getFileName().toString())
                             && !scanDir(path)) {
                             failure = true;
                             return false;
@@ -19,9 +19,11 @@
  */
 package de.dal33t.powerfolder.event;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EventObject;
+import java.util.List;
 
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.disk.Folder;
@@ -127,6 +129,28 @@ public class FolderEvent extends EventObject {
         this.newSyncProfile = profile;
     }
 
+    /**
+     * Merges events about changed or deleted files of one folder.
+     *
+     * @param events
+     *            the changed or the deleted files events.
+     * @return one event with the files of all events.
+     */
+    public static FolderEvent mergeFileEvents(List<FolderEvent> events) {
+        FolderEvent first = events.get(0);
+        boolean scanned = first.scannedFileInfos != null;
+        List<FileInfo> fileInfos = new ArrayList<FileInfo>();
+        for (FolderEvent event : events) {
+            Collection<FileInfo> eventFileInfos = scanned
+                ? event.scannedFileInfos
+                : event.deletedFileInfos;
+            if (eventFileInfos != null) {
+                fileInfos.addAll(eventFileInfos);
+            }
+        }
+        return new FolderEvent(first.getFolder(), fileInfos, scanned);
+    }
+
     public Folder getFolder() {
         return (Folder) getSource();
     }
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.event;
+
+import java.awt.EventQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import de.dal33t.powerfolder.util.Profiling;
+import de.dal33t.powerfolder.util.ProfilingEntry;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Typed event/listener support. Maintains a listener list and handles swing
+ * thread wrapping issues like the supports created by
+ * {@link ListenerSupportFactory}, but calls the listeners directly instead of
+ * through a proxy and reflection.
+ * <p>
+ * Events are fired by {@link EventType}s, which name a listener method:
+ *
+ * <pre>
+ * static final EventType&lt;FolderListener, FolderEvent&gt; FILE_CHANGED = ListenerSupport
+ *     .eventType(&quot;fileChanged&quot;, FolderListener::fileChanged);
+ * support.fire(FILE_CHANGED, event);
+ * </pre>
+ * <p>
+ * Coalescing (opt-in, see {@link #setCoalescing(int)}): Events of a type with
+ * a merge function are collected for listeners in the event dispatch thread.
+ * After the coalescing time all events of that type are merged and fired as
+ * one. Listeners not in the EDT still get each event immediately. Events are
+ * delivered in the EDT in the order they were fired: Pending coalesced events
+ * get fired before a later not coalesced one.
+ *
+ * @param <L>
+ *            the listener interface.
+ */
+public class ListenerSupport<L extends CoreListener> {
+
+    private static final Logger LOG = Logger.getLogger(ListenerSupport.class
+        .getName());
+
+    private final Class<L> listenerInterface;
+    private final List<L> listenersNonEDT = new CopyOnWriteArrayList<L>();
+    private final List<L> listenersInEDT = new CopyOnWriteArrayList<L>();
+    private final List<WeakReference<L>> weakListenersNonEDT = new CopyOnWriteArrayList<WeakReference<L>>();
+    private final List<WeakReference<L>> weakListenersInEDT = new CopyOnWriteArrayList<WeakReference<L>>();
+    private volatile boolean suspended;
+
+    // Coalescing
+    private volatile int coalesceTime;
+    /** Pending events for the EDT listeners, by type in order of arrival */
+    private final Map<EventType<L, ?>, List<Object>> pending = new LinkedHashMap<EventType<L, ?>, List<Object>>();
+    private Timer flushTimer;
+
+    /**
+     * @param listenerInterface
+     *            the listener event interface
+     */
+    public ListenerSupport(Class<L> listenerInterface) {
+        Reject.ifNull(listenerInterface, "Listener interface is null");
+        this.listenerInterface = listenerInterface;
+    }
+
+    /**
+     * @param name
+     *            the name of the listener method. For logging and profiling.
+     * @param method
+     *            calls the listener method.
+     * @return the event type, which is never coalesced.
+     */
+    public static <L extends CoreListener, E> EventType<L, E> eventType(
+        String name, BiConsumer<? super L, ? super E> method)
+    {
+        return new EventType<L, E>(name, method, null);
+    }
+
+    /**
+     * @param name
+     *            the name of the listener method. For logging and profiling.
+     * @param method
+     *            calls the listener method.
+     * @param merger
+     *            merges coalesced events into one, in the order they were
+     *            fired.
+     * @return the event type, which is coalesced if enabled.
+     */
+    public static <L extends CoreListener, E> EventType<L, E> eventType(
+        String name, BiConsumer<? super L, ? super E> method,
+        Function<List<E>, E> merger)
+    {
+        Reject.ifNull(merger, "Merger is null");
+        return new EventType<L, E>(name, method, merger);
+    }
+
+    // Listeners **************************************************************
+
+    public void addListener(L listener) {
+        addListener(listener, false);
+    }
+
+    /**
+     * @param listener
+     * @param weak
+     *            Listener gets removed if not other references to it is hold
+     *            except by this listener support (or any other weak or soft
+     *            reference).
+     */
+    public void addListener(L listener, boolean weak) {
+        checkListener(listener);
+        if (weak) {
+            List<WeakReference<L>> weakListeners = listener
+                .fireInEventDispatchThread()
+                ? weakListenersInEDT
+                : weakListenersNonEDT;
+            weakListeners.add(new WeakReference<L>(listener));
+            if (weakListeners.size() % 10 == 0) {
+                removeCollected(weakListeners);
+            }
+        } else if (listener.fireInEventDispatchThread()) {
+            listenersInEDT.add(listener);
+        } else {
+            listenersNonEDT.add(listener);
+        }
+    }
+
+    public void removeListener(L listener) {
+        checkListener(listener);
+        if (listenersInEDT.remove(listener) || listenersNonEDT.remove(listener))
+        {
+            return;
+        }
+        removeWeak(weakListenersInEDT, listener);
+        removeWeak(weakListenersNonEDT, listener);
+    }
+
+    public void removeAllListeners() {
+        listenersInEDT.clear();
+        listenersNonEDT.clear();
+        weakListenersInEDT.clear();
+        weakListenersNonEDT.clear();
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * @return true if at least one listener is registered.
+     */
+    public boolean hasListeners() {
+        return !listenersInEDT.isEmpty() || !listenersNonEDT.isEmpty()
+            || !weakListenersInEDT.isEmpty() || !weakListenersNonEDT.isEmpty();
+    }
+
+    /**
+     * @param suspended
+     *            true to not fire any events until resumed.
+     */
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
+    /**
+     * @param coalesceTime
+     *            the time in ms to collect events for the listeners in the
+     *            EDT. 0 to fire each event.
+     */
+    public void setCoalescing(int coalesceTime) {
+        Reject.ifTrue(coalesceTime < 0, "Illegal coalesce time: "
+            + coalesceTime);
+        this.coalesceTime = coalesceTime;
+        if (coalesceTime == 0 && ListenerSupportFactory.AWT_AVAILABLE) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    // Firing *****************************************************************
+
+    /**
+     * Fires the event to all listeners.
+     *
+     * @param type
+     * @param event
+     */
+    public <E> void fire(final EventType<L, E> type, final E event) {
+        if (suspended || !hasListeners()) {
+            return;
+        }
+        for (L listener : listenersNonEDT) {
+            fire(type, event, listener);
+        }
+        for (WeakReference<L> ref : weakListenersNonEDT) {
+            L listener = ref.get();
+            if (listener != null) {
+                fire(type, event, listener);
+            } else {
+                weakListenersNonEDT.remove(ref);
+            }
+        }
+        if (listenersInEDT.isEmpty() && weakListenersInEDT.isEmpty()) {
+            return;
+        }
+        if (!ListenerSupportFactory.AWT_AVAILABLE) {
+            // NO awt system ? do not put in swing thread
+            fireInEDT(type, event);
+            return;
+        }
+        if (type.merger != null && coalesceTime > 0) {
+            coalesce(type, event);
+            return;
+        }
+        if (EventQueue.isDispatchThread()) {
+            // Already in swing thread ? also don't wrap
+            flush();
+            fireInEDT(type, event);
+            return;
+        }
+        // Keep order: Pending events were fired before.
+        final List<Map.Entry<EventType<L, ?>, List<Object>>> batches = drain();
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                fireInEDT(batches);
+                fireInEDT(type, event);
+            }
+        });
+    }
+
+    private void fire(EventType<L, ?> type, Object event, L listener) {
+        ProfilingEntry profilingEntry = null;
+        if (Profiling.ENABLED) {
+            profilingEntry = Profiling.start(listener.getClass().getName()
+                + ':' + type.name, "");
+        }
+        try {
+            type.dispatch(listener, event);
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Received an exception from listener '"
+                + listener + "', class '" + listener.getClass().getName()
+                + "' on " + type.name, e);
+        } finally {
+            Profiling.end(profilingEntry, 50);
+        }
+    }
+
+    private void fireInEDT(EventType<L, ?> type, Object event) {
+        for (L listener : listenersInEDT) {
+            fire(type, event, listener);
+        }
+        for (WeakReference<L> ref : weakListenersInEDT) {
+            L listener = ref.get();
+            if (listener != null) {
+                fire(type, event, listener);
+            } else {
+                weakListenersInEDT.remove(ref);
+            }
+        }
+    }
+
+    private void coalesce(EventType<L, ?> type, Object event) {
+        boolean start;
+        synchronized (pending) {
+            start = pending.isEmpty();
+            List<Object> events = pending.get(type);
+            if (events == null) {
+                events = new ArrayList<Object>();
+                pending.put(type, events);
+            }
+            events.add(event);
+        }
+        if (start) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    if (flushTimer == null) {
+                        flushTimer = new Timer(coalesceTime, e -> flush());
+                        flushTimer.setRepeats(false);
+                    }
+                    flushTimer.setInitialDelay(coalesceTime);
+                    flushTimer.restart();
+                }
+            });
+        }
+    }
+
+    /**
+     * Fires all pending coalesced events. Must be called in the EDT.
+     */
+    private void flush() {
+        fireInEDT(drain());
+    }
+
+    private List<Map.Entry<EventType<L, ?>, List<Object>>> drain() {
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Map.Entry<EventType<L, ?>, List<Object>>> batches = new ArrayList<Map.Entry<EventType<L, ?>, List<Object>>>(
+                pending.entrySet());
+            pending.clear();
+            return batches;
+        }
+    }
+
+    private void fireInEDT(
+        List<Map.Entry<EventType<L, ?>, List<Object>>> batches)
+    {
+        for (Map.Entry<EventType<L, ?>, List<Object>> batch : batches) {
+            EventType<L, ?> type = batch.getKey();
+            fireInEDT(type, type.merge(batch.getValue()));
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private void checkListener(L listener) {
+        Reject.ifNull(listener, "Listener is null");
+        if (!listenerInterface.isInstance(listener)) {
+            throw new IllegalArgumentException("Listener '" + listener
+                + "' is not an instance of support listener interface '"
+                + listenerInterface.getName() + '\'');
+        }
+    }
+
+    private void removeWeak(List<WeakReference<L>> weakListeners, L listener) {
+        for (WeakReference<L> ref : weakListeners) {
+            L candidate = ref.get();
+            if (candidate == null || candidate.equals(listener)) {
+                weakListeners.remove(ref);
+            }
+        }
+    }
+
+    private void removeCollected(List<WeakReference<L>> weakListeners) {
+        for (WeakReference<L> ref : weakListeners) {
+            if (ref.get() == null) {
+                weakListeners.remove(ref);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerSupport [" + listenerInterface.getSimpleName() + "]";
+    }
+
+    /**
+     * A listener method, which can be fired by a {@link ListenerSupport}.
+     *
+     * @param <L>
+     *            the listener interface.
+     * @param <E>
+     *            the event.
+     */
+    public static final class EventType<L extends CoreListener, E> {
+        private final String name;
+        private final BiConsumer<? super L, ? super E> method;
+        private final Function<List<E>, E> merger;
+
+        private EventType(String name,
+            BiConsumer<? super L, ? super E> method,
+            Function<List<E>, E> merger)
+        {
+            Reject.ifBlank(name, "Name is blank");
+            Reject.ifNull(method, "Method is null");
+            this.name = name;
+            this.method = method;
+            this.merger = merger;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if the events of this type can be coalesced.
+         */
+        public boolean isCoalescable() {
+            return merger != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void dispatch(L listener, Object event) {
+            method.accept(listener, (E) event);
+        }
+
+        @SuppressWarnings("unchecked")
+        private E merge(List<Object> events) {
+            if (events.size() == 1) {
+                return (E) events.get(0);
+            }
+            return merger.apply((List<E>) events);
+        }
+
+        @Override
+        public String toString() {
+            return "EventType [" + name + "]";
+        }
+    }
+}
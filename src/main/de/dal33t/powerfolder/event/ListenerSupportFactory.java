@@ -36,6 +36,9 @@ import de.dal33t.powerfolder.util.Util;
  * Listenersupport implementaion will fire events to all registered listeners.
  * Just call the event method for the eventlistner interface on the
  * implementation returned by <code>createListenerSupport</code>
+ * <p>
+ * For events fired at high rates use the typed {@link ListenerSupport}, which
+ * calls the listeners without reflection and can coalesce events.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.8 $
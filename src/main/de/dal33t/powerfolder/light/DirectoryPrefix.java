@@ -0,0 +1,78 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+/**
+ * Flyweight of the directory part of a relative file name. Consecutive
+ * {@link FileInfo}s in the same directory share one instance, so each of
+ * them only holds the last segment of its name.
+ * <p>
+ * Files of the same directory mostly come in a row, e.g. on scan or in
+ * filelists. The first file of a directory keeps its full relative name, so a
+ * directory with a single file costs nothing extra. Only from the second file
+ * on the prefix is shared. Instances are not canonical, the same directory
+ * may have several prefixes.
+ */
+final class DirectoryPrefix {
+
+    /**
+     * The directory of the file split last. Shared by the next file if in
+     * the same directory.
+     */
+    private static volatile DirectoryPrefix last;
+
+    /**
+     * Unix-style separated path relative to the folder base dir, without
+     * trailing separator.
+     */
+    private final String path;
+
+    private DirectoryPrefix(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @param relativeName
+     *            the relative name of a file.
+     * @param length
+     *            the length of the directory part of the relative name.
+     * @return the prefix to share or null if the file is the first of its
+     *         directory and should keep the full relative name.
+     */
+    static DirectoryPrefix get(String relativeName, int length) {
+        DirectoryPrefix prefix = last;
+        if (prefix != null && prefix.path.length() == length
+            && relativeName.startsWith(prefix.path))
+        {
+            return prefix;
+        }
+        last = new DirectoryPrefix(relativeName.substring(0, length));
+        return null;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
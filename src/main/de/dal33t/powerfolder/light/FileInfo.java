@@ -74,19 +74,55 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     private static final long serialVersionUID = 100L;
 
     /**
-     * Unix-style separated path of the file relative to the folder base dir. So
-     * like 'myFile.txt' or 'directory/myFile.txt' or
-     * 'directory/subdirectory/myFile.txt'.
+     * The serialized form. Kept from the time these were the actual fields, see
+     * {@link #writeObject(ObjectOutputStream)}.
      */
-    private String fileName;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("fileName", String.class),
+        new ObjectStreamField("oid", String.class),
+        new ObjectStreamField("hashes", String.class),
+        new ObjectStreamField("tags", String.class),
+        new ObjectStreamField("size", Long.class),
+        new ObjectStreamField("modifiedBy", MemberInfo.class),
+        new ObjectStreamField("modifiedByAccount", AccountInfo.class),
+        new ObjectStreamField("lastModifiedDate", Date.class),
+        new ObjectStreamField("version", Integer.TYPE),
+        new ObjectStreamField("deleted", Boolean.TYPE),
+        new ObjectStreamField("folderInfo", FolderInfo.class)};
+
+    /**
+     * Value of {@link #size} of lookup instances.
+     */
+    private static final long UNKNOWN_SIZE = Long.MIN_VALUE;
+
+    /**
+     * Value of {@link #lastModified} if there is no modification date.
+     */
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * The directory of the file, shared with other files in that directory.
+     * null if {@link #name} is the full relative name.
+     * <p>
+     * Together with {@link #name} the Unix-style separated path of the file
+     * relative to the folder base dir. So like 'myFile.txt' or
+     * 'directory/myFile.txt' or 'directory/subdirectory/myFile.txt'.
+     */
+    private transient DirectoryPrefix directory;
+
+    /**
+     * The name of the file without the directory or the full relative name
+     * if {@link #directory} is null.
+     */
+    private transient String name;
 
     // PFC-2352
     private String oid;
     private String hashes;
     private String tags;
 
-    /** The size of the file */
-    private Long size;
+    /** The size of the file or {@link #UNKNOWN_SIZE} */
+    private transient long size;
 
     /**
      * modified info *
@@ -99,8 +135,8 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      * PFC-2571
      */
     private AccountInfo modifiedByAccount;
-    /** modified in folder on date */
-    private Date lastModifiedDate;
+    /** modified in folder on date. Epoch millis or {@link #NO_DATE} */
+    private transient long lastModified;
 
     /** Version number of this file */
     private int version;
@@ -131,13 +167,14 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     protected FileInfo() {
         // ONLY for backward compatibility to MP3FileInfo
 
-        fileName = null;
+        directory = null;
+        name = null;
         oid = null;
         hashes = null;
         tags = null;
-        size = null;
+        size = UNKNOWN_SIZE;
         modifiedBy = null;
-        lastModifiedDate = null;
+        lastModified = NO_DATE;
         version = 0;
         deleted = false;
         folderInfo = null;
@@ -157,14 +194,14 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                 "relativeName must not contain /../: " + relativeName);
         }
 
-        this.fileName = relativeName;
+        setRelativeName(relativeName);
         this.oid = oid;
         this.hashes = hashes;
         this.tags = tags;
         this.size = size;
         this.modifiedBy = modifiedByDevice;
         this.modifiedByAccount = modifiedByAccount;
-        this.lastModifiedDate = lastModifiedDate;
+        this.lastModified = toTime(lastModifiedDate);
         this.version = version;
         this.deleted = deleted;
         this.folderInfo = folderInfo;
@@ -182,15 +219,15 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                 "relativeName must not contain /../: " + relativeName);
         }
 
-        fileName = relativeName;
+        setRelativeName(relativeName);
         folderInfo = folder;
 
         oid = null;
         hashes = null;
         tags = null;
-        size = null;
+        size = UNKNOWN_SIZE;
         modifiedBy = null;
-        lastModifiedDate = null;
+        lastModified = NO_DATE;
         version = 0;
         deleted = false;
 
@@ -230,7 +267,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         }
         String diskFileName = FileInfoFactory.decodeIllegalChars(diskFile
             .getFileName().toString());
-        boolean nameMatch = fileName.endsWith(diskFileName);
+        boolean nameMatch = name.endsWith(diskFileName);
 
         if (!nameMatch && IGNORE_CASE) {
             // Try harder if ignore case
@@ -341,8 +378,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                 return existanceSync && dirFileSync;
             }
             boolean lastModificationSync = DateUtil
-                .equalsFileDateCrossPlattform(diskLastMod,
-                    lastModifiedDate.getTime());
+                .equalsFileDateCrossPlattform(diskLastMod, getModifiedTime());
             if (!lastModificationSync) {
                 return false;
             }
@@ -361,7 +397,63 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      */
     @Override
     public String getRelativeName() {
-        return fileName;
+        if (directory == null) {
+            return name;
+        }
+        FileInfoStrings strings = getStringsCache();
+        if (strings.getRelativeName() == null) {
+            strings.setRelativeName(directory.getPath() + UNIX_SEPARATOR
+                + name);
+        }
+        return strings.getRelativeName();
+    }
+
+    /**
+     * Splits the relative name into the shared directory prefix and the name
+     * if the prefix can be shared with the previous file.
+     *
+     * @param relativeName
+     */
+    private void setRelativeName(String relativeName) {
+        int i = relativeName != null ? relativeName.lastIndexOf('/') : -1;
+        DirectoryPrefix prefix = i > 0
+            ? DirectoryPrefix.get(relativeName, i)
+            : null;
+        if (prefix == null) {
+            directory = null;
+            name = relativeName;
+        } else {
+            directory = prefix;
+            name = relativeName.substring(i + 1);
+        }
+        cachedStrings = null;
+    }
+
+    /**
+     * @return the length of the relative name without building it.
+     */
+    private int getRelativeNameLength() {
+        if (directory == null) {
+            return name.length();
+        }
+        return directory.getPath().length() + 1 + name.length();
+    }
+
+    /**
+     * @param index
+     * @return the char of the relative name without building it.
+     */
+    private char relativeNameCharAt(int index) {
+        if (directory == null) {
+            return name.charAt(index);
+        }
+        String path = directory.getPath();
+        if (index < path.length()) {
+            return path.charAt(index);
+        } else if (index == path.length()) {
+            return '/';
+        }
+        return name.charAt(index - path.length() - 1);
     }
 
     /**
@@ -375,7 +467,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         // }
         FileInfoStrings strings = getStringsCache();
         if (strings.getLowerCaseName() == null) {
-            strings.setLowerCaseName(fileName.toLowerCase());
+            strings.setLowerCaseName(getRelativeName().toLowerCase());
         }
         return strings.getLowerCaseName();
     }
@@ -412,9 +504,9 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      */
     @Override
     public String getFilenameOnly() {
-        // if (Feature.CACHE_FILEINFO_STRINGS.isDisabled()) {
-        // return getFilenameOnly0();
-        // }
+        if (directory != null || name.indexOf('/') < 0) {
+            return name;
+        }
         FileInfoStrings strings = getStringsCache();
         if (strings.getFileNameOnly() == null) {
             strings.setFileNameOnly(getFilenameOnly0());
@@ -423,11 +515,11 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     private String getFilenameOnly0() {
-        int index = fileName.lastIndexOf('/');
+        int index = name.lastIndexOf('/');
         if (index > -1) {
-            return fileName.substring(index + 1);
+            return name.substring(index + 1);
         } else {
-            return fileName;
+            return name;
         }
     }
 
@@ -495,6 +587,9 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      */
     @Override
     public long getSize() {
+        if (size == UNKNOWN_SIZE) {
+            throw new NullPointerException("Size unknown: " + this);
+        }
         return size;
     }
 
@@ -518,7 +613,19 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      */
     @Override
     public Date getModifiedDate() {
-        return lastModifiedDate;
+        return lastModified != NO_DATE ? new Date(lastModified) : null;
+    }
+
+    /**
+     * @return the modification date in epoch millis. Unlike
+     *         {@link #getModifiedDate()} without allocation.
+     */
+    public long getModifiedTime() {
+        if (lastModified == NO_DATE) {
+            throw new NullPointerException("Modification date is null: "
+                + this);
+        }
+        return lastModified;
     }
 
     /**
@@ -529,7 +636,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     public boolean isLookupInstance() {
-        return size == null;
+        return size == UNKNOWN_SIZE;
     }
 
     @Override
@@ -543,7 +650,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     public boolean isBaseDirectory() {
-        return StringUtils.isBlank(fileName);
+        return directory == null && StringUtils.isBlank(name);
     }
 
     /**
@@ -551,12 +658,16 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      *         located in.
      */
     public DirectoryInfo getDirectory() {
-        int i = fileName.lastIndexOf('/');
+        if (directory != null) {
+            return FileInfoFactory.lookupDirectory(folderInfo, directory
+                .getPath());
+        }
+        int i = name.lastIndexOf('/');
         if (i < 0) {
             return FileInfoFactory.createBaseDirectoryInfo(folderInfo);
         }
-        String dirName = fileName.substring(0, i);
-        return FileInfoFactory.lookupDirectory(folderInfo, dirName);
+        return FileInfoFactory.lookupDirectory(folderInfo, name.substring(0,
+            i));
     }
 
     // PFC-1962: Deligating methods.
@@ -610,8 +721,8 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
             if (ignoreLastModified) {
                 return false;
             }
-            return DateUtil.isNewerFileDateCrossPlattform(lastModifiedDate,
-                ofInfo.lastModifiedDate);
+            return DateUtil.isNewerFileDateCrossPlattform(getModifiedTime(),
+                ofInfo.getModifiedTime());
         }
         return version > ofInfo.version;
     }
@@ -780,15 +891,15 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
             // This is quick do it first
             return false;
         }
-        if (!Util.equals(size, otherFile.size)) {
+        if (size != otherFile.size) {
             return false;
         }
         if (!equals(otherFile)) {
             // not equals, return
             return false;
         }
-        if (lastModifiedDate != null && otherFile.lastModifiedDate != null
-            && !lastModifiedDate.equals(otherFile.lastModifiedDate))
+        if (lastModified != NO_DATE && otherFile.lastModified != NO_DATE
+            && lastModified != otherFile.lastModified)
         {
             return false;
         }
@@ -820,8 +931,25 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     private int hashCode0() {
-        int hash = IGNORE_CASE ? fileName.toLowerCase().hashCode() : fileName
-            .hashCode();
+        // Hash of the relative name, without building it
+        int hash;
+        if (IGNORE_CASE) {
+            hash = 0;
+            int length = getRelativeNameLength();
+            for (int i = 0; i < length; i++) {
+                // Like String.equalsIgnoreCase
+                hash = 31 * hash
+                    + Character.toLowerCase(Character
+                        .toUpperCase(relativeNameCharAt(i)));
+            }
+        } else if (directory == null) {
+            hash = name.hashCode();
+        } else {
+            hash = 31 * directory.getPath().hashCode() + '/';
+            for (int i = 0; i < name.length(); i++) {
+                hash = 31 * hash + name.charAt(i);
+            }
+        }
         hash += folderInfo.hashCode();
         return hash;
     }
@@ -833,18 +961,57 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         }
         if (other instanceof FileInfo) {
             FileInfo otherInfo = (FileInfo) other;
-            boolean caseMatch = Util.equalsRelativeName(fileName,
-                otherInfo.fileName);
+            boolean caseMatch = directory == otherInfo.directory
+                ? Util.equalsRelativeName(name, otherInfo.name)
+                : equalsRelativeName(otherInfo);
             return caseMatch && Util.equals(folderInfo, otherInfo.folderInfo);
         }
 
         return false;
     }
 
+    /**
+     * Compares the relative names of files with different directory prefixes
+     * without building them.
+     *
+     * @param other
+     * @return if the relative names are equal.
+     * @see Util#equalsRelativeName(String, String)
+     */
+    private boolean equalsRelativeName(FileInfo other) {
+        if (name == null || other.name == null) {
+            return name == other.name;
+        }
+        int length = getRelativeNameLength();
+        if (length != other.getRelativeNameLength()) {
+            return false;
+        }
+        // Names mostly differ at the end
+        for (int i = length - 1; i >= 0; i--) {
+            char c1 = relativeNameCharAt(i);
+            char c2 = other.relativeNameCharAt(i);
+            if (c1 == c2) {
+                continue;
+            }
+            if (!IGNORE_CASE) {
+                return false;
+            }
+            // Like String.equalsIgnoreCase
+            char u1 = Character.toUpperCase(c1);
+            char u2 = Character.toUpperCase(c2);
+            if (u1 != u2
+                && Character.toLowerCase(u1) != Character.toLowerCase(u2))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         return '[' + folderInfo.getName() + "]:" + (deleted ? "(del) /" : "/")
-            + fileName;
+            + getRelativeName();
     }
 
     /**
@@ -856,14 +1023,14 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     private void toDetailString(StringBuilder str) {
         str.append(toString());
         str.append(", size: ");
-        str.append(size);
+        str.append(size != UNKNOWN_SIZE ? String.valueOf(size) : "null");
         str.append(" bytes, version: ");
         str.append(version);
         str.append(", modified: ");
-        str.append(lastModifiedDate);
+        str.append(getModifiedDate());
         str.append(" (");
-        if (lastModifiedDate != null) {
-            str.append(lastModifiedDate.getTime());
+        if (lastModified != NO_DATE) {
+            str.append(lastModified);
         } else {
             str.append("-n/a-");
         }
@@ -911,16 +1078,18 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      *             if the state is corrupt
      */
     private void validate() {
-        Reject.ifNull(lastModifiedDate, "Modification date is null");
-        if (lastModifiedDate.getTime() < 0) {
+        Reject.ifTrue(lastModified == NO_DATE, "Modification date is null");
+        if (lastModified < 0) {
             throw new IllegalStateException("Modification date is invalid: "
-                + lastModifiedDate);
+                + getModifiedDate());
         }
-        Reject.ifTrue(StringUtils.isEmpty(fileName), "Filename is empty");
-        char lastChar = fileName.charAt(fileName.length() - 1);
+        // Checks the name only. The directory prefix is never empty.
+        Reject.ifTrue(directory == null && StringUtils.isEmpty(name),
+            "Filename is empty");
+        char lastChar = name.isEmpty() ? '/' : name.charAt(name.length() - 1);
         if (lastChar == '/' || lastChar == '\\') {
             throw new IllegalStateException("Filename ends with slash: "
-                + fileName);
+                + getRelativeName());
         }
 
         //Reject.ifNull(size, "Size is null");
@@ -930,10 +1099,39 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
 
     // Serialization optimization *********************************************
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("fileName", getRelativeName());
+        fields.put("oid", oid);
+        fields.put("hashes", hashes);
+        fields.put("tags", tags);
+        fields.put("size", size != UNKNOWN_SIZE ? Long.valueOf(size) : null);
+        fields.put("modifiedBy", modifiedBy);
+        fields.put("modifiedByAccount", modifiedByAccount);
+        fields.put("lastModifiedDate", getModifiedDate());
+        fields.put("version", version);
+        fields.put("deleted", deleted);
+        fields.put("folderInfo", folderInfo);
+        out.writeFields();
+    }
+
     private void readObject(ObjectInputStream in) throws IOException,
         ClassNotFoundException
     {
-        in.defaultReadObject();
+        ObjectInputStream.GetField fields = in.readFields();
+        String fileName = (String) fields.get("fileName", null);
+        oid = (String) fields.get("oid", null);
+        hashes = (String) fields.get("hashes", null);
+        tags = (String) fields.get("tags", null);
+        Long sizeObj = (Long) fields.get("size", null);
+        size = sizeObj != null ? sizeObj : UNKNOWN_SIZE;
+        modifiedBy = (MemberInfo) fields.get("modifiedBy", null);
+        modifiedByAccount = (AccountInfo) fields.get("modifiedByAccount",
+            null);
+        lastModified = toTime((Date) fields.get("lastModifiedDate", null));
+        version = fields.get("version", 0);
+        deleted = fields.get("deleted", false);
+        folderInfo = (FolderInfo) fields.get("folderInfo", null);
 
         // #2037: Removed internalization
         // fileName = fileName.intern();
@@ -955,10 +1153,15 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         if (fileName.startsWith("/")) {
             fileName = fileName.substring(1);
         }
+        setRelativeName(fileName);
 
         // validate();
     }
 
+    private static long toTime(Date date) {
+        return date != null ? date.getTime() : NO_DATE;
+    }
+
     private static final long extVersion100UID = 100L;
     private static final long extVersionCurrentUID = 101L;
 
@@ -972,7 +1175,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                     + ", supported: " + extVersion100UID + ", "
                     + extVersionCurrentUID);
         }
-        fileName = in.readUTF();
+        setRelativeName(in.readUTF());
         size = in.readLong();
         if (in.readBoolean()) {
             modifiedBy = MemberInfo.readExt(in);
@@ -980,7 +1183,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         } else {
             modifiedBy = null;
         }
-        lastModifiedDate = ExternalizableUtil.readDate(in);
+        lastModified = toTime(ExternalizableUtil.readDate(in));
         version = in.readInt();
         deleted = in.readBoolean();
         folderInfo = ExternalizableUtil.readFolderInfo(in);
@@ -1024,13 +1227,13 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         }
         out.writeInt(isFile() ? 0 : 1);
         out.writeLong(extUID);
-        out.writeUTF(fileName);
-        out.writeLong(size);
+        out.writeUTF(getRelativeName());
+        out.writeLong(getSize());
         out.writeBoolean(modifiedBy != null);
         if (modifiedBy != null) {
             modifiedBy.writeExternal(out);
         }
-        ExternalizableUtil.writeDate(out, lastModifiedDate);
+        ExternalizableUtil.writeDate(out, getModifiedDate());
         out.writeInt(version);
         out.writeBoolean(deleted);
         ExternalizableUtil.writeFolderInfo(out, folderInfo);
@@ -1069,6 +1272,83 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         // PFC-2571: End
     }
 
+    /**
+     * Writes this file into a compact list.
+     *
+     * @see FileInfoCodec
+     */
+    void writeCompact(FileInfoCodec codec, ObjectOutput out)
+        throws IOException
+    {
+        int flags = 0;
+        if (!isFile()) {
+            flags |= FileInfoCodec.FLAG_DIRECTORY;
+        }
+        if (deleted) {
+            flags |= FileInfoCodec.FLAG_DELETED;
+        }
+        if (oid != null) {
+            flags |= FileInfoCodec.FLAG_OID;
+        }
+        if (hashes != null) {
+            flags |= FileInfoCodec.FLAG_HASHES;
+        }
+        if (tags != null) {
+            flags |= FileInfoCodec.FLAG_TAGS;
+        }
+        if (lastModified != NO_DATE) {
+            flags |= FileInfoCodec.FLAG_MODIFIED_DATE;
+        }
+        out.writeByte(flags);
+        codec.writeName(out, getRelativeName());
+        FileInfoCodec.writeSignedVarLong(out, size != UNKNOWN_SIZE ? size : 0);
+        FileInfoCodec.writeSignedVarLong(out, version);
+        if (lastModified != NO_DATE) {
+            codec.writeModifiedDate(out, lastModified);
+        }
+        codec.writeMember(out, modifiedBy);
+        codec.writeAccount(out, modifiedByAccount);
+        codec.writeFolder(out, folderInfo);
+        if (oid != null) {
+            FileInfoCodec.writeString(out, oid);
+        }
+        if (hashes != null) {
+            FileInfoCodec.writeString(out, hashes);
+        }
+        if (tags != null) {
+            FileInfoCodec.writeString(out, tags);
+        }
+    }
+
+    /**
+     * Reads this file from a compact list. The flags have already been read
+     * by the codec.
+     *
+     * @see FileInfoCodec
+     */
+    void readCompact(FileInfoCodec codec, ObjectInput in, int flags)
+        throws IOException, ClassNotFoundException
+    {
+        setRelativeName(codec.readName(in));
+        size = FileInfoCodec.readSignedVarLong(in);
+        version = (int) FileInfoCodec.readSignedVarLong(in);
+        if ((flags & FileInfoCodec.FLAG_MODIFIED_DATE) != 0) {
+            lastModified = codec.readModifiedDate(in);
+        } else {
+            lastModified = NO_DATE;
+        }
+        deleted = (flags & FileInfoCodec.FLAG_DELETED) != 0;
+        modifiedBy = codec.readMember(in);
+        modifiedByAccount = codec.readAccount(in);
+        folderInfo = codec.readFolder(in);
+        oid = (flags & FileInfoCodec.FLAG_OID) != 0 ? FileInfoCodec
+            .readString(in) : null;
+        hashes = (flags & FileInfoCodec.FLAG_HASHES) != 0 ? FileInfoCodec
+            .readString(in) : null;
+        tags = (flags & FileInfoCodec.FLAG_TAGS) != 0 ? FileInfoCodec
+            .readString(in) : null;
+    }
+
     /**
      * Utility method for changing the fileName part of a relative file path.
      * Example renameRelativeFileName('directory/subdirectory/myFile.txt',
@@ -1107,10 +1387,10 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         if (mesg instanceof FileInfoProto.FileInfo) {
             FileInfoProto.FileInfo fileInfo = (FileInfoProto.FileInfo) mesg;
             this.deleted = fileInfo.getDeleted();
-            this.fileName = fileInfo.getFileName();
+            setRelativeName(fileInfo.getFileName());
             // Todo: Hacky
             this.folderInfo = new FolderInfo("", fileInfo.getFolderId());
-            this.lastModifiedDate = new Date(fileInfo.getLastModifiedDate());
+            this.lastModified = fileInfo.getLastModifiedDate();
             // Todo: Hacky
             this.modifiedBy = new MemberInfo("", fileInfo.getModifiedByNodeId(), "");
             this.version = (int) fileInfo.getVersion();
@@ -1132,12 +1412,12 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         FileInfoProto.FileInfo.Builder builder = FileInfoProto.FileInfo.newBuilder();
         builder.setClazzName(this.getClass().getSimpleName());
         builder.setDeleted(this.deleted);
-        if (this.fileName != null) builder.setFileName(this.fileName);
+        if (this.name != null) builder.setFileName(getRelativeName());
         if (this.folderInfo != null) builder.setFolderId(this.folderInfo.getId());
-        if (this.lastModifiedDate != null) builder.setLastModifiedDate(this.lastModifiedDate.getTime());
+        if (this.lastModified != NO_DATE) builder.setLastModifiedDate(this.lastModified);
         if (this.modifiedBy != null) builder.setModifiedByNodeId(modifiedBy.getId());
         builder.setVersion(this.version);
-        if (this.size != null) builder.setSize(this.size);
+        if (this.size != UNKNOWN_SIZE) builder.setSize(this.size);
         return builder.build();
     }
 }
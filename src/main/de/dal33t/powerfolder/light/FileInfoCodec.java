@@ -0,0 +1,359 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.util.ByteSerializer;
+
+/**
+ * Compact binary coding of a list of {@link FileInfo}s. Used by the compact
+ * filelist messages, see {@link de.dal33t.powerfolder.message.Identity}
+ * protocol version 112.
+ * <p>
+ * Compared to {@link FileInfo#writeExternal(ObjectOutput)}:
+ * <ul>
+ * <li>The relative name is front-coded: Only the suffix that differs from the
+ * name of the previous file is written.</li>
+ * <li>{@link MemberInfo}, {@link AccountInfo} and {@link FolderInfo} are
+ * written once per list and referenced by index afterwards.</li>
+ * <li>Numbers are written as varints, the modification date as delta of epoch
+ * millis to the previous file.</li>
+ * </ul>
+ * The order of the files is kept. One instance holds the dictionary of one
+ * list, so it is not thread-safe and not reusable.
+ */
+public final class FileInfoCodec {
+
+    private static final int CODEC_VERSION = 1;
+
+    /**
+     * Upper bound of lengths read from the stream. No packet is larger, so
+     * anything above is corrupt or malicious and must not be allocated.
+     */
+    private static final long MAX_LENGTH = ByteSerializer.MAX_BUFFER_SIZE;
+
+    /**
+     * Initial capacity when reading files. The array grows only with the
+     * files actually read.
+     */
+    private static final int MAX_INITIAL_FILES = 1024;
+
+    // Flags of one FileInfo
+    static final int FLAG_DIRECTORY = 1;
+    static final int FLAG_DELETED = 1 << 1;
+    static final int FLAG_OID = 1 << 2;
+    static final int FLAG_HASHES = 1 << 3;
+    static final int FLAG_TAGS = 1 << 4;
+    static final int FLAG_MODIFIED_DATE = 1 << 5;
+
+    // References into the dictionaries
+    private static final int REF_NULL = 0;
+    private static final int REF_NEW = 1;
+    private static final int REF_OFFSET = 2;
+
+    private String lastName = "";
+    private long lastModified;
+
+    private Map<MemberInfo, Integer> memberIndex;
+    private Map<AccountInfo, Integer> accountIndex;
+    private Map<FolderInfo, Integer> folderIndex;
+
+    private List<MemberInfo> members;
+    private List<AccountInfo> accounts;
+    private List<FolderInfo> folders;
+
+    private FileInfoCodec() {
+    }
+
+    /**
+     * Writes the files in compact format.
+     *
+     * @param out
+     * @param files
+     *            the files to write, may be null.
+     * @throws IOException
+     */
+    public static void writeFiles(ObjectOutput out, FileInfo[] files)
+        throws IOException
+    {
+        out.writeByte(CODEC_VERSION);
+        if (files == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, files.length + 1);
+        FileInfoCodec codec = new FileInfoCodec();
+        codec.memberIndex = new HashMap<MemberInfo, Integer>();
+        codec.accountIndex = new HashMap<AccountInfo, Integer>();
+        codec.folderIndex = new HashMap<FolderInfo, Integer>();
+        for (FileInfo fInfo : files) {
+            fInfo.writeCompact(codec, out);
+        }
+    }
+
+    /**
+     * Reads files written by {@link #writeFiles(ObjectOutput, FileInfo[])}.
+     *
+     * @param in
+     * @return the files or null.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static FileInfo[] readFiles(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        int version = in.readUnsignedByte();
+        if (version != CODEC_VERSION) {
+            throw new InvalidClassException(FileInfoCodec.class.getName(),
+                "Unable to read. Codec version(stream): " + version
+                    + ", expected: " + CODEC_VERSION);
+        }
+        long len = readVarLong(in) - 1;
+        if (len == -1) {
+            return null;
+        }
+        if (len < 0 || len > MAX_LENGTH) {
+            throw new StreamCorruptedException("Illegal number of files: "
+                + len);
+        }
+        FileInfoCodec codec = new FileInfoCodec();
+        codec.members = new ArrayList<MemberInfo>();
+        codec.accounts = new ArrayList<AccountInfo>();
+        codec.folders = new ArrayList<FolderInfo>();
+        List<FileInfo> files = new ArrayList<FileInfo>((int) Math.min(len,
+            MAX_INITIAL_FILES));
+        for (long i = 0; i < len; i++) {
+            int flags = in.readUnsignedByte();
+            FileInfo fInfo = (flags & FLAG_DIRECTORY) != 0
+                ? new DirectoryInfo()
+                : new FileInfo();
+            fInfo.readCompact(codec, in, flags);
+            files.add(fInfo);
+        }
+        return files.toArray(new FileInfo[files.size()]);
+    }
+
+    // Used by FileInfo *******************************************************
+
+    void writeName(ObjectOutput out, String name) throws IOException {
+        int max = Math.min(lastName.length(), name.length());
+        int prefix = 0;
+        while (prefix < max && lastName.charAt(prefix) == name.charAt(prefix))
+        {
+            prefix++;
+        }
+        // Don't split a surrogate pair
+        if (prefix > 0 && Character.isHighSurrogate(name.charAt(prefix - 1))) {
+            prefix--;
+        }
+        writeVarLong(out, prefix);
+        writeString(out, name.substring(prefix));
+        lastName = name;
+    }
+
+    String readName(ObjectInput in) throws IOException {
+        long prefix = readVarLong(in);
+        if (prefix < 0 || prefix > lastName.length()) {
+            throw new StreamCorruptedException("Illegal name prefix: "
+                + prefix + ", previous name: " + lastName);
+        }
+        String name = lastName.substring(0, (int) prefix)
+            + readString(in);
+        lastName = name;
+        return name;
+    }
+
+    void writeModifiedDate(ObjectOutput out, long time) throws IOException {
+        writeSignedVarLong(out, time - lastModified);
+        lastModified = time;
+    }
+
+    long readModifiedDate(ObjectInput in) throws IOException {
+        lastModified += readSignedVarLong(in);
+        return lastModified;
+    }
+
+    void writeMember(ObjectOutput out, MemberInfo member) throws IOException {
+        if (member == null) {
+            writeVarLong(out, REF_NULL);
+            return;
+        }
+        Integer index = memberIndex.get(member);
+        if (index != null) {
+            writeVarLong(out, index + REF_OFFSET);
+            return;
+        }
+        memberIndex.put(member, memberIndex.size());
+        writeVarLong(out, REF_NEW);
+        member.writeExternal(out);
+    }
+
+    MemberInfo readMember(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        int ref = readRef(in, members.size());
+        if (ref == REF_NULL) {
+            return null;
+        } else if (ref == REF_NEW) {
+            MemberInfo member = MemberInfo.readExt(in).intern();
+            members.add(member);
+            return member;
+        }
+        return members.get(ref - REF_OFFSET);
+    }
+
+    void writeAccount(ObjectOutput out, AccountInfo account)
+        throws IOException
+    {
+        if (account == null) {
+            writeVarLong(out, REF_NULL);
+            return;
+        }
+        Integer index = accountIndex.get(account);
+        if (index != null) {
+            writeVarLong(out, index + REF_OFFSET);
+            return;
+        }
+        accountIndex.put(account, accountIndex.size());
+        writeVarLong(out, REF_NEW);
+        account.writeExternal(out);
+    }
+
+    AccountInfo readAccount(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        int ref = readRef(in, accounts.size());
+        if (ref == REF_NULL) {
+            return null;
+        } else if (ref == REF_NEW) {
+            AccountInfo account = AccountInfo.readExt(in).intern();
+            accounts.add(account);
+            return account;
+        }
+        return accounts.get(ref - REF_OFFSET);
+    }
+
+    void writeFolder(ObjectOutput out, FolderInfo folder) throws IOException {
+        if (folder == null) {
+            writeVarLong(out, REF_NULL);
+            return;
+        }
+        Integer index = folderIndex.get(folder);
+        if (index != null) {
+            writeVarLong(out, index + REF_OFFSET);
+            return;
+        }
+        folderIndex.put(folder, folderIndex.size());
+        writeVarLong(out, REF_NEW);
+        folder.writeExternal(out);
+    }
+
+    FolderInfo readFolder(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        int ref = readRef(in, folders.size());
+        if (ref == REF_NULL) {
+            return null;
+        } else if (ref == REF_NEW) {
+            FolderInfo folder = FolderInfo.readExt(in).intern();
+            folders.add(folder);
+            return folder;
+        }
+        return folders.get(ref - REF_OFFSET);
+    }
+
+    private static int readRef(ObjectInput in, int dictionarySize)
+        throws IOException
+    {
+        long ref = readVarLong(in);
+        if (ref < 0 || ref >= dictionarySize + REF_OFFSET) {
+            throw new StreamCorruptedException("Illegal reference: " + ref
+                + ", dictionary size: " + dictionarySize);
+        }
+        return (int) ref;
+    }
+
+    // Primitives *************************************************************
+
+    static void writeString(ObjectOutput out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ObjectInput in) throws IOException {
+        long len = readVarLong(in);
+        if (len < 0 || len > MAX_LENGTH) {
+            throw new StreamCorruptedException("Illegal string length: " + len);
+        }
+        byte[] bytes = new byte[(int) len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an unsigned varint: 7 bits per byte, lowest group first.
+     */
+    static void writeVarLong(ObjectOutput out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(ObjectInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /**
+     * Writes a zigzag encoded varint. Small negative values stay small.
+     */
+    static void writeSignedVarLong(ObjectOutput out, long value)
+        throws IOException
+    {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarLong(ObjectInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
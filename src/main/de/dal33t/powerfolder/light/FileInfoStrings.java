@@ -26,10 +26,19 @@ package de.dal33t.powerfolder.light;
  * @version $Revision: 1.5 $
  */
 public class FileInfoStrings {
+    private String relativeName;
     private String fileNameOnly;
     private String lowerCaseName;
     private String locationInFolder;
 
+    String getRelativeName() {
+        return relativeName;
+    }
+
+    void setRelativeName(String relativeName) {
+        this.relativeName = relativeName;
+    }
+
     String getFileNameOnly() {
         return fileNameOnly;
     }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Caches the secure ids of folders for one magic id. The magic id is chosen
+ * per connection, so one cache is used for all folder lists exchanged over the
+ * connection.
+ * <p>
+ * Is thread safe.
+ *
+ * @see FolderInfo#calculateSecureId(String)
+ */
+public final class SecureIdCache {
+
+    private final String magicId;
+    /** Folder id -> secure id */
+    private final ConcurrentMap<String, String> secureIds = Util
+        .createConcurrentHashMap();
+
+    /**
+     * @param magicId
+     *            the magic id to calculate the secure ids with.
+     */
+    public SecureIdCache(String magicId) {
+        Reject.ifBlank(magicId, "Magic id is blank");
+        this.magicId = magicId;
+    }
+
+    /**
+     * @return the magic id the secure ids are calculated with.
+     */
+    public String getMagicId() {
+        return magicId;
+    }
+
+    /**
+     * @param foInfo
+     * @return the secure id of the folder for the magic id of this cache.
+     */
+    public String getSecureId(FolderInfo foInfo) {
+        String secureId = secureIds.get(foInfo.id);
+        if (secureId == null) {
+            secureId = foInfo.calculateSecureId(magicId);
+            secureIds.put(foInfo.id, secureId);
+        }
+        return secureId;
+    }
+
+    /**
+     * @return the number of cached secure ids.
+     */
+    public int size() {
+        return secureIds.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SecureIdCache [" + secureIds.size() + " folders]";
+    }
+}
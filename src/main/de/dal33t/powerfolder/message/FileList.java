@@ -23,6 +23,7 @@ import com.google.protobuf.AbstractMessage;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.d2d.D2DObject;
 import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.FileListTree;
 import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -117,8 +118,54 @@ public class FileList extends FolderRelatedMessage
      * @return the splitted filelist messages.
      */
     public static Message[] create(Folder folder, boolean useExt) {
+        return create(folder, useExt, false);
+    }
+
+    /**
+     * Creates the message for the filelist. Filelist gets splitted into smaller
+     * ones if required.
+     *
+     * @param folder
+     * @param useExt
+     *            if use {@link Externalizable}s
+     * @param useCompact
+     *            if use the compact coding of {@link FileListCompact} and
+     *            {@link FolderFilesChangedCompact}. Requires useExt.
+     * @return the splitted filelist messages.
+     */
+    public static Message[] create(Folder folder, boolean useExt,
+        boolean useCompact)
+    {
         return createFileListMessages(folder.getInfo(), folder.getKnownFiles(),
-            folder.getKnownDirectories(), folder.getDiskItemFilter(), useExt);
+            folder.getKnownDirectories(), folder.getDiskItemFilter(), useExt,
+            useCompact);
+    }
+
+    /**
+     * Creates the messages for the files in the buckets requested by
+     * {@link FileListBucketRequest}.
+     *
+     * @param folder
+     * @param useExt
+     *            if use {@link Externalizable}s
+     * @param useCompact
+     *            if use the compact coding.
+     * @param request
+     *            the requested buckets.
+     * @return the splitted filelist messages.
+     */
+    public static Message[] create(Folder folder, boolean useExt,
+        boolean useCompact, FileListBucketRequest request)
+    {
+        if (request.isCompleteList()) {
+            return create(folder, useExt, useCompact);
+        }
+        int nBuckets = request.getBucketCount();
+        int[] buckets = request.getBuckets();
+        return createFileListMessages(folder.getInfo(), FileListTree.select(
+            folder.getKnownFiles(), nBuckets, buckets, true), FileListTree
+            .select(folder.getKnownDirectories(), nBuckets, buckets, true),
+            folder.getDiskItemFilter(), useExt, useCompact);
     }
 
     /**
@@ -136,10 +183,32 @@ public class FileList extends FolderRelatedMessage
      */
     public static Message[] create4Test(FolderInfo foInfo,
         Collection<FileInfo> files, DiskItemFilter diskItemFilter)
+    {
+        return create4Test(foInfo, files, diskItemFilter, false);
+    }
+
+    /**
+     * Splits the filelist into smaller ones. Splits into one
+     * <code>FileList</code> and (if required) multiple
+     * <code>FolderFilesChanged</code> messages
+     *
+     * @param foInfo
+     *            the folder for the message
+     * @param files
+     *            the fileinfos to include.
+     * @param diskItemFilter
+     *            the item filter to appy
+     * @param useCompact
+     *            if use the compact coding
+     * @return the splitted list
+     */
+    public static Message[] create4Test(FolderInfo foInfo,
+        Collection<FileInfo> files, DiskItemFilter diskItemFilter,
+        boolean useCompact)
     {
         Collection<DirectoryInfo> dirInfos = Collections.emptyList();
         return createFileListMessages(foInfo, files, dirInfos, diskItemFilter,
-            true);
+            true, useCompact);
     }
 
     /**
@@ -159,7 +228,7 @@ public class FileList extends FolderRelatedMessage
      */
     private static Message[] createFileListMessages(FolderInfo foInfo,
         Collection<FileInfo> files, Collection<DirectoryInfo> dirs,
-        DiskItemFilter diskItemFilter, boolean useExt)
+        DiskItemFilter diskItemFilter, boolean useExt, boolean useCompact)
     {
         Reject.ifNull(foInfo, "Folder info is null");
         Reject.ifNull(files, "Files is null");
@@ -169,11 +238,8 @@ public class FileList extends FolderRelatedMessage
                 + Constants.FILE_LIST_MAX_FILES_PER_MESSAGE);
         
         if (files.isEmpty() && dirs.isEmpty()) {
-            if (useExt) {
-                return new Message[]{new FileListExt(foInfo, new FileInfo[0], 0)};
-            } else {
-                return new Message[]{new FileList(foInfo, new FileInfo[0], 0)};
-            }
+            return new Message[]{newFileList(foInfo, new FileInfo[0], useExt,
+                useCompact)};
         }
 
         List<Message> messages = new ArrayList<Message>(files.size()
@@ -190,21 +256,13 @@ public class FileList extends FolderRelatedMessage
             curMsgIndex++;
             if (curMsgIndex >= Constants.FILE_LIST_MAX_FILES_PER_MESSAGE) {
                 if (firstMessage) {
-                    if (useExt) {
-                        messages.add(new FileListExt(foInfo, messageFiles, 0));
-                    } else {
-                        messages.add(new FileList(foInfo, messageFiles, 0));
-                    }
+                    messages.add(newFileList(foInfo, messageFiles, useExt,
+                        useCompact));
                     firstMessage = false;
                 } else {
                     nDeltas++;
-                    if (useExt) {
-                        messages.add(new FolderFilesChangedExt(foInfo,
-                            messageFiles));
-                    } else {
-                        messages.add(new FolderFilesChanged(foInfo,
-                            messageFiles));
-                    }
+                    messages.add(newFolderFilesChanged(foInfo, messageFiles,
+                        useExt, useCompact));
                 }
                 messageFiles = new FileInfo[Constants.FILE_LIST_MAX_FILES_PER_MESSAGE];
                 curMsgIndex = 0;
@@ -218,21 +276,13 @@ public class FileList extends FolderRelatedMessage
             curMsgIndex++;
             if (curMsgIndex >= Constants.FILE_LIST_MAX_FILES_PER_MESSAGE) {
                 if (firstMessage) {
-                    if (useExt) {
-                        messages.add(new FileListExt(foInfo, messageFiles, 0));
-                    } else {
-                        messages.add(new FileList(foInfo, messageFiles, 0));
-                    }
+                    messages.add(newFileList(foInfo, messageFiles, useExt,
+                        useCompact));
                     firstMessage = false;
                 } else {
                     nDeltas++;
-                    if (useExt) {
-                        messages.add(new FolderFilesChangedExt(foInfo,
-                            messageFiles));
-                    } else {
-                        messages.add(new FolderFilesChanged(foInfo,
-                            messageFiles));
-                    }
+                    messages.add(newFolderFilesChanged(foInfo, messageFiles,
+                        useExt, useCompact));
                 }
                 messageFiles = new FileInfo[Constants.FILE_LIST_MAX_FILES_PER_MESSAGE];
                 curMsgIndex = 0;
@@ -241,30 +291,21 @@ public class FileList extends FolderRelatedMessage
 
         if (firstMessage && curMsgIndex == 0) {
             // Only ignored files
-            if (useExt) {
-                return new Message[]{new FileListExt(foInfo, new FileInfo[0], 0)};
-            } else {
-                return new Message[]{new FileList(foInfo, new FileInfo[0], 0)};
-            }
+            return new Message[]{newFileList(foInfo, new FileInfo[0], useExt,
+                useCompact)};
         }
         if (curMsgIndex != 0 && curMsgIndex < messageFiles.length) {
             // Last message
             FileInfo[] lastFiles = new FileInfo[curMsgIndex];
             System.arraycopy(messageFiles, 0, lastFiles, 0, lastFiles.length);
             if (firstMessage) {
-                if (useExt) {
-                    messages.add(new FileListExt(foInfo, lastFiles, 0));
-                } else {
-                    messages.add(new FileList(foInfo, lastFiles, 0));
-                }
+                messages.add(newFileList(foInfo, lastFiles, useExt,
+                    useCompact));
                 firstMessage = false;
             } else {
                 nDeltas++;
-                if (useExt) {
-                    messages.add(new FolderFilesChangedExt(foInfo, lastFiles));
-                } else {
-                    messages.add(new FolderFilesChanged(foInfo, lastFiles));
-                }
+                messages.add(newFolderFilesChanged(foInfo, lastFiles,
+                    useExt, useCompact));
             }
         }
 
@@ -283,6 +324,28 @@ public class FileList extends FolderRelatedMessage
         return messages.toArray(new Message[messages.size()]);
     }
 
+    private static FileList newFileList(FolderInfo foInfo, FileInfo[] files,
+        boolean useExt, boolean useCompact)
+    {
+        if (useExt && useCompact) {
+            return new FileListCompact(foInfo, files, 0);
+        } else if (useExt) {
+            return new FileListExt(foInfo, files, 0);
+        }
+        return new FileList(foInfo, files, 0);
+    }
+
+    private static FolderFilesChanged newFolderFilesChanged(FolderInfo foInfo,
+        FileInfo[] files, boolean useExt, boolean useCompact)
+    {
+        if (useExt && useCompact) {
+            return new FolderFilesChangedCompact(foInfo, files);
+        } else if (useExt) {
+            return new FolderFilesChangedExt(foInfo, files);
+        }
+        return new FolderFilesChanged(foInfo, files);
+    }
+
     /**
      * A filelist that does contains any information of the remote folder.
      *
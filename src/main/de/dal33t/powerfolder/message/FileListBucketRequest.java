@@ -0,0 +1,107 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Answer to a {@link FileListDigest}. Requests the files in the given buckets
+ * of the hash tree. The files get sent as {@link FileList} and
+ * {@link FolderFilesChanged}s.
+ *
+ * @see Identity#PROTOCOL_VERSION_113
+ */
+public class FileListBucketRequest extends FolderRelatedMessage {
+    private static final long serialVersionUID = 100L;
+
+    private int nBuckets;
+    private int[] buckets;
+
+    public FileListBucketRequest() {
+        // Serialization
+    }
+
+    /**
+     * @param foInfo
+     * @param nBuckets
+     *            the number of buckets of the digest.
+     * @param buckets
+     *            the requested buckets or null to request the complete
+     *            filelist.
+     */
+    public FileListBucketRequest(FolderInfo foInfo, int nBuckets, int[] buckets)
+    {
+        Reject.ifNull(foInfo, "Folder info is null");
+        folder = foInfo;
+        this.nBuckets = nBuckets;
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return the number of buckets of the digest.
+     */
+    public int getBucketCount() {
+        return nBuckets;
+    }
+
+    /**
+     * @return the requested buckets or null if the complete filelist is
+     *         requested.
+     */
+    public int[] getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return true if the complete filelist is requested.
+     */
+    public boolean isCompleteList() {
+        return buckets == null;
+    }
+
+    /**
+     * @return if the message is valid.
+     */
+    public boolean isValid() {
+        if (folder == null) {
+            return false;
+        }
+        if (buckets == null) {
+            return true;
+        }
+        if (nBuckets <= 0 || Integer.bitCount(nBuckets) != 1) {
+            return false;
+        }
+        for (int bucket : buckets) {
+            if (bucket < 0 || bucket >= nBuckets) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "FileListBucketRequest [folder=" + folder + ", buckets="
+            + (buckets != null ? buckets.length + "/" + nBuckets : "all")
+            + "]";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import de.dal33t.powerfolder.disk.FileListTree;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Sent instead of the complete {@link FileList} on connect. Contains the hash
+ * tree of the filelist of the sender. The receiver compares it with the
+ * filelist it received from the sender during the last connection and
+ * requests only the differing buckets with a {@link FileListBucketRequest}.
+ *
+ * @see FileListTree
+ * @see Identity#PROTOCOL_VERSION_113
+ */
+public class FileListDigest extends FolderRelatedMessage {
+    private static final long serialVersionUID = 100L;
+
+    private long root;
+    private long[] bucketHashes;
+
+    public FileListDigest() {
+        // Serialization
+    }
+
+    public FileListDigest(FolderInfo foInfo, FileListTree tree) {
+        Reject.ifNull(foInfo, "Folder info is null");
+        Reject.ifNull(tree, "Tree is null");
+        folder = foInfo;
+        root = tree.getRoot();
+        bucketHashes = tree.getBucketHashes();
+    }
+
+    /**
+     * Creates the digest of the filelist, that would be sent by
+     * {@link FileList#create(Folder, boolean, boolean)}.
+     *
+     * @param folder
+     * @return the digest
+     */
+    public static FileListDigest create(Folder folder) {
+        int nBuckets = FileListTree.bucketCount(folder.getKnownItemCount());
+        FileListTree tree = FileListTree.build(nBuckets,
+            folder.getKnownFiles(), folder.getKnownDirectories(),
+            folder.getDiskItemFilter());
+        return new FileListDigest(folder.getInfo(), tree);
+    }
+
+    public long getRoot() {
+        return root;
+    }
+
+    public long[] getBucketHashes() {
+        return bucketHashes;
+    }
+
+    public int getBucketCount() {
+        return bucketHashes.length;
+    }
+
+    /**
+     * @return if the message is valid.
+     */
+    public boolean isValid() {
+        return folder != null && bucketHashes != null
+            && bucketHashes.length > 0
+            && bucketHashes.length <= FileListTree.MAX_BUCKETS
+            && Integer.bitCount(bucketHashes.length) == 1
+            && root == FileListTree.rootOf(bucketHashes);
+    }
+
+    @Override
+    public String toString() {
+        return "FileListDigest [folder=" + folder + ", buckets="
+            + (bucketHashes != null ? bucketHashes.length : 0) + "]";
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.ExternalizableUtil;
+
+/**
+ * {@link FolderFilesChanged} with the files in compact binary coding.
+ *
+ * @see FileInfoCodec
+ * @see Identity#PROTOCOL_VERSION_112
+ */
+public class FolderFilesChangedCompact extends FolderFilesChanged implements
+    Externalizable
+{
+    private static final long serialVersionUID = 100L;
+    private static final long extVersionUID = 100L;
+
+    public FolderFilesChangedCompact() {
+        // Serialization
+        super();
+    }
+
+    FolderFilesChangedCompact(FolderInfo aFolder, FileInfo[] addedFiles) {
+        super(aFolder, addedFiles);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        long extUID = in.readLong();
+        if (extUID != extVersionUID) {
+            throw new InvalidClassException(this.getClass().getName(),
+                "Unable to read. extVersionUID(steam): " + extUID
+                    + ", expected: " + extVersionUID);
+        }
+        folder = ExternalizableUtil.readFolderInfo(in);
+        added = FileInfoCodec.readFiles(in);
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(extVersionUID);
+        ExternalizableUtil.writeFolderInfo(out, folder);
+        FileInfoCodec.writeFiles(out, added);
+    }
+}
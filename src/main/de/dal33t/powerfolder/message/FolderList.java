@@ -29,7 +29,9 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import com.google.protobuf.AbstractMessage;
@@ -38,6 +40,7 @@ import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.d2d.D2DObject;
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.SecureIdCache;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.protocol.FolderInfoProto;
 import de.dal33t.powerfolder.protocol.FolderListProto;
@@ -73,6 +76,9 @@ public class FolderList extends Message
      */
     public boolean joinedMetaFolders;
 
+    /** Hash set over the ids of {@link #secretFolders}, built on demand */
+    private transient volatile SecretIds secretIds;
+
     public FolderList() {
         // Serialisation constructor
     }
@@ -87,7 +93,23 @@ public class FolderList extends Message
      *            the magic id which was sent by the remote side
      */
     public FolderList(Collection<FolderInfo> allFolders, String remoteMagicId) {
-        Reject.ifBlank(remoteMagicId, "Remote magic id is blank");
+        this(allFolders, new SecureIdCache(remoteMagicId));
+    }
+
+    /**
+     * Constructor which splits up public and secret folder into own array.
+     * Folder Ids of secret folders will be encrypted with magic Id sent by
+     * remote node
+     *
+     * @param allFolders
+     * @param remoteSecureIds
+     *            the secure ids for the magic id which was sent by the remote
+     *            side
+     */
+    public FolderList(Collection<FolderInfo> allFolders,
+        SecureIdCache remoteSecureIds)
+    {
+        Reject.ifNull(remoteSecureIds, "Remote secure ids are null");
         // Split folderlist into secret and public list
         // Encrypt secret folder ids with magic id
         List<FolderInfo> secretFos = new ArrayList<FolderInfo>(
@@ -95,7 +117,7 @@ public class FolderList extends Message
         for (FolderInfo folderInfo : allFolders) {
             // Send secret folder infos if magic id is not empty
             // Clone folderinfo
-            String secureId = folderInfo.calculateSecureId(remoteMagicId);
+            String secureId = remoteSecureIds.getSecureId(folderInfo);
             // Set Id to secure Id
             FolderInfo secretFolder = new FolderInfo(folderInfo.getName(),
                 secureId);
@@ -116,17 +138,38 @@ public class FolderList extends Message
         if (StringUtils.isBlank(magicId)) {
             return false;
         }
-        return contains(foInfo, magicId);
+        return contains(foInfo, node.getSecureIdCache(magicId));
     }
 
     public boolean contains(FolderInfo foInfo, String magicId) {
-        String secureId = foInfo.calculateSecureId(magicId);
-        for (FolderInfo folder : secretFolders) {
-            if (folder.id.equals(secureId)) {
-                return true;
-            }
+        return containsSecureId(foInfo.calculateSecureId(magicId));
+    }
+
+    /**
+     * @param foInfo
+     * @param secureIds
+     *            the secure ids for my magic id sent to the remote side.
+     * @return true if the remote side has joined the folder.
+     */
+    public boolean contains(FolderInfo foInfo, SecureIdCache secureIds) {
+        return containsSecureId(secureIds.getSecureId(foInfo));
+    }
+
+    /**
+     * @param secureId
+     * @return true if one of the secret folders has the secure id.
+     */
+    public boolean containsSecureId(String secureId) {
+        FolderInfo[] folders = secretFolders;
+        if (folders == null) {
+            return false;
         }
-        return false;
+        SecretIds ids = secretIds;
+        if (ids == null || ids.folders != folders) {
+            ids = new SecretIds(folders);
+            secretIds = ids;
+        }
+        return ids.contains(secureId);
     }
 
     /**
@@ -302,4 +345,25 @@ public class FolderList extends Message
 
       return builder.build();
     }
+
+    /**
+     * The ids of an array of secret folders.
+     */
+    private static class SecretIds {
+        private final FolderInfo[] folders;
+        private final Set<String> ids;
+
+        private SecretIds(FolderInfo[] folders) {
+            this.folders = folders;
+            this.ids = new HashSet<String>(Math.max(16,
+                (int) (folders.length / .75f) + 1));
+            for (FolderInfo folder : folders) {
+                ids.add(folder.id);
+            }
+        }
+
+        private boolean contains(String secureId) {
+            return ids.contains(secureId);
+        }
+    }
 }
\ No newline at end of file
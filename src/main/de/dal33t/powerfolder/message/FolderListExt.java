@@ -27,6 +27,7 @@ import java.io.ObjectOutput;
 import java.util.Collection;
 
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.SecureIdCache;
 
 /**
  * EXT version of: List of available folders
@@ -47,6 +48,12 @@ public class FolderListExt extends FolderList implements Externalizable {
         super(allFolders, remoteMagicId);
     }
 
+    public FolderListExt(Collection<FolderInfo> allFolders,
+        SecureIdCache remoteSecureIds)
+    {
+        super(allFolders, remoteSecureIds);
+    }
+
     public void readExternal(ObjectInput in) throws IOException,
         ClassNotFoundException
     {
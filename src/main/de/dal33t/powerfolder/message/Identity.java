@@ -122,6 +122,10 @@ public class Identity extends Message
      * {@link FolderFilesChanged}
      * <p>
      * 111: PFC-2455: Include federated folders when returning Account to node.
+     * <p>
+     * 112: Added: {@link FileListCompact} {@link FolderFilesChangedCompact}
+     * <p>
+     * 113: Added: {@link FileListDigest} {@link FileListBucketRequest}
      */
     public static final int PROTOCOL_VERSION_106 = 106;
     public static final int PROTOCOL_VERSION_107 = 107;
@@ -129,9 +133,10 @@ public class Identity extends Message
     public static final int PROTOCOL_VERSION_109 = 109;
     public static final int PROTOCOL_VERSION_110 = 110;
     public static final int PROTOCOL_VERSION_111 = 111;
+    public static final int PROTOCOL_VERSION_112 = 112;
+    public static final int PROTOCOL_VERSION_113 = 113;
 
-    // PFC-2455: TODO: Upgrade to 111
-    private int protocolVersion = PROTOCOL_VERSION_111;
+    private int protocolVersion = PROTOCOL_VERSION_113;
 
     private boolean requestFullFolderlist;
 
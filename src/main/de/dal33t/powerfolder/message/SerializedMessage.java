@@ -0,0 +1,151 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+
+import de.dal33t.powerfolder.d2d.D2DObject;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Immutable wrapper around a message, that gets sent to many nodes. The
+ * message is serialized (and compressed) only once per wire format and the
+ * same bytes are written to every connection.
+ * <p>
+ * Connection handlers, which know this class, write the cached data. All
+ * others still work: On serialization the wrapper gets replaced by the
+ * original message.
+ * <p>
+ * ATTENTION: The wrapped message must not be changed after wrapping.
+ */
+public final class SerializedMessage extends Message {
+    private static final long serialVersionUID = 100L;
+
+    private final transient Message message;
+    private transient volatile byte[] data;
+    private transient volatile byte[] compressedData;
+    private transient volatile byte[] d2dData;
+
+    public SerializedMessage(Message message) {
+        Reject.ifNull(message, "Message");
+        Reject.ifTrue(message instanceof SerializedMessage,
+            "Message already serialized");
+        this.message = message;
+    }
+
+    /**
+     * @param messages
+     * @return the wrapped messages or null if messages is null.
+     */
+    public static Message[] wrap(Message... messages) {
+        if (messages == null) {
+            return null;
+        }
+        Message[] wrapped = new Message[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            Message message = messages[i];
+            wrapped[i] = message instanceof SerializedMessage
+                ? message
+                : new SerializedMessage(message);
+        }
+        return wrapped;
+    }
+
+    /**
+     * @param message
+     * @return the original message if the message is wrapped, otherwise the
+     *         message itself.
+     */
+    public static Message unwrap(Message message) {
+        if (message instanceof SerializedMessage) {
+            return ((SerializedMessage) message).message;
+        }
+        return message;
+    }
+
+    /**
+     * @return the original message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * @param compressed
+     *            if the data should be compressed.
+     * @return the java serialized message. Serialized only on the first call.
+     * @throws IOException
+     */
+    public byte[] getData(boolean compressed) throws IOException {
+        byte[] buf = compressed ? compressedData : data;
+        if (buf != null) {
+            return buf;
+        }
+        synchronized (this) {
+            buf = compressed ? compressedData : data;
+            if (buf == null) {
+                buf = ByteSerializer.serializeStatic(message, compressed);
+                if (compressed) {
+                    compressedData = buf;
+                } else {
+                    data = buf;
+                }
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * @return the D2D (protobuf) serialized message or null if the message
+     *         does not support D2D.
+     */
+    public byte[] getD2DData() {
+        if (!(message instanceof D2DObject)) {
+            return null;
+        }
+        byte[] buf = d2dData;
+        if (buf != null) {
+            return buf;
+        }
+        synchronized (this) {
+            if (d2dData == null) {
+                d2dData = ((D2DObject) message).toD2D().toByteArray();
+            }
+            return d2dData;
+        }
+    }
+
+    /**
+     * Serialize the original message, if written by a regular serializer.
+     *
+     * @return the original message
+     * @throws ObjectStreamException
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(message);
+    }
+}
@@ -88,7 +88,7 @@ public abstract class AbstractAcceptor extends PFComponent implements Runnable {
                 + "Closing incoming connection attempt: " + this);
             return;
         }
-        ProfilingEntry pe = Profiling.start();
+        ProfilingEntry pe = Profiling.start("AbstractAcceptor.accept");
         startTime = new Date();
         try {
             accept();
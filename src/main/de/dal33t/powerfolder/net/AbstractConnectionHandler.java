@@ -0,0 +1,589 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.Feature;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.IdentityReply;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.Problem;
+import de.dal33t.powerfolder.transfer.BandwidthEstimator;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.net.NetworkUtil;
+
+/**
+ * Base of the TCP connection handlers. Contains the identity handshake, the
+ * connection analysis, the keep-alive state and the send queue. Subclasses
+ * move the bytes.
+ *
+ * @see AbstractSocketConnectionHandler
+ * @see NIOSocketConnectionHandler
+ */
+public abstract class AbstractConnectionHandler extends PFComponent implements
+    ConnectionHandler
+{
+    /** The assigned member */
+    private Member member;
+
+    // Our identity
+    private Identity myIdentity;
+
+    // Identity of remote peer
+    private Identity identity;
+    private IdentityReply identityReply;
+    // The magic id, which has been send to the remote peer
+    private String myMagicId;
+
+    // Flag if client is on lan
+    private boolean onLAN;
+
+    /**
+     * If true all bandwidth limits are omitted, if false it's handled message
+     * based
+     */
+    private boolean omitBandwidthLimit;
+
+    // The send buffer
+    private final SendQueue messagesToSendQueue;
+
+    // Locks
+    private final CountDownLatch identityWaiter = new CountDownLatch(1);
+    private final CountDownLatch identityAcceptWaiter = new CountDownLatch(1);
+
+    // Keepalive stuff
+    private Date lastKeepaliveMessage;
+    // When the last ping was sent. Used for RTT samples.
+    private volatile long lastPingSent;
+    // RTT state of this connection for the bandwidth estimation
+    private final BandwidthEstimator.ConnectionRTT connectionRTT =
+        new BandwidthEstimator.ConnectionRTT();
+
+    protected AbstractConnectionHandler(Controller controller) {
+        super(controller);
+        this.messagesToSendQueue = new SendQueue(SendQueue
+            .depthGauge(controller.getMetrics()));
+    }
+
+    // Abstract behaviour *****************************************************
+
+    /**
+     * @return an identity that gets send to the remote side.
+     */
+    protected abstract Identity createOwnIdentity();
+
+    /**
+     * Starts the sender of the queued messages, if not already running.
+     */
+    protected abstract void startSender();
+
+    /**
+     * (Optional) Handles the received object.
+     *
+     * @param obj
+     *            the obj that was received
+     * @return true if this object/message was handled.
+     * @throws ConnectionException
+     *             if something is broken.
+     */
+    protected boolean receivedObject(Object obj) throws ConnectionException {
+        return false;
+    }
+
+    // Handshake **************************************************************
+
+    /**
+     * Generates a new magic id and creates our identity.
+     */
+    protected void createIdentity() {
+        identity = null;
+        identityReply = null;
+
+        // Generate magic id, 16 byte * 8 * 8 bit = 1024 bit key
+        myMagicId = IdGenerator.makeId() + IdGenerator.makeId()
+            + IdGenerator.makeId() + IdGenerator.makeId()
+            + IdGenerator.makeId() + IdGenerator.makeId()
+            + IdGenerator.makeId() + IdGenerator.makeId();
+
+        myIdentity = createOwnIdentity();
+        if (isFiner()) {
+            logFiner("Sending my identity, nick: '"
+                + myIdentity.getMemberInfo().nick + "', ID: "
+                + myIdentity.getMemberInfo().id);
+        }
+    }
+
+    /**
+     * Sends our identity and waits for the identity of the remote peer. The
+     * received messages must already be handled by {@link #received(Object)}.
+     *
+     * @param startTime
+     *            when the connection was initialized.
+     * @throws ConnectionException
+     *             if no valid remote identity was received.
+     */
+    protected void exchangeIdentity(long startTime) throws ConnectionException
+    {
+        sendMessagesAsynchron(myIdentity);
+        waitForRemoteIdentity();
+
+        if (!isConnected()) {
+            shutdown();
+            throw new ConnectionException("Remote peer "
+                + getRemoteAddress()
+                + " disconnected while waiting for his identity").with(this);
+        }
+        if (identity == null || identity.getMemberInfo() == null) {
+            throw new ConnectionException(
+                "Did not receive a valid identity from peer after 60s")
+                .with(this);
+        }
+
+        if (isFiner()) {
+            long took = System.currentTimeMillis() - startTime;
+            logFiner("Connect took " + took + "ms, time differ: "
+                + ((getTimeDeltaMS() / 1000) / 60) + " min, remote ident: "
+                + getIdentity());
+        }
+
+        // Re-Analyse connection
+        analyseConnection();
+
+        // Check this connection for keep-alive
+        getController().getIOProvider().startKeepAliveCheck(this);
+    }
+
+    /**
+     * Waits until we received the remote identity
+     */
+    private void waitForRemoteIdentity() {
+        try {
+            // wait for remote identity
+            identityWaiter.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // Ignore
+            logFiner("InterruptedException", e);
+        }
+    }
+
+    /**
+     * Releases all threads waiting for the handshake. Called on shutdown.
+     */
+    protected void releaseHandshakeWaiters() {
+        identityWaiter.countDown();
+        identityAcceptWaiter.countDown();
+    }
+
+    @Override
+    public boolean acceptIdentity(Member node) {
+        Reject.ifNull(node, "node is null");
+        // Connect member with this node
+        member = node;
+
+        // now handshake
+        if (isFiner()) {
+            logFiner("Sending accept of identity to " + this);
+        }
+        sendMessagesAsynchron(IdentityReply.accept());
+
+        // wait for accept of our identity
+        long start = System.currentTimeMillis();
+        try {
+            identityAcceptWaiter.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logFiner("InterruptedException", e);
+        }
+
+        long took = (System.currentTimeMillis() - start) / 1000;
+        if (identityReply != null && !identityReply.accepted) {
+            logWarning("Remote peer '" + node + "' rejected our connection: "
+                + identityReply.message);
+            member = null;
+            return false;
+        }
+
+        if (!isConnected()) {
+            if (isFiner()) {
+                logFiner("Remote member disconnected while waiting for identity reply. "
+                    + identity);
+            }
+            member = null;
+            return false;
+        }
+
+        if (identityReply == null) {
+            logWarning("Did not receive a identity reply after " + took
+                + "s. Connected? " + isConnected() + ". remote id: " + identity);
+            member = null;
+            return false;
+        }
+
+        if (identityReply.accepted) {
+            if (isFiner()) {
+                logFiner("Identity accepted by remote peer. " + this);
+            }
+        } else {
+            member = null;
+            logWarning("Identity rejected by remote peer. " + this);
+        }
+
+        return identityReply.accepted;
+    }
+
+    @Override
+    public boolean acceptHandshake() {
+        return true;
+    }
+
+    /**
+     * Analysese the connection of the user
+     */
+    protected void analyseConnection() {
+        if (Feature.CORRECT_LAN_DETECTION.isDisabled()) {
+            logFine("ON LAN because of correct connection analyse disabled");
+            setOnLAN(true);
+            return;
+        }
+        if (Feature.CORRECT_INTERNET_DETECTION.isDisabled()) {
+            logFine("ON Internet because of correct connection analyse disabled");
+            setOnLAN(false);
+            return;
+        }
+        if (identity != null && identity.isTunneled()) {
+            setOnLAN(false);
+            return;
+        }
+        InetSocketAddress remote = getRemoteAddress();
+        if (remote != null && remote.getAddress() != null) {
+            InetAddress adr = remote.getAddress();
+            setOnLAN(getController().getNodeManager().isOnLANorConfiguredOnLAN(
+                adr));
+            // Check if the remote address is one of this machine's
+            // interfaces.
+            try {
+                omitBandwidthLimit = NetworkUtil.isFromThisComputer(adr);
+            } catch (SocketException e) {
+                logSevere("Omitting bandwidth", e);
+            }
+        }
+
+        if (isFiner()) {
+            logFiner("analyse connection: lan: " + onLAN);
+        }
+    }
+
+    /**
+     * @return true if all bandwidth limits are omitted. Connection to this
+     *         computer.
+     */
+    protected boolean isOmitBandwidthLimit() {
+        return omitBandwidthLimit;
+    }
+
+    // Receiving **************************************************************
+
+    /**
+     * Handles a received object.
+     *
+     * @param obj
+     *            the deserialized object
+     * @return false if the connection should be closed.
+     * @throws ConnectionException
+     */
+    protected boolean received(Object obj) throws ConnectionException {
+        lastKeepaliveMessage = new Date();
+        if (!getController().isStarted()) {
+            logFiner("Peer still active, shutting down " + getMember());
+            return false;
+        }
+        if (obj instanceof Identity) {
+            if (isFiner()) {
+                logFiner("Received remote identity: " + obj);
+            }
+            // Trigger identitywaiter
+            // the remote identity
+            identity = (Identity) obj;
+            identityWaiter.countDown();
+            // Get magic id
+            if (isFiner()) {
+                logFiner("Received magicId: " + identity.getMagicId());
+            }
+        } else if (obj instanceof IdentityReply) {
+            if (isFiner()) {
+                logFiner("Received identity reply: " + obj);
+            }
+            // Trigger identity accept waiter
+            // remote side accpeted our identity
+            identityReply = (IdentityReply) obj;
+            identityAcceptWaiter.countDown();
+        } else if (obj instanceof Pong) {
+            // TRAC #812: Ping is answered on Member, not here!
+            long pingSent = lastPingSent;
+            if (pingSent > 0 && !isOnLAN()) {
+                lastPingSent = 0;
+                getController().getTransferManager().getBandwidthEstimator()
+                    .rttSample(connectionRTT,
+                        System.currentTimeMillis() - pingSent);
+            }
+        } else if (obj instanceof Problem) {
+            Problem problem = (Problem) obj;
+            Member thisMember = member;
+            if (thisMember != null) {
+                thisMember.handleMessage(problem, this);
+            } else {
+                logFine("("
+                    + (identity != null ? identity.getMemberInfo().nick : "-")
+                    + ") Problem received: " + problem.message);
+                if (problem.fatal) {
+                    // Fatal problem, disconnecting
+                    return false;
+                }
+            }
+        } else if (receivedObject(obj)) {
+            // The object was handled by the subclass.
+            // OK pass through
+        } else if (obj instanceof Message) {
+            Member thisMember = member;
+            if (thisMember != null) {
+                thisMember.handleMessage((Message) obj, this);
+            } else if (!isConnected()) {
+                // Simply break. Already disconnected
+                return false;
+            } else {
+                logWarning("Connection closed, message received, before peer identified itself: "
+                    + obj);
+                // connection closed
+                return false;
+            }
+        } else {
+            logWarning("Received unknown message from peer: " + obj);
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the time of a sent ping for the next RTT sample.
+     */
+    protected void pingSent() {
+        lastPingSent = System.currentTimeMillis();
+    }
+
+    // Sending ****************************************************************
+
+    /**
+     * @return the queue of the messages to send.
+     */
+    protected SendQueue getSendQueue() {
+        return messagesToSendQueue;
+    }
+
+    /**
+     * Queues the messages without waiting for space in the send queue. May be
+     * called from receiving threads, blocking could deadlock two peers. The
+     * connection gets closed if the peer does not take the messages off the
+     * queue and it becomes overfilled.
+     */
+    @Override
+    public void sendMessagesAsynchron(Message... messages) {
+        for (Message message : messages) {
+            Reject.ifNull(message, "Message is null");
+            messagesToSendQueue.offer(message);
+        }
+        int size = messagesToSendQueue.size();
+        if (size > Constants.WARN_MESSAGES_IN_SEND_QUEUE && isWarning()) {
+            String msg = "Many messages in send queue: " + size + ": "
+                + messagesToSendQueue;
+            if (msg.length() > 300) {
+                msg = msg.substring(0, 300);
+                msg += "...";
+            }
+            logWarning(msg);
+        }
+        // PFC-2591/PFC-2742
+        if (messagesToSendQueue.isOverfilled()) {
+            logWarning("Disconnecting " + getIdentity()
+                + ": Too many bytes in send queue: " + messagesToSendQueue
+                .getBytes());
+            getController().getIOProvider().startIO(new Runnable() {
+                @Override
+                public void run() {
+                    shutdownWithMember();
+                }
+            });
+            return;
+        }
+        startSender();
+    }
+
+    @Override
+    public void enqueueMessages(Message... messages)
+        throws ConnectionException
+    {
+        for (Message message : messages) {
+            Reject.ifNull(message, "Message is null");
+            try {
+                while (!messagesToSendQueue.put(message, 1000L)) {
+                    if (!isConnected()) {
+                        throw new ConnectionException(
+                            "Unable to send message to peer, connection closed")
+                            .with(this);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new ConnectionException(
+                    "Interrupted while sending message: " + message, e)
+                    .with(this);
+            }
+            startSender();
+        }
+    }
+
+    // Getter/Setter **********************************************************
+
+    /**
+     * Shuts down this connection handler by calling shutdown of member. If no
+     * associated member is found, the con handler gets directly shut down.
+     */
+    @Override
+    public void shutdownWithMember() {
+        Member thisMember = getMember();
+        if (thisMember != null) {
+            // Shutdown member. This means this connection handler gets shut
+            // down by member
+            thisMember.shutdown();
+        }
+        // Does nothing if already shut down
+        shutdown();
+    }
+
+    @Override
+    public boolean isOnLAN() {
+        return onLAN;
+    }
+
+    @Override
+    public void setOnLAN(boolean onlan) {
+        onLAN = onlan;
+    }
+
+    public void setMember(Member member) {
+        this.member = member;
+    }
+
+    @Override
+    public Member getMember() {
+        return member;
+    }
+
+    @Override
+    public Date getLastKeepaliveMessageTime() {
+        return lastKeepaliveMessage;
+    }
+
+    @Override
+    public long getTimeDeltaMS() {
+        if (identity.getTimeGMT() == null) {
+            return 0;
+        }
+        return myIdentity.getTimeGMT().getTimeInMillis()
+            - identity.getTimeGMT().getTimeInMillis();
+    }
+
+    @Override
+    public boolean canMeasureTimeDifference() {
+        return identity.getTimeGMT() != null;
+    }
+
+    @Override
+    public Identity getIdentity() {
+        return identity;
+    }
+
+    @Override
+    public Identity getMyIdentity() {
+        return myIdentity;
+    }
+
+    @Override
+    public String getMyMagicId() {
+        return myMagicId;
+    }
+
+    @Override
+    public String getRemoteMagicId() {
+        return identity != null ? identity.getMagicId() : null;
+    }
+
+    @Override
+    public ConnectionQuality getConnectionQuality() {
+        // When acting as HTTP tunnel. The other side is a socket connector.
+        if (identity != null && identity.isTunneled()) {
+            return ConnectionQuality.POOR;
+        }
+        return ConnectionQuality.GOOD;
+    }
+
+    @Override
+    public int getRemoteListenerPort() {
+        if (identity == null || identity.getMemberInfo() == null
+            || identity.getMemberInfo().getConnectAddress() == null)
+        {
+            return -1;
+        }
+        if (identity.isTunneled()) {
+            // No reconnection available to a tunneled connection.
+            return -1;
+        }
+        return identity.getMemberInfo().getConnectAddress().getPort();
+    }
+
+    /**
+     * Logs a connection closed event
+     *
+     * @param e
+     *            the cause or null if closed regular.
+     */
+    protected void logConnectionClose(Exception e) {
+        if (!isFiner()) {
+            return;
+        }
+        String msg = "Connection closed to "
+            + ((member == null) ? this.toString() : member.toString());
+        if (e instanceof ConnectionException) {
+            msg += ". Cause: " + e.getCause();
+        } else if (e != null) {
+            msg += ". Cause: " + e.toString();
+        }
+        logFiner(msg);
+        logFiner("Exception", e);
+    }
+}
@@ -24,13 +24,12 @@ import de.dal33t.powerfolder.message.*;
 import de.dal33t.powerfolder.transfer.LimitedInputStream;
 import de.dal33t.powerfolder.transfer.LimitedOutputStream;
 import de.dal33t.powerfolder.util.*;
-import de.dal33t.powerfolder.util.net.NetworkUtil;
+import de.dal33t.powerfolder.util.metrics.Histogram;
+import de.dal33t.powerfolder.util.metrics.HistogramFamily;
 
 import java.io.*;
 import java.net.*;
-import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,41 +39,33 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.72 $
  */
-public abstract class AbstractSocketConnectionHandler extends PFComponent
-    implements ConnectionHandler
+public abstract class AbstractSocketConnectionHandler extends
+    AbstractConnectionHandler
 {
 
-    /** The basic io socket */
-    private final Socket socket;
+    /**
+     * Corked messages get flushed into the socket when reaching this size.
+     */
+    public static final int MAX_CORK_SIZE = 64 * 1024;
 
-    /** The assigned member */
-    private Member member;
+    /**
+     * Max number of queued messages to cork into one write.
+     */
+    private static final int MAX_CORK_MESSAGES = 100;
 
-    // Our identity
-    private Identity myIdentity;
+    private static final byte[] EMPTY_HEADER = new byte[4];
 
-    // Identity of remote peer
-    private Identity identity;
-    private IdentityReply identityReply;
-    // The magic id, which has been send to the remote peer
-    private String myMagicId;
+    /** The basic io socket */
+    private final Socket socket;
 
     private LimitedOutputStream out;
     private LimitedInputStream in;
     private ByteSerializer serializer;
 
-    // The send buffer
-    private Queue<Message> messagesToSendQueue;
-
     private boolean started;
-    // Flag if client is on lan
-    private boolean onLAN;
 
-    // Locks
-    private final Object identityWaiter = new Object();
-    private final Object identityAcceptWaiter = new Object();
     // Lock for sending message
-    private final Object sendLock = new Object();
+    private final Lock sendLock = new ReentrantLock();
 
     /**
      * The current active sender.
@@ -87,14 +78,18 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
      */
     private Lock senderSpawnLock;
 
-    // Keepalive stuff
-    private Date lastKeepaliveMessage;
-
     /**
-     * If true all bandwidth limits are omitted, if false it's handled message
-     * based
+     * Pooled buffer to serialize the messages into. Also corks several small
+     * messages into one write. Only used while holding the send lock, the
+     * buffer goes back to the pool after each send.
      */
-    private boolean omitBandwidthLimit;
+    private final PooledByteArrayOutputStream sendBuffer = new PooledByteArrayOutputStream(
+        BufferPool.getDefault());
+
+    // Metrics
+    private final HistogramFamily encodeTimes;
+    private final HistogramFamily decodeTimes;
+    private final Histogram sendLockWait;
 
     /**
      * Builds a new anonymous connection manager for the socket.
@@ -114,6 +109,15 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         super(controller);
         this.socket = socket;
         this.serializer = new ByteSerializer();
+        this.encodeTimes = controller.getMetrics().histograms(
+            "pf_message_encode_us", "Time to serialize a message",
+            TimeUnit.MICROSECONDS, "type");
+        this.decodeTimes = controller.getMetrics().histograms(
+            "pf_message_decode_us", "Time to deserialize a message",
+            TimeUnit.MICROSECONDS, "type");
+        this.sendLockWait = controller.getMetrics().histogram(
+            "pf_lock_wait_us", "Time waited to acquire a lock",
+            TimeUnit.MICROSECONDS, "lock", "send");
     }
 
     // Abstract behaviour *****************************************************
@@ -128,6 +132,26 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     protected abstract byte[] serialize(Message message)
         throws ConnectionException;
 
+    /**
+     * Serializes the message and appends it to the buffer. Override to
+     * serialize directly into the buffer without intermediate array.
+     *
+     * @param message
+     *            the message to serialize
+     * @param out
+     *            the buffer to append the serialized message to.
+     */
+    protected void serialize(Message message, PooledByteArrayOutputStream out)
+        throws ConnectionException
+    {
+        byte[] data = serialize(message);
+        if (data == null) {
+            throw new IllegalStateException(
+                "Got null while serializing message: " + message);
+        }
+        out.write(data, 0, data.length);
+    }
+
     /**
      * Called when the data got read from the socket. Should re-construct the
      * serialized object from the data.
@@ -141,24 +165,6 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     protected abstract Object deserialize(byte[] data, int len)
         throws ConnectionException, ClassNotFoundException;
 
-    /**
-     * (Optional) Handles the received object.
-     *
-     * @param obj
-     *            the obj that was received
-     * @return true if this object/message was handled.
-     * @throws ConnectionException
-     *             if something is broken.
-     */
-    protected boolean receivedObject(Object obj) throws ConnectionException {
-        return false;
-    }
-
-    /**
-     * @return an identity that gets send to the remote side.
-     */
-    protected abstract Identity createOwnIdentity();
-
     /**
      * @return the internal used serializer
      */
@@ -188,9 +194,6 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 .with(this);
         }
         this.started = true;
-        this.identity = null;
-        this.identityReply = null;
-        this.messagesToSendQueue = new ConcurrentLinkedQueue<Message>();
         this.senderSpawnLock = new ReentrantLock();
         long startTime = System.currentTimeMillis();
 
@@ -207,80 +210,18 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
             // Pre-Analyse connection
             analyseConnection();
 
-            // Generate magic id, 16 byte * 8 * 8 bit = 1024 bit key
-            myMagicId = IdGenerator.makeId() + IdGenerator.makeId()
-                + IdGenerator.makeId() + IdGenerator.makeId()
-                + IdGenerator.makeId() + IdGenerator.makeId()
-                + IdGenerator.makeId() + IdGenerator.makeId();
-
             // Create identity
-            myIdentity = createOwnIdentity();
-            if (isFiner()) {
-                logFiner("Sending my identity, nick: '"
-                    + myIdentity.getMemberInfo().nick + "', ID: "
-                    + myIdentity.getMemberInfo().id);
-            }
+            createIdentity();
 
             // Start receiver
             getController().getIOProvider().startIO(new Receiver());
-
-            // Send identity
-            sendMessagesAsynchron(myIdentity);
         } catch (IOException e) {
             throw new ConnectionException("Unable to open connection: "
                 + e.getMessage(), e).with(this);
         }
-        waitForRemoteIdentity();
 
-        if (!isConnected()) {
-            shutdown();
-            throw new ConnectionException(
-                "Remote peer " + socket.getRemoteSocketAddress() +" disconnected while waiting for his identity")
-                .with(this);
-        }
-        if (identity == null || identity.getMemberInfo() == null) {
-            throw new ConnectionException(
-                "Did not receive a valid identity from peer after 60s")
-                .with(this);
-        }
-
-        // Check if IP is on LAN
-        // onLAN = getController().getBroadcastManager().receivedBroadcastFrom(
-        // socket.getInetAddress());
-        // logWarning("Received broadcast from ? " + onLAN);
-
-        long took = System.currentTimeMillis() - startTime;
-        if (isFiner()) {
-            logFiner("Connect took " + took + "ms, time differ: "
-                + ((getTimeDeltaMS() / 1000) / 60) + " min, remote ident: "
-                + getIdentity());
-        }
-
-        // Re-Analyse connection
-        analyseConnection();
-
-        // Check this connection for keep-alive
-        getController().getIOProvider().startKeepAliveCheck(this);
-    }
-
-    /**
-     * Shuts down this connection handler by calling shutdown of member. If no
-     * associated member is found, the con handler gets directly shut down.
-     * <p>
-     */
-    @Override
-    public void shutdownWithMember() {
-        Member thisMember = getMember();
-        if (thisMember != null) {
-            // Shutdown member. This means this connection handler gets shut
-            // down by member
-            thisMember.shutdown();
-        }
-
-        if (started) {
-            // Not shutdown yet, just shut down
-            shutdown();
-        }
+        // Send identity
+        exchangeIdentity(startTime);
     }
 
     /**
@@ -308,7 +249,7 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         // Remove link to member
         setMember(null);
         // Clear send queue
-        messagesToSendQueue.clear();
+        getSendQueue().close();
 
         getController().getIOProvider().removeKeepAliveCheck(this);
 
@@ -340,14 +281,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
 
         // Trigger all waiting treads
-        synchronized (identityWaiter) {
-            identityWaiter.notifyAll();
-        }
-        synchronized (identityAcceptWaiter) {
-            identityAcceptWaiter.notifyAll();
-        }
-        synchronized (messagesToSendQueue) {
-            messagesToSendQueue.notifyAll();
+        releaseHandshakeWaiters();
+        synchronized (getSendQueue()) {
+            getSendQueue().notifyAll();
         }
 
         // make sure the garbage collector gets this
@@ -368,42 +304,15 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         return false;
     }
 
-    @Override
-    public boolean isOnLAN() {
-        return onLAN;
-    }
-
     @Override
     public void setOnLAN(boolean onlan) {
-        onLAN = onlan;
+        super.setOnLAN(onlan);
         out.setBandwidthLimiter(getController().getTransferManager()
             .getOutputLimiter(this));
         in.setBandwidthLimiter(getController().getTransferManager()
             .getInputLimiter(this));
     }
 
-    public void setMember(Member member) {
-        this.member = member;
-        // Logic moved into central place <code>Member.isOnLAN()</code>
-        // if (!isOnLAN()
-        // && member != null
-        // && getController().getNodeManager().isNodeOnConfiguredLan(
-        // member.getInfo()))
-        // {
-        // setOnLAN(true);
-        // }
-    }
-
-    @Override
-    public Member getMember() {
-        return member;
-    }
-
-    @Override
-    public Date getLastKeepaliveMessageTime() {
-        return lastKeepaliveMessage;
-    }
-
     /**
      * Reads a specific amout of data from a stream. Wait util enough data is
      * available
@@ -439,13 +348,16 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
 
         // break if remote peer did no identitfy
-        if (identity == null && !(message instanceof Identity)) {
+        if (getIdentity() == null && !(message instanceof Identity)) {
             throw new ConnectionException(
                 "Unable to send message, peer did not identify yet").with(this);
         }
 
         try {
-            synchronized (sendLock) {
+            long lockStart = System.nanoTime();
+            sendLock.lock();
+            sendLockWait.recordSince(lockStart);
+            try {
                 if (isFiner()) {
                     logFiner("-- (sending) -> " + message);
                 }
@@ -460,20 +372,18 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 long start = System.currentTimeMillis();
                 // Not limit some pakets
                 boolean omittBandwidthLimit = !(message instanceof LimitBandwidth)
-                    || this.omitBandwidthLimit;
+                    || isOmitBandwidthLimit();
 
-                byte[] data = serialize(message);
+                encode(message);
+                byte[] data = sendBuffer.getBuffer();
+                int length = sendBuffer.size();
 
                 // Write paket header / total length
-                if(null == data) {
-                    throw new IllegalStateException("Got null while serializing message: "
-                        + message);
-                }
-
-                out.write(Convert.convert2Bytes(data.length));
+                long writeStart = System.currentTimeMillis();
+                out.write(Convert.convert2Bytes(length));
                 getController().getTransferManager()
                     .getTotalUploadTrafficCounter()
-                    .bytesTransferred(data.length + 4);
+                    .bytesTransferred(length + 4);
                 // out.flush();
 
                 // Do some calculations before send
@@ -483,14 +393,14 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 // logWarning("Ping packet size: " + data.length);
                 // }
 
-                int remaining = data.length;
+                int remaining = length;
                 // synchronized (out) {
                 while (remaining > 0) {
                     int allowed = remaining;
                     if (!started) {
                         throw new ConnectionException(
                             "Unable to send message to peer, connection shutdown")
-                            .with(member).with(this);
+                            .with(getMember()).with(this);
                     }
                     out.write(data, offset, allowed, omittBandwidthLimit);
                     offset += allowed;
@@ -502,17 +412,29 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 // out.flush();
 
                 long took = System.currentTimeMillis() - start;
+                if (message instanceof Ping) {
+                    pingSent();
+                } else if (!isOnLAN() && !(message instanceof LimitBandwidth)) {
+                    // Not limited by us. Blocking write means full line
+                    getController().getTransferManager()
+                        .getBandwidthEstimator().sendStallSample(
+                            System.currentTimeMillis() - writeStart,
+                            length + 4);
+                }
                 if (took > 40000) {
-                    logWarning("Sending (" + data.length + " bytes) took "
+                    logWarning("Sending (" + length + " bytes) took "
                         + took + "ms: " + message);
                 }
+            } finally {
+                sendBuffer.release();
+                sendLock.unlock();
             }
         } catch (IOException e) {
             // shutdown this peer
             shutdownWithMember();
             throw new ConnectionException(
                 "Unable to send message to peer, connection closed: "
-                    + e.toString(), e).with(member).with(this);
+                    + e.toString(), e).with(getMember()).with(this);
         } catch (ConnectionException e) {
             // Ensure shutdown
             shutdownWithMember();
@@ -525,190 +447,168 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
     }
 
-    @Override
-    public void sendMessagesAsynchron(Message... messages) {
-        for (Message message : messages) {
-            sendMessageAsynchron(message, null);
-        }
-    }
-
     /**
-     * A message to be send later. code execution does not wait util message was
-     * sent successfully
+     * Sends the given message and the non bandwidth limited messages queued
+     * after it. Those are serialized into one buffer and written with one
+     * call, instead of one write per message. The wire format does not
+     * change: Every message still has its own length header.
+     * <p>
+     * Only called by the sender. No additional latency: Only messages
+     * already queued are corked.
      *
-     * @param message
-     *            the message to be sent
-     * @param errorMessage
-     *            the error message to be logged on connection problem
+     * @param first
+     *            the message polled from the queue.
+     * @throws ConnectionException
      */
-    private void sendMessageAsynchron(Message message, String errorMessage) {
-        Reject.ifNull(message, "Message is null");
-
-        senderSpawnLock.lock();
+    private void sendMessagesCorked(Message first) throws ConnectionException {
+        Message message = first;
         try {
-            messagesToSendQueue.offer(message);
-            if (messagesToSendQueue
-                .size() > Constants.WARN_MESSAGES_IN_SEND_QUEUE
-                && isWarning())
-            {
-                String msg = "Many messages in send queue: "
-                    + messagesToSendQueue.size() + ": " + messagesToSendQueue;
-                if (msg.length() > 300) {
-                    msg = msg.substring(0, 300);
-                    msg += "...";
+            long lockStart = System.nanoTime();
+            sendLock.lock();
+            sendLockWait.recordSince(lockStart);
+            try {
+                if (!isConnected() || !started) {
+                    throw new ConnectionException(
+                        "Connection to remote peer closed").with(this);
                 }
-                logWarning(msg);
-            }
-            // PFC-2591/PFC-2742: Start
-            if (messagesToSendQueue
-                .size() > Constants.MAX_MESSAGES_IN_SEND_QUEUE)
-            {
-                String msg = "Disconnecting " + getIdentity()
-                    + ": Too many messages in send queue: "
-                    + messagesToSendQueue.size();
-                logWarning(msg);
-                Runnable shutdownWithMember = new Runnable() {
-                    @Override
-                    public void run() {
-                        shutdownWithMember();
+                long start = System.currentTimeMillis();
+                long writeTook = 0;
+                long written = 0;
+                boolean pingSent = false;
+                int nMessages = 0;
+                while (message != null) {
+                    // break if remote peer did no identitfy
+                    if (getIdentity() == null
+                        && !(message instanceof Identity))
+                    {
+                        throw new ConnectionException(
+                            "Unable to send message, peer did not identify yet")
+                            .with(this);
                     }
-                };
-                getController().getIOProvider().startIO(shutdownWithMember);
-                return;
-            }
-            // PFC-2591/PFC-2742: End
-            if (sender == null) {
-                sender = new Sender();
-                getController().getIOProvider().startIO(sender);
+                    if (isFiner()) {
+                        logFiner("-- (sending, corked) -> " + message);
+                    }
+                    cork(message);
+                    pingSent |= message instanceof Ping;
+                    nMessages++;
+
+                    if (sendBuffer.size() >= MAX_CORK_SIZE) {
+                        long writeStart = System.currentTimeMillis();
+                        written += flushCork();
+                        writeTook += System.currentTimeMillis() - writeStart;
+                    }
+                    message = null;
+                    if (nMessages < MAX_CORK_MESSAGES) {
+                        Message next = getSendQueue().peek();
+                        if (next != null && !(next instanceof LimitBandwidth)) {
+                            message = getSendQueue().poll();
+                        }
+                    }
+                }
+                if (sendBuffer.size() > 0) {
+                    long writeStart = System.currentTimeMillis();
+                    written += flushCork();
+                    writeTook += System.currentTimeMillis() - writeStart;
+                }
+
+                long took = System.currentTimeMillis() - start;
+                if (pingSent) {
+                    pingSent();
+                } else if (!isOnLAN()) {
+                    // Not limited by us. Blocking write means full line
+                    getController().getTransferManager()
+                        .getBandwidthEstimator().sendStallSample(writeTook,
+                            written);
+                }
+                if (isFiner()) {
+                    logFiner("Corked " + nMessages + " messages, took " + took
+                        + "ms");
+                }
+                if (took > 40000) {
+                    logWarning("Sending " + nMessages + " messages took "
+                        + took + "ms");
+                }
+            } finally {
+                sendBuffer.release();
+                sendLock.unlock();
             }
-        } finally {
-            senderSpawnLock.unlock();
+        } catch (IOException e) {
+            // shutdown this peer
+            shutdownWithMember();
+            throw new ConnectionException(
+                "Unable to send message to peer, connection closed: "
+                    + e.toString(), e).with(getMember()).with(this);
+        } catch (ConnectionException e) {
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        } catch (RuntimeException e) {
+            logSevere("Runtime exception while serializing: " + message, e);
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
         }
     }
 
-    @Override
-    public long getTimeDeltaMS() {
-        if (identity.getTimeGMT() == null)
-            return 0;
-        return myIdentity.getTimeGMT().getTimeInMillis()
-            - identity.getTimeGMT().getTimeInMillis();
-    }
-
-    @Override
-    public boolean canMeasureTimeDifference() {
-        return identity.getTimeGMT() != null;
-    }
-
-    @Override
-    public Identity getIdentity() {
-        return identity;
-    }
-
-    @Override
-    public Identity getMyIdentity() {
-        return myIdentity;
-    }
-
-    @Override
-    public String getMyMagicId() {
-        return myMagicId;
-    }
-
-    @Override
-    public String getRemoteMagicId() {
-        return identity != null ? identity.getMagicId() : null;
+    /**
+     * Appends a packet (header + data) of the message to the send buffer.
+     */
+    private void cork(Message message) throws ConnectionException {
+        int headerPos = sendBuffer.size();
+        // Header is filled in after serialization
+        sendBuffer.write(EMPTY_HEADER, 0, EMPTY_HEADER.length);
+        encode(message);
+        sendBuffer.writeIntAt(headerPos, sendBuffer.size() - headerPos
+            - EMPTY_HEADER.length);
     }
 
-    @Override
-    public ConnectionQuality getConnectionQuality() {
-        // When acting as HTTP tunnel. The other side is a socket connector.
-        if (identity != null && identity.isTunneled()) {
-            return ConnectionQuality.POOR;
-        }
-        return ConnectionQuality.GOOD;
+    /**
+     * Serializes the message into the send buffer and records the time taken.
+     */
+    private void encode(Message message) throws ConnectionException {
+        long start = System.nanoTime();
+        serialize(message, sendBuffer);
+        encodeTimes.get(SerializedMessage.unwrap(message).getClass()
+            .getSimpleName()).recordSince(start);
     }
 
     /**
-     * Waits until we received the remote identity
+     * Writes the corked messages.
+     *
+     * @return the number of bytes written.
      */
-    private void waitForRemoteIdentity() {
-        synchronized (identityWaiter) {
-            if (identity == null) {
-                // wait for remote identity
-                try {
-                    identityWaiter.wait(60000);
-                } catch (InterruptedException e) {
-                    // Ignore
-                    logFiner("InterruptedException", e);
-                }
-            }
+    private int flushCork() throws IOException, ConnectionException {
+        if (!started) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection shutdown").with(
+                getMember()).with(this);
         }
+        int corked = sendBuffer.size();
+        // Corked messages are never bandwidth limited
+        out.write(sendBuffer.getBuffer(), 0, corked, true);
+        getController().getTransferManager().getTotalUploadTrafficCounter()
+            .bytesTransferred(corked);
+        sendBuffer.reset();
+        return corked;
     }
 
     @Override
-    public boolean acceptIdentity(Member node) {
-        Reject.ifNull(node, "node is null");
-        // Connect member with this node
-        member = node;
-
-        // now handshake
-        if (isFiner()) {
-            logFiner("Sending accept of identity to " + this);
-        }
-        sendMessagesAsynchron(IdentityReply.accept());
-
-        // wait for accept of our identity
-        long start = System.currentTimeMillis();
-        synchronized (identityAcceptWaiter) {
-            if (identityReply == null) {
-                try {
-                    identityAcceptWaiter.wait(60000);
-                } catch (InterruptedException e) {
-                    logFiner("InterruptedException", e);
-                }
-            }
-        }
-
-        long took = (System.currentTimeMillis() - start) / 1000;
-        if (identityReply != null && !identityReply.accepted) {
-            logWarning("Remote peer '" + node + "' rejected our connection: "
-                + identityReply.message);
-            member = null;
-            return false;
-        }
-
-        if (!isConnected()) {
-            if (isFiner()) {
-                logFiner("Remote member disconnected while waiting for identity reply. "
-                    + identity);
-            }
-            member = null;
-            return false;
-        }
-
-        if (identityReply == null) {
-            logWarning("Did not receive a identity reply after " + took
-                + "s. Connected? " + isConnected() + ". remote id: " + identity);
-            member = null;
-            return false;
-        }
-
-        if (identityReply.accepted) {
-            if (isFiner()) {
-                logFiner("Identity accepted by remote peer. " + this);
+    protected void startSender() {
+        senderSpawnLock.lock();
+        try {
+            if (sender == null) {
+                sender = new Sender();
+                getController().getIOProvider().startIO(sender);
             }
-        } else {
-            member = null;
-            logWarning("Identity rejected by remote peer. " + this);
+        } finally {
+            senderSpawnLock.unlock();
         }
-
-        return identityReply.accepted;
     }
 
     @Override
     public boolean waitForEmptySendQueue(long ms) {
         long waited = 0;
-        while (!messagesToSendQueue.isEmpty() && isConnected()) {
+        while (!getSendQueue().isEmpty() && isConnected()) {
             try {
                 // logWarning("Waiting for empty send buffer to " +
                 // getMember());
@@ -732,51 +632,7 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     + getMember());
             }
         }
-        return messagesToSendQueue.isEmpty();
-    }
-
-    /**
-     * Analysese the connection of the user
-     */
-    private void analyseConnection() {
-        if (Feature.CORRECT_LAN_DETECTION.isDisabled()) {
-            logFine("ON LAN because of correct connection analyse disabled");
-            setOnLAN(true);
-            return;
-        }
-        if (Feature.CORRECT_INTERNET_DETECTION.isDisabled()) {
-            logFine("ON Internet because of correct connection analyse disabled");
-            setOnLAN(false);
-            return;
-        }
-        if (identity != null && identity.isTunneled()) {
-            setOnLAN(false);
-            return;
-        }
-        if (getRemoteAddress() != null
-            && getRemoteAddress().getAddress() != null)
-        {
-            InetAddress adr = getRemoteAddress().getAddress();
-            setOnLAN(getController().getNodeManager().isOnLANorConfiguredOnLAN(
-                adr));
-            // Check if the remote address is one of this machine's
-            // interfaces.
-            try {
-                omitBandwidthLimit = NetworkUtil.isFromThisComputer(socket
-                    .getInetAddress());
-            } catch (SocketException e) {
-                logSevere("Omitting bandwidth", e);
-            }
-        }
-
-        if (isFiner()) {
-            logFiner("analyse connection: lan: " + onLAN);
-        }
-    }
-
-    @Override
-    public boolean acceptHandshake() {
-        return true;
+        return getSendQueue().isEmpty();
     }
 
     @Override
@@ -784,39 +640,6 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         return (InetSocketAddress) socket.getRemoteSocketAddress();
     }
 
-    @Override
-    public int getRemoteListenerPort() {
-        if (identity == null || identity.getMemberInfo() == null
-            || identity.getMemberInfo().getConnectAddress() == null)
-        {
-            return -1;
-        }
-        if (identity.isTunneled()) {
-            // No reconnection available to a tunneled connection.
-            return -1;
-        }
-
-        return identity.getMemberInfo().getConnectAddress().getPort();
-    }
-
-    /**
-     * Logs a connection closed event
-     *
-     * @param e
-     */
-    private void logConnectionClose(Exception e) {
-        String msg = "Connection closed to "
-            + ((member == null) ? this.toString() : member.toString());
-
-        if (e instanceof ConnectionException) {
-            msg += ". Cause: " + ((ConnectionException) e).getCause();
-        } else if (e != null) {
-            msg += ". Cause: " + e.toString();
-        }
-        logFiner(msg);
-        logFiner("Exception", e);
-    }
-
     // General ****************************************************************
 
     @Override
@@ -842,16 +665,16 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         public void run() {
             if (isFiner()) {
                 logFiner("Asynchron message send triggered, sending "
-                    + messagesToSendQueue.size() + " message(s)");
+                    + getSendQueue().size() + " message(s)");
             }
 
             if (!isConnected()) {
                 // Client disconnected, stop
                 if (isFiner()) {
                     logFiner("Peer disconnected while sender got active. Msgs in queue: "
-                        + messagesToSendQueue.size()
+                        + getSendQueue().size()
                         + ": "
-                        + messagesToSendQueue);
+                        + getSendQueue());
                 }
                 return;
             }
@@ -859,7 +682,7 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
             Message msg;
             while (true) {
                 senderSpawnLock.lock();
-                msg = messagesToSendQueue.poll();
+                msg = getSendQueue().poll();
                 if (msg == null) {
                     sender = null;
                     senderSpawnLock.unlock();
@@ -876,7 +699,13 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     break;
                 }
                 try {
-                    sendMessage(msg);
+                    if (msg instanceof LimitBandwidth
+                        || getSendQueue().isEmpty())
+                    {
+                        sendMessage(msg);
+                    } else {
+                        sendMessagesCorked(msg);
+                    }
                 } catch (ConnectionException e) {
                     logFine("Unable to send message asynchronly. " + e);
                     logFiner("ConnectionException", e);
@@ -934,10 +763,23 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                             + totalSize);
                     }
 
-                    byte[] data = serializer.read(in, totalSize);
-                    Object obj = deserialize(data, totalSize);
+                    ByteSerializer ser = serializer;
+                    if (ser == null) {
+                        break;
+                    }
+                    byte[] data = ser.readPooled(in, totalSize);
+                    Object obj;
+                    long decodeStart = System.nanoTime();
+                    try {
+                        obj = deserialize(data, totalSize);
+                    } finally {
+                        ser.release(data);
+                    }
+                    if (obj != null) {
+                        decodeTimes.get(obj.getClass().getSimpleName())
+                            .recordSince(decodeStart);
+                    }
 
-                    lastKeepaliveMessage = new Date();
                     getController().getTransferManager()
                         .getTotalDownloadTrafficCounter()
                         .bytesTransferred(totalSize);
@@ -947,79 +789,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                             + Format.formatBytes(totalSize) + ") - " + obj);
                     }
 
-                    if (!getController().isStarted()) {
-                        logFiner("Peer still active, shutting down "
-                            + getMember());
+                    if (!received(obj)) {
                         break;
                     }
-
-                    if (obj instanceof Identity) {
-                        if (isFiner()) {
-                            logFiner("Received remote identity: " + obj);
-                        }
-
-                        // Trigger identitywaiter
-                        synchronized (identityWaiter) {
-                            // the remote identity
-                            identity = (Identity) obj;
-                            identityWaiter.notifyAll();
-                        }
-                        // Get magic id
-                        if (isFiner()) {
-                            logFiner("Received magicId: "
-                                + identity.getMagicId());
-                        }
-                    } else if (obj instanceof IdentityReply) {
-                        if (isFiner()) {
-                            logFiner("Received identity reply: " + obj);
-                        }
-                        // Trigger identity accept waiter
-                        synchronized (identityAcceptWaiter) {
-                            // remote side accpeted our identity
-                            identityReply = (IdentityReply) obj;
-                            identityAcceptWaiter.notifyAll();
-                        }
-                    } else if (obj instanceof Pong) {
-                        // Do nothing.
-                        // TRAC #812: Ping is answered on Member, not here!
-
-                    } else if (obj instanceof Problem) {
-                        Problem problem = (Problem) obj;
-                        if (member != null) {
-                            member.handleMessage(problem,
-                                AbstractSocketConnectionHandler.this);
-                        } else {
-                            logFine("("
-                                + (identity != null
-                                    ? identity.getMemberInfo().nick
-                                    : "-") + ") Problem received: "
-                                + problem.message);
-                            if (problem.fatal) {
-                                // Fatal problem, disconnecting
-                                break;
-                            }
-                        }
-                    } else if (receivedObject(obj)) {
-                        // The object was handled by the subclass.
-                        // OK pass through
-                    } else if (obj instanceof Message) {
-
-                        Member thisMember = member;
-                        if (thisMember != null) {
-                            thisMember.handleMessage((Message) obj,
-                                AbstractSocketConnectionHandler.this);
-                        } else if (!isConnected()) {
-                            // Simply break. Already disconnected
-                            break;
-                        } else {
-                            logWarning("Connection closed, message received, before peer identified itself: "
-                                + obj);
-                            // connection closed
-                            break;
-                        }
-                    } else {
-                        logWarning("Received unknown message from peer: " + obj);
-                    }
                 } catch (SocketTimeoutException e) {
                     logFiner("Socket timeout on read, not disconnecting. " + e);
                 } catch (SocketException e) {
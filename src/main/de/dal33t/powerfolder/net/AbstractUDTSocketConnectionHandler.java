@@ -31,8 +31,8 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -87,17 +87,17 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
     private ByteSerializer serializer;
 
     // The send buffer
-    private Queue<Message> messagesToSendQueue;
+    private SendQueue messagesToSendQueue;
 
     private boolean started;
     // Flag if client is on lan
     private boolean onLAN;
 
     // Locks
-    private final Object identityWaiter = new Object();
-    private final Object identityAcceptWaiter = new Object();
+    private final CountDownLatch identityWaiter = new CountDownLatch(1);
+    private final CountDownLatch identityAcceptWaiter = new CountDownLatch(1);
     // Lock for sending message
-    private final Object sendLock = new Object();
+    private final Lock sendLock = new ReentrantLock();
 
     /**
      * The current active sender.
@@ -209,7 +209,8 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         this.started = true;
         this.identity = null;
         this.identityReply = null;
-        this.messagesToSendQueue = new ConcurrentLinkedQueue<Message>();
+        this.messagesToSendQueue = new SendQueue(SendQueue
+            .depthGauge(getController().getMetrics()));
         this.senderSpawnLock = new ReentrantLock();
         long startTime = System.currentTimeMillis();
 
@@ -323,7 +324,7 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         // Remove link to member
         setMember(null);
         // Clear send queue
-        messagesToSendQueue.clear();
+        messagesToSendQueue.close();
 
         getController().getIOProvider().removeKeepAliveCheck(this);
 
@@ -362,12 +363,8 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         }
 
         // Trigger all waiting treads
-        synchronized (identityWaiter) {
-            identityWaiter.notifyAll();
-        }
-        synchronized (identityAcceptWaiter) {
-            identityAcceptWaiter.notifyAll();
-        }
+        identityWaiter.countDown();
+        identityAcceptWaiter.countDown();
         synchronized (messagesToSendQueue) {
             messagesToSendQueue.notifyAll();
         }
@@ -460,7 +457,8 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         }
 
         try {
-            synchronized (sendLock) {
+            sendLock.lock();
+            try {
                 if (isFiner()) {
                     logFiner("-- (sending) -> " + message);
                 }
@@ -515,6 +513,8 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
                 // "Message (" + data.length + " bytes) took " + took
                 // + "ms.");
                 // }
+            } finally {
+                sendLock.unlock();
             }
         } catch (IOException e) {
             // shutdown this peer
@@ -540,6 +540,36 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         }
     }
 
+    public void enqueueMessages(Message... messages)
+        throws ConnectionException
+    {
+        for (Message message : messages) {
+            Reject.ifNull(message, "Message is null");
+            try {
+                while (!messagesToSendQueue.put(message, 1000L)) {
+                    if (!isConnected()) {
+                        throw new ConnectionException(
+                            "Unable to send message to peer, connection closed")
+                            .with(this);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new ConnectionException(
+                    "Interrupted while sending message: " + message, e)
+                    .with(this);
+            }
+            senderSpawnLock.lock();
+            try {
+                if (sender == null) {
+                    sender = new Sender();
+                    getController().getIOProvider().startIO(sender);
+                }
+            } finally {
+                senderSpawnLock.unlock();
+            }
+        }
+    }
+
     /**
      * A message to be send later. code execution does not wait util message was
      * sent successfully
@@ -630,16 +660,12 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
      * Waits until we received the remote identity
      */
     private void waitForRemoteIdentity() {
-        synchronized (identityWaiter) {
-            if (identity == null) {
-                // wait for remote identity
-                try {
-                    identityWaiter.wait(60000);
-                } catch (InterruptedException e) {
-                    // Ignore
-                    logFiner("InterruptedException", e);
-                }
-            }
+        try {
+            // wait for remote identity
+            identityWaiter.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // Ignore
+            logFiner("InterruptedException", e);
         }
     }
 
@@ -656,14 +682,10 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
 
         // wait for accept of our identity
         long start = System.currentTimeMillis();
-        synchronized (identityAcceptWaiter) {
-            if (identityReply == null) {
-                try {
-                    identityAcceptWaiter.wait(20000);
-                } catch (InterruptedException e) {
-                    logFiner("InterruptedException", e);
-                }
-            }
+        try {
+            identityAcceptWaiter.await(20, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logFiner("InterruptedException", e);
         }
 
         long took = (System.currentTimeMillis() - start) / 1000;
@@ -968,11 +990,9 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
                         }
 
                         // Trigger identitywaiter
-                        synchronized (identityWaiter) {
-                            // the remote identity
-                            identity = (Identity) obj;
-                            identityWaiter.notifyAll();
-                        }
+                        // the remote identity
+                        identity = (Identity) obj;
+                        identityWaiter.countDown();
 
                         // Get magic id
                         if (isFiner()) {
@@ -986,11 +1006,9 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
                         }
 
                         // Trigger identity accept waiter
-                        synchronized (identityAcceptWaiter) {
-                            // remote side accpeted our identity
-                            identityReply = (IdentityReply) obj;
-                            identityAcceptWaiter.notifyAll();
-                        }
+                        // remote side accpeted our identity
+                        identityReply = (IdentityReply) obj;
+                        identityAcceptWaiter.countDown();
 
                     } else if (obj instanceof Pong) {
                         // Do nothing.
@@ -192,4 +192,17 @@ public interface ConnectionHandler {
      *            the messages to send
      */
     void sendMessagesAsynchron(Message... messages);
+
+    /**
+     * Enqueues multiple messages for sending. Waits while the send lane of a
+     * message is full, so producers of much data get slowed down instead of
+     * overflowing the send queue. Must not be called by a receiver thread.
+     *
+     * @param messages
+     *            the messages to send
+     * @throws ConnectionException
+     *             if the connection was closed while waiting
+     * @see SendQueue
+     */
+    void enqueueMessages(Message... messages) throws ConnectionException;
 }
\ No newline at end of file
@@ -23,6 +23,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
@@ -31,7 +36,9 @@ import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
 import de.dal33t.powerfolder.d2d.D2DSocketConnectionHandler;
 import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.net.RacingConnector.Transport;
 import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
 import de.dal33t.powerfolder.util.net.NetworkUtil;
 import de.dal33t.powerfolder.util.net.UDTSocket;
 
@@ -50,6 +57,12 @@ import de.dal33t.powerfolder.util.net.UDTSocket;
  */
 public class ConnectionHandlerFactory extends PFComponent {
 
+    /**
+     * Node id to the transport that connected to the node last time.
+     */
+    private final Map<String, PreferredTransport> preferredTransports = Util
+        .createConcurrentHashMap();
+
     public ConnectionHandlerFactory(Controller controller) {
         super(controller);
     }
@@ -63,17 +76,128 @@ public class ConnectionHandlerFactory extends PFComponent {
      * </p>
      * A) Socket connection
      * <p>
-     * B) Relayed connection
+     * B) UDT connection
      * <p>
-     * C) PRO only: HTTP tunneled connection
+     * C) Relayed connection
+     * <p>
+     * The attempts are raced: Each one starts {@link Constants#CONNECT_RACE_DELAY}
+     * after the previous one, the first connection established is used. The
+     * transport that connected is tried first next time.
      *
      * @param remoteNode
      *            the node to reconnect to.
      * @return a ready initializes connection handler.
      * @throws ConnectionException
+     * @see RacingConnector
      */
     public ConnectionHandler tryToConnect(MemberInfo remoteNode)
         throws ConnectionException
+    {
+        if (!ConfigurationEntry.NET_CONNECT_RACE_ENABLED
+            .getValueBoolean(getController()))
+        {
+            return tryToConnectSequential(remoteNode);
+        }
+        List<RacingConnector.Attempt> attempts = createAttempts(remoteNode);
+        RacingConnector connector = new RacingConnector(
+            runnable -> getController().getIOProvider().startIO(runnable),
+            Constants.CONNECT_RACE_DELAY, Constants.CONNECT_RACE_TIMEOUT);
+        ConnectionHandler handler;
+        try {
+            handler = connector.connect(attempts);
+        } catch (ConnectionException e) {
+            preferredTransports.remove(remoteNode.id);
+            throw e;
+        }
+        Transport transport = Transport.of(handler);
+        preferredTransports.put(remoteNode.id, new PreferredTransport(
+            transport));
+        if (isFiner()) {
+            logFiner("Connected to " + remoteNode.nick + " by " + transport);
+        }
+        return handler;
+    }
+
+    /**
+     * @param node
+     * @return the transport that connected to the node last time or null if
+     *         not known.
+     */
+    public Transport getPreferredTransport(MemberInfo node) {
+        PreferredTransport preferred = preferredTransports.get(node.id);
+        if (preferred == null) {
+            return null;
+        }
+        if (preferred.isExpired()) {
+            preferredTransports.remove(node.id, preferred);
+            return null;
+        }
+        return preferred.transport;
+    }
+
+    /**
+     * @param remoteNode
+     * @return the connection attempts to the node. The transport that
+     *         connected last time first, otherwise TCP, UDT, relay.
+     */
+    private List<RacingConnector.Attempt> createAttempts(
+        final MemberInfo remoteNode)
+    {
+        boolean nullIP = remoteNode.getConnectAddress() == null
+            || remoteNode.getConnectAddress().getAddress() == null
+            || NetworkUtil
+                .isNullIP(remoteNode.getConnectAddress().getAddress());
+        List<RacingConnector.Attempt> attempts = new ArrayList<RacingConnector.Attempt>(
+            3);
+        if (!nullIP) {
+            attempts.add(new TCPAttempt(remoteNode.getConnectAddress()));
+        }
+        if (useUDTConnections() && useRelayedTunneledConnection(remoteNode)
+            && !nullIP)
+        {
+            attempts.add(new RacingConnector.Attempt(Transport.UDT) {
+                @Override
+                protected ConnectionHandler connect()
+                    throws ConnectionException
+                {
+                    return tryToConnectUDTRendezvous(remoteNode);
+                }
+            });
+        }
+        if (useRelayedConnections()
+            && useRelayedTunneledConnection(remoteNode))
+        {
+            attempts.add(new RacingConnector.Attempt(Transport.RELAY) {
+                @Override
+                protected ConnectionHandler connect()
+                    throws ConnectionException
+                {
+                    return tryToConnectRelayed(remoteNode);
+                }
+            });
+        }
+        Transport preferred = getPreferredTransport(remoteNode);
+        if (preferred != null) {
+            for (int i = 1; i < attempts.size(); i++) {
+                if (attempts.get(i).getTransport() == preferred) {
+                    attempts.add(0, attempts.remove(i));
+                    break;
+                }
+            }
+        }
+        return attempts;
+    }
+
+    /**
+     * Tries the transports one after another.
+     *
+     * @param remoteNode
+     *            the node to reconnect to.
+     * @return a ready initializes connection handler.
+     * @throws ConnectionException
+     */
+    private ConnectionHandler tryToConnectSequential(MemberInfo remoteNode)
+        throws ConnectionException
     {
         boolean nullIP = remoteNode.getConnectAddress() == null
             || remoteNode.getConnectAddress().getAddress() == null
@@ -181,6 +305,12 @@ public class ConnectionHandlerFactory extends PFComponent {
           conHan = new D2DSocketConnectionHandler(
             getController(), socket);
         }
+      else if(socket.getChannel() != null
+        && getController().getIOProvider().isNIOEnabled())
+        {
+          conHan = new NIOSocketConnectionHandler(
+            getController(), socket.getChannel());
+        }
       else conHan = new PlainSocketConnectionHandler(
         getController(), socket);
 
@@ -270,10 +400,23 @@ public class ConnectionHandlerFactory extends PFComponent {
     protected ConnectionHandler
     tryToConnectTCP(InetSocketAddress remoteAddress,
       boolean useD2D) throws ConnectionException
+    {
+      return tryToConnectTCP(remoteAddress, useD2D, null);
+    }
+
+    private ConnectionHandler tryToConnectTCP(InetSocketAddress remoteAddress,
+        boolean useD2D, AtomicReference<Socket> socketRef)
+        throws ConnectionException
     {
       try
         {
-          Socket socket = new Socket();
+          /* Non-blocking handlers require a socket with channel */
+          Socket socket = !useD2D
+            && getController().getIOProvider().isNIOEnabled()
+            ? SocketChannel.open().socket() : new Socket();
+          if (socketRef != null) {
+              socketRef.set(socket);
+          }
           String cfgBind = ConfigurationEntry.NET_BIND_ADDRESS
             .getValue(getController());
 
@@ -332,6 +475,52 @@ public class ConnectionHandlerFactory extends PFComponent {
 
     // Internal helper ********************************************************
 
+    /**
+     * Direct TCP connection attempt. Cancelled by closing the socket.
+     */
+    private class TCPAttempt extends RacingConnector.Attempt {
+        private final InetSocketAddress address;
+        private final AtomicReference<Socket> socket = new AtomicReference<Socket>();
+
+        private TCPAttempt(InetSocketAddress address) {
+            super(Transport.TCP);
+            this.address = address;
+        }
+
+        @Override
+        protected ConnectionHandler connect() throws ConnectionException {
+            return tryToConnectTCP(address, false, socket);
+        }
+
+        @Override
+        protected void cancel() {
+            Socket s = socket.get();
+            if (s == null) {
+                return;
+            }
+            try {
+                s.close();
+            } catch (IOException e) {
+                logFiner("Unable to close socket to " + address + ". " + e);
+            }
+        }
+    }
+
+    private static class PreferredTransport {
+        private final Transport transport;
+        private final long since;
+
+        private PreferredTransport(Transport transport) {
+            this.transport = transport;
+            this.since = System.currentTimeMillis();
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - since > Constants.CONNECT_PREFERRED_TRANSPORT_TIME;
+        }
+    }
+
+
     protected boolean useRelayedConnections() {
         return !getController().isLanOnly()
             && ConfigurationEntry.RELAYED_CONNECTIONS_ENABLED
@@ -38,6 +38,7 @@ import javax.net.ssl.SSLServerSocketFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -161,6 +162,12 @@ public class ConnectionListener extends PFComponent implements Runnable {
                 SSLServerSocketFactory serverSocketFactory = sslContext.getServerSocketFactory();
                 serverSocket = serverSocketFactory.createServerSocket(port, Constants.MAX_INCOMING_CONNECTIONS, bAddress);
             }
+            else if (getController().getIOProvider().isNIOEnabled()) {
+                // Accepted sockets have a channel for non-blocking I/O
+                serverSocket = ServerSocketChannel.open().socket();
+                serverSocket.bind(new InetSocketAddress(bAddress, port),
+                    Constants.MAX_INCOMING_CONNECTIONS);
+            }
             else {
                 serverSocket = new ServerSocket(port, Constants.MAX_INCOMING_CONNECTIONS, bAddress);
             }
@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder.net;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
@@ -26,13 +27,13 @@ import de.dal33t.powerfolder.PFComponent;
 import de.dal33t.powerfolder.message.Ping;
 import de.dal33t.powerfolder.util.*;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,6 +70,11 @@ public class IOProvider extends PFComponent {
      */
     private UDTSocketConnectionManager udtConManager;
 
+    /**
+     * The selector threads for non-blocking connections. Created on demand.
+     */
+    private NIOSelectorPool nioSelectorPool;
+
     /**
      * The list of connection handlers to check for keepalive
      */
@@ -89,7 +95,9 @@ public class IOProvider extends PFComponent {
     public void start() {
         // For basic IO
         ioThreadPool = new WrapperExecutorService(
-            Executors.newCachedThreadPool(new NamedThreadFactory("IOThread-")));
+            VirtualThreads.newCachedThreadPool("IOThread-",
+                ConfigurationEntry.VIRTUAL_THREADS_ENABLED
+                    .getValueBoolean(getController())));
         started = true;
         getController().scheduleAndRepeat(new KeepAliveChecker(),
             TIME_WITHOUT_KEEPALIVE_UNTIL_PING);
@@ -102,6 +110,12 @@ public class IOProvider extends PFComponent {
             logFine("Shutting down connection I/O threadpool");
             ioThreadPool.shutdownNow();
         }
+        synchronized (this) {
+            if (nioSelectorPool != null) {
+                nioSelectorPool.shutdown();
+                nioSelectorPool = null;
+            }
+        }
     }
 
     /**
@@ -137,6 +151,42 @@ public class IOProvider extends PFComponent {
         return udtConManager;
     }
 
+    /**
+     * @return true if plain TCP connections should use the non-blocking
+     *         {@link NIOSocketConnectionHandler}.
+     */
+    public boolean isNIOEnabled() {
+        return ConfigurationEntry.NET_NIO_ENABLED
+            .getValueBoolean(getController());
+    }
+
+    /**
+     * @return the selector threads for non-blocking connections. Started on
+     *         the first call.
+     * @throws IOException
+     *             if the selectors could not be opened.
+     */
+    public synchronized NIOSelectorPool getNIOSelectorPool()
+        throws IOException
+    {
+        if (!started) {
+            throw new IOException("I/O provider not started");
+        }
+        if (nioSelectorPool == null) {
+            int nThreads = ConfigurationEntry.NET_NIO_SELECTOR_THREADS
+                .getValueInt(getController());
+            if (nThreads <= 0) {
+                nThreads = Math.max(1, Math.min(4, Runtime.getRuntime()
+                    .availableProcessors() / 2));
+            }
+            NIOSelectorPool pool = new NIOSelectorPool(getController(),
+                nThreads);
+            pool.start();
+            nioSelectorPool = pool;
+        }
+        return nioSelectorPool;
+    }
+
     /**
      * Starts a general connection handling working.
      *
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import de.dal33t.powerfolder.message.AbortDownload;
+import de.dal33t.powerfolder.message.AbortUpload;
+import de.dal33t.powerfolder.message.DownloadQueued;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FolderRelatedMessage;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.RelayedMessage;
+import de.dal33t.powerfolder.message.ReplyFilePartsRecord;
+import de.dal33t.powerfolder.message.RequestDownload;
+import de.dal33t.powerfolder.message.RequestFilePartsRecord;
+import de.dal33t.powerfolder.message.RequestPart;
+import de.dal33t.powerfolder.message.StartUpload;
+import de.dal33t.powerfolder.message.StopUpload;
+import de.dal33t.powerfolder.message.UDTMessage;
+import de.dal33t.powerfolder.message.clientserver.Response;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Dispatch stage between the receiving thread of a connection and the message
+ * handling of a {@link de.dal33t.powerfolder.Member}.
+ * <p>
+ * Folder related and transfer messages are handled on worker threads, so a
+ * large filelist or a slow disk does not block reading the connection. The
+ * order is kept per ordering key: Messages of one folder are handled one after
+ * another in the order received, the same for messages of one transfer (file).
+ * Messages with different keys are handled concurrently. All other messages
+ * (handshake, node lists, ...) have no key and are handled on the receiving
+ * thread after the messages received before them ({@link #awaitPending()}).
+ * Only keepalive, responses and the transport of other connections may
+ * overtake queued messages ({@link #mayOvertake(Message)}).
+ * <p>
+ * The number of messages waiting for a worker is limited. If the limit is
+ * reached the receiving thread waits, which stops reading from the connection.
+ */
+public class MessageDispatcher extends Loggable {
+
+    /**
+     * The maximum time the receiving thread waits for the workers to catch up.
+     * Afterwards the message is queued anyway.
+     */
+    private static final long MAX_WAIT_MS = 60L * 1000;
+
+    /**
+     * Message type to function that returns the ordering key of a message.
+     * Subclasses are resolved on first use.
+     */
+    private static final Map<Class<?>, Function<Message, Object>> KEYS = new HashMap<Class<?>, Function<Message, Object>>();
+    private static final Map<Class<?>, Function<Message, Object>> RESOLVED_KEYS = new ConcurrentHashMap<Class<?>, Function<Message, Object>>();
+    private static final Function<Message, Object> NO_KEY = m -> null;
+
+    /**
+     * Message types without key, which are handled at once. A queued handler
+     * might wait for them.
+     */
+    private static final Class<?>[] UNORDERED = {Ping.class, Pong.class,
+        Response.class, RelayedMessage.class, UDTMessage.class};
+
+    static {
+        KEYS.put(FolderRelatedMessage.class,
+            m -> ((FolderRelatedMessage) m).folder);
+        KEYS.put(RequestDownload.class, m -> ((RequestDownload) m).file);
+        KEYS.put(DownloadQueued.class, m -> ((DownloadQueued) m).file);
+        KEYS.put(AbortDownload.class, m -> ((AbortDownload) m).file);
+        KEYS.put(AbortUpload.class, m -> ((AbortUpload) m).file);
+        KEYS.put(FileChunk.class, m -> ((FileChunk) m).file);
+        KEYS.put(RequestPart.class, m -> ((RequestPart) m).getFile());
+        KEYS.put(StartUpload.class, m -> ((StartUpload) m).getFile());
+        KEYS.put(StopUpload.class, m -> ((StopUpload) m).getFile());
+        KEYS.put(RequestFilePartsRecord.class,
+            m -> ((RequestFilePartsRecord) m).getFile());
+        KEYS.put(ReplyFilePartsRecord.class,
+            m -> ((ReplyFilePartsRecord) m).getFile());
+    }
+
+    private final Executor executor;
+    private final int maxPending;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition spaceAvailable = lock.newCondition();
+    private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+    private int pending;
+
+    /**
+     * @param executor
+     *            the executor to run the workers on.
+     * @param maxPending
+     *            the maximum number of messages waiting or in handling before
+     *            the receiving thread has to wait.
+     */
+    public MessageDispatcher(Executor executor, int maxPending) {
+        Reject.ifNull(executor, "Executor is null");
+        Reject.ifFalse(maxPending > 0, "Illegal max pending: " + maxPending);
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @param message
+     * @return the ordering key of the message or null if the message should
+     *         be handled directly on the receiving thread.
+     */
+    public static Object orderingKey(Message message) {
+        Class<?> type = message.getClass();
+        Function<Message, Object> keyFunction = RESOLVED_KEYS.get(type);
+        if (keyFunction == null) {
+            keyFunction = resolve(type);
+            RESOLVED_KEYS.put(type, keyFunction);
+        }
+        return keyFunction.apply(message);
+    }
+
+    /**
+     * @param message
+     * @return true if the message may be handled before the messages received
+     *         earlier.
+     */
+    public static boolean mayOvertake(Message message) {
+        for (Class<?> type : UNORDERED) {
+            if (type.isInstance(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Function<Message, Object> resolve(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            Function<Message, Object> keyFunction = KEYS.get(c);
+            if (keyFunction != null) {
+                return keyFunction;
+            }
+        }
+        return NO_KEY;
+    }
+
+    /**
+     * Queues the handler. Handlers with equal keys are executed in the order
+     * queued, never concurrently. Waits if too many handlers are pending.
+     *
+     * @param key
+     *            the ordering key.
+     * @param handler
+     */
+    public void dispatch(Object key, Runnable handler) {
+        Reject.ifNull(key, "Key is null");
+        Reject.ifNull(handler, "Handler is null");
+        Lane startLane = null;
+        lock.lock();
+        try {
+            long waitUntil = System.currentTimeMillis() + MAX_WAIT_MS;
+            while (pending >= maxPending) {
+                long left = waitUntil - System.currentTimeMillis();
+                if (left <= 0) {
+                    logWarning("Message handling too slow. " + pending
+                        + " messages pending");
+                    break;
+                }
+                try {
+                    spaceAvailable.await(left, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                lanes.put(key, lane);
+                startLane = lane;
+            }
+            lane.handlers.add(handler);
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+        if (startLane != null) {
+            try {
+                executor.execute(startLane);
+            } catch (RejectedExecutionException e) {
+                logFine("Unable to dispatch message handling. " + e);
+                startLane.discard();
+            }
+        }
+    }
+
+    /**
+     * Waits until all handlers queued before have been executed. Called by
+     * the receiving thread before it handles a message without key, so it
+     * does not overtake the messages received earlier.
+     */
+    public void awaitPending() {
+        lock.lock();
+        try {
+            long waitUntil = System.currentTimeMillis() + MAX_WAIT_MS;
+            while (pending > 0) {
+                long left = waitUntil - System.currentTimeMillis();
+                if (left <= 0) {
+                    logWarning("Message handling too slow. " + pending
+                        + " messages pending");
+                    break;
+                }
+                try {
+                    spaceAvailable.await(left, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all handlers not yet started. Handlers currently running are
+     * not interrupted.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            // The workers remove their lanes when they find them empty
+            for (Lane lane : lanes.values()) {
+                pending -= lane.handlers.size();
+                lane.handlers.clear();
+            }
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of handlers waiting or running.
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The handlers of one ordering key. Runs on a worker until no more
+     * handlers are queued.
+     */
+    private class Lane implements Runnable {
+        private final Object key;
+        private final ArrayDeque<Runnable> handlers = new ArrayDeque<Runnable>();
+
+        private Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable handler;
+                lock.lock();
+                try {
+                    handler = handlers.poll();
+                    if (handler == null) {
+                        lanes.remove(key, this);
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    handler.run();
+                } catch (RuntimeException e) {
+                    logSevere("Error while handling message for " + key
+                        + ". " + e, e);
+                } finally {
+                    lock.lock();
+                    try {
+                        pending--;
+                        spaceAvailable.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+
+        private void discard() {
+            lock.lock();
+            try {
+                pending -= handlers.size();
+                handlers.clear();
+                lanes.remove(key, this);
+                spaceAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
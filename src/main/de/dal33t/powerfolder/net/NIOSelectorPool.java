@@ -0,0 +1,204 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * A small pool of selector threads, which perform the non-blocking socket I/O
+ * of all {@link NIOSocketConnectionHandler}s. Each connection is bound to one
+ * selector thread for its lifetime.
+ * <p>
+ * The selector threads only move bytes. Serialization and message handling
+ * happens on the I/O worker threads of the {@link IOProvider}.
+ */
+public class NIOSelectorPool extends PFComponent {
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean started;
+
+    /**
+     * @param controller
+     * @param nThreads
+     *            the number of selector threads.
+     */
+    public NIOSelectorPool(Controller controller, int nThreads) {
+        super(controller);
+        Reject.ifTrue(nThreads <= 0, "Illegal number of selector threads: "
+            + nThreads);
+        loops = new SelectorLoop[nThreads];
+    }
+
+    public synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+        NamedThreadFactory threadFactory = new NamedThreadFactory(
+            "NIOSelector-");
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+        }
+        started = true;
+        for (SelectorLoop loop : loops) {
+            threadFactory.newThread(loop).start();
+        }
+        logFine("Started " + loops.length + " selector thread(s)");
+    }
+
+    public synchronized void shutdown() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        for (SelectorLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Registers the channel of a connection handler at one of the selector
+     * threads. The channel gets switched to non-blocking mode.
+     *
+     * @param channel
+     * @param handler
+     *            the handler, which receives the I/O events.
+     * @return the selector thread the channel was assigned to.
+     * @throws IOException
+     */
+    SelectorLoop register(final SocketChannel channel,
+        final NIOSocketConnectionHandler handler) throws IOException
+    {
+        Reject.ifNull(channel, "Channel is null");
+        Reject.ifNull(handler, "Handler is null");
+        if (!started) {
+            throw new IOException("Selector pool not started");
+        }
+        channel.configureBlocking(false);
+        final SelectorLoop loop = loops[Math.abs(nextLoop.getAndIncrement()
+            % loops.length)];
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = channel.register(loop.selector,
+                        SelectionKey.OP_READ, handler);
+                    handler.registered(key);
+                } catch (ClosedChannelException e) {
+                    handler.closed(e);
+                }
+            }
+        });
+        return loop;
+    }
+
+    /**
+     * One selector and the thread looping over it.
+     */
+    final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Executes the task in the selector thread. Changes of interest sets
+         * must be done here.
+         *
+         * @param task
+         */
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (started) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logSevere("Selector failed. " + e, e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logSevere("Exception in selector task. " + e, e);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NIOSocketConnectionHandler handler = (NIOSocketConnectionHandler) key
+                        .attachment();
+                    try {
+                        if (key.isReadable()) {
+                            handler.processRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.processWrite();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Connection closed in the meantime
+                    } catch (IOException e) {
+                        handler.closed(e);
+                    } catch (RuntimeException e) {
+                        logSevere("Exception while processing I/O of "
+                            + handler + ". " + e, e);
+                        handler.closed(e);
+                    }
+                }
+            }
+            // Shut down
+            for (SelectionKey key : selector.keys()) {
+                ((NIOSocketConnectionHandler) key.attachment()).closed(null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logFiner("IOException", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.LimitBandwidth;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.SerializedMessage;
+import de.dal33t.powerfolder.transfer.BandwidthLimiter;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Convert;
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.net.NetworkUtil;
+
+/**
+ * Connection handler for plain TCP connections based on non-blocking
+ * {@link SocketChannel}s. Same wire format as
+ * {@link PlainSocketConnectionHandler}: Java serialized messages with a 4 byte
+ * length header.
+ * <p>
+ * Unlike the thread-per-connection handlers no thread is blocked in a socket
+ * read or write. The bytes are moved by the threads of the
+ * {@link NIOSelectorPool}. Encoding of outgoing and decoding/handling of
+ * incoming messages happens on I/O worker threads, which are only active as
+ * long as there is something to do. Incoming messages are still handled in
+ * the order they were received.
+ * <p>
+ * Both directions are bounded: Encoding blocks while too many bytes wait to be
+ * written into the socket, reading from the socket pauses while too many
+ * received messages wait to be handled.
+ *
+ * @see ConnectionHandlerFactory
+ */
+public class NIOSocketConnectionHandler extends AbstractConnectionHandler {
+    /**
+     * Max bytes of encoded messages waiting to be written into the socket.
+     */
+    static final int MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+
+    /**
+     * Max received messages waiting to be handled, until reading pauses.
+     */
+    static final int MAX_PENDING_RECEIVED = 64;
+
+    private final SocketChannel channel;
+    private final Socket socket;
+    private NIOSelectorPool.SelectorLoop loop;
+    private volatile SelectionKey key;
+
+    private ByteSerializer serializer;
+
+    private volatile boolean started;
+    private BandwidthLimiter outputLimiter;
+    private BandwidthLimiter inputLimiter;
+
+    // Encoding of messages. Keeps the order of sync and async messages.
+    private final Lock sendLock = new ReentrantLock();
+
+    // Outgoing: Messages to encode, encoded frames to write
+    private final AtomicBoolean encoding = new AtomicBoolean();
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong pendingWriteBytes = new AtomicLong();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final Lock writeSpaceLock = new ReentrantLock();
+    private final Condition writeSpace = writeSpaceLock.newCondition();
+
+    // Incoming: Frames read, waiting to be handled
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body;
+    private final Queue<byte[]> receivedQueue = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger receivedCount = new AtomicInteger();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private volatile boolean readPaused;
+
+    /**
+     * Builds a new anonymous connection handler for the connected channel.
+     * <p>
+     * Should be called from <code>ConnectionHandlerFactory</code> only.
+     *
+     * @see ConnectionHandlerFactory
+     * @param controller
+     *            the controller.
+     * @param channel
+     *            the connected channel.
+     */
+    protected NIOSocketConnectionHandler(Controller controller,
+        SocketChannel channel)
+    {
+        super(controller);
+        Reject.ifNull(channel, "Channel is null");
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.serializer = new ByteSerializer();
+    }
+
+    @Override
+    public void init() throws ConnectionException {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            throw new ConnectionException("Connection to peer is closed")
+                .with(this);
+        }
+        started = true;
+        long startTime = System.currentTimeMillis();
+
+        // Limiters, also if the remote address is unknown
+        setOnLAN(false);
+        // Pre-Analyse connection
+        analyseConnection();
+
+        createIdentity();
+        try {
+            loop = getController().getIOProvider().getNIOSelectorPool()
+                .register(channel, this);
+        } catch (IOException e) {
+            throw new ConnectionException("Unable to open connection: "
+                + e.getMessage(), e).with(this);
+        }
+
+        // Send identity
+        exchangeIdentity(startTime);
+    }
+
+    @Override
+    protected Identity createOwnIdentity() {
+        return new Identity(getController(), getController().getMySelf()
+            .getInfo(), getMyMagicId(), false, false, this);
+    }
+
+    @Override
+    public void shutdown() {
+        if (!started) {
+            return;
+        }
+        if (isFiner()) {
+            logFiner("Shutting down");
+        }
+        started = false;
+        setMember(null);
+        getSendQueue().close();
+        receivedQueue.clear();
+        getController().getIOProvider().removeKeepAliveCheck(this);
+
+        // Also cancels the selection key
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logFiner("IOException", e);
+        }
+        writeQueue.clear();
+
+        // Trigger all waiting treads
+        releaseHandshakeWaiters();
+        signalWriteSpace();
+
+        // make sure the garbage collector gets this
+        serializer = null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isOpen() && channel.isConnected() && serializer != null;
+    }
+
+    @Override
+    public boolean isEncrypted() {
+        return false;
+    }
+
+    @Override
+    public void setOnLAN(boolean onlan) {
+        super.setOnLAN(onlan);
+        outputLimiter = getController().getTransferManager().getOutputLimiter(
+            this);
+        inputLimiter = getController().getTransferManager().getInputLimiter(
+            this);
+    }
+
+    /**
+     * Encodes the message and hands it over to the selector thread. Blocks
+     * while too many bytes are waiting to be written into the socket.
+     */
+    @Override
+    public void sendMessage(Message message) throws ConnectionException {
+        if (message == null) {
+            throw new NullPointerException("Message is null");
+        }
+        if (!isConnected()) {
+            throw new ConnectionException("Connection to remote peer closed")
+                .with(this);
+        }
+        // break if remote peer did no identitfy
+        if (getIdentity() == null && !(message instanceof Identity)) {
+            throw new ConnectionException(
+                "Unable to send message, peer did not identify yet").with(this);
+        }
+
+        try {
+            sendLock.lock();
+            try {
+                if (isFiner()) {
+                    logFiner("-- (sending) -> " + message);
+                }
+                if (!isConnected() || !started) {
+                    throw new ConnectionException(
+                        "Connection to remote peer closed").with(this);
+                }
+                long start = System.currentTimeMillis();
+                byte[] data = serialize(message);
+                if (message instanceof LimitBandwidth && !isOmitBandwidthLimit()) {
+                    requestBandwidth(outputLimiter, data.length);
+                }
+                waitForWriteSpace();
+
+                ByteBuffer frame = ByteBuffer.allocate(data.length + 4);
+                frame.put(Convert.convert2Bytes(data.length));
+                frame.put(data);
+                frame.flip();
+                pendingWriteBytes.addAndGet(frame.remaining());
+                writeQueue.offer(frame);
+                scheduleWrite();
+                getController().getTransferManager()
+                    .getTotalUploadTrafficCounter()
+                    .bytesTransferred(data.length + 4);
+
+                if (message instanceof Ping) {
+                    pingSent();
+                }
+                long took = System.currentTimeMillis() - start;
+                if (took > 40000) {
+                    logWarning("Sending (" + data.length + " bytes) took "
+                        + took + "ms: " + message);
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        } catch (ConnectionException e) {
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        } catch (RuntimeException e) {
+            logSevere("Runtime exception while serializing: " + message, e);
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void startSender() {
+        if (encoding.compareAndSet(false, true)) {
+            getController().getIOProvider().startIO(new Encoder());
+        }
+    }
+
+    @Override
+    public boolean waitForEmptySendQueue(long ms) {
+        long waited = 0;
+        while ((!getSendQueue().isEmpty() || !writeQueue.isEmpty())
+            && isConnected())
+        {
+            try {
+                waited += 50;
+                // Wait a bit the let the send queue get empty
+                Thread.sleep(50);
+                if (ms >= 0 && waited >= ms) {
+                    // Stop waiting
+                    break;
+                }
+            } catch (InterruptedException e) {
+                logFiner("InterruptedException", e);
+                break;
+            }
+        }
+        if (waited > 0 && isFiner()) {
+            logFiner("Waited " + waited
+                + "ms for empty sendbuffer, clear now, proceeding to "
+                + getMember());
+        }
+        return getSendQueue().isEmpty() && writeQueue.isEmpty();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) socket.getRemoteSocketAddress();
+    }
+
+    // Selector thread callbacks **********************************************
+
+    /**
+     * Called by the selector thread after the channel was registered.
+     *
+     * @param selectionKey
+     */
+    void registered(SelectionKey selectionKey) {
+        key = selectionKey;
+        if (!started) {
+            selectionKey.cancel();
+            return;
+        }
+        if (!writeQueue.isEmpty()) {
+            selectionKey.interestOps(selectionKey.interestOps()
+                | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Called by the selector thread if the channel is readable. Reads as many
+     * complete messages as available.
+     *
+     * @throws IOException
+     */
+    void processRead() throws IOException {
+        while (started) {
+            if (body == null) {
+                if (channel.read(header) < 0) {
+                    closed(null);
+                    return;
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                int totalSize = Convert.convert2Int(header.array());
+                header.clear();
+                if (totalSize == -1393754107) {
+                    throw new IOException("Client has old protocol version");
+                }
+                if (totalSize == -1) {
+                    closed(null);
+                    return;
+                }
+                if (totalSize <= 0) {
+                    throw new IOException("Illegal paket size: " + totalSize);
+                }
+                if (totalSize > ByteSerializer.MAX_BUFFER_SIZE) {
+                    throw new IOException("Paket size exceeds maximum of "
+                        + ByteSerializer.MAX_BUFFER_SIZE + ": " + totalSize);
+                }
+                body = ByteBuffer.allocate(totalSize);
+            }
+            if (channel.read(body) < 0) {
+                closed(null);
+                return;
+            }
+            if (body.hasRemaining()) {
+                return;
+            }
+            receivedQueue.offer(body.array());
+            body = null;
+            if (receivedCount.incrementAndGet() >= MAX_PENDING_RECEIVED) {
+                // Backpressure: Stop reading until messages are handled
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (dispatching.compareAndSet(false, true)) {
+                getController().getIOProvider().startIO(new Dispatcher());
+            }
+            if (readPaused) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by the selector thread if the channel is writable. Writes the
+     * encoded messages until the socket send buffer is full.
+     *
+     * @throws IOException
+     */
+    void processWrite() throws IOException {
+        while (true) {
+            ByteBuffer frame = writeQueue.peek();
+            if (frame == null) {
+                writeScheduled.set(false);
+                if (writeQueue.isEmpty()
+                    || !writeScheduled.compareAndSet(false, true))
+                {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    break;
+                }
+                continue;
+            }
+            int written = channel.write(frame);
+            if (written > 0) {
+                pendingWriteBytes.addAndGet(-written);
+            }
+            if (frame.hasRemaining()) {
+                // Socket buffer full. Wait for next writable event
+                break;
+            }
+            writeQueue.poll();
+        }
+        signalWriteSpace();
+    }
+
+    /**
+     * Called if the channel got closed or broken.
+     *
+     * @param e
+     *            the cause or null if closed regular.
+     */
+    void closed(Exception e) {
+        // Stop selecting the channel, it would keep firing at EOF until the
+        // shutdown closes it.
+        SelectionKey k = key;
+        if (k != null) {
+            k.cancel();
+        }
+        if (!started) {
+            return;
+        }
+        logConnectionClose(e);
+        getController().getIOProvider().startIO(new Runnable() {
+            @Override
+            public void run() {
+                shutdownWithMember();
+            }
+        });
+    }
+
+    // Internal helper ********************************************************
+
+    private void scheduleWrite() {
+        if (!writeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey k = key;
+                if (k != null && k.isValid()) {
+                    k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        });
+    }
+
+    private void resumeRead() {
+        if (!readPaused) {
+            return;
+        }
+        readPaused = false;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey k = key;
+                if (k != null && k.isValid()) {
+                    k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        });
+    }
+
+    private void waitForWriteSpace() throws ConnectionException {
+        writeSpaceLock.lock();
+        try {
+            while (pendingWriteBytes.get() > MAX_PENDING_WRITE_BYTES) {
+                if (!started || !isConnected()) {
+                    throw new ConnectionException(
+                        "Unable to send message to peer, connection shutdown")
+                        .with(getMember()).with(this);
+                }
+                try {
+                    writeSpace.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new ConnectionException(
+                        "Interrupted while sending message to peer", e)
+                        .with(this);
+                }
+            }
+        } finally {
+            writeSpaceLock.unlock();
+        }
+    }
+
+    private void signalWriteSpace() {
+        writeSpaceLock.lock();
+        try {
+            writeSpace.signalAll();
+        } finally {
+            writeSpaceLock.unlock();
+        }
+    }
+
+    private static void requestBandwidth(BandwidthLimiter limiter, long bytes)
+        throws ConnectionException
+    {
+        if (limiter == null) {
+            return;
+        }
+        try {
+            while (bytes > 0) {
+                bytes -= limiter.requestBandwidth(bytes);
+            }
+        } catch (InterruptedException e) {
+            throw new ConnectionException(
+                "Interrupted while waiting for bandwidth", e);
+        }
+    }
+
+    private byte[] serialize(Message message) throws ConnectionException {
+        try {
+            boolean compressed = getMyIdentity().isUseCompressedStream();
+            if (message instanceof SerializedMessage) {
+                return ((SerializedMessage) message).getData(compressed);
+            }
+            ByteSerializer ser = serializer;
+            if (ser == null) {
+                throw new IOException("Connection already closed");
+            }
+            return ser.serialize(message, compressed, -1);
+        } catch (IOException e) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection closed", e)
+                .with(this);
+        }
+    }
+
+    private Object deserialize(byte[] data) throws ClassNotFoundException,
+        InvalidClassException, InvalidObjectException, ConnectionException
+    {
+        boolean expectCompressed = !isOnLAN();
+        Identity identity = getIdentity();
+        if (identity != null && identity.isUseCompressedStream() != null) {
+            expectCompressed = identity.isUseCompressedStream();
+        }
+        try {
+            return ByteSerializer.deserializeStatic(data, expectCompressed);
+        } catch (InvalidClassException e) {
+            throw e;
+        } catch (InvalidObjectException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ConnectionException(
+                "Unable to read message from peer, connection closed", e)
+                .with(this);
+        }
+    }
+
+    // General ****************************************************************
+
+    @Override
+    public String toString() {
+        return socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    // Inner classes **********************************************************
+
+    /**
+     * Encodes the asynchronous messages. Only one active per connection.
+     */
+    private class Encoder implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Message msg = getSendQueue().poll();
+                if (msg == null) {
+                    encoding.set(false);
+                    // Re-check: Message might have been added meanwhile
+                    if (getSendQueue().isEmpty()
+                        || !encoding.compareAndSet(false, true))
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                if (!started) {
+                    encoding.set(false);
+                    break;
+                }
+                try {
+                    sendMessage(msg);
+                } catch (ConnectionException e) {
+                    logFine("Unable to send message asynchronly. " + e);
+                    logFiner("ConnectionException", e);
+                    encoding.set(false);
+                    shutdownWithMember();
+                    break;
+                } catch (RuntimeException e) {
+                    logSevere("Unable to send message asynchronly. " + e, e);
+                    encoding.set(false);
+                    shutdownWithMember();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deserializes and handles the received messages in order. Only one active
+     * per connection.
+     */
+    private class Dispatcher implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                byte[] data = receivedQueue.poll();
+                if (data == null) {
+                    dispatching.set(false);
+                    // Re-check: Frame might have been added meanwhile
+                    if (receivedQueue.isEmpty()
+                        || !dispatching.compareAndSet(false, true))
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                if (receivedCount.decrementAndGet() < MAX_PENDING_RECEIVED / 2)
+                {
+                    resumeRead();
+                }
+                if (!started) {
+                    dispatching.set(false);
+                    break;
+                }
+                boolean ok;
+                try {
+                    requestBandwidth(inputLimiter, data.length + 4);
+                    Object obj = deserialize(data);
+                    getController().getTransferManager()
+                        .getTotalDownloadTrafficCounter()
+                        .bytesTransferred(data.length + 4);
+                    if (isFiner()) {
+                        logFiner("<- (received, "
+                            + Format.formatBytes(data.length) + ") - " + obj);
+                    }
+                    ok = received(obj);
+                } catch (InvalidClassException e) {
+                    logFiner("InvalidClassException", e);
+                    logWarning("Received unknown packet/class: "
+                        + e.getMessage() + " from "
+                        + NIOSocketConnectionHandler.this);
+                    // do not break connection
+                    ok = true;
+                } catch (InvalidObjectException e) {
+                    logFiner("InvalidObjectException", e);
+                    logWarning("Received invalid object: " + e.getMessage()
+                        + " from " + NIOSocketConnectionHandler.this);
+                    // do not break connection
+                    ok = true;
+                } catch (ClassNotFoundException e) {
+                    logFiner("ClassNotFoundException", e);
+                    logWarning("Received unknown packet/class: "
+                        + e.getMessage() + " from "
+                        + NIOSocketConnectionHandler.this);
+                    // do not break connection
+                    ok = true;
+                } catch (ConnectionException e) {
+                    logFiner("ConnectionException", e);
+                    logConnectionClose(e);
+                    ok = false;
+                } catch (RuntimeException e) {
+                    logSevere("RuntimeException. " + e, e);
+                    ok = false;
+                }
+                if (!ok) {
+                    dispatching.set(false);
+                    shutdownWithMember();
+                    break;
+                }
+            }
+        }
+    }
+}
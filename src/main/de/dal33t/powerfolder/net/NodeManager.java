@@ -68,6 +68,7 @@ import de.dal33t.powerfolder.message.MessageProducer;
 import de.dal33t.powerfolder.message.Problem;
 import de.dal33t.powerfolder.message.RequestNodeList;
 import de.dal33t.powerfolder.message.SearchNodeRequest;
+import de.dal33t.powerfolder.message.SerializedMessage;
 import de.dal33t.powerfolder.message.SingleMessageProducer;
 import de.dal33t.powerfolder.message.TransferStatus;
 import de.dal33t.powerfolder.task.RemoveComputerFromAccountTask;
@@ -1325,14 +1326,17 @@ public class NodeManager extends PFComponent {
                     }
                     if (node.getProtocolVersion() >= minProtocolVersion) {
                         if (msgsExt == null) {
-                            msgsExt = msgProd.getMessages(true);
+                            // Serialize only once for all nodes
+                            msgsExt = SerializedMessage.wrap(msgProd
+                                .getMessages(true));
                         }
                         if (msgsExt != null && msgsExt.length > 0) {
                             node.sendMessagesAsynchron(msgsExt);
                         }
                     } else {
                         if (msgs == null) {
-                            msgs = msgProd.getMessages(false);
+                            msgs = SerializedMessage.wrap(msgProd
+                                .getMessages(false));
                         }
                         if (msgs != null && msgs.length > 0) {
                             node.sendMessagesAsynchron(msgs);
@@ -26,6 +26,7 @@ import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.SerializedMessage;
 import de.dal33t.powerfolder.util.ByteSerializer;
 
 /**
@@ -55,6 +56,10 @@ public class PlainRelayedConnectionHandler extends
     @Override
     protected byte[] serialize(Message message) throws ConnectionException {
         try {
+            if (message instanceof SerializedMessage) {
+                return ((SerializedMessage) message).getData(getMyIdentity()
+                    .isUseCompressedStream());
+            }
             return getSerializer().serialize(message,
                 getMyIdentity().isUseCompressedStream(), -1);
         } catch (IOException e) {
@@ -25,7 +25,9 @@ import java.net.Socket;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.SerializedMessage;
 import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.PooledByteArrayOutputStream;
 
 /**
  * Handler for relayed connections to other clients. NO encrypted transfer.
@@ -67,7 +69,8 @@ public class PlainSocketConnectionHandler extends
             expectCompressed = getIdentity().isUseCompressedStream();
         }
         try {
-            return ByteSerializer.deserializeStatic(data, expectCompressed);
+            return ByteSerializer.deserializeStatic(data, len,
+                expectCompressed);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to read message from peer, connection closed", e)
@@ -79,6 +82,9 @@ public class PlainSocketConnectionHandler extends
     protected byte[] serialize(Message message) throws ConnectionException {
         try {
             boolean compressed = getMyIdentity().isUseCompressedStream();
+            if (message instanceof SerializedMessage) {
+                return ((SerializedMessage) message).getData(compressed);
+            }
             ByteSerializer serializer = getSerializer();
             if (serializer == null) {
                 throw new IOException("Connection already closed");
@@ -91,6 +97,28 @@ public class PlainSocketConnectionHandler extends
         }
     }
 
+    @Override
+    protected void serialize(Message message, PooledByteArrayOutputStream out)
+        throws ConnectionException
+    {
+        if (message instanceof SerializedMessage) {
+            super.serialize(message, out);
+            return;
+        }
+        try {
+            boolean compressed = getMyIdentity().isUseCompressedStream();
+            ByteSerializer serializer = getSerializer();
+            if (serializer == null) {
+                throw new IOException("Connection already closed");
+            }
+            serializer.serialize(message, compressed, -1, out);
+        } catch (IOException e) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection closed", e)
+                .with(this);
+        }
+    }
+
     @Override
     protected Identity createOwnIdentity() {
         return new Identity(getController(), getController().getMySelf()
@@ -24,6 +24,7 @@ import java.io.IOException;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.SerializedMessage;
 import de.dal33t.powerfolder.util.ByteSerializer;
 import de.dal33t.powerfolder.util.net.UDTSocket;
 
@@ -79,6 +80,10 @@ public class PlainUDTSocketConnectionHandler extends
     @Override
     protected byte[] serialize(Message message) throws ConnectionException {
         try {
+            if (message instanceof SerializedMessage) {
+                return ((SerializedMessage) message).getData(getMyIdentity()
+                    .isUseCompressedStream());
+            }
             return getSerializer().serialize(message,
                 getMyIdentity().isUseCompressedStream(), -1);
         } catch (IOException e) {
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Races several connection attempts to one node ("happy eyeballs").
+ * <p>
+ * The attempts are started in the given order, each one a short delay after
+ * the previous one, or immediately if all running attempts failed. The first
+ * attempt returning an initialized connection handler wins. The other
+ * attempts get cancelled, connections they still establish are shut down.
+ */
+public class RacingConnector extends Loggable {
+
+    /**
+     * The transport of a connection.
+     */
+    public enum Transport {
+        TCP, UDT, RELAY;
+
+        /**
+         * @param handler
+         * @return the transport the handler is connected by.
+         */
+        public static Transport of(ConnectionHandler handler) {
+            if (handler instanceof AbstractUDTSocketConnectionHandler) {
+                return UDT;
+            } else if (handler instanceof AbstractRelayedConnectionHandler) {
+                return RELAY;
+            }
+            return TCP;
+        }
+    }
+
+    /**
+     * One connection attempt of a race.
+     */
+    public static abstract class Attempt {
+        private final Transport transport;
+
+        protected Attempt(Transport transport) {
+            Reject.ifNull(transport, "Transport is null");
+            this.transport = transport;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * Establishes and initializes the connection.
+         *
+         * @return the initialized connection handler.
+         * @throws ConnectionException
+         */
+        protected abstract ConnectionHandler connect()
+            throws ConnectionException;
+
+        /**
+         * Called if another attempt won the race. Should abort the connection
+         * attempt if possible.
+         */
+        protected void cancel() {
+        }
+
+        @Override
+        public String toString() {
+            return transport.name();
+        }
+    }
+
+    private final Executor executor;
+    private final long staggerDelay;
+    private final long timeout;
+
+    /**
+     * @param executor
+     *            executes the attempts, one thread per attempt.
+     * @param staggerDelay
+     *            the time in ms to wait before starting the next attempt.
+     * @param timeout
+     *            the time in ms after which the race is given up.
+     */
+    public RacingConnector(Executor executor, long staggerDelay, long timeout)
+    {
+        Reject.ifNull(executor, "Executor is null");
+        this.executor = executor;
+        this.staggerDelay = staggerDelay;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Races the attempts.
+     *
+     * @param attempts
+     *            the attempts in order of preference.
+     * @return the connection handler of the first successful attempt.
+     * @throws ConnectionException
+     *             if all attempts failed.
+     */
+    public ConnectionHandler connect(List<? extends Attempt> attempts)
+        throws ConnectionException
+    {
+        if (attempts.isEmpty()) {
+            throw new ConnectionException("No connection alternatives.");
+        }
+        return new Race(attempts).run();
+    }
+
+    // Internal ***************************************************************
+
+    private static class Outcome {
+        private final Attempt attempt;
+        private final ConnectionHandler handler;
+        private final ConnectionException failure;
+
+        private Outcome(Attempt attempt, ConnectionHandler handler,
+            ConnectionException failure)
+        {
+            this.attempt = attempt;
+            this.handler = handler;
+            this.failure = failure;
+        }
+    }
+
+    private class Race {
+        private final List<? extends Attempt> attempts;
+        private final List<Attempt> started = new ArrayList<Attempt>();
+        private final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<Outcome>();
+        private final AtomicBoolean decided = new AtomicBoolean();
+
+        private Race(List<? extends Attempt> attempts) {
+            this.attempts = attempts;
+        }
+
+        private ConnectionHandler run() throws ConnectionException {
+            long deadline = System.currentTimeMillis() + timeout;
+            ConnectionException lastFailure = null;
+            int finished = 0;
+            long nextStart = startNext();
+            try {
+                while (finished < started.size()
+                    || started.size() < attempts.size())
+                {
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        break;
+                    }
+                    long wait = deadline - now;
+                    if (started.size() < attempts.size()) {
+                        wait = Math.min(wait, nextStart - now);
+                    }
+                    Outcome outcome = wait > 0 ? outcomes.poll(wait,
+                        TimeUnit.MILLISECONDS) : null;
+                    if (outcome == null) {
+                        if (started.size() < attempts.size()) {
+                            nextStart = startNext();
+                        }
+                        continue;
+                    }
+                    finished++;
+                    if (outcome.handler != null) {
+                        cancelOthers(outcome.attempt);
+                        if (isFine()) {
+                            logFine("Connected by " + outcome.attempt
+                                + ". Attempts: " + started);
+                        }
+                        return outcome.handler;
+                    }
+                    lastFailure = outcome.failure;
+                    if (isFiner()) {
+                        logFiner("Connect by " + outcome.attempt
+                            + " failed: " + lastFailure);
+                    }
+                    if (finished == started.size()
+                        && started.size() < attempts.size())
+                    {
+                        // All running attempts failed. Don't wait
+                        nextStart = startNext();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new ConnectionException("Interrupted while connecting",
+                    e);
+            }
+            abort();
+            if (finished < started.size()) {
+                throw new ConnectionException("Timeout while connecting by "
+                    + started, lastFailure);
+            }
+            throw new ConnectionException(
+                "No further connection alternatives.", lastFailure);
+        }
+
+        /**
+         * @return the time to start the next attempt.
+         */
+        private long startNext() {
+            final Attempt attempt = attempts.get(started.size());
+            started.add(attempt);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runAttempt(attempt);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                outcomes.offer(new Outcome(attempt, null,
+                    new ConnectionException("Unable to start connect by "
+                        + attempt, e)));
+            }
+            return System.currentTimeMillis() + staggerDelay;
+        }
+
+        private void runAttempt(Attempt attempt) {
+            ConnectionHandler handler;
+            try {
+                handler = attempt.connect();
+                if (handler == null) {
+                    throw new ConnectionException("No connection by "
+                        + attempt);
+                }
+            } catch (ConnectionException e) {
+                outcomes.offer(new Outcome(attempt, null, e));
+                return;
+            } catch (RuntimeException e) {
+                logWarning("Error while connecting by " + attempt + ". " + e);
+                outcomes.offer(new Outcome(attempt, null,
+                    new ConnectionException("Error while connecting by "
+                        + attempt, e)));
+                return;
+            }
+            boolean won;
+            synchronized (this) {
+                won = decided.compareAndSet(false, true);
+                if (won) {
+                    outcomes.offer(new Outcome(attempt, handler, null));
+                }
+            }
+            if (!won) {
+                // Too late
+                if (isFiner()) {
+                    logFiner("Shutting down connection by " + attempt
+                        + ". Race already decided");
+                }
+                handler.shutdown();
+                outcomes.offer(new Outcome(attempt, null,
+                    new ConnectionException("Cancelled connect by " + attempt)));
+            }
+        }
+
+        private void cancelOthers(Attempt winner) {
+            for (Attempt attempt : started) {
+                if (attempt != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        /**
+         * Gives up the race. Shuts down a connection that won meanwhile.
+         */
+        private void abort() {
+            synchronized (this) {
+                if (!decided.compareAndSet(false, true)) {
+                    Outcome outcome;
+                    while ((outcome = outcomes.poll()) != null) {
+                        if (outcome.handler != null) {
+                            outcome.handler.shutdown();
+                        }
+                    }
+                }
+            }
+            cancelOthers(null);
+        }
+    }
+}
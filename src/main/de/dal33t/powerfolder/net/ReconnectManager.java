@@ -23,9 +23,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,6 +38,7 @@ import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.NetworkingMode;
 import de.dal33t.powerfolder.PFComponent;
 import de.dal33t.powerfolder.clientserver.ServerClient;
+import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.util.Reject;
@@ -44,24 +46,41 @@ import de.dal33t.powerfolder.util.compare.MemberComparator;
 
 /**
  * Responsible for reconnecting to remote nodes.
+ * <p>
+ * The nodes to reconnect are held by a {@link ReconnectScheduler}: Friends,
+ * servers and members of joined folders are tried first. Nodes that failed to
+ * connect are retried after an exponential backoff. The number of reconnectors
+ * adapts to the connection success rate.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
  * @version $Revision: 1.5 $
  */
 public class ReconnectManager extends PFComponent {
 
-    /** Queue holding all nodes, which are waiting to be reconnected */
-    private List<Member> reconnectionQueue;
+    // Reconnection priorities, highest first
+    static final int PRIORITY_IMMEDIATE = 5;
+    static final int PRIORITY_FRIEND = 4;
+    static final int PRIORITY_SERVER = 3;
+    static final int PRIORITY_FOLDER_MEMBER = 2;
+    static final int PRIORITY_SUPERNODE = 1;
+    static final int PRIORITY_OTHER = 0;
+
+    /** Holds all nodes, which are waiting to be reconnected */
+    private final ReconnectScheduler<Member> reconnectionQueue;
     /** The collection of reconnector */
     private List<Reconnector> reconnectors;
     // Counter for started reconntor, running number
     private AtomicInteger reconnectorCounter = new AtomicInteger(0);
     private boolean started;
 
+    // Success rate of the last attempts, for the reconnector pool size
+    private volatile double successRate = 1.0;
+    private long lastSuccesses;
+    private long lastFailures;
+
     public ReconnectManager(Controller controller) {
         super(controller);
-        // Linkedlist, faster for queue useage
-        reconnectionQueue = new LinkedList<Member>();
+        reconnectionQueue = new ReconnectScheduler<Member>();
         // All reconnectors
         reconnectors = Collections
             .synchronizedList(new ArrayList<Reconnector>());
@@ -95,10 +114,7 @@ public class ReconnectManager extends PFComponent {
                 it.remove();
             }
         }
-        synchronized (reconnectionQueue) {
-            reconnectionQueue.clear();
-            reconnectionQueue.notifyAll();
-        }
+        reconnectionQueue.clear();
     }
 
     public boolean isStarted() {
@@ -106,17 +122,55 @@ public class ReconnectManager extends PFComponent {
     }
 
     /**
-     * @return the size of the reconnection queue
+     * @return the size of the reconnection queue, including the nodes waiting
+     *         for their next attempt after a failed one.
      */
     public int countReconnectionQueue() {
         return reconnectionQueue.size();
     }
 
     /**
-     * @return unmodifiable reference to the internal reconnection queue.
+     * @return the number of nodes due for reconnection now.
+     */
+    public int countReadyForReconnection() {
+        return reconnectionQueue.countReady();
+    }
+
+    /**
+     * @return the number of active reconnectors.
+     */
+    public int countReconnectors() {
+        return reconnectors.size();
+    }
+
+    /**
+     * @return the number of reconnection attempts made so far.
+     */
+    public long countReconnectionAttempts() {
+        return reconnectionQueue.getAttempts();
+    }
+
+    /**
+     * @return the number of successful reconnection attempts.
+     */
+    public long countSuccessfulReconnections() {
+        return reconnectionQueue.getSuccesses();
+    }
+
+    /**
+     * @return the recent success rate of reconnection attempts between 0 and
+     *         1.
+     */
+    public double getReconnectionSuccessRate() {
+        return successRate;
+    }
+
+    /**
+     * @return a snapshot of the nodes in the reconnection queue.
      */
     public Collection<Member> getReconnectionQueue() {
-        return Collections.unmodifiableCollection(reconnectionQueue);
+        return Collections.unmodifiableCollection(reconnectionQueue
+            .getNodes());
     }
 
     /**
@@ -138,13 +192,8 @@ public class ReconnectManager extends PFComponent {
             // Skip, not necessary.
             return;
         }
-        synchronized (reconnectionQueue) {
-            // Remove node
-            reconnectionQueue.remove(node);
-            // Add at start
-            reconnectionQueue.add(0, node);
-            reconnectionQueue.notify();
-        }
+        // Put in front, ignoring any backoff
+        reconnectionQueue.scheduleNow(node, PRIORITY_IMMEDIATE);
 
         // Wait 20 ms to let one reconnector grab the node.
         try {
@@ -188,61 +237,71 @@ public class ReconnectManager extends PFComponent {
      */
     public boolean considerReconnectionTo(Member node) {
         if (shouldBeAddedToReconQueue(node)) {
-            synchronized (reconnectionQueue) {
-                // Add node to reconnection queue
-                if (!reconnectionQueue.contains(node)) {
-                    reconnectionQueue.add(node);
-                    // Resort reconnection queue
-                    Collections.sort(reconnectionQueue,
-                        MemberComparator.BY_RECONNECTION_PRIORITY);
-                    reconnectionQueue.notify();
-                    return true;
-                }
-            }
+            return reconnectionQueue.schedule(node, getPriority(node,
+                node.hasJoinedAnyFolder()));
         }
         return false;
     }
 
     /**
      * Freshly refills the reconnection queue. The nodes contained are tried to
-     * reconnected. Also removes unused nodes
+     * reconnected. Also removes unused nodes. Nodes already queued keep their
+     * backoff.
      */
     public void buildReconnectionQueue() {
         int nBefore = reconnectionQueue.size();
-        synchronized (reconnectionQueue) {
-            reconnectionQueue.clear();
 
-            for (Member node : getController().getNodeManager()
-                .getNodesAsCollection())
-            {
-                if (shouldBeAddedToReconQueue(node)) {
-                    reconnectionQueue.add(node);
-                }
+        List<Member> nodes = new ArrayList<Member>();
+        for (Member node : getController().getNodeManager()
+            .getNodesAsCollection())
+        {
+            if (shouldBeAddedToReconQueue(node)) {
+                nodes.add(node);
             }
+        }
+        // Lately connect first within the same priority
+        Collections.sort(nodes, MemberComparator.BY_RECONNECTION_PRIORITY);
 
-            // Lately connect first
-            Collections.sort(reconnectionQueue,
-                MemberComparator.BY_RECONNECTION_PRIORITY);
+        // Once over all folders instead of each node over all folders.
+        Set<Member> folderMembers = new HashSet<Member>();
+        for (Folder folder : getController().getFolderRepository()
+            .getFolders())
+        {
+            folderMembers.addAll(folder.getMembersAsCollection());
+        }
 
-            if (isFiner()) {
-                logFiner("Freshly filled reconnection queue with "
-                    + reconnectionQueue.size() + " nodes, " + nBefore
-                    + " were in queue before");
-            }
+        reconnectionQueue.retainAll(new HashSet<Member>(nodes));
+        for (Member node : nodes) {
+            reconnectionQueue.schedule(node, getPriority(node,
+                folderMembers.contains(node)));
+        }
 
-            if (reconnectionQueue.size() > 200 && !getMySelf().isServer()) {
-                logWarning("Reconnection queue contains more than 200 nodes");
-            }
+        if (isFiner()) {
+            logFiner("Freshly filled reconnection queue with "
+                + reconnectionQueue.size() + " nodes, " + nBefore
+                + " were in queue before");
+        }
 
-            // Notify threads
-            if (!reconnectionQueue.isEmpty()) {
-                reconnectionQueue.notify();
-            }
+        if (reconnectionQueue.size() > 200 && !getMySelf().isServer()) {
+            logWarning("Reconnection queue contains more than 200 nodes");
         }
     }
 
     // Internal methods *******************************************************
 
+    private static int getPriority(Member node, boolean folderMember) {
+        if (node.isFriend()) {
+            return PRIORITY_FRIEND;
+        } else if (node.isServer()) {
+            return PRIORITY_SERVER;
+        } else if (folderMember) {
+            return PRIORITY_FOLDER_MEMBER;
+        } else if (node.isSupernode()) {
+            return PRIORITY_SUPERNODE;
+        }
+        return PRIORITY_OTHER;
+    }
+
     private boolean shouldBeAddedToReconQueue(Member node) {
         Reject.ifNull(node, "Node is null");
         if (!started) {
@@ -353,6 +412,7 @@ public class ReconnectManager extends PFComponent {
             if (!started) {
                 return;
             }
+            updateSuccessRate();
             synchronized (reconnectors) {
                 // Remove dead reconnectors.
                 for (Iterator<Reconnector> it = reconnectors.iterator(); it
@@ -368,16 +428,21 @@ public class ReconnectManager extends PFComponent {
                 int nReconnector = reconnectors.size();
 
                 // Calculate required reconnectors. check min / max number.
+                // Less reconnectors if most attempts fail anyways.
+                int maxReconnectors = Math.max(
+                    Constants.MIN_NUMBER_RECONNECTORS, (int) Math
+                        .round(Constants.MAX_NUMBER_RECONNECTORS * successRate));
+                int nReady = reconnectionQueue.countReady();
                 int reqReconnectors = Math.max(
-                    Constants.MIN_NUMBER_RECONNECTORS, Math.min(
-                        Constants.MAX_NUMBER_RECONNECTORS, (reconnectionQueue
-                            .size() / 3)));
+                    Constants.MIN_NUMBER_RECONNECTORS,
+                    Math.min(maxReconnectors, nReady / 3));
 
                 int reconDiffer = reqReconnectors - nReconnector;
 
                 if (isFiner()) {
-                    logFiner("Got " + reconnectionQueue.size()
-                        + " nodes queued for reconnection");
+                    logFiner("Got " + nReady
+                        + " nodes ready for reconnection. "
+                        + reconnectionQueue);
                 }
 
                 if (reconDiffer > 0) {
@@ -420,6 +485,21 @@ public class ReconnectManager extends PFComponent {
                 }
             }
         }
+
+        /**
+         * Moving average over the results since the last run.
+         */
+        private void updateSuccessRate() {
+            long successes = reconnectionQueue.getSuccesses();
+            long failures = reconnectionQueue.getFailures();
+            long nSuccesses = successes - lastSuccesses;
+            long nAttempts = nSuccesses + failures - lastFailures;
+            lastSuccesses = successes;
+            lastFailures = failures;
+            if (nAttempts > 0) {
+                successRate = (successRate + (double) nSuccesses / nAttempts) / 2;
+            }
+        }
     }
 
     /**
@@ -480,117 +560,113 @@ public class ReconnectManager extends PFComponent {
                     logFine("Stopping " + this + ". NodeManager is down");
                     break;
                 }
-                synchronized (reconnectionQueue) {
-                    if (reconnectionQueue.isEmpty()) {
-                        int idleSeconds = getIdleWaitSeconds();
-                        logFine("Reconnection queue empty. " + this
-                            + " going on idle for " + idleSeconds + " seconds");
-                        try {
-                            reconnectionQueue.wait(1000L * idleSeconds);
-                        } catch (InterruptedException e) {
-                            logFiner(e);
-                            break;
-                        }
-                        if (reconnectionQueue.isEmpty()) {
-                            // Rebuilds reconnection queue if required
-                            buildReconnectionQueue();
-                        }
-                    }
+                int idleSeconds = getIdleWaitSeconds();
+                Member node;
+                try {
+                    node = reconnectionQueue.take(1000L * idleSeconds);
+                } catch (InterruptedException e) {
+                    logFiner(e);
+                    break;
                 }
-                synchronized (reconnectionQueue) {
-                    if (!reconnectionQueue.isEmpty()) {
-                        // Take the first node out of the reconnection queue
-
-                        currentNode = reconnectionQueue.remove(0);
-                        if (currentNode.isConnected()
-                            || currentNode.isConnecting())
-                        {
-                            // Already reconnecting. Skip
-                            if (isFiner()) {
-                                logFiner("Not reconnecting to "
-                                    + currentNode.getNick()
-                                    + ", already reconnecting/connected");
-                            }
-                            currentNode = null;
-                        }
+                if (node == null) {
+                    if (isFine()) {
+                        logFine("No node ready for reconnection after "
+                            + idleSeconds + " seconds. " + this + ". "
+                            + reconnectionQueue);
+                    }
+                    // Rebuilds reconnection queue if required
+                    if (started) {
+                        buildReconnectionQueue();
                     }
-                    if (currentNode == null) {
-                        continue;
+                    continue;
+                }
+                if (node.isConnected() || node.isConnecting()) {
+                    // Already reconnecting. Skip
+                    if (isFiner()) {
+                        logFiner("Not reconnecting to " + node.getNick()
+                            + ", already reconnecting/connected");
                     }
+                    reconnectionQueue.cancelled(node);
+                    continue;
+                }
 
-                    // MARK connecting ***
-                    if (currentNode.markConnecting() >= 2) {
-                        currentNode.unmarkConnecting();
-                        if (isFine()) {
-                            logFine("Skipping: " + currentNode);
-                        }
-                        continue;
-                    } else {
-                        if (isFiner()) {
-                            logFiner("Picked node for reconnect: "
-                                + currentNode);
-                        }
+                // MARK connecting ***
+                if (node.markConnecting() >= 2) {
+                    node.unmarkConnecting();
+                    reconnectionQueue.cancelled(node);
+                    if (isFine()) {
+                        logFine("Skipping: " + node);
                     }
+                    continue;
+                } else if (isFiner()) {
+                    logFiner("Picked node for reconnect: " + node);
                 }
 
-                long start = System.currentTimeMillis();
+                currentNode = node;
+                boolean success = false;
                 try { // UNMARK connecting try/finally ***
-                    // A node could be obtained from the reconnection queue, try
-                    // to connect now
-                    if (!ServerClient.isTempServerNode(currentNode.getInfo())) {
-                        try {
-                            // Reconnect, Don't mark connecting. already done.
-                            ConnectResult res = currentNode.reconnect(false);
-                            if (isFiner()) {
-                                logFiner("Reconnect to " + currentNode + ": "
-                                    + res);
-                            }
-                        } catch (InvalidIdentityException e) {
-                            Identity otherNodeId = e.getFrom().getIdentity();
-                            MemberInfo otherNodeInfo = otherNodeId != null
-                                && otherNodeId.getMemberInfo() != null
-                                ? otherNodeId.getMemberInfo()
-                                : null;
-
-                            if (otherNodeInfo != null
-                                && otherNodeInfo
-                                    .isOnSameNetwork(getController()))
-                            {
-                                Member otherNode = otherNodeInfo.getNode(
-                                    getController(), true);
-                                boolean rec = considerReconnectionTo(otherNode);
-                                logFine("Invalid identity from " + currentNode
-                                    + ". Found: " + otherNode
-                                    + ". Going to reconned it ? " + rec);
-                            }
-                        }
-                    } else {
-                        // Temporary server node, directly connect to
-                        // IP/hostname
-                        if (isFine()) {
-                            logFine("Tring to connect to temporary server node at "
-                                + currentNode.getHostName()
-                                + ":"
-                                + currentNode.getPort()
-                                + ". ID: "
-                                + currentNode.getId());
-                        }
-                        try {
-                            ConnectionHandler conHan = getController()
-                                .getIOProvider().getConnectionHandlerFactory()
-                                .tryToConnect(currentNode.getInfo());
-                            getController().getNodeManager().acceptConnection(
-                                conHan);
-                        } catch (ConnectionException e1) {
-                            logFiner("ConnectionException", e1);
-                        }
-                    }
+                    success = reconnect(node);
                 } finally {
-                    currentNode.unmarkConnecting();
+                    node.unmarkConnecting();
+                    currentNode = null;
+                    reconnectionQueue.completed(node, success, !success
+                        && shouldBeAddedToReconQueue(node));
                 }
             }
         }
 
+        /**
+         * @param node
+         *            the node marked connecting
+         * @return true if connected.
+         */
+        private boolean reconnect(Member node) {
+            // A node could be obtained from the reconnection queue, try
+            // to connect now
+            if (!ServerClient.isTempServerNode(node.getInfo())) {
+                try {
+                    // Reconnect, Don't mark connecting. already done.
+                    ConnectResult res = node.reconnect(false);
+                    if (isFiner()) {
+                        logFiner("Reconnect to " + node + ": " + res);
+                    }
+                    return res.isSuccess();
+                } catch (InvalidIdentityException e) {
+                    Identity otherNodeId = e.getFrom().getIdentity();
+                    MemberInfo otherNodeInfo = otherNodeId != null
+                        && otherNodeId.getMemberInfo() != null ? otherNodeId
+                        .getMemberInfo() : null;
+
+                    if (otherNodeInfo != null
+                        && otherNodeInfo.isOnSameNetwork(getController()))
+                    {
+                        Member otherNode = otherNodeInfo.getNode(
+                            getController(), true);
+                        boolean rec = considerReconnectionTo(otherNode);
+                        logFine("Invalid identity from " + node + ". Found: "
+                            + otherNode + ". Going to reconned it ? " + rec);
+                    }
+                    return false;
+                }
+            }
+            // Temporary server node, directly connect to
+            // IP/hostname
+            if (isFine()) {
+                logFine("Tring to connect to temporary server node at "
+                    + node.getHostName() + ":" + node.getPort() + ". ID: "
+                    + node.getId());
+            }
+            try {
+                ConnectionHandler conHan = getController().getIOProvider()
+                    .getConnectionHandlerFactory().tryToConnect(node.getInfo());
+                getController().getNodeManager().acceptConnection(conHan);
+                return true;
+            } catch (ConnectionException e1) {
+                logFiner("ConnectionException", e1);
+                return false;
+            }
+        }
+
         public String toString() {
             return getName();
         }
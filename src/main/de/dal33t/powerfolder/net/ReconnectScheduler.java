@@ -0,0 +1,556 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Schedules the reconnection attempts to nodes.
+ * <p>
+ * Nodes which are due are kept in a heap ordered by priority, then by order of
+ * scheduling. Nodes waiting for their next attempt are kept in a heap ordered
+ * by due time. After a failed attempt the next one is delayed by an
+ * exponential backoff with jitter, from {@link #getMinBackoff()} up to
+ * {@link #getMaxBackoff()}. All operations are O(log n).
+ * <p>
+ * A node taken by {@link #take(long)} stays known as in progress until
+ * {@link #completed(Object, boolean, boolean)} is called.
+ * <p>
+ * Is thread safe.
+ *
+ * @param <T>
+ *            the type of the nodes.
+ */
+public class ReconnectScheduler<T> {
+
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final LongSupplier clock;
+
+    private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+    private final Heap<T> ready = new Heap<T>(new Comparator<Entry<T>>() {
+        @Override
+        public int compare(Entry<T> e1, Entry<T> e2) {
+            if (e1.priority != e2.priority) {
+                return e1.priority > e2.priority ? -1 : 1;
+            }
+            return Long.compare(e1.seq, e2.seq);
+        }
+    });
+    private final Heap<T> delayed = new Heap<T>(new Comparator<Entry<T>>() {
+        @Override
+        public int compare(Entry<T> e1, Entry<T> e2) {
+            if (e1.due != e2.due) {
+                return e1.due < e2.due ? -1 : 1;
+            }
+            return Long.compare(e1.seq, e2.seq);
+        }
+    });
+    private long seq;
+
+    private long attempts;
+    private long successes;
+    private long failures;
+
+    public ReconnectScheduler() {
+        this(Constants.RECONNECT_MIN_BACKOFF, Constants.RECONNECT_MAX_BACKOFF,
+            System::currentTimeMillis);
+    }
+
+    /**
+     * @param minBackoff
+     *            the delay in ms after the first failed attempt.
+     * @param maxBackoff
+     *            the maximum delay in ms between two attempts.
+     * @param clock
+     *            the source of the current time in ms.
+     */
+    public ReconnectScheduler(long minBackoff, long maxBackoff,
+        LongSupplier clock)
+    {
+        Reject.ifTrue(minBackoff <= 0 || maxBackoff < minBackoff,
+            "Illegal backoff: " + minBackoff + " - " + maxBackoff);
+        Reject.ifNull(clock, "Clock is null");
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.clock = clock;
+    }
+
+    /**
+     * Schedules the node if not already scheduled or in progress. A node
+     * still in backoff from a previous attempt keeps its due time.
+     *
+     * @param node
+     * @param priority
+     *            higher priority nodes are taken first.
+     * @return true if the node was added.
+     */
+    public synchronized boolean schedule(T node, int priority) {
+        Reject.ifNull(node, "Node is null");
+        if (entries.containsKey(node)) {
+            return false;
+        }
+        Entry<T> entry = new Entry<T>(node);
+        entry.priority = priority;
+        entry.due = clock.getAsLong();
+        entries.put(node, entry);
+        enqueue(entry);
+        return true;
+    }
+
+    /**
+     * Schedules the node for immediate reconnection, ignoring its backoff.
+     * Does nothing if the node is in progress.
+     *
+     * @param node
+     * @param priority
+     */
+    public synchronized void scheduleNow(T node, int priority) {
+        Reject.ifNull(node, "Node is null");
+        Entry<T> entry = entries.get(node);
+        if (entry == null) {
+            entry = new Entry<T>(node);
+            entries.put(node, entry);
+        } else if (entry.inProgress) {
+            return;
+        } else {
+            dequeue(entry);
+        }
+        entry.priority = priority;
+        entry.due = clock.getAsLong();
+        enqueue(entry);
+    }
+
+    /**
+     * Waits until a node is due and marks it in progress.
+     *
+     * @param maxWait
+     *            the maximum time in ms to wait.
+     * @return the node or null if no node became due within the time.
+     * @throws InterruptedException
+     */
+    public synchronized T take(long maxWait) throws InterruptedException {
+        long deadline = clock.getAsLong() + maxWait;
+        while (true) {
+            long now = clock.getAsLong();
+            promote(now);
+            Entry<T> entry = ready.poll();
+            if (entry != null) {
+                entry.inProgress = true;
+                attempts++;
+                return entry.node;
+            }
+            long wait = deadline - now;
+            Entry<T> next = delayed.peek();
+            if (next != null) {
+                wait = Math.min(wait, next.due - now);
+            }
+            if (wait <= 0) {
+                if (now >= deadline) {
+                    return null;
+                }
+                continue;
+            }
+            wait(wait);
+        }
+    }
+
+    /**
+     * @return the next due node marked in progress or null if none is due.
+     */
+    public synchronized T poll() {
+        promote(clock.getAsLong());
+        Entry<T> entry = ready.poll();
+        if (entry == null) {
+            return null;
+        }
+        entry.inProgress = true;
+        attempts++;
+        return entry.node;
+    }
+
+    /**
+     * Reports the result of the attempt to a node taken by
+     * {@link #take(long)}.
+     *
+     * @param node
+     * @param success
+     *            true if connected. The node is removed.
+     * @param retry
+     *            if failed: true to schedule the next attempt after the
+     *            backoff, false to remove the node.
+     */
+    public synchronized void completed(T node, boolean success, boolean retry)
+    {
+        Entry<T> entry = entries.get(node);
+        if (success) {
+            successes++;
+        } else {
+            failures++;
+        }
+        if (entry == null || !entry.inProgress) {
+            return;
+        }
+        entry.inProgress = false;
+        if (success || !retry) {
+            entries.remove(node);
+            return;
+        }
+        entry.failures++;
+        entry.due = clock.getAsLong() + getBackoff(entry.failures);
+        enqueue(entry);
+    }
+
+    /**
+     * Releases a node taken by {@link #take(long)} without an attempt, e.g.
+     * because it got connected meanwhile. The node is removed, the attempt
+     * is not counted.
+     *
+     * @param node
+     */
+    public synchronized void cancelled(T node) {
+        Entry<T> entry = entries.get(node);
+        if (entry == null || !entry.inProgress) {
+            return;
+        }
+        attempts--;
+        entries.remove(node);
+    }
+
+    /**
+     * Removes the node, also its backoff.
+     *
+     * @param node
+     * @return true if the node was scheduled.
+     */
+    public synchronized boolean remove(T node) {
+        Entry<T> entry = entries.get(node);
+        if (entry == null || entry.inProgress) {
+            return false;
+        }
+        dequeue(entry);
+        entries.remove(node);
+        return true;
+    }
+
+    /**
+     * Removes all scheduled nodes not contained in the given collection.
+     *
+     * @param nodes
+     */
+    public synchronized void retainAll(Collection<T> nodes) {
+        for (Iterator<Entry<T>> it = entries.values().iterator(); it
+            .hasNext();)
+        {
+            Entry<T> entry = it.next();
+            if (!entry.inProgress && !nodes.contains(entry.node)) {
+                dequeue(entry);
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Iterator<Entry<T>> it = entries.values().iterator(); it
+            .hasNext();)
+        {
+            if (!it.next().inProgress) {
+                it.remove();
+            }
+        }
+        ready.clear();
+        delayed.clear();
+        notifyAll();
+    }
+
+    /**
+     * @param node
+     * @return true if the node is scheduled (due or in backoff).
+     */
+    public synchronized boolean contains(T node) {
+        Entry<T> entry = entries.get(node);
+        return entry != null && !entry.inProgress;
+    }
+
+    /**
+     * @param node
+     * @return the number of failed attempts in a row to the node.
+     */
+    public synchronized int getFailures(T node) {
+        Entry<T> entry = entries.get(node);
+        return entry != null ? entry.failures : 0;
+    }
+
+    /**
+     * @return the number of scheduled nodes, due or in backoff.
+     */
+    public synchronized int size() {
+        return ready.size + delayed.size;
+    }
+
+    /**
+     * @return the number of nodes due for reconnection.
+     */
+    public synchronized int countReady() {
+        promote(clock.getAsLong());
+        return ready.size;
+    }
+
+    /**
+     * @return the number of nodes waiting for the next attempt after a failed
+     *         one.
+     */
+    public synchronized int countDelayed() {
+        promote(clock.getAsLong());
+        return delayed.size;
+    }
+
+    /**
+     * @return the scheduled nodes. Due nodes first, in no particular order.
+     */
+    public synchronized List<T> getNodes() {
+        List<T> nodes = new ArrayList<T>(ready.size + delayed.size);
+        for (int i = 0; i < ready.size; i++) {
+            nodes.add(ready.array[i].node);
+        }
+        for (int i = 0; i < delayed.size; i++) {
+            nodes.add(delayed.array[i].node);
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the number of nodes taken for an attempt.
+     */
+    public synchronized long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the number of successful attempts.
+     */
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    /**
+     * @return the number of failed attempts.
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public long getMinBackoff() {
+        return minBackoff;
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * @param nFailures
+     *            the number of failed attempts in a row, at least 1.
+     * @return the delay until the next attempt. Doubles with every failure
+     *         and is randomized between half and the full value, so nodes
+     *         failed at the same time don't get retried at the same time.
+     */
+    public long getBackoff(int nFailures) {
+        long backoff = minBackoff;
+        for (int i = 1; i < nFailures && backoff < maxBackoff; i++) {
+            backoff <<= 1;
+        }
+        backoff = Math.min(backoff, maxBackoff);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReconnectScheduler [ready=" + ready.size + ", delayed="
+            + delayed.size + ", attempts=" + attempts + ", successes="
+            + successes + ", failures=" + failures + "]";
+    }
+
+    // Internal ***************************************************************
+
+    private void enqueue(Entry<T> entry) {
+        entry.seq = seq++;
+        if (entry.due <= clock.getAsLong()) {
+            ready.add(entry);
+        } else {
+            delayed.add(entry);
+        }
+        notifyAll();
+    }
+
+    private void dequeue(Entry<T> entry) {
+        if (!ready.remove(entry)) {
+            delayed.remove(entry);
+        }
+    }
+
+    private void promote(long now) {
+        Entry<T> next;
+        while ((next = delayed.peek()) != null && next.due <= now) {
+            delayed.poll();
+            ready.add(next);
+        }
+    }
+
+    private static class Entry<T> {
+        private final T node;
+        private int priority;
+        private long due;
+        private long seq;
+        private int failures;
+        private boolean inProgress;
+        private Heap<T> heap;
+        private int index = -1;
+
+        private Entry(T node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Binary heap, which knows the position of each entry for removal.
+     */
+    private static class Heap<T> {
+        private final Comparator<Entry<T>> comparator;
+        private Entry<T>[] array;
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Heap(Comparator<Entry<T>> comparator) {
+            this.comparator = comparator;
+            this.array = new Entry[16];
+        }
+
+        private Entry<T> peek() {
+            return size > 0 ? array[0] : null;
+        }
+
+        private void add(Entry<T> entry) {
+            if (size == array.length) {
+                array = Arrays.copyOf(array, size * 2);
+            }
+            entry.heap = this;
+            array[size] = entry;
+            entry.index = size;
+            size++;
+            siftUp(entry.index);
+        }
+
+        private Entry<T> poll() {
+            if (size == 0) {
+                return null;
+            }
+            Entry<T> first = array[0];
+            removeAt(0);
+            return first;
+        }
+
+        private boolean remove(Entry<T> entry) {
+            if (entry.heap != this || entry.index < 0) {
+                return false;
+            }
+            removeAt(entry.index);
+            return true;
+        }
+
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                array[i].heap = null;
+                array[i].index = -1;
+                array[i] = null;
+            }
+            size = 0;
+        }
+
+        private void removeAt(int i) {
+            Entry<T> removed = array[i];
+            size--;
+            Entry<T> last = array[size];
+            array[size] = null;
+            removed.heap = null;
+            removed.index = -1;
+            if (i == size) {
+                return;
+            }
+            array[i] = last;
+            last.index = i;
+            siftDown(i);
+            if (array[i] == last) {
+                siftUp(i);
+            }
+        }
+
+        private void siftUp(int i) {
+            Entry<T> entry = array[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                Entry<T> p = array[parent];
+                if (comparator.compare(entry, p) >= 0) {
+                    break;
+                }
+                array[i] = p;
+                p.index = i;
+                i = parent;
+            }
+            array[i] = entry;
+            entry.index = i;
+        }
+
+        private void siftDown(int i) {
+            Entry<T> entry = array[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size
+                    && comparator.compare(array[right], array[child]) < 0)
+                {
+                    child = right;
+                }
+                if (comparator.compare(entry, array[child]) <= 0) {
+                    break;
+                }
+                array[i] = array[child];
+                array[i].index = i;
+                i = child;
+            }
+            array[i] = entry;
+            entry.index = i;
+        }
+    }
+}
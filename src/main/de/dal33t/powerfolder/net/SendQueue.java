@@ -0,0 +1,426 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.message.AbortDownload;
+import de.dal33t.powerfolder.message.AbortUpload;
+import de.dal33t.powerfolder.message.DownloadQueued;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FolderFilesChanged;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.IdentityReply;
+import de.dal33t.powerfolder.message.LimitBandwidth;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.Problem;
+import de.dal33t.powerfolder.message.RequestDownload;
+import de.dal33t.powerfolder.message.RequestFilePartsRecord;
+import de.dal33t.powerfolder.message.RequestPart;
+import de.dal33t.powerfolder.message.SerializedMessage;
+import de.dal33t.powerfolder.message.StartUpload;
+import de.dal33t.powerfolder.message.StopUpload;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.metrics.Gauge;
+import de.dal33t.powerfolder.util.metrics.MetricsRegistry;
+
+/**
+ * Send queue of a connection handler with one lane per {@link Lane}. Messages
+ * are polled by priority: Control messages first, then metadata, then bulk
+ * data. Within one lane the order is kept.
+ * <p>
+ * The lanes are limited by the estimated size of the queued messages.
+ * {@link #offer(Message)} never blocks and always accepts the message.
+ * Producers, which may create a lot of data (uploads, filelists), use
+ * {@link #put(Message, long)} to wait while the lane is full. A lane filled
+ * by non-blocking producers beyond {@link #OVERFILL_FACTOR} times its limit
+ * makes the queue {@link #isOverfilled()}.
+ */
+public class SendQueue extends AbstractQueue<Message> {
+
+    /**
+     * The lanes of the queue in order of priority.
+     */
+    public enum Lane {
+        /**
+         * Small and latency sensitive messages: Ping/Pong, identity and the
+         * transfer control of the downloading side.
+         */
+        CONTROL(256 * 1024),
+        /**
+         * Folder memberships, filelists and all other messages. Also contains
+         * the handshake completion, which must not overtake the filelists.
+         */
+        METADATA(4 * 1024 * 1024),
+        /**
+         * Bandwidth limited file data and the abort of an upload, which must
+         * not overtake the data queued before.
+         */
+        BULK(1024 * 1024);
+
+        private final long maxBytes;
+
+        private Lane(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return the number of bytes a blocking producer may fill this lane
+         *         up to.
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+    }
+
+    /**
+     * Estimated size of message header and fields.
+     */
+    private static final int MESSAGE_OVERHEAD = 100;
+
+    /**
+     * Estimated size of a serialized FileInfo.
+     */
+    private static final int FILEINFO_SIZE = 200;
+
+    /**
+     * Lanes with more than this multiple of their limit are overfilled.
+     */
+    public static final int OVERFILL_FACTOR = 8;
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition spaceAvailable = lock.newCondition();
+    private final List<ArrayDeque<Message>> lanes;
+    private final long[] laneBytes;
+    private int size;
+    private boolean closed;
+    private final Gauge depth;
+
+    public SendQueue() {
+        this(null);
+    }
+
+    /**
+     * @param depth
+     *            the gauge to add the number of queued messages to or null.
+     * @see #depthGauge(MetricsRegistry)
+     */
+    public SendQueue(Gauge depth) {
+        this.depth = depth;
+        lanes = new ArrayList<ArrayDeque<Message>>(LANES.length);
+        for (int i = 0; i < LANES.length; i++) {
+            lanes.add(new ArrayDeque<Message>());
+        }
+        laneBytes = new long[LANES.length];
+    }
+
+    /**
+     * @param metrics
+     * @return the gauge of the messages queued for sending over all
+     *         connections.
+     */
+    public static Gauge depthGauge(MetricsRegistry metrics) {
+        return metrics.gauge("pf_send_queue_messages",
+            "Messages queued for sending over all connections");
+    }
+
+    /**
+     * The messages of one transfer in one direction share a lane to keep
+     * their order: The uploader sends the file chunks and
+     * {@link AbortUpload}. The downloader sends requests,
+     * {@link StopUpload} and {@link AbortDownload}.
+     *
+     * @param message
+     * @return the lane the message gets queued in.
+     */
+    public static Lane laneOf(Message message) {
+        Message msg = SerializedMessage.unwrap(message);
+        if (msg instanceof LimitBandwidth || msg instanceof AbortUpload) {
+            return Lane.BULK;
+        }
+        if (msg instanceof Ping || msg instanceof Pong
+            || msg instanceof Problem || msg instanceof Identity
+            || msg instanceof IdentityReply || msg instanceof RequestPart
+            || msg instanceof RequestDownload
+            || msg instanceof RequestFilePartsRecord
+            || msg instanceof StartUpload || msg instanceof StopUpload
+            || msg instanceof AbortDownload || msg instanceof DownloadQueued)
+        {
+            return Lane.CONTROL;
+        }
+        return Lane.METADATA;
+    }
+
+    /**
+     * @param message
+     * @return the estimated number of bytes the message takes on the wire.
+     */
+    public static int estimateSize(Message message) {
+        Message msg = SerializedMessage.unwrap(message);
+        if (msg instanceof FileChunk) {
+            byte[] data = ((FileChunk) msg).data;
+            return MESSAGE_OVERHEAD + (data != null ? data.length : 0);
+        } else if (msg instanceof FileList) {
+            FileList list = (FileList) msg;
+            return MESSAGE_OVERHEAD
+                + (list.files != null ? list.files.length * FILEINFO_SIZE : 0);
+        } else if (msg instanceof FolderFilesChanged) {
+            // Removed files are legacy, only received, never sent.
+            FileInfo[] files = ((FolderFilesChanged) msg).getFiles();
+            return MESSAGE_OVERHEAD
+                + (files != null ? files.length * FILEINFO_SIZE : 0);
+        }
+        return MESSAGE_OVERHEAD;
+    }
+
+    /**
+     * Adds the message without waiting for space in its lane.
+     *
+     * @return true if added, false if the queue was closed.
+     */
+    @Override
+    public boolean offer(Message message) {
+        Reject.ifNull(message, "Message is null");
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            add0(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the message. Waits while the lane of the message is full. A
+     * message is always accepted by an empty lane, even if it is bigger than
+     * the limit.
+     *
+     * @param message
+     *            the message to add
+     * @param timeoutMS
+     *            the max time to wait for space in the lane.
+     * @return true if added, false if timed out or the queue was closed.
+     * @throws InterruptedException
+     */
+    public boolean put(Message message, long timeoutMS)
+        throws InterruptedException
+    {
+        Reject.ifNull(message, "Message is null");
+        Lane lane = laneOf(message);
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        lock.lockInterruptibly();
+        try {
+            while (!closed && laneBytes[lane.ordinal()] > 0
+                && laneBytes[lane.ordinal()] + estimateSize(message) > lane
+                    .getMaxBytes())
+            {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = spaceAvailable.awaitNanos(nanos);
+            }
+            if (closed) {
+                return false;
+            }
+            add0(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add0(Message message) {
+        int i = laneOf(message).ordinal();
+        lanes.get(i).add(message);
+        laneBytes[i] += estimateSize(message);
+        size++;
+        if (depth != null) {
+            depth.increment();
+        }
+    }
+
+    /**
+     * @return the next message by priority or null if empty.
+     */
+    @Override
+    public Message poll() {
+        lock.lock();
+        try {
+            for (int i = 0; i < LANES.length; i++) {
+                Message message = lanes.get(i).poll();
+                if (message != null) {
+                    laneBytes[i] -= estimateSize(message);
+                    size--;
+                    if (depth != null) {
+                        depth.decrement();
+                    }
+                    spaceAvailable.signalAll();
+                    return message;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Message> lane : lanes) {
+                Message message = lane.peek();
+                if (message != null) {
+                    return message;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane
+     * @return the estimated number of bytes queued in the lane.
+     */
+    public long getBytes(Lane lane) {
+        lock.lock();
+        try {
+            return laneBytes[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes queued in all lanes.
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (long b : laneBytes) {
+                bytes += b;
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if any lane holds more than {@link #OVERFILL_FACTOR} times
+     *         its limit. The remote side does not take the messages.
+     */
+    public boolean isOverfilled() {
+        lock.lock();
+        try {
+            for (int i = 0; i < LANES.length; i++) {
+                if (laneBytes[i] > OVERFILL_FACTOR * LANES[i].getMaxBytes()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Message> lane : lanes) {
+                lane.clear();
+            }
+            for (int i = 0; i < laneBytes.length; i++) {
+                laneBytes[i] = 0;
+            }
+            if (depth != null) {
+                depth.add(-size);
+            }
+            size = 0;
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Clears the queue and releases all waiting producers. Messages added
+     * afterwards get rejected.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queue in order of priority.
+     */
+    @Override
+    public Iterator<Message> iterator() {
+        List<Message> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<Message>(size);
+            for (ArrayDeque<Message> lane : lanes) {
+                snapshot.addAll(lane);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
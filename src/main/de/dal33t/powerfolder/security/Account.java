@@ -226,6 +226,12 @@ public class Account implements Serializable, D2DObject {
     @LazyCollection(LazyCollectionOption.FALSE)
     private Collection<Group> groups;
 
+    /**
+     * Index over {@link #permissions} and the permissions of {@link #groups}.
+     * Built lazily, see {@link #permissionIndex()}.
+     */
+    private transient volatile PermissionIndex permissionIndex;
+
     /**
      * The possible email address of this account.
      */
@@ -288,7 +294,9 @@ public class Account implements Serializable, D2DObject {
             }
             if (p instanceof FolderPermission) {
                 FolderInfo foInfo = ((FolderPermission) p).getFolder();
-                revokeAllFolderPermission(foInfo);
+                if (permissionIndex().getDirectPermission(foInfo) != null) {
+                    revokeAllFolderPermission(foInfo);
+                }
                 if (foInfo.isMetaFolder()) {
                     LOG.severe(this + ": Not allowed to grant permissions "
                         + foInfo);
@@ -296,6 +304,10 @@ public class Account implements Serializable, D2DObject {
                 }
             }
             permissions.add(p);
+            PermissionIndex index = permissionIndex;
+            if (index != null) {
+                index.add(p);
+            }
         }
         LOG.fine("Granted permission to " + this + ": "
             + Arrays.asList(newPermissions));
@@ -305,6 +317,10 @@ public class Account implements Serializable, D2DObject {
         Reject.ifNull(revokePermissions, "Permission is null");
         for (Permission p : revokePermissions) {
             if (permissions.remove(p)) {
+                PermissionIndex index = permissionIndex;
+                if (index != null) {
+                    index.remove(p);
+                }
                 LOG.fine("Revoked permission from " + this + ": " + p);
             }
         }
@@ -340,6 +356,7 @@ public class Account implements Serializable, D2DObject {
                 + permissions);
         }
         permissions.clear();
+        permissionIndex = null;
     }
 
     public boolean hasPermission(Permission permission) {
@@ -348,58 +365,11 @@ public class Account implements Serializable, D2DObject {
             LOG.severe("Illegal account " + username + ", permissions is null");
             return false;
         }
-        for (Permission p : permissions) {
-            if (p == null) {
-                LOG.severe("Got null permission on " + this);
-                continue;
-            }
-            if (p.equals(permission)) {
-                return true;
-            }
-            if (p.implies(permission)) {
-                return true;
-            }
-        }
-        for (Group g : groups) {
-            if (g.hasPermission(permission)) {
-                return true;
-            }
-        }
-        return false;
+        return permissionIndex().hasPermission(permission);
     }
 
     public boolean hasAnyFolderAdmin() {
-        for (Permission p : permissions) {
-            if (p == null) {
-                continue;
-            }
-            if (p instanceof FolderPermission) {
-                AccessMode mode = ((FolderPermission) p).getMode();
-                if (mode.equals(AccessMode.ADMIN)
-                    || mode.equals(AccessMode.OWNER))
-                {
-                    return true;
-                }
-            }
-        }
-
-        for (Group g : groups) {
-            for (Permission p : g.getPermissions()) {
-                if (p == null) {
-                    continue;
-                }
-                if (p instanceof FolderPermission) {
-                    AccessMode mode = ((FolderPermission) p).getMode();
-                    if (mode.equals(AccessMode.ADMIN)
-                        || mode.equals(AccessMode.OWNER))
-                    {
-                        return true;
-                    }
-                }
-            }
-        }
-
-        return false;
+        return permissionIndex().hasAnyFolderAdmin();
     }
 
     public Collection<Permission> getPermissions() {
@@ -414,15 +384,10 @@ public class Account implements Serializable, D2DObject {
      * @return A FolderPermission with the correct {@code AccessMode}.
      */
     public FolderPermission getPermissionFor(FolderInfo foInfo) {
-        for (Permission perm : permissions) {
-            if (perm instanceof FolderPermission) {
-                FolderPermission foPerm = (FolderPermission) perm;
-                if (foPerm.getFolder().equals(foInfo)) {
-                    return foPerm;
-                }
-            }
+        FolderPermission foPerm = permissionIndex().getDirectPermission(foInfo);
+        if (foPerm != null) {
+            return foPerm;
         }
-
         return FolderPermission.get(foInfo, AccessMode.NO_ACCESS);
     }
 
@@ -433,13 +398,8 @@ public class Account implements Serializable, D2DObject {
      *         empty collection will be returned.
      */
     public Collection<OrganizationAdminPermission> getOrgAdminPermissions() {
-        Collection<OrganizationAdminPermission> orgAdmins = new ArrayList<>();
-        for (Permission perm : permissions) {
-            if (perm instanceof OrganizationAdminPermission) {
-                orgAdmins.add((OrganizationAdminPermission) perm);
-            }
-        }
-        return Collections.unmodifiableCollection(orgAdmins);
+        return Collections.unmodifiableCollection(permissionIndex().getDirect(
+            OrganizationAdminPermission.class));
     }
 
     /**
@@ -481,13 +441,8 @@ public class Account implements Serializable, D2DObject {
             return true;
         }
 
-        for (Permission p : permissions) {
-            if (p instanceof OrganizationAdminPermission) {
-                return true;
-            }
-        }
-
-        return false;
+        return !permissionIndex().getDirect(OrganizationAdminPermission.class)
+            .isEmpty();
     }
 
     public boolean isInSameOrganization(Account other) {
@@ -501,23 +456,7 @@ public class Account implements Serializable, D2DObject {
         if (permissions.isEmpty()) {
             return Collections.emptyList();
         }
-        Collection<FolderInfo> folders = new ArrayList<FolderInfo>(
-            permissions.size());
-        for (Permission p : permissions) {
-            if (p instanceof FolderOwnerPermission) {
-                FolderPermission fp = (FolderPermission) p;
-                folders.add(fp.getFolder());
-            }
-        }
-        for (Group g : groups) {
-            for (Permission p : g.getPermissions()) {
-                if (p instanceof FolderOwnerPermission) {
-                    FolderPermission fp = (FolderPermission) p;
-                    folders.add(fp.getFolder());
-                }
-            }
-        }
-        return folders;
+        return permissionIndex().getFolders(FolderOwnerPermission.class);
     }
 
     /**
@@ -525,23 +464,7 @@ public class Account implements Serializable, D2DObject {
      *         granted.
      */
     public Collection<FolderInfo> getFolders() {
-        List<FolderInfo> folderInfos = new ArrayList<FolderInfo>(
-            permissions.size());
-        for (Permission permission : permissions) {
-            if (permission instanceof FolderPermission) {
-                FolderPermission fp = (FolderPermission) permission;
-                folderInfos.add(fp.getFolder());
-            }
-        }
-        for (Group g : groups) {
-            for (Permission p : g.getPermissions()) {
-                if (p instanceof FolderPermission) {
-                    FolderPermission fp = (FolderPermission) p;
-                    folderInfos.add(fp.getFolder());
-                }
-            }
-        }
-        return folderInfos;
+        return permissionIndex().getFolders(FolderPermission.class);
     }
 
     public void internFolderInfos() {
@@ -553,22 +476,46 @@ public class Account implements Serializable, D2DObject {
         }
     }
 
-    public void addGroup(Group... group) {
+    public synchronized void addGroup(Group... group) {
         Reject.ifNull(group, "Group is null");
         for (Group g : group) {
             if (!groups.contains(g)) {
                 groups.add(g);
+                permissionIndex = null;
             }
         }
     }
 
-    public void removeGroup(Group... group) {
+    public synchronized void removeGroup(Group... group) {
         Reject.ifNull(group, "Group is null");
         for (Group g : group) {
-            groups.remove(g);
+            if (groups.remove(g)) {
+                permissionIndex = null;
+            }
         }
     }
 
+    /**
+     * @return the index over the permissions of this account and its groups.
+     *         Rebuilt if stale.
+     */
+    private PermissionIndex permissionIndex() {
+        PermissionIndex index = permissionIndex;
+        if (index != null && index.isValid(permissions, groups)) {
+            return index;
+        }
+        return rebuildPermissionIndex();
+    }
+
+    private synchronized PermissionIndex rebuildPermissionIndex() {
+        PermissionIndex index = permissionIndex;
+        if (index == null || !index.isValid(permissions, groups)) {
+            index = new PermissionIndex(permissions, groups);
+            permissionIndex = index;
+        }
+        return index;
+    }
+
     // Accessing / API ********************************************************
 
     /**
@@ -1308,9 +1255,7 @@ public class Account implements Serializable, D2DObject {
 
         // Combine groups
         for (Group newGroup : account.groups) {
-            if (!this.groups.contains(newGroup)) {
-                this.groups.add(newGroup);
-            }
+            addGroup(newGroup);
         }
 
         // Combine computers
@@ -95,6 +95,13 @@ public class Group implements Serializable, D2DObject {
     @LazyCollection(LazyCollectionOption.FALSE)
     private Collection<Permission> permissions;
 
+    /**
+     * Incremented after every change of the permissions. Lets accounts detect
+     * a stale {@link PermissionIndex}. A lost concurrent increment still
+     * changes the value, so no atomic update is required.
+     */
+    private transient volatile int modCount;
+
     /**
      * Serialization constructor
      */
@@ -128,6 +135,7 @@ public class Group implements Serializable, D2DObject {
                 continue;
             } else {
                 permissions.add(p);
+                modCount++;
             }
         }
     }
@@ -136,6 +144,7 @@ public class Group implements Serializable, D2DObject {
         Reject.ifNull(revokePermission, "Permission is null");
         for (Permission p : revokePermission) {
             if (permissions.remove(p)) {
+                modCount++;
                 LOG.fine("Revoked permission from " + this + ": " + p);
             }
         }
@@ -150,6 +159,7 @@ public class Group implements Serializable, D2DObject {
         for (Permission p : permissions) {
             if (p instanceof GroupAdminPermission) {
                 permissions.remove(p);
+                modCount++;
             }
         }
     }
@@ -158,6 +168,7 @@ public class Group implements Serializable, D2DObject {
         for (Permission p : permissions) {
             if (p instanceof OrganizationAdminPermission) {
                 permissions.remove(p);
+                modCount++;
             }
         }
     }
@@ -188,6 +199,13 @@ public class Group implements Serializable, D2DObject {
         return Collections.unmodifiableCollection(permissions);
     }
 
+    /**
+     * @return the modification counter of the permissions.
+     */
+    int getModCount() {
+        return modCount;
+    }
+
     public Collection<FolderInfo> getFolders() {
         Collection<FolderInfo> folder = new ArrayList<FolderInfo>(
             permissions.size());
@@ -310,6 +328,7 @@ public class Group implements Serializable, D2DObject {
             Collection<Permission> newPermissions = new CopyOnWriteArrayList<Permission>(
                 permissions);
             permissions = newPermissions;
+            modCount++;
         }
     }
 
@@ -381,6 +400,7 @@ public class Group implements Serializable, D2DObject {
                         break;
                 }
             }
+            modCount++;
         }
     }
     
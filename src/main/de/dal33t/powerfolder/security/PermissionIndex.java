@@ -0,0 +1,359 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Index over the direct and group permissions of an {@link Account}.
+ * <p>
+ * {@link FolderPermission}s are kept by {@link FolderInfo}. A folder
+ * permission never equals or implies a permission on another folder or a
+ * non-folder permission, so a check only looks at the bucket of its folder.
+ * All other permissions are few per account but may imply anything (e.g.
+ * {@link AdminPermission}), they are kept in a plain array and always
+ * checked.
+ * <p>
+ * Direct permissions are updated in place by {@link Account#grant} and
+ * {@link Account#revoke}. All updates and the build happen while holding the
+ * lock of the account, reads are lock free. The index gets stale if the
+ * permission or group collection of the account gets replaced or a group
+ * changes its permissions, see {@link #isValid(Collection, Collection)}.
+ */
+final class PermissionIndex {
+    private static final Logger LOG = Logger.getLogger(PermissionIndex.class
+        .getName());
+    private static final Permission[] NONE = new Permission[0];
+
+    // Validity
+    private final Collection<Permission> permissions;
+    private final Collection<Group> groupCollection;
+    private final Group[] groups;
+    private final int[] groupModCounts;
+
+    // Direct permissions
+    private final ConcurrentMap<FolderInfo, Permission[]> directByFolder;
+    private volatile Permission[] directOthers;
+    private final AtomicInteger directFolderAdmins;
+
+    // Permissions through groups
+    private final Map<FolderInfo, Permission[]> groupByFolder;
+    private final Permission[] groupOthers;
+    private final boolean groupFolderAdmin;
+
+    PermissionIndex(Collection<Permission> permissions,
+        Collection<Group> groups)
+    {
+        this.permissions = permissions;
+        this.groupCollection = groups;
+        this.groups = groups.toArray(new Group[0]);
+        this.groupModCounts = new int[this.groups.length];
+        this.directByFolder = Util.createConcurrentHashMap(Math.max(16,
+            permissions.size()));
+        this.directOthers = NONE;
+        this.directFolderAdmins = new AtomicInteger();
+        for (Permission p : permissions) {
+            add(p);
+        }
+
+        Map<FolderInfo, List<Permission>> byFolder;
+        byFolder = new HashMap<FolderInfo, List<Permission>>();
+        List<Permission> others = new ArrayList<Permission>();
+        boolean folderAdmin = false;
+        for (int i = 0; i < this.groups.length; i++) {
+            Group g = this.groups[i];
+            // Read before the permissions. A concurrent change makes the index
+            // stale instead of getting lost.
+            groupModCounts[i] = g.getModCount();
+            for (Permission p : g.getPermissions()) {
+                if (p == null) {
+                    LOG.severe("Got null permission on " + g);
+                    continue;
+                }
+                FolderInfo foInfo = folderOf(p);
+                if (foInfo != null) {
+                    List<Permission> bucket = byFolder.get(foInfo);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Permission>(2);
+                        byFolder.put(foInfo, bucket);
+                    }
+                    bucket.add(p);
+                } else {
+                    others.add(p);
+                }
+                folderAdmin |= isFolderAdmin(p);
+            }
+        }
+        this.groupByFolder = new HashMap<FolderInfo, Permission[]>(
+            byFolder.size() * 4 / 3 + 1);
+        for (Map.Entry<FolderInfo, List<Permission>> entry : byFolder
+            .entrySet())
+        {
+            groupByFolder.put(entry.getKey(),
+                entry.getValue().toArray(new Permission[0]));
+        }
+        this.groupOthers = others.toArray(new Permission[0]);
+        this.groupFolderAdmin = folderAdmin;
+    }
+
+    /**
+     * @param currentPermissions
+     *            the current permission collection of the account
+     * @param currentGroups
+     *            the current group collection of the account
+     * @return true if this index still reflects the given collections and
+     *         none of the groups has changed.
+     */
+    boolean isValid(Collection<Permission> currentPermissions,
+        Collection<Group> currentGroups)
+    {
+        if (permissions != currentPermissions
+            || groupCollection != currentGroups)
+        {
+            return false;
+        }
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i].getModCount() != groupModCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Updates of direct permissions ******************************************
+
+    /**
+     * Adds a direct permission. Must be called with the lock of the account
+     * held.
+     *
+     * @param p
+     */
+    void add(Permission p) {
+        if (p == null) {
+            LOG.severe("Ignoring null permission");
+            return;
+        }
+        FolderInfo foInfo = folderOf(p);
+        if (foInfo != null) {
+            directByFolder.put(foInfo, append(directByFolder.get(foInfo), p));
+        } else {
+            directOthers = append(directOthers, p);
+        }
+        if (isFolderAdmin(p)) {
+            directFolderAdmins.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes the first direct permission that equals the given one, like
+     * {@link Collection#remove(Object)} does. Must be called with the lock of
+     * the account held.
+     *
+     * @param p
+     */
+    void remove(Permission p) {
+        FolderInfo foInfo = folderOf(p);
+        Permission removed;
+        if (foInfo != null) {
+            Permission[] bucket = directByFolder.get(foInfo);
+            int i = indexOf(bucket, p);
+            if (i < 0) {
+                return;
+            }
+            removed = bucket[i];
+            if (bucket.length == 1) {
+                directByFolder.remove(foInfo);
+            } else {
+                directByFolder.put(foInfo, removeAt(bucket, i));
+            }
+        } else {
+            int i = indexOf(directOthers, p);
+            if (i < 0) {
+                return;
+            }
+            removed = directOthers[i];
+            directOthers = removeAt(directOthers, i);
+        }
+        if (isFolderAdmin(removed)) {
+            directFolderAdmins.decrementAndGet();
+        }
+    }
+
+    // Queries ****************************************************************
+
+    /**
+     * Same semantics as checking every permission of the account and its
+     * groups with {@link Permission#equals(Object)} and
+     * {@link Permission#implies(Permission)}.
+     *
+     * @param permission
+     * @return if the permission is granted directly, through a group or
+     *         implied by another permission.
+     */
+    boolean hasPermission(Permission permission) {
+        FolderInfo foInfo = folderOf(permission);
+        if (foInfo != null) {
+            if (grants(directByFolder.get(foInfo), permission)
+                || grants(groupByFolder.get(foInfo), permission))
+            {
+                return true;
+            }
+        }
+        return grants(directOthers, permission)
+            || grants(groupOthers, permission);
+    }
+
+    /**
+     * @param foInfo
+     * @return the first direct permission on the folder or null.
+     */
+    FolderPermission getDirectPermission(FolderInfo foInfo) {
+        if (foInfo == null) {
+            return null;
+        }
+        Permission[] bucket = directByFolder.get(foInfo);
+        return bucket != null ? (FolderPermission) bucket[0] : null;
+    }
+
+    /**
+     * @return true if there is any folder admin or owner permission directly
+     *         or through a group.
+     */
+    boolean hasAnyFolderAdmin() {
+        return groupFolderAdmin || directFolderAdmins.get() > 0;
+    }
+
+    /**
+     * @param type
+     * @return all direct non-folder permissions of the given type.
+     */
+    <T extends Permission> List<T> getDirect(Class<T> type) {
+        List<T> result = new ArrayList<T>(2);
+        for (Permission p : directOthers) {
+            if (type.isInstance(p)) {
+                result.add(type.cast(p));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param type
+     *            the permission type or {@code FolderPermission.class} for
+     *            any.
+     * @return the folders of all direct and group folder permissions of the
+     *         given type. Contains a folder once per permission.
+     */
+    List<FolderInfo> getFolders(Class<? extends FolderPermission> type) {
+        List<FolderInfo> folders = new ArrayList<FolderInfo>(
+            directByFolder.size());
+        addFolders(folders, directByFolder.values(), type);
+        addFolders(folders, Collections.singleton(directOthers), type);
+        addFolders(folders, groupByFolder.values(), type);
+        addFolders(folders, Collections.singleton(groupOthers), type);
+        return folders;
+    }
+
+    // Internal ***************************************************************
+
+    private static void addFolders(List<FolderInfo> folders,
+        Collection<Permission[]> buckets, Class<? extends FolderPermission> type)
+    {
+        for (Permission[] bucket : buckets) {
+            for (Permission p : bucket) {
+                if (type.isInstance(p)) {
+                    folders.add(((FolderPermission) p).getFolder());
+                }
+            }
+        }
+    }
+
+    private static boolean grants(Permission[] candidates,
+        Permission permission)
+    {
+        if (candidates == null) {
+            return false;
+        }
+        for (Permission p : candidates) {
+            if (p.equals(permission) || p.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the folder of a folder permission. null for all other
+     *         permissions and folder permissions without folder.
+     */
+    private static FolderInfo folderOf(Permission p) {
+        return p instanceof FolderPermission ? ((FolderPermission) p)
+            .getFolder() : null;
+    }
+
+    private static boolean isFolderAdmin(Permission p) {
+        if (!(p instanceof FolderPermission)) {
+            return false;
+        }
+        AccessMode mode = ((FolderPermission) p).getMode();
+        return AccessMode.ADMIN.equals(mode) || AccessMode.OWNER.equals(mode);
+    }
+
+    private static int indexOf(Permission[] array, Permission p) {
+        if (array == null) {
+            return -1;
+        }
+        for (int i = 0; i < array.length; i++) {
+            // Same direction as CopyOnWriteArrayList.remove(Object)
+            if (p.equals(array[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Permission[] append(Permission[] array, Permission p) {
+        if (array == null) {
+            return new Permission[]{p};
+        }
+        Permission[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = p;
+        return result;
+    }
+
+    private static Permission[] removeAt(Permission[] array, int i) {
+        Permission[] result = new Permission[array.length - 1];
+        System.arraycopy(array, 0, result, 0, i);
+        System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+        return result;
+    }
+}
@@ -142,11 +142,14 @@ public class SecurityManagerClient extends PFComponent implements
 
     public boolean hasPermission(AccountInfo accountInfo, Permission permission)
     {
-        if (accountInfo != null && client.isLoggedIn()
-            && client.getAccount().createInfo().equals(accountInfo))
-        {
-            if (client.getAccount().hasPermission(permission)) {
-                // Optimize. Local answer.
+        if (accountInfo != null && client.isLoggedIn()) {
+            // Compare OIDs, avoids creating an AccountInfo on every check.
+            Account account = client.getAccount();
+            if (account != null
+                && Util.equals(account.getOID(), accountInfo.getOID())
+                && account.hasPermission(permission))
+            {
+                // Optimize. Local answer from the permission index.
                 return true;
             }
         }
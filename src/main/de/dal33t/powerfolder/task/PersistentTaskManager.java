@@ -29,11 +29,14 @@ import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.VirtualThreads;
 import de.dal33t.powerfolder.util.Waiter;
 
 /**
@@ -61,6 +64,11 @@ public class PersistentTaskManager extends PFComponent {
      */
     private List<PersistentTask> pendingTasks;
     private volatile boolean shuttingDown = false;
+    /**
+     * Runs the task initializations on virtual threads. null = use the shared
+     * thread pool of the controller.
+     */
+    private ExecutorService taskThreadPool;
 
     public PersistentTaskManager(Controller controller) {
         super(controller);
@@ -89,6 +97,12 @@ public class PersistentTaskManager extends PFComponent {
     public synchronized void start() {
         shuttingDown = false;
         pendingTasks = new Vector<PersistentTask>();
+        if (ConfigurationEntry.VIRTUAL_THREADS_ENABLED
+            .getValueBoolean(getController()) && VirtualThreads.isSupported())
+        {
+            taskThreadPool = VirtualThreads.newCachedThreadPool(
+                "PersistentTask-", true);
+        }
         Path taskfile = getTaskFile();
         if (taskfile != null && Files.exists(taskfile)) {
             logFine("Loading taskfile: " + taskfile);
@@ -169,6 +183,10 @@ public class PersistentTaskManager extends PFComponent {
         } catch (IOException e) {
             logSevere("IOException", e);
         }
+        if (taskThreadPool != null) {
+            taskThreadPool.shutdown();
+            taskThreadPool = null;
+        }
     }
 
     public boolean isStarted() {
@@ -177,7 +195,7 @@ public class PersistentTaskManager extends PFComponent {
 
     /**
      * Schedules a new task. The given task will be started as soon as possible
-     * by the shared ThreadPool of the Controller class.
+     * by the shared ThreadPool of the Controller class or on a virtual thread.
      *
      * @param task
      *            the task to start
@@ -207,7 +225,11 @@ public class PersistentTaskManager extends PFComponent {
                 }
             };
             pendingTasks.add(task);
-            getController().getThreadPool().execute(adder);
+            if (taskThreadPool != null) {
+                taskThreadPool.execute(adder);
+            } else {
+                getController().getThreadPool().execute(adder);
+            }
         }
     }
 
@@ -549,7 +549,9 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         if (isInfo()) {
             if (fileInfo.getFolderInfo().isMetaFolder()) {
-                logFine("Download completed: " + fileInfo.toDetailString());
+                if (isFine()) {
+                    logFine("Download completed: " + fileInfo.toDetailString());
+                }
             } else {
                 logInfo("Download completed: " + fileInfo.toDetailString());
             }
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Passive estimator of the available WAN bandwidth. Replaces the old speed
+ * test, which paused all transfers to up/download a test file to the server.
+ * <p>
+ * Works like a delay based congestion control (similar to LEDBAT): The
+ * observed goodput of the WAN limiters, round trip time samples of
+ * {@link de.dal33t.powerfolder.message.Ping}/
+ * {@link de.dal33t.powerfolder.message.Pong} and stalls while writing into
+ * the socket are sampled. The RTT is tracked per connection by a
+ * {@link ConnectionRTT}, since peers have very different base delays. If the
+ * highest queuing delay (smoothed RTT above the minimum RTT of the same
+ * connection) exceeds {@link #TARGET_QUEUE_DELAY} the line is considered congested and
+ * the limit is set slightly below the observed goodput. If the line is not
+ * congested and transfers use up the limit, the limit is raised step by step.
+ * <p>
+ * The estimator does not touch the limits by itself. {@link #update()} returns
+ * the new suggested limits, which get applied by the {@link TransferManager}.
+ */
+public class BandwidthEstimator extends Loggable {
+
+    /**
+     * ms between two estimations
+     */
+    public static final long PERIOD = 5000;
+
+    /**
+     * Queuing delay above the minimum RTT, which is considered as congestion.
+     */
+    static final long TARGET_QUEUE_DELAY = 100;
+
+    /**
+     * Time a single write of a control message may block until the line is
+     * considered saturated.
+     */
+    static final long MAX_SEND_STALL = 500;
+
+    /**
+     * Largest write sampled for stalls. Larger writes take long because of
+     * their size, not because the send buffer of the operating system is
+     * full.
+     */
+    static final int MAX_SEND_STALL_BYTES = 16 * 1024;
+
+    /**
+     * Lowest automatic limit in bytes per second.
+     */
+    static final long MIN_RATE = 10 * 1024;
+
+    /**
+     * Window after which the minimum RTT is re-learned. Routes might change.
+     */
+    static final long MIN_RTT_WINDOW = 10L * 60 * 1000;
+
+    private final BandwidthLimiter outputLimiter;
+    private final BandwidthLimiter inputLimiter;
+
+    private final Direction up = new Direction("Upload");
+    private final Direction down = new Direction("Download");
+
+    private final Object rttLock = new Object();
+    /** Highest queuing delay of all connections since the last update */
+    private long maxQueueDelay = -1;
+    /** Queuing delay used by the last update */
+    private long queueDelay = -1;
+    private long maxSendStall;
+
+    private long lastUpdate;
+
+    public BandwidthEstimator(BandwidthLimiter outputLimiter,
+        BandwidthLimiter inputLimiter)
+    {
+        this.outputLimiter = outputLimiter;
+        this.inputLimiter = inputLimiter;
+    }
+
+    /**
+     * Sets the currently active limits. Used when the limits were changed
+     * from the outside, e.g. by the user.
+     *
+     * @param uploadCPS
+     *            the upload limit in bytes per second, 0 = unlimited
+     * @param downloadCPS
+     *            the download limit in bytes per second, 0 = unlimited
+     */
+    public synchronized void setLimits(long uploadCPS, long downloadCPS) {
+        up.limit = Math.max(0, uploadCPS);
+        down.limit = Math.max(0, downloadCPS);
+    }
+
+    /**
+     * Adds a round trip time sample of a ping/pong on a WAN connection.
+     *
+     * @param connection
+     *            the RTT state of the connection the sample was taken on.
+     * @param rtt
+     *            the round trip time in ms
+     */
+    public void rttSample(ConnectionRTT connection, long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        long delay = connection.sample(rtt, System.currentTimeMillis());
+        synchronized (rttLock) {
+            maxQueueDelay = Math.max(maxQueueDelay, delay);
+        }
+    }
+
+    /**
+     * Adds a sample of the time a write of control messages into a WAN socket
+     * took. Control messages are not limited by our limiters, so long writes
+     * of a few bytes indicate a full send buffer of the operating system.
+     * Writes of more than {@link #MAX_SEND_STALL_BYTES} are ignored.
+     *
+     * @param took
+     *            the time in ms the socket write took, excl. serialization.
+     * @param bytes
+     *            the number of bytes written.
+     */
+    public void sendStallSample(long took, long bytes) {
+        if (bytes > MAX_SEND_STALL_BYTES) {
+            return;
+        }
+        synchronized (rttLock) {
+            maxSendStall = Math.max(maxSendStall, took);
+        }
+    }
+
+    /**
+     * @return the current queuing delay in ms or -1 if unknown. The highest
+     *         of all connections since the last update or the one of the
+     *         last update if there were no samples since.
+     */
+    public long getQueueDelay() {
+        synchronized (rttLock) {
+            return maxQueueDelay >= 0 ? maxQueueDelay : queueDelay;
+        }
+    }
+
+    /**
+     * @return the estimated upload limit in bytes per second, 0 = unlimited.
+     */
+    public synchronized long getUploadCPS() {
+        return up.limit;
+    }
+
+    /**
+     * @return the estimated download limit in bytes per second, 0 =
+     *         unlimited.
+     */
+    public synchronized long getDownloadCPS() {
+        return down.limit;
+    }
+
+    /**
+     * Calculates new limits from the samples collected since the last call.
+     *
+     * @return true if the limits changed.
+     */
+    public boolean update() {
+        return update(System.currentTimeMillis());
+    }
+
+    synchronized boolean update(long now) {
+        long took = now - lastUpdate;
+        long upBytes = outputLimiter.getBytesGranted();
+        long downBytes = inputLimiter.getBytesGranted();
+        if (lastUpdate == 0 || took <= 0) {
+            // First call. Just initialize.
+            lastUpdate = now;
+            up.lastBytes = upBytes;
+            down.lastBytes = downBytes;
+            return false;
+        }
+        lastUpdate = now;
+
+        long queueDelay;
+        long sendStall;
+        synchronized (rttLock) {
+            if (maxQueueDelay >= 0) {
+                this.queueDelay = maxQueueDelay;
+                maxQueueDelay = -1;
+            }
+            queueDelay = this.queueDelay;
+            sendStall = maxSendStall;
+            maxSendStall = 0;
+        }
+
+        long upRate = up.sample(upBytes, took);
+        long downRate = down.sample(downBytes, took);
+        if (queueDelay < 0 && sendStall == 0) {
+            // No samples yet.
+            return false;
+        }
+
+        boolean delayed = queueDelay > TARGET_QUEUE_DELAY;
+        boolean stalled = sendStall > MAX_SEND_STALL;
+        if (isFine() && (delayed || stalled)) {
+            logFine("Congestion detected. Queuing delay " + queueDelay
+                + "ms, send stall " + sendStall + "ms. Upload "
+                + Format.formatBytesShort(upRate) + "/s, download "
+                + Format.formatBytesShort(downRate) + "/s");
+        }
+
+        // A full socket send buffer is caused by uploads, a high delay can
+        // have both directions as cause. Blame the ones in use only: An idle
+        // line gets not limited by a single slow write.
+        boolean changed = up.adjust((stalled || delayed) && up.isBusy());
+        changed |= down.adjust(delayed && down.isBusy());
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthEstimator{up=" + Format.formatBytesShort(up.limit)
+            + "/s, down=" + Format.formatBytesShort(down.limit)
+            + "/s, queueDelay=" + getQueueDelay() + "ms}";
+    }
+
+    /**
+     * The round trip time state of one connection. Owned by the connection
+     * handler, so a LAN-near peer does not set the base delay for all others.
+     */
+    public static final class ConnectionRTT {
+        private long minRTT = -1;
+        private long nextMinRTT = -1;
+        private long minRTTWindowStart;
+        private long smoothedRTT = -1;
+
+        /**
+         * @param rtt
+         *            the round trip time in ms
+         * @param now
+         * @return the queuing delay of this connection in ms
+         */
+        synchronized long sample(long rtt, long now) {
+            if (minRTT < 0 || rtt < minRTT) {
+                minRTT = rtt;
+            }
+            if (nextMinRTT < 0 || rtt < nextMinRTT) {
+                nextMinRTT = rtt;
+            }
+            if (minRTTWindowStart == 0) {
+                minRTTWindowStart = now;
+            } else if (now - minRTTWindowStart > MIN_RTT_WINDOW) {
+                // Forget old minimum.
+                minRTT = nextMinRTT;
+                nextMinRTT = rtt;
+                minRTTWindowStart = now;
+            }
+            // RFC 6298 like smoothing. alpha = 1/8
+            if (smoothedRTT < 0) {
+                smoothedRTT = rtt;
+            } else {
+                smoothedRTT += (rtt - smoothedRTT) / 8;
+            }
+            return Math.max(0, smoothedRTT - minRTT);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "ConnectionRTT{min=" + minRTT + "ms, smoothed="
+                + smoothedRTT + "ms}";
+        }
+    }
+
+    /**
+     * The estimation state of one direction.
+     */
+    private class Direction {
+        private final String name;
+        /** The current limit. 0 = unlimited. */
+        private long limit;
+        private long lastBytes;
+        private long rate;
+
+        private Direction(String name) {
+            this.name = name;
+        }
+
+        private long sample(long bytes, long took) {
+            long delta = Math.max(0, bytes - lastBytes);
+            lastBytes = bytes;
+            rate = delta * 1000 / took;
+            return rate;
+        }
+
+        /**
+         * @return true if a noticeable amount of data is transferred.
+         */
+        private boolean isBusy() {
+            return rate >= MIN_RATE / 2;
+        }
+
+        private boolean adjust(boolean congested) {
+            long oldLimit = limit;
+            if (congested) {
+                // Multiplicative decrease, based on what actually got through
+                long base = limit > 0 ? Math.min(limit, rate) : rate;
+                limit = Math.max(MIN_RATE, base * 85 / 100);
+            } else if (limit > 0 && rate >= limit * 80 / 100) {
+                // Limit is used up, but no congestion: Probe for more.
+                limit += Math.max(MIN_RATE, limit / 8);
+            }
+            if (oldLimit == limit) {
+                return false;
+            }
+            if (isFine()) {
+                logFine(name + " limit "
+                    + (limit > 0
+                        ? Format.formatBytesShort(limit) + "/s"
+                        : "unlimited")
+                    + ". Goodput " + Format.formatBytesShort(rate) + "/s");
+            }
+            return true;
+        }
+    }
+}
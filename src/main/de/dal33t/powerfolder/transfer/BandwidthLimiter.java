@@ -20,6 +20,9 @@
 package de.dal33t.powerfolder.transfer;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Convenient class to limit bandwidth (for example for streams). A
@@ -55,7 +58,18 @@ public class BandwidthLimiter {
      */
     private long available = UNLIMITED;
 
-    private final Object monitor = new Object();
+    /**
+     * The total amount of bandwidth granted so far. Counted even if
+     * unlimited, so the real throughput can be observed.
+     */
+    private final AtomicLong granted = new AtomicLong();
+
+    /**
+     * Not a monitor: Waiting in requestBandwidth() must not pin the carrier
+     * thread if running on a virtual thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition availableCondition = lock.newCondition();
     private final BandwidthLimiterInfo id;
 
     public BandwidthLimiter(BandwidthLimiterInfo id) {
@@ -77,18 +91,23 @@ public class BandwidthLimiter {
         throws InterruptedException
     {
         if (isUnlimited()) {
+            granted.addAndGet(size);
             return size;
         }
-    	synchronized (monitor) {
+        lock.lockInterruptibly();
+        try {
             while (available == 0) {
-                monitor.wait();
+                availableCondition.await();
             }
-	        long amount = available < 0 ? size : Math.min(available, size);
-	        if (available >= 0) {
-	            available -= amount;
-	        }
-	        return amount;
-		}
+            long amount = available < 0 ? size : Math.min(available, size);
+            if (available >= 0) {
+                available -= amount;
+            }
+            granted.addAndGet(amount);
+            return amount;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -104,7 +123,8 @@ public class BandwidthLimiter {
     public BandwidthStat setAvailable(long amount) {
         BandwidthStat bandwidthStat;
 
-        synchronized (monitor) {
+        lock.lock();
+        try {
             // Create a stat of how much bandwidth there was initially
             // and how much there is now.
             bandwidthStat = new BandwidthStat(new Date(), id,
@@ -116,9 +136,11 @@ public class BandwidthLimiter {
 
             // Let everyone know.
             if (available != 0) {
-                monitor.notifyAll();
+                availableCondition.signalAll();
             }
-		}
+        } finally {
+            lock.unlock();
+        }
 
         return bandwidthStat;
     }
@@ -129,9 +151,12 @@ public class BandwidthLimiter {
      * @return the "bandwidth"
      */
     public long getAvailable() {
-    	synchronized (monitor) {
+        lock.lock();
+        try {
             return available;
-		}
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -142,17 +167,29 @@ public class BandwidthLimiter {
      * @param amount
      */
     public void returnAvailable(int amount) {
-        if (isUnlimited()) {
+        if (amount == 0) {
             return;
         }
-        if (amount == 0) {
+        granted.addAndGet(-amount);
+        if (isUnlimited()) {
             return;
         }
-    	synchronized (monitor) {
+        lock.lock();
+        try {
             if (available >= 0) {
                 available += amount;
             }
-		}
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total number of bytes granted by this limiter, including
+     *         the ones granted while unlimited.
+     */
+    public long getBytesGranted() {
+        return granted.get();
     }
 
     private boolean isUnlimited() {
@@ -125,7 +125,8 @@ public class FileRequestor extends PFComponent {
      *      (=lower CPU usage)
      */
     public void triggerFileRequesting() {
-        ProfilingEntry pe = Profiling.start();
+        ProfilingEntry pe = Profiling
+            .start("FileRequestor.triggerFileRequesting");
         Collection<Folder> folders = getController().getFolderRepository()
             .getFolders(true);
         synchronized (folderQueue) {
@@ -19,17 +19,10 @@
  */
 package de.dal33t.powerfolder.transfer;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -49,9 +42,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -84,13 +75,13 @@ import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.VolatileFileRecordProvider;
 import de.dal33t.powerfolder.util.Filter;
 import de.dal33t.powerfolder.util.Format;
-import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.StreamUtils;
 import de.dal33t.powerfolder.util.StringUtils;
 import de.dal33t.powerfolder.util.TransferCounter;
 import de.dal33t.powerfolder.util.Util;
 import de.dal33t.powerfolder.util.Validate;
+import de.dal33t.powerfolder.util.VirtualThreads;
 import de.dal33t.powerfolder.util.Visitor;
 import de.dal33t.powerfolder.util.WrapperExecutorService;
 import de.dal33t.powerfolder.util.compare.MemberComparator;
@@ -187,7 +178,8 @@ public class TransferManager extends PFComponent {
 
     private BandwidthStatsRecorder statsRecorder;
 
-    private final AtomicBoolean recalculatingAutomaticRates = new AtomicBoolean();
+    /** Passive estimation of the WAN bandwidth for automatic limits */
+    private final BandwidthEstimator bandwidthEstimator;
 
     public TransferManager(Controller controller) {
         super(controller);
@@ -217,6 +209,8 @@ public class TransferManager extends PFComponent {
         sharedWANInputHandler = BandwidthLimiter.WAN_INPUT_BANDWIDTH_LIMITER;
         sharedLANOutputHandler = BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER;
         sharedLANInputHandler = BandwidthLimiter.LAN_INPUT_BANDWIDTH_LIMITER;
+        bandwidthEstimator = new BandwidthEstimator(sharedWANOutputHandler,
+            sharedWANInputHandler);
 
         checkConfigCPS(ConfigurationEntry.UPLOAD_LIMIT_WAN, 0);
         checkConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_WAN, 0);
@@ -227,6 +221,8 @@ public class TransferManager extends PFComponent {
         setDownloadCPSForWAN(getConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_WAN));
         setUploadCPSForLAN(getConfigCPS(ConfigurationEntry.UPLOAD_LIMIT_LAN));
         setDownloadCPSForLAN(getConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_LAN));
+        bandwidthEstimator.setLimits(getUploadCPSForWAN(),
+            getDownloadCPSForWAN());
 
         if (getMaxFileChunkSize() > OLD_MAX_CHUNK_SIZE) {
             logWarning("Max filechunk size set to "
@@ -301,7 +297,9 @@ public class TransferManager extends PFComponent {
         bandwidthProvider.start();
 
         threadPool = new WrapperExecutorService(
-            Executors.newCachedThreadPool(new NamedThreadFactory("TMThread-")));
+            VirtualThreads.newCachedThreadPool("TMThread-",
+                ConfigurationEntry.VIRTUAL_THREADS_ENABLED
+                    .getValueBoolean(getController())));
 
         myThread = new Thread(new TransferChecker(), "Transfer manager");
         myThread.start();
@@ -318,6 +316,9 @@ public class TransferManager extends PFComponent {
         getController().scheduleAndRepeat(new TransferCleaner(), SIX_HOURS,
             SIX_HOURS);
 
+        getController().scheduleAndRepeat(new AutomaticRateUpdater(),
+            BandwidthEstimator.PERIOD, BandwidthEstimator.PERIOD);
+
         started = true;
         logFine("Started");
     }
@@ -1331,8 +1332,10 @@ public class TransferManager extends PFComponent {
                 queuedUploads.remove(oldUploadIndex);
             }
 
-            logFine("Queued: " + upload + ", startOffset: " + dl.startOffset
-                + ", to: " + from);
+            if (isFine()) {
+                logFine("Queued: " + upload + ", startOffset: " + dl.startOffset
+                    + ", to: " + from);
+            }
             queuedUploads.add(upload);
         } finally {
             uploadsLock.unlock();
@@ -1628,7 +1631,9 @@ public class TransferManager extends PFComponent {
 
         FileInfo fInfo = download.getFile();
         if (download.isRequestedAutomatic()) {
-            logFiner("Not adding pending download, is a auto-dl: " + fInfo);
+            if (isFiner()) {
+                logFiner("Not adding pending download, is a auto-dl: " + fInfo);
+            }
             return false;
         }
 
@@ -1659,7 +1664,9 @@ public class TransferManager extends PFComponent {
         }
 
         if (!contained) {
-            logFine("Pending download added for: " + fInfo);
+            if (isFine()) {
+                logFine("Pending download added for: " + fInfo);
+            }
             firePendingDownloadEnqueud(new TransferManagerEvent(this, download));
         }
         return true;
@@ -2912,12 +2919,16 @@ public class TransferManager extends PFComponent {
                         // Enqueue upload to friends and lan members first
 
                         if (upload.isAborted()) {
-                            logFine("Not starting aborted: " + upload);
+                            if (isFine()) {
+                                logFine("Not starting aborted: " + upload);
+                            }
                         } else {
                             if (upload.getPartner().isOnLAN()
                                 || !isUploadActive(upload.getFile(), true))
                             {
-                                logFiner("Starting upload: " + upload);
+                                if (isFiner()) {
+                                    logFiner("Starting upload: " + upload);
+                                }
                                 upload.start();
                                 uploadsStarted++;
                             } else {
@@ -2986,189 +2997,53 @@ public class TransferManager extends PFComponent {
     }
 
     /**
-     * Recalculate the up/download bandwidth auto limit. Do this by testing
-     * upload and download of 100KiB to the server.
+     * @return the passive estimator of the WAN bandwidth, used for the
+     *         automatic limits.
      */
-    public FutureTask<Object> getRecalculateAutomaticRate() {
+    public BandwidthEstimator getBandwidthEstimator() {
+        return bandwidthEstimator;
+    }
 
+    /**
+     * Recalculate the up/download bandwidth auto limit. The limits are taken
+     * from the passive {@link BandwidthEstimator}, so transfers don't get
+     * interrupted.
+     */
+    public FutureTask<Object> getRecalculateAutomaticRate() {
         return new FutureTask<Object>(new Callable<Object>() {
             public Object call() throws Exception {
-                if (recalculatingAutomaticRates.getAndSet(true)) {
-                    // Only one at a time.
-                    return null;
-                }
-                // Pause all transfers
-                boolean wasPause = getController().isPaused();
-                getController().setPaused(true);
-                try {
-                    // Get times.
-                    Date startDate = new Date();
-                    long downloadRate = 0;
-                    long downloadSize = 1047552; // @todo, why 1023 * 1024
-                                                 // bytes?
-                    boolean downloadOk = false;
-
-                    // downloadOk = countActiveDownloads() == 0
-                    // && testAvailabilityDownload(downloadSize);
-
-                    Date afterDownload = new Date();
-                    // @todo please explain why / 4 ?
-                    long uploadSize = 1047552 / 4;
-                    boolean uploadOk = countActiveUploads() == 0
-                        && testAvailabilityUpload(uploadSize);
-                    Date afterUpload = new Date();
-
-                    // Calculate time differences.
-                    long downloadTime = afterDownload.getTime()
-                        - startDate.getTime();
-                    long uploadTime = afterUpload.getTime()
-                        - afterDownload.getTime();
-                    // logWarning("Test availability download time " +
-                    // downloadTime);
-                    // logWarning("Test availability upload time " +
-                    // uploadTime);
-                    // Calculate rates in KiB/s.#
-                    if (downloadOk) {
-                        downloadRate = downloadTime > 0 ? downloadSize * 1000
-                            / downloadTime : 0;
-                    }
-                    long uploadRate = uploadTime > 0 ? uploadSize * 1000
-                        / uploadTime : 0;
-                    if (downloadOk) {
-                        logFine("Test availability download rate "
-                            + Format.formatBytesShort(downloadRate) + "/s");
-                    }
-                    if (uploadOk) {
-                        logFine("Test availability upload rate "
-                            + Format.formatBytesShort(uploadRate) + "/s");
-                    }
-                    // Update bandwidth provider with 90% of new rates.
-                    // By experience: Measured rates usually lower than actual
-                    // speed.
-                    long modifiedDownloadRate = 90 * downloadRate / 100;
-                    long modifiedUploadRate = 90 * uploadRate / 100;
-
-                    logInfo("Speed test finished: Download "
-                        + Format.formatBytesShort(downloadRate) + "/s, Upload "
-                        + Format.formatBytesShort(uploadRate) + "/s");
-
-                    // If the detected rate is too low the connection is
-                    // possibly
-                    // exhausted. Unlimt transfers? or keep the current rate
-                    // unchanged?
-                    if (uploadRate < 10240) {
-                        uploadRate = 0;
-                    }
-                    if (downloadRate < 102400 || downloadRate < uploadRate) {
-                        downloadRate = 0;
-                    }
-
-                    if (downloadOk) {
-                        setDownloadCPSForWAN(modifiedDownloadRate);
-                    } else {
-                        // Set unlimited
-                        setDownloadCPSForWAN(0);
-                    }
-                    if (uploadOk) {
-                        setUploadCPSForWAN(modifiedUploadRate);
-                    }
-
-                } finally {
-                    recalculatingAutomaticRates.set(false);
-                    getController().setPaused(wasPause);
-                }
+                updateAutomaticRates();
                 return null;
             }
         });
     }
 
     /**
-     * Test upload rate by uploading 100 KiB to the server.
-     *
-     * @return true if it succeeded.
+     * Applies the current estimation of the {@link BandwidthEstimator} as WAN
+     * limits, if automatic limits are enabled.
      */
-    private boolean testAvailabilityUpload(long size) {
-        try {
-            String path = getController().getOSClient().getWebURL()
-                + "/testavailability?action=upload";
-            URL url = new URL(path);
-
-            URLConnection connection = url.openConnection();
-            connection.setDoOutput(true); // This sets request method to POST.
-            String boundary = "---------------------------313223033317673";
-            connection.setRequestProperty("Content-Type",
-                "multipart/form-data; boundary=" + boundary);
-            PrintWriter writer = null;
-            try {
-                writer = new PrintWriter(new OutputStreamWriter(
-                    connection.getOutputStream(), "UTF-8"));
-
-                writer.println("--" + boundary);
-                writer
-                    .println("Content-Disposition: form-data; name=\"upload\"");
-                writer.println("Content-Type: text/plain; charset=UTF-8");
-                writer.println();
-                String paramToSend = "action";
-                writer.println(paramToSend);
-
-                writer.println("--" + boundary);
-                writer
-                    .println("Content-Disposition: form-data; name=\"fileToUpload\"; filename=\"file.txt\"");
-                writer.println("Content-Type: text/plain; charset=UTF-8");
-                writer.println();
-
-                for (int i = 0; i < size; i++) {
-                    writer.write('X');
-                }
-
-                writer.println();
-                writer.println("--" + boundary + "--");
-                writer.println();
-            } finally {
-                if (writer != null) {
-                    writer.close();
-                }
-            }
-
-            // Connection is lazily executed whenever you request any status.
-            int responseCode = ((HttpURLConnection) connection)
-                .getResponseCode();
-            return responseCode == 200;
-        } catch (Exception e) {
-            logWarning("Test availability upload failed: " + e);
+    private void updateAutomaticRates() {
+        if (!ConfigurationEntry.TRANSFER_LIMIT_AUTODETECT
+            .getValueBoolean(getController()))
+        {
+            // Follow manual changes.
+            bandwidthEstimator.setLimits(getUploadCPSForWAN(),
+                getDownloadCPSForWAN());
+            return;
         }
-        return false;
-    }
-
-    /**
-     * Test download rate by downloading 100 KiB from the server.
-     *
-     * @return true if it succeeded.
-     */
-    private boolean testAvailabilityDownload(long size) {
-        BufferedReader reader = null;
-        try {
-            String path = getController().getOSClient().getWebURL()
-                + "/testavailability?action=download&size=" + size;
-            URL url = new URL(path);
-            URLConnection connection = url.openConnection();
-            reader = new BufferedReader(new InputStreamReader(
-                connection.getInputStream()));
-            while (reader.readLine() != null) {
-            }
-            return true;
-        } catch (Exception e) {
-            logWarning("Test availability download failed: " + e);
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // Dont care.
-                }
-            }
+        if (!bandwidthEstimator.update()) {
+            return;
+        }
+        // Not using the setters. The limits change often, no need to log
+        // that on info.
+        ConfigurationEntry.UPLOAD_LIMIT_WAN.setValue(getController(),
+            String.valueOf(bandwidthEstimator.getUploadCPS() / 1024));
+        ConfigurationEntry.DOWNLOAD_LIMIT_WAN.setValue(getController(),
+            String.valueOf(bandwidthEstimator.getDownloadCPS() / 1024));
+        updateSpeedLimits();
+        if (isFine()) {
+            logFine("Automatic limits updated: " + bandwidthEstimator);
         }
-        return false;
     }
 
     // Helper code ************************************************************
@@ -3323,4 +3198,11 @@ public class TransferManager extends PFComponent {
             cleanupOldTransfers();
         }
     }
+
+    private class AutomaticRateUpdater extends TimerTask {
+        @Override
+        public void run() {
+            updateAutomaticRates();
+        }
+    }
 }
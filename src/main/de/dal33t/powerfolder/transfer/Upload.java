@@ -467,7 +467,8 @@ public class Upload extends Transfer {
                     data);
             }
 
-            getPartner().sendMessage(chunk);
+            // Waits while the bulk lane of the send queue is full
+            getPartner().enqueueMessages(chunk);
             getCounter().chunkTransferred(chunk);
             getTransferManager().getUploadCounter().chunkTransferred(chunk);
 
@@ -512,7 +513,9 @@ public class Upload extends Transfer {
      * Aborts this dl if currently transferrings
      */
     synchronized void abort() {
-        logFiner("Upload aborted: " + this);
+        if (isFiner()) {
+            logFiner("Upload aborted: " + this);
+        }
         aborted = true;
 
         stopUploads();
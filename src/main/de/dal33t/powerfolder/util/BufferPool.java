@@ -0,0 +1,233 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe pool of byte arrays for message buffers.
+ * <p>
+ * Buffers are kept in size classes of powers of two between
+ * {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}. A buffer acquired from
+ * the pool is at least as large as requested and has to be given back by
+ * {@link #release(byte[])} once it is no longer used. Larger requests are
+ * served by new, exactly sized arrays which are never pooled. Each size class
+ * holds a limited number of buffers, surplus buffers are left to the garbage
+ * collector.
+ * <p>
+ * The pool counts its allocations, so the saving can be checked, see
+ * {@link #toString()}.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 512;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer
+        .numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int MAX_SHIFT = Integer
+        .numberOfTrailingZeros(MAX_BUFFER_SIZE);
+
+    /**
+     * Max number of bytes kept per size class. Limits the number of buffers
+     * in the large classes.
+     */
+    private static final int MAX_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    /**
+     * Max number of buffers kept per size class.
+     */
+    private static final int MAX_BUFFERS_PER_CLASS = 64;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    private final SizeClass[] sizeClasses;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    public BufferPool() {
+        sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            int size = MIN_BUFFER_SIZE << i;
+            int maxBuffers = Math.max(2,
+                Math.min(MAX_BUFFERS_PER_CLASS, MAX_BYTES_PER_CLASS / size));
+            sizeClasses[i] = new SizeClass(size, maxBuffers);
+        }
+    }
+
+    /**
+     * @return the pool shared by all connections.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param minSize
+     *            the minimum size of the buffer.
+     * @return a buffer with at least the given size. Might contain data of
+     *         the previous use.
+     */
+    public byte[] acquire(int minSize) {
+        Reject.ifTrue(minSize < 0, "Illegal buffer size: " + minSize);
+        acquired.increment();
+        SizeClass sizeClass = sizeClassOf(minSize);
+        if (sizeClass == null) {
+            return allocate(minSize);
+        }
+        byte[] buffer = sizeClass.buffers.poll();
+        if (buffer != null) {
+            sizeClass.count.decrementAndGet();
+            reused.increment();
+            return buffer;
+        }
+        return allocate(sizeClass.size);
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer
+     *            the buffer acquired from this pool. null is ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        released.increment();
+        SizeClass sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass == null || sizeClass.size != buffer.length) {
+            // Not from this pool
+            discarded.increment();
+            return;
+        }
+        if (sizeClass.count.incrementAndGet() > sizeClass.maxBuffers) {
+            sizeClass.count.decrementAndGet();
+            discarded.increment();
+            return;
+        }
+        sizeClass.buffers.offer(buffer);
+    }
+
+    /**
+     * @return the number of buffers currently kept in the pool.
+     */
+    public int getPooledCount() {
+        int n = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            n += sizeClass.count.get();
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of acquired buffers.
+     */
+    public long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    /**
+     * @return the number of acquired buffers taken from the pool.
+     */
+    public long getReusedCount() {
+        return reused.sum();
+    }
+
+    /**
+     * @return the number of newly allocated buffers.
+     */
+    public long getAllocatedCount() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return the total size of all newly allocated buffers.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * @return the number of released buffers.
+     */
+    public long getReleasedCount() {
+        return released.sum();
+    }
+
+    /**
+     * @return the number of released buffers not kept, because the pool was
+     *         full or they did not fit into a size class.
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    @Override
+    public String toString() {
+        long nAcquired = getAcquiredCount();
+        long nReused = getReusedCount();
+        return "BufferPool [acquired=" + nAcquired + ", reused=" + nReused
+            + " (" + (nAcquired > 0 ? nReused * 100 / nAcquired : 0)
+            + "%), allocated=" + getAllocatedCount() + " ("
+            + Format.formatBytes(getAllocatedBytes()) + "), released="
+            + getReleasedCount() + ", discarded=" + getDiscardedCount()
+            + ", pooled=" + getPooledCount() + "]";
+    }
+
+    // Internal ***************************************************************
+
+    private byte[] allocate(int size) {
+        allocated.increment();
+        allocatedBytes.add(size);
+        return new byte[size];
+    }
+
+    private SizeClass sizeClassOf(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return null;
+        }
+        if (size <= MIN_BUFFER_SIZE) {
+            return sizeClasses[0];
+        }
+        // Round up to the next power of two
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return sizeClasses[shift - MIN_SHIFT];
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final int maxBuffers;
+        private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private SizeClass(int size, int maxBuffers) {
+            this.size = size;
+            this.maxBuffers = maxBuffers;
+        }
+    }
+}
@@ -40,8 +40,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.util.logging.Loggable;
 
@@ -55,14 +53,15 @@ public class ByteSerializer extends Loggable {
     private static final Logger LOG = Logger.getLogger(ByteSerializer.class
         .getName());
 
-    private static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024;
+    /**
+     * The maximum size of a serialized packet.
+     */
+    public static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024;
     // Should at least cover one file chunk. if packet is greater, the buffer
     // won't get cached = memory waste.
     private static final int MAX_CACHE_BUFFER_SIZE = 0;
 
-    private static final boolean CACHE_OUT_BUFFER = false;
-
-    private Reference<ByteArrayOutputStream> outBufferRef;
+    private final BufferPool pool;
     private Reference<byte[]> inBufferRef;
 
     public static boolean BENCHMARK = false;
@@ -71,11 +70,28 @@ public class ByteSerializer extends Loggable {
     private static int totalObjects = 0;
 
     public ByteSerializer() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param pool
+     *            the pool to take the serialization and receive buffers from.
+     */
+    public ByteSerializer(BufferPool pool) {
+        Reject.ifNull(pool, "Pool is null");
+        this.pool = pool;
     }
 
     /**
-     * Serialize an object. This method is non-static an re-uses the internal
-     * byteoutputstream
+     * @return the pool of the serialization and receive buffers.
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * Serialize an object. The serialization takes place in a pooled buffer,
+     * only the returned array is newly allocated.
      *
      * @param target
      *            The object to be serialized
@@ -91,22 +107,38 @@ public class ByteSerializer extends Loggable {
     public byte[] serialize(Serializable target, boolean compress, int padToSize)
         throws IOException
     {
-        long start = System.currentTimeMillis();
-        ByteArrayOutputStream byteOut;
-        // Reset buffer
-        if (outBufferRef != null && outBufferRef.get() != null) {
-            // Reuse old buffer
-            byteOut = outBufferRef.get();
-            byteOut.reset();
-        } else {
-            // logFiner("Creating send buffer (512bytes)");
-            // Create new bytearray output, 512b buffer
-            byteOut = new ByteArrayOutputStream(512);
-            if (CACHE_OUT_BUFFER) {
-                // Chache outgoing buffer
-                outBufferRef = new SoftReference<ByteArrayOutputStream>(byteOut);
-            }
+        PooledByteArrayOutputStream byteOut = new PooledByteArrayOutputStream(
+            pool);
+        try {
+            serialize(target, compress, padToSize, byteOut);
+            return byteOut.toByteArray();
+        } finally {
+            byteOut.release();
         }
+    }
+
+    /**
+     * Serialize an object and appends it to the given pooled buffer. Avoids
+     * any copy of the serialized data.
+     *
+     * @param target
+     *            The object to be serialized
+     * @param compress
+     *            true if serialization should compress.
+     * @param padToSize
+     *            the size to pad the serialized data to. number below 0 means
+     *            no padding.
+     * @param byteOut
+     *            the buffer to append the serialized object to.
+     * @return the number of bytes appended.
+     * @throws IOException
+     *             In case the object cannot be serialized
+     */
+    public int serialize(Serializable target, boolean compress,
+        int padToSize, PooledByteArrayOutputStream byteOut) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        int startSize = byteOut.size();
 
         OutputStream targetOut;
         // Serialize....
@@ -133,7 +165,7 @@ public class ByteSerializer extends Loggable {
         objOut.close();
 
         if (padToSize > 0) {
-            int modulo = byteOut.size() % padToSize;
+            int modulo = (byteOut.size() - startSize) % padToSize;
             if (modulo != 0) {
                 int additionalBytesRequired = padToSize - (modulo);
                 // LOG.warn("Buffersize: " + byteOut.size()
@@ -143,17 +175,15 @@ public class ByteSerializer extends Loggable {
                 }
             }
         }
-        byteOut.flush();
-        byteOut.close();
 
-        if (byteOut.size() >= 256 * 1024
+        int size = byteOut.size() - startSize;
+        if (size >= 256 * 1024
             && !target.getClass().getName().contains("ClusterCacheUpdate"))
         {
             logWarning("Send buffer exceeds 256KB! "
-                + Format.formatBytes(byteOut.size()) + ". Message: " + target);
+                + Format.formatBytes(size) + ". Message: " + target);
         }
 
-        byte[] buf = byteOut.toByteArray();
         if (BENCHMARK) {
             totalObjects++;
             totalTime += System.currentTimeMillis() - start;
@@ -164,7 +194,7 @@ public class ByteSerializer extends Loggable {
             count++;
             CLASS_STATS.put(target.getClass(), count);
         }
-        return buf;
+        return size;
     }
 
     /**
@@ -225,6 +255,49 @@ public class ByteSerializer extends Loggable {
         return byteIn;
     }
 
+    /**
+     * Reads a packet into a pooled buffer. The buffer has to be released by
+     * {@link #release(byte[])} after the data was deserialized.
+     *
+     * @param in
+     *            the input stream to read from
+     * @param expectedSize
+     *            the size of the packet
+     * @throws IOException
+     * @return the pooled buffer containing the packet. The array might be
+     *         bigger than expected size.
+     */
+    public byte[] readPooled(InputStream in, int expectedSize)
+        throws IOException
+    {
+        if (expectedSize > MAX_BUFFER_SIZE) {
+            throw new IOException(
+                "Max buffersize overflow while reading. expected size "
+                    + expectedSize);
+        }
+        byte[] byteIn = pool.acquire(expectedSize);
+        boolean ok = false;
+        try {
+            StreamUtils.read(in, byteIn, 0, expectedSize);
+            ok = true;
+            return byteIn;
+        } finally {
+            if (!ok) {
+                pool.release(byteIn);
+            }
+        }
+    }
+
+    /**
+     * Gives a buffer returned by {@link #readPooled(InputStream, int)} back to
+     * the pool.
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        pool.release(buffer);
+    }
+
     // Static serialization ***************************************************
 
     /**
@@ -259,13 +332,34 @@ public class ByteSerializer extends Loggable {
      */
     public static Object deserializeStatic(byte[] base,
         boolean expectCompression) throws IOException, ClassNotFoundException
+    {
+        return deserializeStatic(base, base.length, expectCompression);
+    }
+
+    /**
+     * Deserialize the first bytes of a byte[] array into an Object.
+     *
+     * @param base
+     *            The byte[] array
+     * @param len
+     *            the number of bytes to deserialize from the array.
+     * @param expectCompression
+     *            if there is a zip compression expected
+     * @return The deserialized object
+     * @throws IOException
+     *             an I/O Error occured
+     * @throws ClassNotFoundException
+     *             the class for the Object to be deserialized cannot be found.
+     */
+    public static Object deserializeStatic(byte[] base, int len,
+        boolean expectCompression) throws IOException, ClassNotFoundException
     {
         Object result;
         try {
-            result = deserialize0(base, expectCompression);
+            result = deserialize0(base, len, expectCompression);
         } catch (IOException e) {
             try {
-                result = deserialize0(base, !expectCompression);
+                result = deserialize0(base, len, !expectCompression);
             } catch (StreamCorruptedException e2) {
                 LOG.log(Level.WARNING, "While deserializing "
                     + (expectCompression ? "   compressed" : "uncompressed")
@@ -300,12 +394,14 @@ public class ByteSerializer extends Loggable {
      * compressed
      *
      * @param base
+     * @param len
      * @param compressed
      * @return the dezerialized object
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private static Object deserialize0(byte[] base, boolean compressed)
+    private static Object deserialize0(byte[] base, int len,
+        boolean compressed)
         throws IOException, ClassNotFoundException
     {
         long start = System.currentTimeMillis();
@@ -314,7 +410,7 @@ public class ByteSerializer extends Loggable {
         try {
             InputStream targetIn;
             // deserialize from the array.......u
-            ByteArrayInputStream bin = new ByteArrayInputStream(base);
+            ByteArrayInputStream bin = new ByteArrayInputStream(base, 0, len);
             if (compressed) {
                 GZIPInputStream zipIn = new GZIPInputStream(bin);
                 targetIn = zipIn;
@@ -368,5 +464,6 @@ public class ByteSerializer extends Loggable {
         } else {
             LOG.fine("Serialization perfomance: " + totalObjects);
         }
+        LOG.fine("Buffers: " + BufferPool.getDefault());
     }
 }
\ No newline at end of file
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache with a maximum size and a fixed time to live of every
+ * entry.
+ * <p>
+ * Eviction is segmented LRU: New entries go into the probation segment, an
+ * entry that gets hit moves into the protected segment, which holds at most
+ * {@link #PROTECTED_PERCENT} of the entries. The least recently used entry of
+ * the probation segment is evicted first. Entries hit only once are thereby
+ * evicted before entries hit often.
+ * <p>
+ * Reads are lock free. The recency of a hit is recorded only if the lock of
+ * the segments is free at that moment, so under contention the order is
+ * approximate. Writes and removals take the lock.
+ * <p>
+ * Null keys and values are not supported.
+ *
+ * @param <K>
+ *            the class of the key used for the cache
+ * @param <V>
+ *            the class of the cache entries
+ */
+public class ExpiringCache<K, V> {
+    /**
+     * Share of the maximum size for entries hit at least once.
+     */
+    public static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Maximum number of expired entries removed by one put.
+     */
+    private static final int EXPIRE_PER_PUT = 4;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final int maximumSize;
+    private final int maximumProtected;
+    private final long timeToLiveNanos;
+
+    // Guards the segments
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Node<K, V> probation = new Node<K, V>(null, null, 0);
+    private final Node<K, V> protectd = new Node<K, V>(null, null, 0);
+    private int protectedSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maximumSize
+     *            the maximum number of entries.
+     * @param duration
+     *            the time an entry is valid after it was put.
+     * @param unit
+     */
+    public ExpiringCache(int maximumSize, long duration, TimeUnit unit) {
+        Reject.ifFalse(maximumSize > 0, "Illegal maximum size: "
+            + maximumSize);
+        Reject.ifFalse(duration > 0, "Illegal timeout value: " + duration);
+        Reject.ifNull(unit, "Unit");
+        this.map = Util.createConcurrentHashMap(Math.min(maximumSize, 1024));
+        this.maximumSize = maximumSize;
+        this.maximumProtected = Math.max(1, (int) ((long) maximumSize
+            * PROTECTED_PERCENT / 100));
+        this.timeToLiveNanos = unit.toNanos(duration);
+        probation.prev = probation.next = probation;
+        protectd.prev = protectd.next = protectd;
+    }
+
+    // API ********************************************************************
+
+    /**
+     * Caches a given entry for the time to live. Evicts the least recently
+     * used entry if the cache is full.
+     *
+     * @param key
+     *            the key to cache the entry for.
+     * @param entry
+     *            the entry to cache.
+     */
+    public void put(K key, V entry) {
+        Reject.ifNull(key, "Key is null. Not supported");
+        Reject.ifNull(entry, "Value is null. Not supported");
+        long now = System.nanoTime();
+        Node<K, V> node = new Node<K, V>(key, entry, now);
+        lock.lock();
+        try {
+            Node<K, V> old = map.put(key, node);
+            if (old != null) {
+                unlink(old);
+            }
+            linkLast(probation, node);
+            expireSome(now);
+            while (map.size() > maximumSize) {
+                Node<K, V> victim = probation.next != probation
+                    ? probation.next
+                    : protectd.next;
+                if (victim == protectd) {
+                    // Both segments empty
+                    break;
+                }
+                map.remove(victim.key, victim);
+                unlink(victim);
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param key
+     *            the key to retrieve the cached value for.
+     * @return the cached, valid entry or null if not cached or expired.
+     */
+    public V getValidEntry(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (isExpired(node, System.nanoTime())) {
+            lock.lock();
+            try {
+                if (map.remove(key, node)) {
+                    unlink(node);
+                    expirations.increment();
+                }
+            } finally {
+                lock.unlock();
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                recordHit(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Removes the entry of the key.
+     *
+     * @param key
+     */
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            Node<K, V> node = map.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries the filter accepts.
+     *
+     * @param entryFilter
+     *            returns true for the entries to remove.
+     */
+    public void invalidateEntry(Visitor<V> entryFilter) {
+        Reject.ifNull(entryFilter, "Entry");
+        lock.lock();
+        try {
+            for (Map.Entry<K, Node<K, V>> candidate : map.entrySet()) {
+                Node<K, V> node = candidate.getValue();
+                if (entryFilter.visit(node.value)
+                    && map.remove(candidate.getKey(), node))
+                {
+                    unlink(node);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            for (Node<K, V> node : map.values()) {
+                unlink(node);
+            }
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all expired entries. Usually not required, expired entries are
+     * also removed on access, on put and by eviction.
+     */
+    public void cleanUp() {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (Node<K, V> node : map.values()) {
+                if (isExpired(node, now) && map.remove(node.key, node)) {
+                    unlink(node);
+                    expirations.increment();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries, including expired ones not removed yet.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries removed because the cache was full.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of entries removed because they expired.
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        long cacheHits = hits.sum();
+        long cacheMisses = misses.sum();
+        long accesses = cacheHits + cacheMisses;
+        String effiStr = "n/a";
+        if (accesses > 0) {
+            double effi = ((double) cacheHits) / accesses;
+            effiStr = Format.formatPercent(effi * 100);
+        }
+        return "ExpiringCache [efficiency=" + effiStr + ", entries="
+            + map.size() + "/" + maximumSize + ", timeoutMS="
+            + TimeUnit.NANOSECONDS.toMillis(timeToLiveNanos) + ", cacheHits="
+            + cacheHits + ", cacheMisses=" + cacheMisses + ", evictions="
+            + evictions.sum() + ", expirations=" + expirations.sum() + "]";
+    }
+
+    // Internal ***************************************************************
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return now - node.writeTime > timeToLiveNanos;
+    }
+
+    /**
+     * Moves a hit entry to the end of the protected segment. Demotes the least
+     * recently used protected entry to probation if the segment is full.
+     * Requires the lock.
+     */
+    private void recordHit(Node<K, V> node) {
+        if (node.next == null) {
+            // Already removed
+            return;
+        }
+        unlink(node);
+        linkLast(protectd, node);
+        node.isProtected = true;
+        protectedSize++;
+        if (protectedSize > maximumProtected) {
+            Node<K, V> demoted = protectd.next;
+            unlink(demoted);
+            linkLast(probation, demoted);
+        }
+    }
+
+    /**
+     * Removes expired entries from the least recently used ends. Bounded, so
+     * a put never sweeps the whole cache. Requires the lock.
+     */
+    private void expireSome(long now) {
+        for (int i = 0; i < EXPIRE_PER_PUT; i++) {
+            Node<K, V> node = probation.next;
+            if (node == probation || !isExpired(node, now)) {
+                node = protectd.next;
+                if (node == protectd || !isExpired(node, now)) {
+                    return;
+                }
+            }
+            map.remove(node.key, node);
+            unlink(node);
+            expirations.increment();
+        }
+    }
+
+    private void linkLast(Node<K, V> head, Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.isProtected = false;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.next == null) {
+            return;
+        }
+        if (node.isProtected) {
+            protectedSize--;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        node.isProtected = false;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final long writeTime;
+
+        // Guarded by the lock
+        private Node<K, V> prev;
+        private Node<K, V> next;
+        private boolean isProtected;
+
+        Node(K key, V value, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream into a growing byte array, which is taken from a
+ * {@link BufferPool}. When growing, the data is moved into the next larger
+ * pooled buffer and the old buffer goes back into the pool.
+ * <p>
+ * Not thread-safe. {@link #release()} gives the buffer back to the pool, the
+ * stream can be used again afterwards.
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * @param pool
+     *            the pool to take the buffers from.
+     */
+    public PooledByteArrayOutputStream(BufferPool pool) {
+        Reject.ifNull(pool, "Pool is null");
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("Offset " + off + ", length "
+                + len + ", array length " + b.length);
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Overwrites 4 already written bytes with the given int in network byte
+     * order. Used to fill in the length of a packet after its data.
+     *
+     * @param pos
+     *            the position to write at.
+     * @param value
+     */
+    public void writeIntAt(int pos, int value) {
+        if (pos < 0 || pos + 4 > count) {
+            throw new IndexOutOfBoundsException("Position " + pos + ", size "
+                + count);
+        }
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the internal buffer. Valid up to {@link #size()}. Only valid
+     *         until the next write or release.
+     */
+    public byte[] getBuffer() {
+        return buffer != null ? buffer : new byte[0];
+    }
+
+    /**
+     * @return the capacity of the current buffer.
+     */
+    public int getCapacity() {
+        return buffer != null ? buffer.length : 0;
+    }
+
+    /**
+     * @return a copy of the written data.
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[count];
+        if (count > 0) {
+            System.arraycopy(buffer, 0, copy, 0, count);
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the written data to the given stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Discards the written data. Keeps the buffer.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Discards the written data and gives the buffer back to the pool.
+     */
+    public void release() {
+        count = 0;
+        byte[] b = buffer;
+        buffer = null;
+        pool.release(b);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("Buffer too large");
+        }
+        if (buffer != null && minCapacity <= buffer.length) {
+            return;
+        }
+        int newCapacity = buffer != null ? Math.max(minCapacity,
+            buffer.length << 1) : minCapacity;
+        if (newCapacity < 0) {
+            newCapacity = minCapacity;
+        }
+        byte[] newBuffer = pool.acquire(newCapacity);
+        if (buffer != null) {
+            System.arraycopy(buffer, 0, newBuffer, 0, count);
+            pool.release(buffer);
+        }
+        buffer = newBuffer;
+    }
+}
@@ -19,17 +19,24 @@
  */
 package de.dal33t.powerfolder.util;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Class to monitor and log long-running method calls (only in Verbose mode).
- * Used for analysis and improvements to PowerFolder.
+ * Class to monitor and log long-running method calls. Used for analysis and
+ * improvements to PowerFolder.
+ * <p>
+ * Cheap enough to stay enabled: Each thread records into its own
+ * {@link ProfilingStat}s without contention. The statistics of all threads
+ * are merged only when read by {@link #getStats()} or {@link #dumpStats()}.
  */
 public class Profiling {
     private static final Logger LOG = Logger.getLogger(Profiling.class
@@ -40,12 +47,24 @@ public class Profiling {
      */
     public static boolean ENABLED;
 
-    private static long totalTime;
-    private static long minimumTime = Long.MAX_VALUE;
-    private static long maximumTime;
-    private static long totalCount;
+    /**
+     * Recorders of all threads which used the profiler.
+     */
+    private static final Set<Recorder> recorders = ConcurrentHashMap
+        .newKeySet();
+
+    /**
+     * Statistics of recorders of terminated threads. Guarded by itself.
+     */
+    private static final Map<String, ProfilingStat> retired = new HashMap<String, ProfilingStat>();
+
+    /**
+     * Used to clean up the recorders of terminated threads once in a while.
+     */
+    private static final AtomicInteger createdRecorders = new AtomicInteger();
 
-    private static final Map<String, ProfilingStat> stats = new ConcurrentHashMap<String, ProfilingStat>();
+    private static final ThreadLocal<Recorder> recorder = ThreadLocal
+        .withInitial(Profiling::newRecorder);
 
     /**
      * No instances allowed.
@@ -70,7 +89,9 @@ public class Profiling {
     }
 
     /**
-     * Start profiling a method invocation.
+     * Start profiling a method invocation. The operation name is taken from
+     * the stack trace of the caller. Expensive, prefer
+     * {@link #start(String)} in frequently called code.
      *
      * @return instance of ProfilingeEntry.
      */
@@ -115,9 +136,7 @@ public class Profiling {
 
     /**
      * End profiling a method invocation. The 'ProfileEntry' arg should be the
-     * value returned by the coresponding startProfiling call. If the invocation
-     * takes longer than the original profileMillis milli seconds, the profile
-     * is logged.
+     * value returned by the coresponding startProfiling call.
      *
      * @param profilingEntry
      *            the profile entry instance.
@@ -128,57 +147,51 @@ public class Profiling {
 
     /**
      * End profiling a method invocation. The 'ProfileEntry' arg should be the
-     * value returned by the coresponding startProfiling call. If the invocation
-     * takes longer than the original profileMillis milli seconds, the profile
-     * is logged.
+     * value returned by the coresponding startProfiling call.
      *
      * @param profilingEntry
      *            the profile entry instance.
      * @param profileMillis
      *            maximum number of milliseconds this event should take.
-     *            Otherwise a error is logged.
+     *            Longer invocations are logged in FINE.
      */
     public static void end(ProfilingEntry profilingEntry, int profileMillis) {
         if (!ENABLED) {
             return;
         }
         if (profilingEntry == null) {
-            // This i
-            LOG.log(Level.SEVERE, "Cannot end profiling, entry is null",
-                new RuntimeException("Cannot end profiling, entry is null"));
+            // Profiling was enabled after the start of the invocation
             return;
         }
-
-        // Don't execute this asychronously. Might produce
-        // uncontrollable # of thread.
-        long elapsed = profilingEntry.elapsedMilliseconds();
-        String operationName = profilingEntry.getOperationName();
-        if (profileMillis > 0 && elapsed >= profileMillis) {
-            // String t = profilingEntry.getOperationName();
-            // if (profilingEntry.getDetails() != null) {
-            // t += " [" + profilingEntry.getDetails() + "]";
-            // }
-            // t += " took " + elapsed + " milliseconds";
-            // LOG.error(t);
-        }
-        totalTime += elapsed;
-        totalCount++;
-        if (elapsed < minimumTime) {
-            minimumTime = elapsed;
-        }
-        if (elapsed > maximumTime) {
-            maximumTime = elapsed;
+        long elapsed = profilingEntry.elapsedNanos();
+        recorder.get().record(profilingEntry.getOperationName(), elapsed);
+        if (profileMillis > 0 && elapsed >= profileMillis * 1000000L
+            && LOG.isLoggable(Level.FINE))
+        {
+            String t = profilingEntry.getOperationName();
+            if (StringUtils.isNotBlank(profilingEntry.getDetails())) {
+                t += " [" + profilingEntry.getDetails() + "]";
+            }
+            LOG.fine(t + " took " + elapsed / 1000000L + "ms");
         }
+    }
 
-        synchronized (stats) {
-            ProfilingStat stat = stats.get(operationName);
-            if (stat != null) {
-                stat.addElapsed(elapsed);
-                return;
+    /**
+     * @return the statistics of all threads by operation name. A snapshot,
+     *         sorted by operation name.
+     */
+    public static Map<String, ProfilingStat> getStats() {
+        Map<String, ProfilingStat> merged = new TreeMap<String, ProfilingStat>();
+        retireTerminated();
+        synchronized (retired) {
+            for (ProfilingStat stat : retired.values()) {
+                merge(merged, stat);
             }
-            stat = new ProfilingStat(operationName, elapsed);
-            stats.put(operationName, stat);
         }
+        for (Recorder r : recorders) {
+            r.mergeInto(merged);
+        }
+        return merged;
     }
 
     public static String dumpStats() {
@@ -186,42 +199,129 @@ public class Profiling {
             LOG.severe("Unable to dump stats. Profiling is disabled");
             return "Unable to dump stats. Profiling is disabled";
         }
+        Map<String, ProfilingStat> stats = getStats();
+        ProfilingStat total = new ProfilingStat("Total");
+        for (ProfilingStat stat : stats.values()) {
+            total.merge(stat);
+        }
 
         StringBuilder sb = new StringBuilder();
-
         sb.append("=== Profiling Statistics ===\n");
-        sb.append("Total invocations: " + totalCount + '\n');
-        sb.append("Total elapsed time: " + Format.formatTimeframe(totalTime)
-            + "\n");
-        if (totalCount > 0) {
+        sb.append("Total invocations: " + total.getCount() + '\n');
+        sb.append("Total elapsed time: "
+            + Format.formatTimeframe(total.getElapsed()) + "\n");
+        if (total.getCount() > 0) {
             sb.append("Avg time: "
-                + Format.formatTimeframe(totalTime / totalCount) + "\n");
+                + formatNanos(total.getTotalNanos() / total.getCount())
+                + "\n");
         }
-        sb.append("Min elapsed time: " + Format.formatTimeframe(minimumTime)
+        sb.append("Min elapsed time: " + formatNanos(total.getMinNanos())
             + "\n");
-        sb.append("Max elapsed time: " + Format.formatTimeframe(maximumTime)
+        sb.append("Max elapsed time: " + formatNanos(total.getMaxNanos())
             + "\n");
         sb.append("\n");
-        List<String> keys = new ArrayList<String>(stats.keySet());
-        Collections.sort(keys);
-        for (String key : keys) {
-            ProfilingStat stat = stats.get(key);
+        for (ProfilingStat stat : stats.values()) {
             sb.append("'" + stat.getOperationName() + "' invocations "
                 + stat.getCount() + " elapsed "
                 + Format.formatTimeframe(stat.getElapsed()) + " average "
-                + Format.formatTimeframe(stat.getElapsed() / stat.getCount())
-                + "\n");
+                + formatNanos(stat.getTotalNanos() / stat.getCount())
+                + " p50 " + formatNanos(stat.getPercentileNanos(0.5))
+                + " p99 " + formatNanos(stat.getPercentileNanos(0.99))
+                + " p999 " + formatNanos(stat.getPercentileNanos(0.999))
+                + " max " + formatNanos(stat.getMaxNanos()) + "\n");
         }
         sb.append("============================");
         return sb.toString();
     }
 
     public static void reset() {
-        stats.clear();
-        maximumTime = 0;
-        minimumTime = Long.MAX_VALUE;
-        totalCount = 0;
-        totalTime = 0;
+        synchronized (retired) {
+            retired.clear();
+        }
+        for (Recorder r : recorders) {
+            r.clear();
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1000000L) {
+            return nanos / 1000 + "\u00b5s";
+        }
+        return Format.formatTimeframe(nanos / 1000000L);
     }
 
+    private static void merge(Map<String, ProfilingStat> target,
+        ProfilingStat stat)
+    {
+        ProfilingStat existing = target.get(stat.getOperationName());
+        if (existing == null) {
+            target.put(stat.getOperationName(), stat.copy());
+        } else {
+            existing.merge(stat);
+        }
+    }
+
+    private static Recorder newRecorder() {
+        if (createdRecorders.incrementAndGet() % 256 == 0) {
+            // Many short living threads
+            retireTerminated();
+        }
+        Recorder r = new Recorder(Thread.currentThread());
+        recorders.add(r);
+        return r;
+    }
+
+    /**
+     * Moves the statistics of terminated threads into the retired stats.
+     */
+    private static void retireTerminated() {
+        for (Iterator<Recorder> it = recorders.iterator(); it.hasNext();) {
+            Recorder r = it.next();
+            if (r.isTerminated()) {
+                it.remove();
+                synchronized (retired) {
+                    r.mergeInto(retired);
+                }
+            }
+        }
+    }
+
+    /**
+     * The statistics of one thread. Only written by the owning thread, so the
+     * lock is not contended except while reading the statistics.
+     */
+    private static class Recorder {
+        private final WeakReference<Thread> thread;
+        private final Map<String, ProfilingStat> stats = new HashMap<String, ProfilingStat>();
+
+        Recorder(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+
+        synchronized void record(String operationName, long nanos) {
+            ProfilingStat stat = stats.get(operationName);
+            if (stat == null) {
+                stat = new ProfilingStat(operationName);
+                stats.put(operationName, stat);
+            }
+            stat.record(nanos);
+        }
+
+        synchronized void mergeInto(Map<String, ProfilingStat> target) {
+            for (ProfilingStat stat : stats.values()) {
+                merge(target, stat);
+            }
+        }
+
+        synchronized void clear() {
+            stats.clear();
+        }
+
+        boolean isTerminated() {
+            Thread t = thread.get();
+            return t == null || !t.isAlive();
+        }
+    }
 }
@@ -27,12 +27,12 @@ public class ProfilingEntry {
 
     private String operationName;
     private String details;
-    private long startTime;
+    private final long startNanos;
 
     public ProfilingEntry(String operationName, String details) {
         this.operationName = operationName;
         this.details = details;
-        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
     }
 
     public String getOperationName() {
@@ -44,6 +44,10 @@ public class ProfilingEntry {
     }
 
     public long elapsedMilliseconds() {
-        return System.currentTimeMillis() - startTime;
+        return elapsedNanos() / 1000000L;
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
     }
 }
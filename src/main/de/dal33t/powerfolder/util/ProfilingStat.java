@@ -19,36 +19,170 @@
  */
 package de.dal33t.powerfolder.util;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
 
 /**
- * Profiling statistics.
+ * Profiling statistics of one operation: Count, total time and a histogram
+ * of the elapsed times.
+ * <p>
+ * The histogram has logarithmic buckets with 8 linear sub-buckets per power
+ * of two, so the relative error of percentiles is below 12.5%. Histograms
+ * of the same operation recorded by different threads are merged with
+ * {@link #merge(ProfilingStat)}.
+ * <p>
+ * Not thread-safe. Each thread records into its own instance, see
+ * {@link Profiling}.
  */
 public class ProfilingStat {
 
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
     private final String operationName;
-    private final AtomicLong count = new AtomicLong();
-    private final AtomicLong elapsed = new AtomicLong();
+    private long count;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+    /**
+     * Counts per bucket. Grows up to the bucket of the max value.
+     */
+    private long[] buckets = new long[4 * SUB_BUCKETS];
 
-    public ProfilingStat(String operationName, long elapsed) {
+    public ProfilingStat(String operationName) {
         this.operationName = operationName;
-        addElapsed(elapsed);
     }
 
-    public void addElapsed (long delta) {
-        elapsed.addAndGet(delta);
-        count.incrementAndGet();
+    /**
+     * Records one invocation.
+     *
+     * @param elapsedNanos
+     */
+    public void record(long elapsedNanos) {
+        long nanos = Math.max(0, elapsedNanos);
+        int i = bucketOf(nanos);
+        if (i >= buckets.length) {
+            buckets = Arrays.copyOf(buckets, i + SUB_BUCKETS);
+        }
+        buckets[i]++;
+        count++;
+        totalNanos += nanos;
+        if (nanos < minNanos) {
+            minNanos = nanos;
+        }
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    /**
+     * Adds all invocations of the other statistic of the same operation.
+     *
+     * @param other
+     */
+    public void merge(ProfilingStat other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (other.buckets.length > buckets.length) {
+            buckets = Arrays.copyOf(buckets, other.buckets.length);
+        }
+        for (int i = 0; i < other.buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        totalNanos += other.totalNanos;
+        minNanos = Math.min(minNanos, other.minNanos);
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    /**
+     * @return a copy of this statistic.
+     */
+    public ProfilingStat copy() {
+        ProfilingStat copy = new ProfilingStat(operationName);
+        copy.merge(this);
+        return copy;
     }
 
     public long getCount() {
-        return count.get();
+        return count;
     }
 
+    /**
+     * @return the total elapsed time in milliseconds.
+     */
     public long getElapsed() {
-        return elapsed.get();
+        return totalNanos / 1000000L;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the shortest elapsed time or 0 if nothing recorded.
+     */
+    public long getMinNanos() {
+        return count > 0 ? minNanos : 0;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1, e.g. 0.999
+     * @return the estimated elapsed time at the quantile. 0 if nothing
+     *         recorded.
+     */
+    public long getPercentileNanos(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        if (rank >= count) {
+            return maxNanos;
+        }
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                // Middle of the bucket, but within the recorded range.
+                long value = lowerBoundOf(i) + (widthOf(i) - 1) / 2;
+                return Math.max(getMinNanos(), Math.min(maxNanos, value));
+            }
+        }
+        return maxNanos;
     }
 
     public String getOperationName() {
         return operationName;
     }
+
+    // Bucket layout **********************************************************
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS
+            + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long widthOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return 1;
+        }
+        return 1L << (bucket / SUB_BUCKETS - 1);
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates executors running every task on a new virtual thread (Java 21+).
+ * <p>
+ * The code is compiled for older Java versions, so the virtual thread API is
+ * accessed by reflection. If not available the executors fall back to a
+ * cached pool of platform threads.
+ *
+ * @see de.dal33t.powerfolder.ConfigurationEntry#VIRTUAL_THREADS_ENABLED
+ */
+public class VirtualThreads {
+
+    private static final Logger LOG = Logger.getLogger(VirtualThreads.class
+        .getName());
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = Class.forName("java.lang.Thread$Builder").getMethod("name",
+                String.class, long.class);
+            factory = Class.forName("java.lang.Thread$Builder").getMethod(
+                "factory");
+            newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+                ThreadFactory.class);
+        } catch (Exception e) {
+            // Not supported by this JRE
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running JRE supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param namePrefix
+     *            the prefix of the thread names.
+     * @return a factory for virtual threads or null if not supported.
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = NAME.invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to create virtual threads: " + e, e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates an executor for blocking I/O tasks.
+     *
+     * @param namePrefix
+     *            the prefix of the thread names.
+     * @param virtual
+     *            if the tasks should run on virtual threads. Ignored if not
+     *            supported.
+     * @return a executor starting a new virtual thread per task or a cached
+     *         pool of platform threads.
+     */
+    public static ExecutorService newCachedThreadPool(String namePrefix,
+        boolean virtual)
+    {
+        if (virtual) {
+            ThreadFactory factory = newThreadFactory(namePrefix);
+            if (factory != null) {
+                try {
+                    return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR
+                        .invoke(null, factory);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING,
+                        "Unable to create virtual thread executor: " + e, e);
+                }
+            } else {
+                LOG.warning("Virtual threads not supported by Java "
+                    + JavaVersion.systemVersion() + ". Using platform threads for "
+                    + namePrefix);
+            }
+        }
+        return Executors.newCachedThreadPool(new NamedThreadFactory(
+            namePrefix));
+    }
+}
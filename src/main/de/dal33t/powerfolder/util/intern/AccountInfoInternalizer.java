@@ -19,46 +19,28 @@
  */
 package de.dal33t.powerfolder.util.intern;
 
-import java.util.Map;
-import java.util.WeakHashMap;
-
 import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.util.StringUtils;
 
 /**
- * To internalize {@link AccountInfo}s into a weak hash map.
+ * To internalize {@link AccountInfo}s into a {@link WeakInterner}.
  *
  * @author sprajc
  */
 public class AccountInfoInternalizer implements Internalizer<AccountInfo> {
-    private final Map<AccountInfo, AccountInfo> INSTANCES = new WeakHashMap<>();
-    
+    private final WeakInterner<AccountInfo> instances = new WeakInterner<>();
+
     @Override
     public AccountInfo intern(AccountInfo accountInfo) {
         if (accountInfo == null) {
             return null;
         }
-        AccountInfo internInstance = INSTANCES.get(accountInfo);
-        if (internInstance != null) {
-            return internInstance;
-        }
-
-        // New Intern
-        synchronized (INSTANCES) {
-            internInstance = INSTANCES.get(accountInfo);
-            if (internInstance == null) {
-                if (StringUtils.isBlank(accountInfo.getUsername())) {
-                    // Not interned folder info without name.
-                    // System.err.println("INTERN FAILED: " + folderInfo + " / "
-                    // + folderInfo.getId());
-                    // new RuntimeException().printStackTrace();
-                    return accountInfo;
-                }
-                INSTANCES.put(accountInfo, accountInfo);
-                internInstance = accountInfo;
-            }
+        if (StringUtils.isBlank(accountInfo.getUsername())) {
+            // Not interned account info without username.
+            AccountInfo internInstance = instances.get(accountInfo);
+            return internInstance != null ? internInstance : accountInfo;
         }
-        return internInstance;
+        return instances.intern(accountInfo);
     }
 
     @Override
@@ -67,7 +49,7 @@ public class AccountInfoInternalizer implements Internalizer<AccountInfo> {
             return null;
         }
 
-        AccountInfo oldInstance = INSTANCES.get(accountInfo);
+        AccountInfo oldInstance = instances.get(accountInfo);
 
         if (oldInstance != null
             && oldInstance.getUsername().equals(accountInfo.getUsername()))
@@ -82,7 +64,7 @@ public class AccountInfoInternalizer implements Internalizer<AccountInfo> {
             return oldInstance;
         }
 
-        INSTANCES.put(accountInfo, accountInfo);
+        instances.replace(accountInfo);
 
         return accountInfo;
     }
@@ -19,6 +19,8 @@
  */
 package de.dal33t.powerfolder.util.intern;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.net.NodeManager;
@@ -30,15 +32,24 @@ import de.dal33t.powerfolder.util.Reject;
  * @author sprajc
  */
 public class MemberInfoInternalizer implements Internalizer<MemberInfo> {
+    /**
+     * Number of locks for adding new nodes. Power of two.
+     */
+    private static final int STRIPES = 64;
+
     private NodeManager nodeManager;
+    private final Object[] addLocks = new Object[STRIPES];
 
-    private volatile int hits;
-    private volatile int misses;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
     public MemberInfoInternalizer(NodeManager nodeManager) {
         super();
         Reject.ifNull(nodeManager, "NodeManager");
         this.nodeManager = nodeManager;
+        for (int i = 0; i < addLocks.length; i++) {
+            addLocks[i] = new Object();
+        }
     }
 
     public MemberInfo intern(MemberInfo item) {
@@ -47,10 +58,18 @@ public class MemberInfoInternalizer implements Internalizer<MemberInfo> {
         }
         Member node = nodeManager.getNode(item);
         if (node != null) {
-            hits++;
+            hits.increment();
             return node.getInfo();
-        } else {
-            hits++;
+        }
+        // Only one thread may add a node. Otherwise the second add replaces
+        // the node of the first, which is already in use.
+        synchronized (addLocks[stripe(item)]) {
+            node = nodeManager.getNode(item);
+            if (node != null) {
+                hits.increment();
+                return node.getInfo();
+            }
+            misses.increment();
             return nodeManager.addNode(item).getInfo();
         }
     }
@@ -58,4 +77,18 @@ public class MemberInfoInternalizer implements Internalizer<MemberInfo> {
     public MemberInfo rename(MemberInfo item) {
         return intern(item);
     }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static int stripe(MemberInfo item) {
+        int h = item.id != null ? item.id.hashCode() : 0;
+        h ^= h >>> 16;
+        return h & (STRIPES - 1);
+    }
 }
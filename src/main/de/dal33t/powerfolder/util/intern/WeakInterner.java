@@ -0,0 +1,177 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.intern;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * A thread-safe set of canonical instances, which are only weakly referenced.
+ * <p>
+ * Backed by a {@link ConcurrentHashMap} of {@link WeakReference}s. Hits take
+ * no lock, misses only lock one bin of the map. Entries of collected
+ * instances are removed over a {@link ReferenceQueue} on the next access.
+ * <p>
+ * Every mapping has the same weak entry as key and value. A lookup uses a
+ * strong key that compares equal to the entry of an equal instance, so hits
+ * allocate no reference.
+ *
+ * @param <T>
+ *            the class of the interned instances. Must implement
+ *            {@link Object#equals(Object)} and {@link Object#hashCode()}.
+ */
+public final class WeakInterner<T> {
+    private final ConcurrentHashMap<Object, Entry<T>> map = Util
+        .createConcurrentHashMap();
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
+    /**
+     * @param item
+     * @return the canonical instance equal to the item. The item itself if
+     *         there was none yet.
+     */
+    public T intern(T item) {
+        Reject.ifNull(item, "Item");
+        expunge();
+        T canonical = get(item);
+        if (canonical != null) {
+            return canonical;
+        }
+        Entry<T> entry = new Entry<T>(item, queue);
+        while (true) {
+            Entry<T> existing = map.putIfAbsent(entry, entry);
+            if (existing == null) {
+                return item;
+            }
+            canonical = existing.get();
+            if (canonical != null) {
+                return canonical;
+            }
+            // Collected, but not expunged yet
+            map.remove(existing, existing);
+        }
+    }
+
+    /**
+     * Makes the item the canonical instance, replacing an equal one.
+     *
+     * @param item
+     */
+    public void replace(T item) {
+        Reject.ifNull(item, "Item");
+        expunge();
+        Entry<T> entry = new Entry<T>(item, queue);
+        Lookup lookup = new Lookup(item);
+        while (map.putIfAbsent(entry, entry) != null) {
+            // Keep key and value the same entry, so remove first.
+            map.remove(lookup);
+        }
+    }
+
+    /**
+     * @param item
+     * @return the canonical instance equal to the item or null if none.
+     */
+    public T get(T item) {
+        Entry<T> entry = map.get(new Lookup(item));
+        return entry != null ? entry.get() : null;
+    }
+
+    /**
+     * @return the number of canonical instances, including collected ones
+     *         not expunged yet.
+     */
+    public int size() {
+        expunge();
+        return map.size();
+    }
+
+    // Internal ***************************************************************
+
+    private void expunge() {
+        Reference<? extends T> ref;
+        while ((ref = queue.poll()) != null) {
+            map.remove(ref, ref);
+        }
+    }
+
+    private static final class Entry<T> extends WeakReference<T> {
+        private final int hash;
+
+        Entry(T referent, ReferenceQueue<T> queue) {
+            super(referent, queue);
+            this.hash = referent.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            T referent = get();
+            if (referent == null) {
+                // Collected entries only equal themselves
+                return false;
+            }
+            if (obj instanceof Entry<?>) {
+                return referent.equals(((Entry<?>) obj).get());
+            }
+            if (obj instanceof Lookup) {
+                return referent.equals(((Lookup) obj).item);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Strong key to look up the entry of an equal instance.
+     */
+    private static final class Lookup {
+        private final Object item;
+
+        Lookup(Object item) {
+            this.item = item;
+        }
+
+        @Override
+        public int hashCode() {
+            return item.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Entry<?>) {
+                Object referent = ((Entry<?>) obj).get();
+                return referent != null && item.equals(referent);
+            }
+            return obj instanceof Lookup && item.equals(((Lookup) obj).item);
+        }
+    }
+}
@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder.util.logging;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
@@ -26,6 +27,8 @@ import java.net.UnknownHostException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.logging.FileHandler;
@@ -34,6 +37,7 @@ import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
 
 import javax.swing.text.StyledDocument;
 
@@ -43,6 +47,8 @@ import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PreferencesEntry;
 import de.dal33t.powerfolder.util.PathUtils;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.handlers.AsyncHandler;
+import de.dal33t.powerfolder.util.logging.handlers.AsyncHandler.OverflowPolicy;
 import de.dal33t.powerfolder.util.logging.handlers.BufferedHandler;
 import de.dal33t.powerfolder.util.logging.handlers.ConsoleHandler;
 import de.dal33t.powerfolder.util.logging.handlers.DocumentHandler;
@@ -54,6 +60,10 @@ import de.dal33t.powerfolder.util.logging.handlers.DocumentHandler;
  * This allows Logger.isLoggable() to optimize based on root logging level. Root
  * logging level is never set above SEVERE, so that runtime exceptions get
  * handled.
+ * <p>
+ * With {@link #setAsyncLogging(boolean, OverflowPolicy)} the file and document
+ * handlers are wrapped into an {@link AsyncHandler}, so the logging threads
+ * don't format and write themselves.
  */
 public class LoggingManager {
 
@@ -74,7 +84,16 @@ public class LoggingManager {
     private static final BufferedHandler bufferedHandler;
 
     /** The file handler */
-    private static FileHandler fileHandler;
+    private static Handler fileHandler;
+
+    /** The handler registered for the document handler at the root logger */
+    private static Handler documentRootHandler;
+
+    /** Write file and document logging asynchronously */
+    private static boolean async;
+
+    /** What to do if the async buffer is full */
+    private static OverflowPolicy asyncPolicy = OverflowPolicy.BLOCK;
 
     /** The syslog handler */
     private static SyslogHandler syslogHandler;
@@ -213,7 +232,9 @@ public class LoggingManager {
      */
     public static void setDocumentLogging(Level level, Controller controller) {
         if (documentLoggingLevel == null) {
-            getRootLogger().addHandler(documentHandler);
+            documentRootHandler = async ? new AsyncHandler(documentHandler,
+                asyncPolicy) : documentHandler;
+            getRootLogger().addHandler(documentRootHandler);
         }
         documentLoggingLevel = level;
         documentHandler.setLevel(level);
@@ -223,6 +244,31 @@ public class LoggingManager {
         setMinimumBaseLoggingLevel();
     }
 
+    /**
+     * Write file and document logging on a background thread. Only affects
+     * handlers created afterwards, so call before
+     * {@link #setFileLogging(Level, boolean)} and
+     * {@link #setDocumentLogging(Level, Controller)}.
+     *
+     * @param enabled
+     * @param policy
+     *            what to do if the logging threads are faster than the writer.
+     */
+    public static void setAsyncLogging(boolean enabled, OverflowPolicy policy)
+    {
+        Reject.ifNull(policy, "Policy is null");
+        async = enabled;
+        asyncPolicy = policy;
+    }
+
+    /**
+     * @return true if file and document logging is written on a background
+     *         thread.
+     */
+    public static boolean isAsyncLogging() {
+        return async;
+    }
+
     /**
      * Set the file handler level. Add handler to root logger if this is the
      * first time. Create the file handler inside a synchronized block to stop
@@ -310,11 +356,12 @@ public class LoggingManager {
                 fileLoggingFileName = getDebugDir()
                     .resolve(PathUtils.removeInvalidFilenameChars(logFilename))
                     .toAbsolutePath().toString();
-                fileHandler = new FileHandler(fileLoggingFileName, true);
-                fileHandler.setFormatter(new LoggingFormatter(!fileRotate));
+                if (fileHandler != null) {
+                    getRootLogger().removeHandler(fileHandler);
+                }
+                fileHandler = createFileHandler(Paths.get(fileLoggingFileName),
+                    logLevel, !fileRotate, async ? asyncPolicy : null);
                 getRootLogger().addHandler(fileHandler);
-                fileHandler.setFilter(DEFAULT_FILTER);
-                fileHandler.setLevel(logLevel);
             } catch (IOException e) {
                 // Duh. No file logger.
                 e.printStackTrace();
@@ -322,6 +369,40 @@ public class LoggingManager {
         }
     }
 
+    /**
+     * Creates a handler that appends to the given file.
+     *
+     * @param file
+     * @param level
+     * @param showDate
+     *            to log the date, not just the time.
+     * @param asyncPolicy
+     *            the policy to write asynchronously or null to write on the
+     *            logging thread.
+     * @return the handler.
+     * @throws IOException
+     */
+    public static Handler createFileHandler(Path file, Level level,
+        boolean showDate, OverflowPolicy asyncPolicy) throws IOException
+    {
+        Handler handler;
+        if (asyncPolicy != null) {
+            // The writer thread flushes once per batch.
+            handler = new StreamHandler(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND), 64 * 1024),
+                new LoggingFormatter(showDate));
+        } else {
+            handler = new FileHandler(file.toString(), true);
+            handler.setFormatter(new LoggingFormatter(showDate));
+        }
+        handler.setFilter(DEFAULT_FILTER);
+        handler.setLevel(level);
+        return asyncPolicy != null
+            ? new AsyncHandler(handler, asyncPolicy)
+            : handler;
+    }
+
     /**
      * @return the document handler document for display in the debug panel.
      */
@@ -508,6 +589,7 @@ public class LoggingManager {
         if (fileLoggingLevel != null && fileHandler != null) {
 
             // Close off the old one first.
+            getRootLogger().removeHandler(fileHandler);
             fileHandler.flush();
             fileHandler.close();
 
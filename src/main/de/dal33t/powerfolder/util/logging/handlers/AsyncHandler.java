@@ -0,0 +1,289 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.logging.handlers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Handler that decouples the logging threads from a slow delegate handler.
+ * <p>
+ * {@link #publish(LogRecord)} only puts the record into a bounded lock-free
+ * ring buffer. A single writer thread drains the buffer, passes the records
+ * in batches to the delegate and flushes the delegate once per batch. If the
+ * buffer is full the {@link OverflowPolicy} decides whether the logging
+ * thread waits or the record is dropped. Dropped records are counted and
+ * reported to the delegate as a warning.
+ * <p>
+ * Level and filter are those of the delegate and are checked on the logging
+ * thread. The source class and method of the record are not inferred.
+ */
+public class AsyncHandler extends Handler {
+
+    /**
+     * What to do with a record if the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the writer has made room.
+         */
+        BLOCK,
+        /**
+         * Discard the record.
+         */
+        DROP
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS
+        .toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS
+        .toNanos(50);
+
+    private final Handler delegate;
+    private final OverflowPolicy policy;
+
+    // Ring buffer. Producers claim a sequence number on tail and publish the
+    // record into the slot afterwards. The writer consumes in sequence order
+    // and treats an empty slot as "claimed but not yet published".
+    private final AtomicReferenceArray<LogRecord> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+    // Dropped records already reported. Only accessed by the writer.
+    private long droppedReported;
+    private final Thread writer;
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    /**
+     * @param delegate
+     *            the handler to write to.
+     * @param capacity
+     *            the number of records to buffer, rounded up to a power of
+     *            two.
+     * @param policy
+     *            what to do if the buffer is full.
+     */
+    public AsyncHandler(Handler delegate, int capacity, OverflowPolicy policy)
+    {
+        Reject.ifNull(delegate, "Delegate is null");
+        Reject.ifNull(policy, "Policy is null");
+        Reject.ifTrue(capacity <= 0 || capacity > 1 << 20, "Illegal capacity "
+            + capacity);
+        this.delegate = delegate;
+        this.policy = policy;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<LogRecord>(size);
+        this.mask = size - 1;
+        this.writer = new Thread(this::drainLoop, "Async logging writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public AsyncHandler(Handler delegate, OverflowPolicy policy) {
+        this(delegate, DEFAULT_CAPACITY, policy);
+    }
+
+    // API ********************************************************************
+
+    /**
+     * @return the handler records are written to.
+     */
+    public Handler getDelegate() {
+        return delegate;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of records that are not yet written.
+     */
+    public int getPending() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return the total number of records dropped because the buffer was
+     *         full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        return delegate.isLoggable(record);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (Thread.currentThread() == writer) {
+            // Logged by the delegate itself. Don't wait for ourself.
+            delegate.publish(record);
+            return;
+        }
+        if (!offer(record)) {
+            dropped.increment();
+            return;
+        }
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Waits until all records published so far are written and flushes the
+     * delegate.
+     */
+    @Override
+    public void flush() {
+        if (Thread.currentThread() != writer) {
+            long target = tail.get();
+            while (head.get() < target && writer.isAlive()) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+        }
+        delegate.flush();
+    }
+
+    /**
+     * Writes the remaining records, stops the writer and closes the delegate.
+     */
+    @Override
+    public void close() throws SecurityException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    // Internal ***************************************************************
+
+    private boolean offer(LogRecord record) {
+        while (true) {
+            long t = tail.get();
+            if (t - head.get() > mask) {
+                if (policy == OverflowPolicy.DROP || closed) {
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                continue;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) t & mask, record);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves up to {@link #MAX_BATCH_SIZE} published records to the delegate.
+     *
+     * @return the number of records written.
+     */
+    private int drainBatch() {
+        long h = head.get();
+        int n = 0;
+        while (n < MAX_BATCH_SIZE) {
+            int index = (int) h & mask;
+            LogRecord record = slots.get(index);
+            if (record == null) {
+                // Empty or claimed but not yet published.
+                break;
+            }
+            slots.lazySet(index, null);
+            h++;
+            head.lazySet(h);
+            n++;
+            try {
+                delegate.publish(record);
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+        return n;
+    }
+
+    private void drainLoop() {
+        while (true) {
+            int n = drainBatch();
+            if (n > 0) {
+                reportDropped();
+                delegate.flush();
+                continue;
+            }
+            if (closed && head.get() == tail.get()) {
+                delegate.flush();
+                return;
+            }
+            writerIdle = true;
+            if (head.get() == tail.get() && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            } else if (head.get() != tail.get()) {
+                // Claimed slot not yet published. Give the producer time.
+                Thread.yield();
+            }
+            writerIdle = false;
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        long n = total - droppedReported;
+        if (n > 0) {
+            droppedReported = total;
+            LogRecord record = new LogRecord(Level.WARNING, "Dropped " + n
+                + " log records, logging buffer full");
+            record.setLoggerName(AsyncHandler.class.getName());
+            delegate.publish(record);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Monotonic counter, e.g. number of scanned files. Cheap to increment from
+ * many threads. Either maintained by {@link #add(long)} or read from a
+ * supplier on export, e.g. the total bytes transferred.
+ */
+public class Counter extends Metric {
+    private final LongAdder value = new LongAdder();
+    private final LongSupplier supplier;
+
+    Counter(String name, String help, LongSupplier supplier,
+        String... labels)
+    {
+        super(name, help, labels);
+        this.supplier = supplier;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * @param delta
+     *            the amount to add, must not be negative.
+     */
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        if (supplier != null) {
+            return supplier.getAsLong();
+        }
+        return value.sum();
+    }
+
+    @Override
+    public String getType() {
+        return "counter";
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Value that goes up and down. Either maintained by {@link #add(long)} or
+ * read from a supplier on export, e.g. the used heap.
+ */
+public class Gauge extends Metric {
+    private final LongAdder value = new LongAdder();
+    private final DoubleSupplier supplier;
+
+    Gauge(String name, String help, DoubleSupplier supplier,
+        String... labels)
+    {
+        super(name, help, labels);
+        this.supplier = supplier;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public double get() {
+        if (supplier != null) {
+            return supplier.getAsDouble();
+        }
+        return value.sum();
+    }
+
+    @Override
+    public String getType() {
+        return "gauge";
+    }
+}
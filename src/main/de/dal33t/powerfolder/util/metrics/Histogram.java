@@ -0,0 +1,212 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Distribution of values in fixed buckets, e.g. durations or sizes. Recording
+ * is lock free and does not allocate. Percentiles are estimated by the upper
+ * bound of the bucket they fall in.
+ */
+public class Histogram extends Metric {
+
+    /**
+     * Default bucket bounds: 1, 2, 5, 10, 20, 50 ... 5.000.000
+     */
+    public static final long[] DEFAULT_BOUNDS = exponentialBounds(5000000);
+
+    private final TimeUnit unit;
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param name
+     * @param help
+     * @param unit
+     *            the unit of the recorded values if durations, otherwise
+     *            null.
+     * @param bounds
+     *            the inclusive upper bounds of the buckets in ascending
+     *            order. Values above the last bound go into an overflow
+     *            bucket.
+     * @param labels
+     */
+    Histogram(String name, String help, TimeUnit unit, long[] bounds,
+        String... labels)
+    {
+        super(name, help, labels);
+        Reject.ifTrue(bounds.length == 0, "No bounds");
+        for (int i = 1; i < bounds.length; i++) {
+            Reject.ifFalse(bounds[i - 1] < bounds[i],
+                "Bounds not in ascending order");
+        }
+        this.unit = unit;
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param max
+     * @return bounds of 1, 2, 5, 10, 20, 50 ... up to max.
+     */
+    public static long[] exponentialBounds(long max) {
+        long[] tmp = new long[64];
+        int n = 0;
+        for (long decade = 1; decade <= max && decade > 0; decade *= 10) {
+            for (int f : new int[]{1, 2, 5}) {
+                if (decade * f <= max) {
+                    tmp[n++] = decade * f;
+                }
+            }
+        }
+        long[] result = new long[n];
+        System.arraycopy(tmp, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value
+     */
+    public void record(long value) {
+        int i = indexOf(value);
+        buckets[i].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records a duration. Converted into the unit of this histogram.
+     *
+     * @param nanos
+     *            the duration in nanoseconds.
+     */
+    public void recordNanos(long nanos) {
+        record(unit != null ? unit.convert(nanos, TimeUnit.NANOSECONDS) : nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given start.
+     *
+     * @param startNanos
+     *            the start as from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    private int indexOf(long value) {
+        int low = 0;
+        int high = bounds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (bounds[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the unit of durations or null if not a timer.
+     */
+    public TimeUnit getUnit() {
+        return unit;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the bucket bounds. Do not modify.
+     */
+    long[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return the counts per bucket incl. the overflow bucket, not
+     *         cumulative.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1, e.g. 0.99
+     * @return the estimated value at the quantile. The upper bound of the
+     *         bucket, but never more than the max recorded value. 0 if
+     *         empty.
+     */
+    public long getPercentile(double quantile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        long maxValue = getMax();
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(bounds[i], maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    @Override
+    public String getType() {
+        return "histogram";
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histograms of the same name, which differ in the value of one label, e.g.
+ * the encode time per message type. The histogram of a label value is
+ * created on first use.
+ */
+public class HistogramFamily {
+    private final MetricsRegistry registry;
+    private final String name;
+    private final String help;
+    private final TimeUnit unit;
+    private final String labelName;
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    HistogramFamily(MetricsRegistry registry, String name, String help,
+        TimeUnit unit, String labelName)
+    {
+        this.registry = registry;
+        this.name = name;
+        this.help = help;
+        this.unit = unit;
+        this.labelName = labelName;
+    }
+
+    /**
+     * @param labelValue
+     * @return the histogram for the label value.
+     */
+    public Histogram get(String labelValue) {
+        Histogram histogram = histograms.get(labelValue);
+        if (histogram != null) {
+            return histogram;
+        }
+        histogram = registry.histogram(name, help, unit, labelName,
+            labelValue);
+        Histogram existing = histograms.putIfAbsent(labelValue, histogram);
+        return existing != null ? existing : histogram;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.Arrays;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Base of all metrics of the {@link MetricsRegistry}. A metric is identified
+ * by its name and labels.
+ */
+public abstract class Metric {
+    private final String name;
+    private final String help;
+    private final String[] labels;
+
+    /**
+     * @param name
+     *            the name, e.g. "pf_folder_scan_ms".
+     * @param help
+     *            a short description.
+     * @param labels
+     *            label names and values in turns, e.g. "type", "FileList".
+     */
+    protected Metric(String name, String help, String... labels) {
+        Reject.ifBlank(name, "Name is blank");
+        Reject.ifFalse(labels.length % 2 == 0,
+            "Labels must be name/value pairs: " + Arrays.toString(labels));
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * @return label names and values in turns.
+     */
+    public String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return the type as used in the Prometheus text format.
+     */
+    public abstract String getType();
+
+    /**
+     * @return the key of the metric in the registry: Name and label values.
+     */
+    public String getKey() {
+        return key(name, labels);
+    }
+
+    static String key(String name, String[] labels) {
+        if (labels.length == 0) {
+            return name;
+        }
+        StringBuilder b = new StringBuilder(name);
+        for (int i = 1; i < labels.length; i += 2) {
+            b.append('.').append(labels[i]);
+        }
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getType() + " " + getKey();
+    }
+}
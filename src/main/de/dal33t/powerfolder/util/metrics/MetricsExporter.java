@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.StringUtils;
+
+/**
+ * Publishes the {@link MetricsRegistry} of the controller over JMX and
+ * periodically writes it into a file.
+ *
+ * @see ConfigurationEntry#METRICS_JMX_ENABLED
+ * @see ConfigurationEntry#METRICS_DUMP_FILE
+ */
+public class MetricsExporter extends PFComponent {
+    private ObjectName objectName;
+    private Path dumpFile;
+    private ScheduledFuture<?> dumpTask;
+
+    public MetricsExporter(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * Registers the gauges of the core components, the MBean and starts
+     * writing the metrics file.
+     */
+    public void start() {
+        registerGauges();
+        if (ConfigurationEntry.METRICS_JMX_ENABLED
+            .getValueBoolean(getController()))
+        {
+            registerMBean();
+        }
+        String file = ConfigurationEntry.METRICS_DUMP_FILE
+            .getValue(getController());
+        if (StringUtils.isNotBlank(file)) {
+            Path path = Paths.get(file);
+            if (!path.isAbsolute()) {
+                path = Controller.getMiscFilesLocation().resolve(path);
+            }
+            dumpFile = path;
+            long interval = ConfigurationEntry.METRICS_DUMP_INTERVAL
+                .getValueInt(getController()) * 1000L;
+            dumpTask = getController().scheduleAndRepeat(this::dump,
+                interval, interval);
+            logInfo("Writing metrics to " + dumpFile + " every "
+                + interval / 1000 + "s");
+        }
+    }
+
+    public void shutdown() {
+        if (dumpTask != null) {
+            dumpTask.cancel(false);
+            dumpTask = null;
+            dump();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+            } catch (Exception e) {
+                logFine("Unable to unregister metrics MBean. " + e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void registerGauges() {
+        final Controller c = getController();
+        MetricsRegistry metrics = c.getMetrics();
+        metrics.gauge("pf_jvm_heap_used_bytes", "Used heap memory",
+            () -> Runtime.getRuntime().totalMemory()
+                - Runtime.getRuntime().freeMemory());
+        metrics.gauge("pf_nodes_connected", "Connected nodes",
+            () -> c.getNodeManager().countConnectedNodes());
+        metrics.gauge("pf_folders", "Joined folders",
+            () -> c.getFolderRepository().getFoldersCount());
+        metrics.counter("pf_transfer_bytes", "Bytes transferred incl. protocol",
+            () -> c.getTransferManager().getTotalUploadTrafficCounter()
+                .getBytesTransferred(), "direction", "up");
+        metrics.counter("pf_transfer_bytes", "Bytes transferred incl. protocol",
+            () -> c.getTransferManager().getTotalDownloadTrafficCounter()
+                .getBytesTransferred(), "direction", "down");
+        metrics.gauge("pf_transfer_kbs", "Current file transfer rate in KB/s",
+            () -> c.getTransferManager().getUploadCounter()
+                .calculateCurrentKBS(), "direction", "up");
+        metrics.gauge("pf_transfer_kbs", "Current file transfer rate in KB/s",
+            () -> c.getTransferManager().getDownloadCounter()
+                .calculateCurrentKBS(), "direction", "down");
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(
+                "de.dal33t.powerfolder:type=Metrics,name="
+                    + ObjectName.quote(getController().getConfigName()));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(
+                new MetricsMBean(getController().getMetrics()), name);
+            objectName = name;
+        } catch (Exception e) {
+            logWarning("Unable to register metrics MBean. " + e);
+        }
+    }
+
+    /**
+     * Writes the metrics file. Written into a temp file first, so readers
+     * never see a partial file.
+     */
+    void dump() {
+        Path file = dumpFile;
+        if (file == null) {
+            return;
+        }
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (Writer out = Files.newBufferedWriter(tempFile,
+                StandardCharsets.UTF_8))
+            {
+                if ("text".equalsIgnoreCase(ConfigurationEntry.METRICS_DUMP_FORMAT
+                    .getValue(getController())))
+                {
+                    getController().getMetrics().writeText(out);
+                } else {
+                    getController().getMetrics().writePrometheus(out);
+                }
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            logWarning("Unable to write metrics to " + file + ". " + e);
+        }
+    }
+}
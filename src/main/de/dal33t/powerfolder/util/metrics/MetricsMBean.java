@@ -0,0 +1,129 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Publishes the metrics of a {@link MetricsRegistry} as read-only JMX
+ * attributes. Counters and gauges are one attribute each, histograms are
+ * published as count, sum, p50, p99 and max.
+ */
+public class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @return the current attribute values by attribute name.
+     */
+    Map<String, Object> getValues() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Metric metric : registry.getMetrics()) {
+            String key = metric.getKey();
+            if (metric instanceof Counter) {
+                values.put(key, ((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                values.put(key, ((Gauge) metric).get());
+            } else if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                values.put(key + ".count", h.getCount());
+                values.put(key + ".sum", h.getSum());
+                values.put(key + ".p50", h.getPercentile(0.5));
+                values.put(key + ".p99", h.getPercentile(0.99));
+                values.put(key + ".max", h.getMax());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException
+    {
+        Object value = getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Metrics are read-only: "
+            + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            Object value = values.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+        String[] signature)
+    {
+        throw new UnsupportedOperationException("No operations: "
+            + actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> values = getValues();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Metric metric = registry.get(entry.getKey());
+            String help = metric != null ? metric.getHelp() : null;
+            attrs[i++] = new MBeanAttributeInfo(entry.getKey(), entry
+                .getValue().getClass().getName(), help != null
+                ? help
+                : entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "PowerFolder metrics",
+            attrs, null, new MBeanOperationInfo[0], null);
+    }
+}
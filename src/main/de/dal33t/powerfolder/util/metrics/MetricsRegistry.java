@@ -0,0 +1,320 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Registry of the core metrics: Counters, gauges and histograms. One instance
+ * per {@link de.dal33t.powerfolder.Controller}.
+ * <p>
+ * Metrics are created on first request and shared afterwards, so callers may
+ * simply keep the returned metric in a field. The registry can be written in
+ * a plain text and the Prometheus text exposition format, and is published
+ * over JMX by {@link MetricsMBean}.
+ *
+ * @see MetricsExporter
+ */
+public class MetricsRegistry {
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private final ConcurrentMap<String, HistogramFamily> families = new ConcurrentHashMap<String, HistogramFamily>();
+
+    /**
+     * @param name
+     * @param help
+     * @param labels
+     *            label names and values in turns.
+     * @return the counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return register(new Counter(name, help, null, labels),
+            Counter.class);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param supplier
+     *            to read the value from on export. Must never decrease.
+     * @param labels
+     * @return a counter that reads its value from the supplier.
+     */
+    public Counter counter(String name, String help, LongSupplier supplier,
+        String... labels)
+    {
+        Reject.ifNull(supplier, "Supplier is null");
+        return register(new Counter(name, help, supplier, labels),
+            Counter.class);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param labels
+     * @return a gauge maintained by the caller.
+     */
+    public Gauge gauge(String name, String help, String... labels) {
+        return register(new Gauge(name, help, null, labels), Gauge.class);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param supplier
+     *            to read the value from on export.
+     * @param labels
+     * @return a gauge that reads its value from the supplier.
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier supplier,
+        String... labels)
+    {
+        Reject.ifNull(supplier, "Supplier is null");
+        return register(new Gauge(name, help, supplier, labels), Gauge.class);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param unit
+     *            the unit of durations or null if not a timer.
+     * @param labels
+     * @return the histogram with {@link Histogram#DEFAULT_BOUNDS}.
+     */
+    public Histogram histogram(String name, String help, TimeUnit unit,
+        String... labels)
+    {
+        return histogram(name, help, unit, Histogram.DEFAULT_BOUNDS, labels);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param unit
+     *            the unit of durations or null if not a timer.
+     * @param bounds
+     *            the bucket bounds.
+     * @param labels
+     * @return the histogram.
+     */
+    public Histogram histogram(String name, String help, TimeUnit unit,
+        long[] bounds, String... labels)
+    {
+        return register(new Histogram(name, help, unit, bounds, labels),
+            Histogram.class);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param unit
+     *            the unit of durations or null if not a timer.
+     * @param labelName
+     *            the label that differs between the histograms.
+     * @return the family of histograms.
+     */
+    public HistogramFamily histograms(String name, String help,
+        TimeUnit unit, String labelName)
+    {
+        HistogramFamily family = families.get(name);
+        if (family == null) {
+            family = new HistogramFamily(this, name, help, unit, labelName);
+            HistogramFamily existing = families.putIfAbsent(name, family);
+            if (existing != null) {
+                family = existing;
+            }
+        }
+        return family;
+    }
+
+    private <T extends Metric> T register(T metric, Class<T> type) {
+        Metric existing = metrics.putIfAbsent(metric.getKey(), metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + metric.getKey()
+                + " already registered as " + existing.getType());
+        }
+        return type.cast(existing);
+    }
+
+    /**
+     * @param key
+     *            the key as from {@link Metric#getKey()}.
+     * @return the metric or null if not registered.
+     */
+    public Metric get(String key) {
+        return metrics.get(key);
+    }
+
+    /**
+     * @param metric
+     *            the metric to remove.
+     */
+    public void remove(Metric metric) {
+        metrics.remove(metric.getKey(), metric);
+    }
+
+    /**
+     * @return all metrics sorted by key.
+     */
+    public List<Metric> getMetrics() {
+        List<Metric> list = new ArrayList<Metric>(metrics.values());
+        list.sort(Comparator.comparing(Metric::getKey));
+        return list;
+    }
+
+    public int size() {
+        return metrics.size();
+    }
+
+    // Export *****************************************************************
+
+    /**
+     * Writes all metrics in a human readable format. One line per metric.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeText(Writer out) throws IOException {
+        for (Metric metric : getMetrics()) {
+            out.write(metric.getKey());
+            out.write(' ');
+            if (metric instanceof Counter) {
+                out.write(String.valueOf(((Counter) metric).get()));
+            } else if (metric instanceof Gauge) {
+                out.write(format(((Gauge) metric).get()));
+            } else if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                out.write("count=" + h.getCount() + " sum=" + h.getSum()
+                    + " p50=" + h.getPercentile(0.5) + " p99="
+                    + h.getPercentile(0.99) + " max=" + h.getMax());
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Set<String> described = new HashSet<String>();
+        for (Metric metric : getMetrics()) {
+            String name = metric.getName();
+            if (described.add(name)) {
+                if (metric.getHelp() != null) {
+                    out.write("# HELP " + name + ' '
+                        + metric.getHelp().replace("\\", "\\\\")
+                            .replace("\n", "\\n") + '\n');
+                }
+                out.write("# TYPE " + name + ' ' + metric.getType() + '\n');
+            }
+            String labels = labels(metric.getLabels(), null, null);
+            if (metric instanceof Counter) {
+                out.write(name + labels + ' ' + ((Counter) metric).get()
+                    + '\n');
+            } else if (metric instanceof Gauge) {
+                out.write(name + labels + ' '
+                    + format(((Gauge) metric).get()) + '\n');
+            } else if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                long[] bounds = h.getBounds();
+                long[] counts = h.getBucketCounts();
+                long cumulative = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    cumulative += counts[i];
+                    String le = i < bounds.length
+                        ? String.valueOf(bounds[i])
+                        : "+Inf";
+                    out.write(name + "_bucket"
+                        + labels(metric.getLabels(), "le", le) + ' '
+                        + cumulative + '\n');
+                }
+                out.write(name + "_sum" + labels + ' ' + h.getSum() + '\n');
+                out.write(name + "_count" + labels + ' ' + cumulative + '\n');
+            }
+        }
+        out.flush();
+    }
+
+    private static String labels(String[] labels, String extraName,
+        String extraValue)
+    {
+        if (labels.length == 0 && extraName == null) {
+            return "";
+        }
+        StringBuilder b = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                b.append(',');
+            }
+            appendLabel(b, labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            if (labels.length > 0) {
+                b.append(',');
+            }
+            appendLabel(b, extraName, extraValue);
+        }
+        return b.append('}').toString();
+    }
+
+    private static void appendLabel(StringBuilder b, String name, String value)
+    {
+        b.append(name).append("=\"");
+        String v = String.valueOf(value);
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\\' || c == '"') {
+                b.append('\\').append(c);
+            } else if (c == '\n') {
+                b.append("\\n");
+            } else {
+                b.append(c);
+            }
+        }
+        b.append('"');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.US, "%.3f", value);
+    }
+}
@@ -38,10 +38,10 @@ public class EndMatchPattern extends AbstractPattern {
         super(patternStringArg);
         Reject.ifFalse(patternStringArg.lastIndexOf("*") == 0,
             "Pattern must start with * and should not contain any other stars");
-        matchLower = getPatternText().replaceAll("\\*", "").toLowerCase()
-            .toCharArray();
-        matchUpper = getPatternText().replaceAll("\\*", "").toUpperCase()
-            .toCharArray();
+        // Not getPatternText(): Overridden by OfficeTempFilesMatchPattern
+        String match = patternStringArg.trim().replaceAll("\\*", "");
+        matchLower = match.toLowerCase().toCharArray();
+        matchUpper = match.toUpperCase().toCharArray();
     }
 
     public boolean isMatch(String matchString) {
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.pattern;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Matches a text against many {@link Pattern}s at once.
+ * <p>
+ * All patterns are compiled into one automaton which reads the text once,
+ * independent of the number of patterns. '*' matches any text, all other
+ * characters match case-insensitive. The deterministic states are built
+ * lazily on first use and shared by all threads, so typical texts only walk
+ * over cached transitions.
+ * <p>
+ * The matching can be resumed: {@link #start()} returns the initial
+ * {@link State}, {@link State#next(CharSequence, int, int)} continues with
+ * more text. A caller can keep the state after a common prefix, e.g. the
+ * directory, and continue with the rest only.
+ * <p>
+ * Immutable and thread-safe.
+ */
+public final class PatternSet {
+
+    /**
+     * Maximum number of cached states. Beyond that, states are calculated on
+     * every transition.
+     */
+    private static final int MAX_STATES = 4096;
+
+    private static final int ASCII = 128;
+
+    private static final int STAR = -1;
+    private static final int END = -2;
+
+    private static final PatternSet EMPTY = new PatternSet(
+        new LinkedHashSet<String>());
+
+    private final Set<String> patternTexts;
+
+    /**
+     * The symbols of all patterns one after another. The folded character to
+     * match, {@link #STAR} or {@link #END} at the end of each pattern.
+     */
+    private final int[] symbols;
+    private final ConcurrentMap<Positions, State> states = new ConcurrentHashMap<Positions, State>();
+    private final State start;
+
+    private PatternSet(Set<String> patternTexts) {
+        this.patternTexts = patternTexts;
+        int n = 0;
+        for (String text : patternTexts) {
+            n += text.length() + 1;
+        }
+        symbols = new int[n];
+        int[] starts = new int[patternTexts.size()];
+        int i = 0;
+        int p = 0;
+        for (String text : patternTexts) {
+            starts[p++] = i;
+            for (int c = 0; c < text.length(); c++) {
+                char ch = text.charAt(c);
+                if (ch == '*') {
+                    // Collapse "**"
+                    if (i > 0 && symbols[i - 1] == STAR && c > 0) {
+                        continue;
+                    }
+                    symbols[i++] = STAR;
+                } else {
+                    symbols[i++] = fold(ch);
+                }
+            }
+            symbols[i++] = END;
+        }
+        PositionsBuilder builder = new PositionsBuilder(i);
+        for (int s : starts) {
+            builder.addClosure(s);
+        }
+        start = canonical(builder.build());
+    }
+
+    /**
+     * @param patterns
+     * @return the compiled set of the given patterns.
+     */
+    public static PatternSet compile(Collection<? extends Pattern> patterns) {
+        Reject.ifNull(patterns, "Patterns");
+        if (patterns.isEmpty()) {
+            return EMPTY;
+        }
+        Set<String> texts = new LinkedHashSet<String>(patterns.size());
+        for (Pattern pattern : patterns) {
+            texts.add(pattern.getPatternText());
+        }
+        return new PatternSet(texts);
+    }
+
+    /**
+     * @return true if no pattern is contained.
+     */
+    public boolean isEmpty() {
+        return patternTexts.isEmpty();
+    }
+
+    /**
+     * @return the number of patterns.
+     */
+    public int size() {
+        return patternTexts.size();
+    }
+
+    /**
+     * @return the state before any text has been read.
+     */
+    public State start() {
+        return start;
+    }
+
+    /**
+     * @param text
+     * @return true if any pattern matches the whole text.
+     */
+    public boolean isMatch(String text) {
+        return start.next(text, 0, text.length()).isMatch();
+    }
+
+    @Override
+    public String toString() {
+        return "PatternSet" + patternTexts;
+    }
+
+    /**
+     * The patterns that still can match after reading a text.
+     */
+    public final class State {
+        private final Positions positions;
+        private final boolean match;
+        private final boolean matchAll;
+        private final State[] ascii = new State[ASCII];
+        private volatile ConcurrentMap<Integer, State> other;
+
+        private State(Positions positions) {
+            this.positions = positions;
+            boolean m = false;
+            boolean ma = false;
+            for (int pos : positions.values) {
+                if (symbols[pos] == END) {
+                    m = true;
+                } else if (symbols[pos] == STAR && symbols[pos + 1] == END) {
+                    ma = true;
+                }
+            }
+            this.match = m || ma;
+            this.matchAll = ma;
+        }
+
+        /**
+         * @return true if a pattern matches the text read so far.
+         */
+        public boolean isMatch() {
+            return match;
+        }
+
+        /**
+         * @return true if a pattern matches the text read so far followed by
+         *         any text.
+         */
+        public boolean isMatchAll() {
+            return matchAll;
+        }
+
+        /**
+         * @return true if no pattern can match, whatever text follows.
+         */
+        public boolean isNoMatch() {
+            return positions.values.length == 0;
+        }
+
+        /**
+         * Continues reading.
+         *
+         * @param text
+         * @param from
+         *            index of the first character to read.
+         * @param to
+         *            index after the last character to read.
+         * @return the state after reading the characters.
+         */
+        public State next(CharSequence text, int from, int to) {
+            State state = this;
+            for (int i = from; i < to; i++) {
+                if (state.matchAll || state.isNoMatch()) {
+                    // Won't change anymore
+                    return state;
+                }
+                state = state.next(text.charAt(i));
+            }
+            return state;
+        }
+
+        /**
+         * @param c
+         * @return the state after reading the character.
+         */
+        public State next(char c) {
+            int f = fold(c);
+            State next;
+            if (f < ASCII) {
+                next = ascii[f];
+                if (next == null) {
+                    next = step(f);
+                    if (next.isCached()) {
+                        ascii[f] = next;
+                    }
+                }
+                return next;
+            }
+            ConcurrentMap<Integer, State> map = other;
+            if (map != null) {
+                next = map.get(f);
+                if (next != null) {
+                    return next;
+                }
+            }
+            next = step(f);
+            if (next.isCached()) {
+                if (map == null) {
+                    synchronized (this) {
+                        if (other == null) {
+                            other = new ConcurrentHashMap<Integer, State>(4);
+                        }
+                        map = other;
+                    }
+                }
+                map.put(f, next);
+            }
+            return next;
+        }
+
+        private State step(int f) {
+            PositionsBuilder builder = new PositionsBuilder(symbols.length);
+            for (int pos : positions.values) {
+                int symbol = symbols[pos];
+                if (symbol == STAR) {
+                    builder.addClosure(pos);
+                } else if (symbol == f) {
+                    builder.addClosure(pos + 1);
+                }
+            }
+            return canonical(builder.build());
+        }
+
+        private boolean isCached() {
+            return states.get(positions) == this;
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private State canonical(Positions positions) {
+        State state = states.get(positions);
+        if (state != null) {
+            return state;
+        }
+        state = new State(positions);
+        if (states.size() >= MAX_STATES) {
+            return state;
+        }
+        State existing = states.putIfAbsent(positions, state);
+        return existing != null ? existing : state;
+    }
+
+    private static int fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * Sorted positions in {@link PatternSet#symbols}.
+     */
+    private static final class Positions {
+        private final int[] values;
+        private final int hash;
+
+        Positions(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Positions
+                && Arrays.equals(values, ((Positions) obj).values);
+        }
+    }
+
+    private final class PositionsBuilder {
+        private final boolean[] contained;
+        private int[] values = new int[8];
+        private int size;
+
+        PositionsBuilder(int nSymbols) {
+            contained = new boolean[nSymbols];
+        }
+
+        /**
+         * Adds the position and the positions reachable without reading, i.e.
+         * behind a star which matches the empty text.
+         */
+        void addClosure(int pos) {
+            add(pos);
+            if (symbols[pos] == STAR) {
+                add(pos + 1);
+            }
+        }
+
+        private void add(int pos) {
+            if (contained[pos]) {
+                return;
+            }
+            contained[pos] = true;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = pos;
+        }
+
+        Positions build() {
+            int[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            return new Positions(result);
+        }
+    }
+}
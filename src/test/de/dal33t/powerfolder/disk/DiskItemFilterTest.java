@@ -115,4 +115,38 @@ public class DiskItemFilterTest extends TestCase {
         long took = System.currentTimeMillis() - start;
         System.err.println("Took " + took + "ms");
     }
+
+    public void testExcludedDirectory() {
+        DiskItemFilter filter = new DiskItemFilter();
+        FolderInfo folderInfo = new FolderInfo("foldername", "id");
+        filter.addPattern("archive/*");
+        filter.addPattern("*/node_modules/*");
+        filter.addPattern("*.bak");
+
+        assertTrue(filter.isExcludedDirectory("archive"));
+        assertTrue(filter.isExcludedDirectory("Archive/2018"));
+        assertTrue(filter.isExcludedDirectory("src/node_modules"));
+        assertFalse(filter.isExcludedDirectory("src"));
+        assertFalse(filter.isExcludedDirectory("src/archive"));
+        assertFalse(filter.isExcludedDirectory("old.bak"));
+
+        assertTrue(filter.isExcluded(FileInfoFactory.lookupInstance(
+            folderInfo, "archive", true)));
+        assertFalse(filter.isExcluded(FileInfoFactory.lookupInstance(
+            folderInfo, "src", true)));
+        assertTrue(filter.isExcluded("archive/2018/report.docx"));
+        assertTrue(filter.isExcluded("src/node_modules/lib/index.js"));
+        assertTrue(filter.isExcluded("src/data.BAK"));
+        assertFalse(filter.isExcluded("src/data.txt"));
+        assertFalse(filter.isExcluded("node_modules/index.js"));
+
+        // Cached directory states are dropped on change
+        filter.addPattern("src/*");
+        assertTrue(filter.isExcluded("src/data.txt"));
+        assertTrue(filter.isExcludedDirectory("src"));
+        filter.removePattern("src/*");
+        assertFalse(filter.isExcluded("src/data.txt"));
+        filter.removeAllPatterns();
+        assertFalse(filter.isExcluded("archive/2018/report.docx"));
+    }
 }
@@ -19,7 +19,14 @@
  */
 package de.dal33t.powerfolder.light;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
 
 import junit.framework.TestCase;
@@ -34,6 +41,63 @@ import de.dal33t.powerfolder.util.IdGenerator;
 
 public class FileInfoTest extends TestCase {
 
+    /**
+     * The files of {@link #createGoldenFiles()}, serialized as array by the
+     * {@link ObjectOutputStream} before {@link FileInfo} got the shared
+     * {@link DirectoryPrefix} and primitive size/date.
+     */
+    private static final String GOLDEN_SERIALIZED = ""
+        + "rO0ABXVyACdbTGRlLmRhbDMzdC5wb3dlcmZvbGRlci5saWdodC5GaWxlSW5mbzu4"
+        + "33xATc6l6QIAAHhwAAAAA3NyACRkZS5kYWwzM3QucG93ZXJmb2xkZXIubGlnaHQu"
+        + "RmlsZUluZm8AAAAAAAAAZAIAC1oAB2RlbGV0ZWRJAAd2ZXJzaW9uTAAIZmlsZU5h"
+        + "bWV0ABJMamF2YS9sYW5nL1N0cmluZztMAApmb2xkZXJJbmZvdAAoTGRlL2RhbDMz"
+        + "dC9wb3dlcmZvbGRlci9saWdodC9Gb2xkZXJJbmZvO0wABmhhc2hlc3EAfgADTAAQ"
+        + "bGFzdE1vZGlmaWVkRGF0ZXQAEExqYXZhL3V0aWwvRGF0ZTtMAAptb2RpZmllZEJ5"
+        + "dAAoTGRlL2RhbDMzdC9wb3dlcmZvbGRlci9saWdodC9NZW1iZXJJbmZvO0wAEW1v"
+        + "ZGlmaWVkQnlBY2NvdW50dAApTGRlL2RhbDMzdC9wb3dlcmZvbGRlci9saWdodC9B"
+        + "Y2NvdW50SW5mbztMAANvaWRxAH4AA0wABHNpemV0ABBMamF2YS9sYW5nL0xvbmc7"
+        + "TAAEdGFnc3EAfgADeHAAAAAAA3QAEGRpci9zdWIvZmlsZS50eHRzcgAmZGUuZGFs"
+        + "MzN0LnBvd2VyZm9sZGVyLmxpZ2h0LkZvbGRlckluZm8AAAAAAAAAZgIAAkwAAmlk"
+        + "cQB+AANMAARuYW1lcQB+AAN4cHQACWZvbGRlci1pZHQABkZvbGRlcnQABWhhc2gx"
+        + "c3IADmphdmEudXRpbC5EYXRlaGqBAUtZdBkDAAB4cHcIAAABXT73mAB4c3IAJmRl"
+        + "LmRhbDMzdC5wb3dlcmZvbGRlci5saWdodC5NZW1iZXJJbmZvAAAAAAAAAGQCAAda"
+        + "AAtpc0Nvbm5lY3RlZFoAC2lzU3VwZXJub2RlTAAOY29ubmVjdEFkZHJlc3N0ABxM"
+        + "amF2YS9uZXQvSW5ldFNvY2tldEFkZHJlc3M7TAACaWRxAH4AA0wAD2xhc3RDb25u"
+        + "ZWN0VGltZXEAfgAFTAAJbmV0d29ya0lkcQB+AANMAARuaWNrcQB+AAN4cAAAcHQA"
+        + "CW1lbWJlci1pZHB0AANuZXR0AARuaWNrc3IAJ2RlLmRhbDMzdC5wb3dlcmZvbGRl"
+        + "ci5saWdodC5BY2NvdW50SW5mbwAAAAAAAABkAgADTAALZGlzcGxheU5hbWVxAH4A"
+        + "A0wAA29pZHEAfgADTAAIdXNlcm5hbWVxAH4AA3hwcHQAC2FjY291bnQtb2lkdAAQ"
+        + "dXNlckBleGFtcGxlLmNvbXQABG9pZDFzcgAOamF2YS5sYW5nLkxvbmc7i+SQzI8j"
+        + "3wIAAUoABXZhbHVleHIAEGphdmEubGFuZy5OdW1iZXKGrJUdC5TgiwIAAHhwAAAA"
+        + "AAAABNJ0AAR0YWcxc3IAKWRlLmRhbDMzdC5wb3dlcmZvbGRlci5saWdodC5EaXJl"
+        + "Y3RvcnlJbmZvAAAAAAAAAGQCAAB4cQB+AAIBAAAAAnQAB2Rpci9zdWJxAH4ADHBz"
+        + "cQB+ABB3CAAAAUX2gLAAeHEAfgAUcHBzcQB+AB0AAAAAAAAAAHBzcQB+AAIAAAAA"
+        + "AHQACHJvb3QuYmlucQB+AAxwc3EAfgAQdwgAAAAAAAAAAHhwcHBxAH4AJXA=";
+
+    /**
+     * {@link #createGoldenFiles()} written by
+     * {@link FileInfo#writeExternal(java.io.ObjectOutput)}.
+     */
+    private static final String GOLDEN_EXTERNAL = ""
+        + "rO0ABXoAAAFyAAAAAAAAAAAAAABlABBkaXIvc3ViL2ZpbGUudHh0AAAAAAAABNIB"
+        + "AAAAAAAAAGQACW1lbWJlci1pZAAEbmljawEAA25ldAD//////////wAAAAABXT73"
+        + "mAAAAAADAAEAAAAAAAAAZAAJZm9sZGVyLWlkAAZGb2xkZXIBAARvaWQxAQAFaGFz"
+        + "aDEBAAR0YWcxAQAAAAAAAABkAAthY2NvdW50LW9pZAAQdXNlckBleGFtcGxlLmNv"
+        + "bQAAAAABAAAAAAAAAGQAB2Rpci9zdWIAAAAAAAAAAAEAAAAAAAAAZAAJbWVtYmVy"
+        + "LWlkAARuaWNrAQADbmV0AP//////////AAAAAAFF9oCwAAAAAAIBAQAAAAAAAABk"
+        + "AAlmb2xkZXItaWQABkZvbGRlcgAAAAAAAAAAAAAAZAAIcm9vdC5iaW4AAAAAAAAA"
+        + "AAAAAAAAAAAAAAAAAAAAAQAAAAAAAABkAAlmb2xkZXItaWQABkZvbGRlcg==";
+
+    /**
+     * {@link #createGoldenFiles()} written by {@link FileInfoCodec}.
+     */
+    private static final String GOLDEN_COMPACT = ""
+        + "rO0ABXfCAQQ8ABBkaXIvc3ViL2ZpbGUudHh0pBMGgOC876dXAQAAAAAAAABkAAlt"
+        + "ZW1iZXItaWQABG5pY2sBAANuZXQA//////////8AAAEAAAAAAAAAZAALYWNjb3Vu"
+        + "dC1vaWQAEHVzZXJAZXhhbXBsZS5jb20AAQAAAAAAAABkAAlmb2xkZXItaWQABkZv"
+        + "bGRlcgRvaWQxBWhhc2gxBHRhZzEjBwAABP+ft4fpBQIAAiAACHJvb3QuYmluAAD/"
+        + "v4XovlEAAAI=";
+
     public void testRenameRelativeFileName() throws Exception {
 
         // Check root level file name change.
@@ -109,6 +173,234 @@ public class FileInfoTest extends TestCase {
         testAssertEquals(fInfo, copy);
     }
 
+    public void testSharedDirectoryPrefix() {
+        FolderInfo foInfo = new FolderInfo("Folder", IdGenerator.makeFolderId());
+        FileInfo a = FileInfoFactory.lookupInstance(foInfo, "dir/sub/a.txt");
+        FileInfo b = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/sub/b.txt", null, 10, null, null, new Date(), 1, null, false,
+            null);
+        FileInfo root = FileInfoFactory.lookupInstance(foInfo, "root.txt");
+
+        assertEquals("dir/sub/a.txt", a.getRelativeName());
+        assertEquals("a.txt", a.getFilenameOnly());
+        assertEquals("dir/sub/b.txt", b.getRelativeName());
+        assertEquals("root.txt", root.getRelativeName());
+        assertEquals("root.txt", root.getFilenameOnly());
+        assertEquals("dir/sub", a.getDirectory().getRelativeName());
+        assertTrue(root.getDirectory().isBaseDirectory());
+        // Shared from the second consecutive file of a directory on
+        assertNull(DirectoryPrefix.get("other/c.txt", 5));
+        assertNull(DirectoryPrefix.get("dir/sub/c.txt", 7));
+        DirectoryPrefix prefix = DirectoryPrefix.get("dir/sub/d.txt", 7);
+        assertEquals("dir/sub", prefix.getPath());
+        assertSame(prefix, DirectoryPrefix.get("dir/sub/e.txt", 7));
+
+        // Full and split relative names
+        FileInfo full = FileInfoFactory.lookupInstance(foInfo, "x/y/b.txt");
+        FileInfo split = FileInfoFactory.lookupInstance(foInfo, "x/y/b.txt");
+        FileInfo split2 = FileInfoFactory.lookupInstance(foInfo, "x/y/c.txt");
+        assertEquals(full, split);
+        assertEquals(full.hashCode(), split.hashCode());
+        assertFalse(full.equals(split2));
+        assertEquals("b.txt", full.getFilenameOnly());
+        assertEquals("b.txt", split.getFilenameOnly());
+        assertEquals("x/y", full.getDirectory().getRelativeName());
+        assertEquals("x/y", split.getDirectory().getRelativeName());
+        // Joined once
+        String splitName = split.getRelativeName();
+        assertEquals("x/y/b.txt", splitName);
+        assertSame(splitName, split.getRelativeName());
+        if (!FileInfo.IGNORE_CASE) {
+            assertEquals("x/y/b.txt".hashCode() + foInfo.hashCode(),
+                split.hashCode());
+        }
+
+        // Empty segments are kept
+        FileInfo odd = FileInfoFactory.lookupInstance(foInfo, "dir//x");
+        assertEquals("dir//x", odd.getRelativeName());
+        assertFalse(odd.equals(FileInfoFactory.lookupInstance(foInfo, "dir/x")));
+
+        FileInfo other = FileInfoFactory.lookupInstance(foInfo,
+            "DIR/sub/A.txt");
+        FileInfo otherSplit = FileInfoFactory.lookupInstance(foInfo,
+            "DIR/sub/A.txt");
+        assertEquals(FileInfo.IGNORE_CASE, a.equals(otherSplit));
+        assertEquals(FileInfo.IGNORE_CASE,
+            a.hashCode() == otherSplit.hashCode());
+        assertEquals(FileInfo.IGNORE_CASE, a.equals(other));
+        assertEquals(FileInfo.IGNORE_CASE, a.hashCode() == other.hashCode());
+        assertFalse(a.equals(FileInfoFactory.lookupInstance(foInfo,
+            "dir/a.txt")));
+        assertFalse(a.equals(FileInfoFactory.lookupInstance(foInfo, "a.txt")));
+        assertEquals(a, FileInfoFactory.lookupInstance(foInfo,
+            new String("dir/sub/a.txt")));
+    }
+
+    public void testLookupInstance() {
+        FolderInfo foInfo = new FolderInfo("Folder", IdGenerator.makeFolderId());
+        FileInfo lookup = FileInfoFactory.lookupInstance(foInfo, "a/b.txt");
+        assertTrue(lookup.isLookupInstance());
+        assertNull(lookup.getModifiedDate());
+
+        FileInfo fInfo = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "a/b.txt", null, 0, null, null, new Date(0), 0, null, false, null);
+        assertFalse(fInfo.isLookupInstance());
+        assertEquals(0, fInfo.getSize());
+        assertEquals(new Date(0), fInfo.getModifiedDate());
+        assertEquals(0, fInfo.getModifiedTime());
+        // Defensive copy
+        fInfo.getModifiedDate().setTime(4711);
+        assertEquals(0, fInfo.getModifiedTime());
+    }
+
+    public void testSerializedFormCompatible() throws IOException,
+        ClassNotFoundException
+    {
+        FileInfo[] expected = createGoldenFiles();
+
+        byte[] golden = Base64.getDecoder().decode(GOLDEN_SERIALIZED);
+        FileInfo[] files = (FileInfo[]) new ObjectInputStream(
+            new ByteArrayInputStream(golden)).readObject();
+        assertGoldenFiles(expected, files);
+
+        // And back. The stream is different, because of writeObject, but
+        // readable by the old fields.
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bOut);
+        out.writeObject(files);
+        out.close();
+        FileInfo[] copy = (FileInfo[]) new ObjectInputStream(
+            new ByteArrayInputStream(bOut.toByteArray())).readObject();
+        assertGoldenFiles(expected, copy);
+
+        // Externalized and compact form have to stay byte identical
+        bOut = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(bOut);
+        for (FileInfo fInfo : expected) {
+            fInfo.writeExternal(out);
+        }
+        out.close();
+        assertTrue(Arrays.equals(Base64.getDecoder().decode(GOLDEN_EXTERNAL),
+            bOut.toByteArray()));
+
+        bOut = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(bOut);
+        FileInfoCodec.writeFiles(out, expected);
+        out.close();
+        assertTrue(Arrays.equals(Base64.getDecoder().decode(GOLDEN_COMPACT),
+            bOut.toByteArray()));
+        FileInfo[] compact = FileInfoCodec.readFiles(new ObjectInputStream(
+            new ByteArrayInputStream(Base64.getDecoder().decode(
+                GOLDEN_COMPACT))));
+        assertGoldenFiles(expected, compact);
+    }
+
+    /**
+     * Lengths read from the stream must not be allocated blindly.
+     */
+    public void testCompactRejectsIllegalLengths() throws Exception {
+        // Number of files
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bOut);
+        out.writeByte(1);
+        FileInfoCodec.writeVarLong(out, Integer.MAX_VALUE);
+        out.close();
+        try {
+            FileInfoCodec.readFiles(new ObjectInputStream(
+                new ByteArrayInputStream(bOut.toByteArray())));
+            fail("Illegal number of files accepted");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+
+        // Length of the name
+        bOut = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(bOut);
+        out.writeByte(1);
+        FileInfoCodec.writeVarLong(out, 2);
+        out.writeByte(0);
+        FileInfoCodec.writeVarLong(out, 0);
+        FileInfoCodec.writeVarLong(out, Integer.MAX_VALUE);
+        out.close();
+        try {
+            FileInfoCodec.readFiles(new ObjectInputStream(
+                new ByteArrayInputStream(bOut.toByteArray())));
+            fail("Illegal string length accepted");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+    }
+
+    /**
+     * A varint of 10 bytes decodes to a negative value.
+     */
+    public void testCompactRejectsNegativeLengths() throws Exception {
+        // Number of files
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bOut);
+        out.writeByte(1);
+        FileInfoCodec.writeVarLong(out, -1L);
+        out.close();
+        assertCorrupted(bOut.toByteArray());
+
+        // Name prefix
+        bOut = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(bOut);
+        out.writeByte(1);
+        FileInfoCodec.writeVarLong(out, 2);
+        out.writeByte(0);
+        FileInfoCodec.writeVarLong(out, -1L);
+        FileInfoCodec.writeVarLong(out, 0);
+        out.close();
+        assertCorrupted(bOut.toByteArray());
+
+        // Length of the name
+        bOut = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(bOut);
+        out.writeByte(1);
+        FileInfoCodec.writeVarLong(out, 2);
+        out.writeByte(0);
+        FileInfoCodec.writeVarLong(out, 0);
+        FileInfoCodec.writeVarLong(out, Long.MIN_VALUE);
+        out.close();
+        assertCorrupted(bOut.toByteArray());
+    }
+
+    private static void assertCorrupted(byte[] data) throws Exception {
+        try {
+            FileInfoCodec.readFiles(new ObjectInputStream(
+                new ByteArrayInputStream(data)));
+            fail("Malformed input accepted");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+    }
+
+    private static FileInfo[] createGoldenFiles() {
+        FolderInfo foInfo = new FolderInfo("Folder", "folder-id");
+        MemberInfo mInfo = new MemberInfo("nick", "member-id", "net");
+        AccountInfo aInfo = new AccountInfo("account-oid", "user@example.com");
+        return new FileInfo[]{
+            FileInfoFactory.unmarshallExistingFile(foInfo, "dir/sub/file.txt",
+                "oid1", 1234L, mInfo, aInfo, new Date(1500000000000L), 3,
+                "hash1", false, "tag1"),
+            FileInfoFactory.unmarshallDeletedFile(foInfo, "dir/sub", null,
+                mInfo, null, new Date(1400000000000L), 2, null, true, null),
+            FileInfoFactory.unmarshallExistingFile(foInfo, "root.bin", null,
+                0L, null, null, new Date(0L), 0, null, false, null)};
+    }
+
+    private void assertGoldenFiles(FileInfo[] expected, FileInfo[] files) {
+        assertEquals(expected.length, files.length);
+        for (int i = 0; i < expected.length; i++) {
+            testAssertEquals(expected[i], files[i]);
+            assertEquals(expected[i].isDiretory(), files[i].isDiretory());
+            assertEquals(expected[i].isDeleted(), files[i].isDeleted());
+            assertEquals(expected[i].getModifiedByAccount(),
+                files[i].getModifiedByAccount());
+        }
+    }
+
     private void testAssertEquals(FileInfo fInfo, FileInfo copy) {
         // Test
         assertEquals(fInfo, copy);
@@ -27,11 +27,13 @@ import static org.junit.Assert.fail;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.util.Format;
 
 public class AccountTest {
@@ -276,4 +278,142 @@ public class AccountTest {
         assertEquals(email3, emails.get(2));
     }
     
+    @Test
+    public void testPermissionIndex() {
+        // 1. Arrange
+        FolderInfo foInfo1 = new FolderInfo("Folder1", "id1");
+        FolderInfo foInfo2 = new FolderInfo("Folder2", "id2");
+        FolderInfo foInfo3 = new FolderInfo("Folder3", "id3");
+        Group group = new Group("testGroup");
+        Account account = new Account();
+        account.grant(FolderPermission.read(foInfo1),
+            FolderPermission.owner(foInfo2));
+        account.addGroup(group);
+
+        // 3. Assert
+        assertTrue(account.hasPermission(FolderPermission.read(foInfo1)));
+        assertFalse(account.hasPermission(FolderPermission.readWrite(foInfo1)));
+        assertTrue(account.hasPermission(FolderPermission.admin(foInfo2)));
+        assertFalse(account.hasPermission(FolderPermission.read(foInfo3)));
+        assertEquals(AccessMode.OWNER, account.getAllowedAccess(foInfo2));
+        assertEquals(FolderPermission.read(foInfo1),
+            account.getPermissionFor(foInfo1));
+        assertTrue(account.hasAnyFolderAdmin());
+        assertEquals(2, account.getFolders().size());
+        assertEquals(1, account.getFoldersCharged().size());
+
+        // 2. Action: Upgrade and revoke
+        account.grant(FolderPermission.admin(foInfo1));
+        account.revoke(FolderPermission.owner(foInfo2));
+
+        // 3. Assert
+        assertEquals(AccessMode.ADMIN, account.getAllowedAccess(foInfo1));
+        assertEquals(AccessMode.NO_ACCESS, account.getAllowedAccess(foInfo2));
+        assertEquals(1, account.getPermissions().size());
+        assertEquals(0, account.getFoldersCharged().size());
+
+        // 2. Action: Change the group after the index was built
+        group.grant(FolderPermission.readWrite(foInfo3));
+
+        // 3. Assert
+        assertTrue(account.hasPermission(FolderPermission.read(foInfo3)));
+        assertEquals(2, account.getFolders().size());
+
+        // 2. Action
+        account.removeGroup(group);
+        account.revokeAllFolderPermission();
+
+        // 3. Assert
+        assertFalse(account.hasPermission(FolderPermission.read(foInfo3)));
+        assertFalse(account.hasPermission(FolderPermission.read(foInfo1)));
+        assertFalse(account.hasAnyFolderAdmin());
+        assertTrue(account.getFolders().isEmpty());
+    }
+    @Test
+    public void testPermissionIndexLikeLinearScan() {
+        // 1. Arrange
+        Random random = new Random(4711);
+        FolderInfo[] folders = new FolderInfo[20];
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = new FolderInfo("Folder" + i, "id" + i);
+        }
+        Group[] groups = {new Group("group1"), new Group("group2")};
+        Account account = new Account();
+        account.addGroup(groups[0]);
+
+        for (int n = 0; n < 2000; n++) {
+            // 2. Action: Random change
+            Permission p = randomPermission(random, folders);
+            switch (random.nextInt(6)) {
+                case 0 :
+                case 1 :
+                    account.grant(p);
+                    break;
+                case 2 :
+                    account.revoke(p);
+                    break;
+                case 3 :
+                    groups[random.nextInt(groups.length)].grant(p);
+                    break;
+                case 4 :
+                    groups[random.nextInt(groups.length)].revoke(p);
+                    break;
+                default :
+                    Group g = groups[random.nextInt(groups.length)];
+                    if (random.nextBoolean()) {
+                        account.addGroup(g);
+                    } else {
+                        account.removeGroup(g);
+                    }
+            }
+
+            // 3. Assert
+            for (int i = 0; i < 5; i++) {
+                Permission check = randomPermission(random, folders);
+                assertEquals(check.toString(), hasPermissionLinear(account,
+                    groups, check), account.hasPermission(check));
+            }
+        }
+    }
+
+    private static Permission randomPermission(Random random,
+        FolderInfo[] folders)
+    {
+        FolderInfo foInfo = folders[random.nextInt(folders.length)];
+        switch (random.nextInt(7)) {
+            case 0 :
+                return FolderPermission.read(foInfo);
+            case 1 :
+                return FolderPermission.readWrite(foInfo);
+            case 2 :
+                return FolderPermission.admin(foInfo);
+            case 3 :
+                return FolderPermission.owner(foInfo);
+            case 4 :
+                return FolderCreatePermission.INSTANCE;
+            case 5 :
+                return ChangePreferencesPermission.INSTANCE;
+            default :
+                return new OrganizationAdminPermission("org"
+                    + random.nextInt(3));
+        }
+    }
+
+    private static boolean hasPermissionLinear(Account account,
+        Group[] groups, Permission permission)
+    {
+        List<Permission> all = new ArrayList<Permission>(
+            account.getPermissions());
+        for (Group g : groups) {
+            if (account.getGroups().contains(g)) {
+                all.addAll(g.getPermissions());
+            }
+        }
+        for (Permission p : all) {
+            if (p.equals(permission) || p.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
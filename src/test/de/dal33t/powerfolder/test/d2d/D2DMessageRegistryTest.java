@@ -0,0 +1,199 @@
+/*
+ * Copyright 2004 - 2015 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.d2d;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.AbstractMessage;
+
+import de.dal33t.powerfolder.d2d.D2DMessageRegistry;
+import de.dal33t.powerfolder.d2d.D2DObject;
+import de.dal33t.powerfolder.message.HandshakeCompleted;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.Problem;
+import de.dal33t.powerfolder.protocol.AnyMessageProto;
+
+/**
+ * Test for decoding D2D messages. Also compares the decode throughput with
+ * the former reflection based decoding.
+ */
+public class D2DMessageRegistryTest extends TestCase {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final int DECODES_PER_ITERATION = 100000;
+
+    public void testDecode() throws Exception {
+        Ping ping = new Ping(32);
+        Message decoded = D2DMessageRegistry.decode(encode(ping),
+            encode(ping).length);
+        assertTrue(decoded instanceof Ping);
+        assertEquals(ping.id, ((Ping) decoded).id);
+
+        Problem problem = new Problem("Test problem", true,
+            Problem.DO_NOT_LONGER_CONNECT);
+        decoded = D2DMessageRegistry.decode(encode(problem),
+            encode(problem).length);
+        assertTrue(decoded instanceof Problem);
+        assertEquals("Test problem", ((Problem) decoded).message);
+        assertTrue(((Problem) decoded).fatal);
+        assertEquals(Problem.DO_NOT_LONGER_CONNECT,
+            ((Problem) decoded).problemCode);
+
+        decoded = D2DMessageRegistry.decode(encode(new HandshakeCompleted()),
+            encode(new HandshakeCompleted()).length);
+        assertTrue(decoded instanceof HandshakeCompleted);
+    }
+
+    public void testDecodeWithLength() throws Exception {
+        byte[] data = encode(new Pong(new Ping(16)));
+        byte[] buffer = new byte[data.length + 100];
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        assertTrue(D2DMessageRegistry.decode(buffer, data.length) instanceof Pong);
+    }
+
+    public void testUnknownMessage() {
+        byte[] data = AnyMessageProto.AnyMessage.newBuilder()
+            .setClazzName("NoSuchMessage").build().toByteArray();
+        try {
+            D2DMessageRegistry.decode(data, data.length);
+            fail("Unknown message decoded");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            D2DMessageRegistry.decode(new byte[]{1, 2, 3}, 3);
+            fail("Garbage decoded");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Decode throughput of registry and reflection. Warmup and measurement
+     * iterations like JMH.
+     */
+    public void testDecodeThroughput() throws Exception {
+        final byte[][] packets = new byte[][]{encode(new Ping(64)),
+            encode(new Pong(new Ping(64))),
+            encode(new Problem("Problem", false)),
+            encode(new HandshakeCompleted())};
+
+        Decoder registry = new Decoder() {
+            @Override
+            public Object decode(byte[] data) throws Exception {
+                return D2DMessageRegistry.decode(data, data.length);
+            }
+        };
+        Decoder reflection = new Decoder() {
+            @Override
+            public Object decode(byte[] data) throws Exception {
+                return decodeByReflection(data);
+            }
+        };
+        double reflectionOps = measure("reflection", reflection, packets);
+        double registryOps = measure("registry", registry, packets);
+        System.out.println("D2D decode: registry " + (int) registryOps
+            + " ops/s, reflection " + (int) reflectionOps + " ops/s ("
+            + String.format("%.1f", registryOps / reflectionOps) + "x)");
+    }
+
+    // Helper *****************************************************************
+
+    private static byte[] encode(D2DObject message) {
+        return message.toD2D().toByteArray();
+    }
+
+    private interface Decoder {
+        Object decode(byte[] data) throws Exception;
+    }
+
+    private static double measure(String name, Decoder decoder,
+        byte[][] packets) throws Exception
+    {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            run(decoder, packets);
+        }
+        long total = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long took = run(decoder, packets);
+            total += took;
+            System.out.println(name + " iteration " + i + ": "
+                + (DECODES_PER_ITERATION * 1000000000L / took) + " ops/s");
+        }
+        return (double) DECODES_PER_ITERATION * MEASURE_ITERATIONS
+            * 1000000000L / total;
+    }
+
+    private static long run(Decoder decoder, byte[][] packets)
+        throws Exception
+    {
+        int hash = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < DECODES_PER_ITERATION; i++) {
+            hash += decoder.decode(packets[i % packets.length]).hashCode();
+        }
+        long took = System.nanoTime() - start;
+        // Avoid dead code elimination
+        if (hash == 42) {
+            System.out.print("");
+        }
+        return took;
+    }
+
+    private static final String[] PACKAGES = new String[]{
+        "de.dal33t.powerfolder.message.%s",
+        "de.dal33t.powerfolder.message.clientserver.%s",
+        "de.dal33t.powerfolder.util.delta.%s"};
+
+    /**
+     * The former decoding: Parses the data twice and looks up classes and
+     * methods by reflection.
+     */
+    private static Object decodeByReflection(byte[] data) throws Exception {
+        AnyMessageProto.AnyMessage anyMessage = AnyMessageProto.AnyMessage
+            .parseFrom(data);
+        String klassName = anyMessage.getClazzName();
+        String klassPkg = String.format(
+            "de.dal33t.powerfolder.protocol.%sProto$%s", klassName, klassName);
+        Class<?> klass = Class.forName(klassPkg);
+        Method meth = klass.getMethod("parseFrom", byte[].class);
+        AbstractMessage amesg = (AbstractMessage) meth.invoke(null, data);
+        for (String pkg : PACKAGES) {
+            try {
+                klass = Class.forName(String.format(pkg, klassName));
+            } catch (ClassNotFoundException e) {
+                klass = null;
+            }
+            if (null != klass) {
+                break;
+            }
+        }
+        meth = klass.getMethod("initFromD2D", AbstractMessage.class);
+        Object mesg = klass.newInstance();
+        meth.invoke(mesg, amesg);
+        return mesg;
+    }
+}
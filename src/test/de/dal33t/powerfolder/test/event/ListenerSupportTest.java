@@ -0,0 +1,229 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.event;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.event.CoreListener;
+import de.dal33t.powerfolder.event.ListenerSupport;
+import de.dal33t.powerfolder.event.ListenerSupport.EventType;
+import de.dal33t.powerfolder.event.ListenerSupportFactory;
+
+/**
+ * Test for the typed listener support.
+ */
+public class ListenerSupportTest extends TestCase {
+
+    private static final EventType<TestListener, String> CHANGED = ListenerSupport
+        .eventType("changed", TestListener::changed, events -> String.join(
+            ",", events));
+    private static final EventType<TestListener, String> COMMITED = ListenerSupport
+        .eventType("commited", TestListener::commited);
+
+    private ListenerSupport<TestListener> support;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        support = new ListenerSupport<TestListener>(TestListener.class);
+    }
+
+    public void testFire() {
+        RecordingListener listener = new RecordingListener(false);
+        assertFalse(support.hasListeners());
+        support.addListener(listener);
+        assertTrue(support.hasListeners());
+
+        support.fire(CHANGED, "a");
+        support.fire(COMMITED, "b");
+        assertEquals(list("changed:a", "commited:b"), listener.events);
+
+        support.setSuspended(true);
+        support.fire(CHANGED, "c");
+        support.setSuspended(false);
+        support.removeListener(listener);
+        support.fire(CHANGED, "d");
+        assertFalse(support.hasListeners());
+        assertEquals(2, listener.events.size());
+    }
+
+    public void testExceptionInListener() {
+        RecordingListener listener = new RecordingListener(false);
+        support.addListener(new RecordingListener(false) {
+            @Override
+            public void changed(String event) {
+                throw new IllegalStateException("Test");
+            }
+        });
+        support.addListener(listener);
+        support.fire(CHANGED, "a");
+        assertEquals(list("changed:a"), listener.events);
+    }
+
+    public void testWeakListener() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        support.addListener(new RecordingListener(false) {
+            @Override
+            public void changed(String event) {
+                count.incrementAndGet();
+            }
+        }, true);
+        for (int i = 0; i < 10 && support.hasListeners(); i++) {
+            System.gc();
+            Thread.sleep(10);
+            support.fire(CHANGED, "a");
+        }
+        assertFalse(support.hasListeners());
+    }
+
+    public void testEDT() throws Exception {
+        final RecordingListener listener = new RecordingListener(true);
+        support.addListener(listener);
+        support.fire(CHANGED, "a");
+        support.fire(COMMITED, "b");
+        waitForEDT();
+        assertEquals(list("changed:a", "commited:b"), listener.events);
+        assertTrue(listener.inEDT);
+    }
+
+    public void testCoalescing() throws Exception {
+        RecordingListener edtListener = new RecordingListener(true);
+        RecordingListener listener = new RecordingListener(false);
+        support.addListener(edtListener);
+        support.addListener(listener);
+        support.setCoalescing(100);
+
+        support.fire(CHANGED, "a");
+        support.fire(CHANGED, "b");
+        support.fire(CHANGED, "c");
+        // Non-EDT listeners get every event
+        assertEquals(list("changed:a", "changed:b", "changed:c"),
+            listener.events);
+        waitForEDT();
+        assertTrue(edtListener.events.isEmpty());
+
+        Thread.sleep(300);
+        waitForEDT();
+        assertEquals(list("changed:a,b,c"), edtListener.events);
+
+        // Not coalesced events flush pending ones first
+        edtListener.events.clear();
+        support.fire(CHANGED, "d");
+        support.fire(CHANGED, "e");
+        support.fire(COMMITED, "f");
+        support.fire(CHANGED, "g");
+        waitForEDT();
+        assertEquals(list("changed:d,e", "commited:f"), edtListener.events);
+        Thread.sleep(300);
+        waitForEDT();
+        assertEquals(list("changed:d,e", "commited:f", "changed:g"),
+            edtListener.events);
+        assertTrue(edtListener.inEDT);
+    }
+
+    /**
+     * Dispatch of many events to one listener: Typed vs. reflective proxy
+     * support.
+     */
+    public void testPerformance() {
+        int n = 2000000;
+        final AtomicInteger count = new AtomicInteger();
+        RecordingListener listener = new RecordingListener(false) {
+            @Override
+            public void changed(String event) {
+                count.incrementAndGet();
+            }
+        };
+        TestListener proxy = ListenerSupportFactory
+            .createListenerSupport(TestListener.class);
+        ListenerSupportFactory.addListener(proxy, listener);
+        support.addListener(listener);
+
+        for (int run = 0; run < 2; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                proxy.changed("x");
+            }
+            long reflective = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                support.fire(CHANGED, "x");
+            }
+            long typed = System.nanoTime() - start;
+            System.out.println(n + " events: reflective " + reflective
+                / 1000000 + "ms, typed " + typed / 1000000 + "ms");
+        }
+        assertEquals(4 * n, count.get());
+    }
+
+    // Helper *****************************************************************
+
+    private static List<String> list(String... events) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, events);
+        return list;
+    }
+
+    private static void waitForEDT() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+        });
+    }
+
+    public interface TestListener extends CoreListener {
+        void changed(String event);
+
+        void commited(String event);
+    }
+
+    private static class RecordingListener implements TestListener {
+        private final boolean edt;
+        private final List<String> events = Collections
+            .synchronizedList(new ArrayList<String>());
+        private volatile boolean inEDT = true;
+
+        private RecordingListener(boolean edt) {
+            this.edt = edt;
+        }
+
+        public void changed(String event) {
+            record("changed:" + event);
+        }
+
+        public void commited(String event) {
+            record("commited:" + event);
+        }
+
+        private void record(String event) {
+            inEDT &= EventQueue.isDispatchThread();
+            events.add(event);
+        }
+
+        public boolean fireInEventDispatchThread() {
+            return edt;
+        }
+    }
+}
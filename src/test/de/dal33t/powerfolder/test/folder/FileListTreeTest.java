@@ -0,0 +1,112 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.folder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.disk.FileListTree;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+/**
+ * Test for the hash tree used for filelist reconciliation.
+ */
+public class FileListTreeTest extends TestCase {
+
+    private static final List<FileInfo> NO_DIRS = Collections.emptyList();
+
+    private FolderInfo foInfo;
+    private MemberInfo device;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("Test", IdGenerator.makeFolderId());
+        device = new MemberInfo("device", IdGenerator.makeId(), null);
+    }
+
+    public void testBucketCount() {
+        assertEquals(1, FileListTree.bucketCount(0));
+        assertEquals(1, FileListTree.bucketCount(FileListTree.FILES_PER_BUCKET));
+        assertEquals(2,
+            FileListTree.bucketCount(FileListTree.FILES_PER_BUCKET + 1));
+        assertEquals(FileListTree.MAX_BUCKETS,
+            FileListTree.bucketCount(Integer.MAX_VALUE));
+    }
+
+    public void testOrderIndependent() {
+        List<FileInfo> files = createFiles(1000);
+        int nBuckets = FileListTree.bucketCount(files.size());
+        FileListTree tree = FileListTree.build(nBuckets, files, NO_DIRS, null);
+        List<FileInfo> shuffled = new ArrayList<FileInfo>(files);
+        Collections.shuffle(shuffled);
+        FileListTree tree2 = FileListTree.build(nBuckets, shuffled, NO_DIRS,
+            null);
+        assertEquals(tree.getRoot(), tree2.getRoot());
+        assertEquals(0, tree.diff(tree2.getBucketHashes()).length);
+    }
+
+    public void testChangedFiles() {
+        List<FileInfo> files = createFiles(1000);
+        int nBuckets = FileListTree.bucketCount(files.size());
+        FileListTree tree = FileListTree.build(nBuckets, files, NO_DIRS, null);
+
+        List<FileInfo> changed = new ArrayList<FileInfo>(files);
+        FileInfo oldFile = changed.get(500);
+        changed.set(500, FileInfoFactory.unmarshallExistingFile(foInfo,
+            oldFile.getRelativeName(), null, oldFile.getSize(), device, null,
+            oldFile.getModifiedDate(), oldFile.getVersion() + 1, null, false,
+            null));
+        FileListTree changedTree = FileListTree.build(nBuckets, changed,
+            NO_DIRS, null);
+        assertFalse(tree.getRoot() == changedTree.getRoot());
+
+        int[] diff = tree.diff(changedTree.getBucketHashes());
+        assertEquals(1, diff.length);
+        assertEquals(FileListTree.bucketOf(oldFile, nBuckets), diff[0]);
+
+        // Files to transfer and files to keep
+        List<FileInfo> transfer = FileListTree.select(changed, nBuckets, diff,
+            true);
+        List<FileInfo> keep = FileListTree.select(files, nBuckets, diff,
+            false);
+        assertTrue(transfer.contains(oldFile));
+        assertFalse(keep.contains(oldFile));
+        assertTrue(transfer.size() < files.size() / 4);
+        assertEquals(files.size(), transfer.size() + keep.size());
+    }
+
+    private List<FileInfo> createFiles(int n) {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (int i = 0; i < n; i++) {
+            files.add(FileInfoFactory.unmarshallExistingFile(foInfo, "dir "
+                + i / 100 + "/file " + i + ".txt", null, i, device, null,
+                new Date(1000000L * i), i % 3, null, false, null));
+        }
+        return files;
+    }
+}
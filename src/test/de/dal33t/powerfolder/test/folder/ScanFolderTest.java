@@ -427,6 +427,38 @@ public class ScanFolderTest extends ControllerTestCase {
         assertFileMatch(file, fInfo);
     }
 
+    /**
+     * Excluded directories are not scanned. The known files below them stay
+     * unchanged.
+     */
+    public void testScanSkipsExcludedDirectory() throws IOException {
+        Path ignored = getFolder().getLocalBase().resolve("ignored/sub");
+        Files.createDirectories(ignored);
+        Path ignoredFile = TestHelper.createRandomFile(ignored, 100);
+        Path file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            100);
+        scanFolder();
+        assertEquals(4, getFolder().getKnownItemCount());
+
+        getFolder().addPattern("ignored/*");
+        Files.delete(ignoredFile);
+        TestHelper.createRandomFile(ignored, 100);
+        scanFolder();
+
+        // Neither deleted nor new files below the excluded directory
+        assertEquals(4, getFolder().getKnownItemCount());
+        FileInfo fInfo = retrieveFileInfo(ignoredFile);
+        assertFalse(fInfo.isDeleted());
+        assertEquals(0, fInfo.getVersion());
+        assertFalse(retrieveFileInfo(file).isDeleted());
+
+        // Scanned again after removing the pattern
+        getFolder().removePattern("ignored/*");
+        scanFolder();
+        assertEquals(5, getFolder().getKnownItemCount());
+        assertTrue(retrieveFileInfo(ignoredFile).isDeleted());
+    }
+
     /**
      * Tests the scan of multiple files in multiple subdirectories.
      */
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FolderInfo;
@@ -109,6 +110,54 @@ public class SendFileListTest extends TwoControllerTestCase {
         assertNull(list.getRemoved());
     }
 
+    public void testReconcileOnReconnect() {
+        joinTestFolder(SyncProfile.HOST_FILES);
+        int nFiles = Constants.FILE_LIST_MAX_FILES_PER_MESSAGE * 2;
+        for (int i = 0; i < nFiles; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase(), 1);
+        }
+        scanFolder(getFolderAtBart());
+        final int nItems = getFolderAtBart().getKnownItemCount();
+        TestHelper.waitForCondition(20, new Condition() {
+            public boolean reached() {
+                return getFolderAtLisa().getFilesAsCollection(getBartAtLisa())
+                    .size() == nItems;
+            }
+        });
+
+        disconnectBartAndLisa();
+        TestHelper.createRandomFile(getFolderAtBart().getLocalBase(), 1);
+        TestHelper.createRandomFile(getFolderAtBart().getLocalBase(), 1);
+        scanFolder(getFolderAtBart());
+        final int nItemsChanged = getFolderAtBart().getKnownItemCount();
+        assertEquals(nItems + 2, nItemsChanged);
+
+        lisasListener.ignoreMetaFolder = true;
+        lisasListener.messages.clear();
+        connectBartAndLisa();
+        TestHelper.waitForCondition(20, new Condition() {
+            public boolean reached() {
+                return getFolderAtLisa().getFilesAsCollection(getBartAtLisa())
+                    .size() == nItemsChanged;
+            }
+        });
+        int nReceived = 0;
+        for (FolderRelatedMessage message : lisasListener.messages) {
+            if (message instanceof FileList) {
+                nReceived += ((FileList) message).files.length;
+            } else {
+                nReceived += ((FolderFilesChanged) message).getFiles().length;
+            }
+        }
+        assertTrue("Received " + nReceived + " of " + nItemsChanged
+            + " files", nReceived > 0 && nReceived < nItemsChanged / 2);
+    }
+
+    private Member getBartAtLisa() {
+        return getContollerLisa().getNodeManager().getNode(
+            getContollerBart().getMySelf().getInfo());
+    }
+
     private static final class MyMessageListener implements MessageListener {
         public List<FolderRelatedMessage> messages = new ArrayList<FolderRelatedMessage>();
         public boolean ignoreMetaFolder;
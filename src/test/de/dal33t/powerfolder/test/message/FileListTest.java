@@ -27,12 +27,17 @@ import java.util.UUID;
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FileListCompact;
 import de.dal33t.powerfolder.message.FolderFilesChanged;
+import de.dal33t.powerfolder.message.FolderFilesChangedCompact;
 import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.util.ByteSerializer;
 import de.dal33t.powerfolder.util.IdGenerator;
 
 /**
@@ -203,6 +208,64 @@ public class FileListTest extends TestCase {
         }
     }
 
+    public void testCompactCoding() throws Exception {
+        FolderInfo foInfo = createRandomFolderInfo();
+        MemberInfo device = new MemberInfo("device", IdGenerator.makeId(),
+            null);
+        AccountInfo account = new AccountInfo(IdGenerator.makeId(), "user",
+            "User");
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        int nFiles = (int) (Constants.FILE_LIST_MAX_FILES_PER_MESSAGE * 2.5);
+        for (int i = 0; i < nFiles; i++) {
+            String name = "dir " + i / 10 + "/sub/file \u00e4\ud83d\ude00 "
+                + i + ".txt";
+            if (i % 7 == 0) {
+                files.add(FileInfoFactory.unmarshallDeletedFile(foInfo, name,
+                    null, device, null, new Date(i * 1000L), i, null, false,
+                    null));
+            } else {
+                files.add(FileInfoFactory.unmarshallExistingFile(foInfo, name,
+                    IdGenerator.makeFileId(), i * 1000L, i % 2 == 0
+                        ? device
+                        : null, account, new Date(
+                        System.currentTimeMillis() - i), i, "hash" + i,
+                    i % 3 == 0, i % 5 == 0 ? "tag" : null));
+            }
+        }
+
+        Message[] msgs = FileList.create4Test(foInfo, files,
+            new DiskItemFilter(), true);
+        assertTrue(msgs[0] instanceof FileListCompact);
+        assertTrue(msgs[1] instanceof FolderFilesChangedCompact);
+
+        int i = 0;
+        for (Message msg : msgs) {
+            Message received = (Message) ByteSerializer.deserializeStatic(
+                ByteSerializer.serializeStatic(msg, false), false);
+            assertEquals(msg.getClass(), received.getClass());
+            FileInfo[] receivedFiles = received instanceof FileList
+                ? ((FileList) received).files
+                : ((FolderFilesChanged) received).getFiles();
+            for (FileInfo fInfo : receivedFiles) {
+                FileInfo expected = files.get(i++);
+                assertEquals(expected, fInfo);
+                assertEquals(expected.getClass(), fInfo.getClass());
+                assertEquals(expected.getSize(), fInfo.getSize());
+                assertEquals(expected.getModifiedDate(),
+                    fInfo.getModifiedDate());
+                assertEquals(expected.getVersion(), fInfo.getVersion());
+                assertEquals(expected.isDeleted(), fInfo.isDeleted());
+                assertEquals(expected.getModifiedBy(), fInfo.getModifiedBy());
+                assertEquals(expected.getModifiedByAccount(),
+                    fInfo.getModifiedByAccount());
+                assertEquals(expected.getOID(), fInfo.getOID());
+                assertEquals(expected.getHashes(), fInfo.getHashes());
+                assertEquals(expected.getTags(), fInfo.getTags());
+            }
+        }
+        assertEquals(nFiles, i);
+    }
+
     private static FileInfo createRandomFileInfo(int n) {
         FolderInfo foInfo = createRandomFolderInfo();
         boolean dir = Math.random() > 0.70f;
@@ -20,9 +20,14 @@
 package de.dal33t.powerfolder.test.message;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.SecureIdCache;
 import de.dal33t.powerfolder.message.FolderList;
 import de.dal33t.powerfolder.util.IdGenerator;
 import de.dal33t.powerfolder.util.test.TestHelper;
@@ -48,4 +53,97 @@ public class FolderListTest extends TestCase {
         assertTrue(list.store(file));
         assertEquals(list, FolderList.load(file));
     }
+
+    public void testContains() {
+        List<FolderInfo> folders = createFolders(100);
+        String magicId = IdGenerator.makeId();
+        SecureIdCache secureIds = new SecureIdCache(magicId);
+        FolderList list = new FolderList(folders.subList(0, 50), magicId);
+        assertEquals(50, list.secretFolders.length);
+        assertEquals(list, new FolderList(folders.subList(0, 50), secureIds));
+        assertEquals(50, secureIds.size());
+
+        for (int i = 0; i < folders.size(); i++) {
+            FolderInfo foInfo = folders.get(i);
+            assertEquals(i < 50, list.contains(foInfo, magicId));
+            assertEquals(i < 50, list.contains(foInfo, secureIds));
+        }
+        assertEquals(100, secureIds.size());
+        assertFalse(list.contains(folders.get(0), IdGenerator.makeId()));
+
+        // Changed folders
+        list.secretFolders = new FolderList(folders.subList(50, 100),
+            secureIds).secretFolders;
+        assertFalse(list.contains(folders.get(0), secureIds));
+        assertTrue(list.contains(folders.get(50), secureIds));
+    }
+
+    /**
+     * Folder list exchange of a server with many folders and a client, which
+     * has joined some of them. Like on handshake and each resync of the
+     * memberships.
+     */
+    public void testHandshakePerformance() {
+        int nServerFolders = 20000;
+        int nClientFolders = 200;
+        int nExchanges = 5;
+        List<FolderInfo> serverFolders = createFolders(nServerFolders);
+        List<FolderInfo> clientFolders = serverFolders.subList(0,
+            nClientFolders);
+        String serverMagicId = IdGenerator.makeId();
+        String clientMagicId = IdGenerator.makeId();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nExchanges; i++) {
+            FolderList clientList = new FolderList(clientFolders,
+                serverMagicId);
+            List<FolderInfo> filtered = new ArrayList<FolderInfo>();
+            for (FolderInfo foInfo : serverFolders) {
+                if (clientList.contains(foInfo, serverMagicId)) {
+                    filtered.add(foInfo);
+                }
+            }
+            Map<String, FolderInfo> joined = new HashMap<String, FolderInfo>();
+            for (FolderInfo foInfo : serverFolders) {
+                joined.put(foInfo.calculateSecureId(serverMagicId), foInfo);
+            }
+            assertEquals(nClientFolders, filtered.size());
+            new FolderList(filtered, clientMagicId);
+        }
+        long uncached = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        SecureIdCache serverIds = new SecureIdCache(serverMagicId);
+        SecureIdCache clientIds = new SecureIdCache(clientMagicId);
+        for (int i = 0; i < nExchanges; i++) {
+            FolderList clientList = new FolderList(clientFolders,
+                serverMagicId);
+            List<FolderInfo> filtered = new ArrayList<FolderInfo>();
+            for (FolderInfo foInfo : serverFolders) {
+                if (clientList.contains(foInfo, serverIds)) {
+                    filtered.add(foInfo);
+                }
+            }
+            Map<String, FolderInfo> joined = new HashMap<String, FolderInfo>();
+            for (FolderInfo foInfo : serverFolders) {
+                joined.put(serverIds.getSecureId(foInfo), foInfo);
+            }
+            assertEquals(nClientFolders, filtered.size());
+            new FolderList(filtered, clientIds);
+        }
+        long cached = System.currentTimeMillis() - start;
+
+        System.out.println(nExchanges + " folder list exchanges with "
+            + nServerFolders + " server folders: uncached " + uncached
+            + "ms, cached " + cached + "ms");
+    }
+
+    private static List<FolderInfo> createFolders(int n) {
+        List<FolderInfo> folders = new ArrayList<FolderInfo>(n);
+        for (int i = 0; i < n; i++) {
+            folders.add(new FolderInfo("Folder " + i, IdGenerator
+                .makeFolderId()));
+        }
+        return folders;
+    }
 }
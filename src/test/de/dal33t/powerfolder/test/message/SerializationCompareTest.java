@@ -22,12 +22,23 @@ package de.dal33t.powerfolder.test.message;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 import junit.framework.TestCase;
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.Message;
 import de.dal33t.powerfolder.util.ByteSerializer;
 import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.IdGenerator;
 
 public class SerializationCompareTest extends TestCase {
 
@@ -106,6 +117,70 @@ public class SerializationCompareTest extends TestCase {
             + Format.formatBytes(uncompressed.length));
     }
 
+    public void testFileListExtCompactCompare() throws Exception {
+        FolderInfo foInfo = new FolderInfo("TestFolder", IdGenerator
+            .makeFolderId());
+        MemberInfo[] devices = new MemberInfo[3];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = new MemberInfo("Device " + i, IdGenerator.makeId(),
+                null);
+        }
+        AccountInfo account = new AccountInfo(IdGenerator.makeId(),
+            "user@example.com", "User");
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (int i = 0; i < 100000; i++) {
+            String name = "Projects/Project " + i / 1000 + "/Documents/"
+                + (i / 50) % 20 + "/Document " + i + ".docx";
+            files.add(FileInfoFactory.unmarshallExistingFile(foInfo, name,
+                null, (long) (Math.random() * 1000000), devices[i
+                    % devices.length], account, new Date(System
+                    .currentTimeMillis() - i * 1000L), i % 10, null, false,
+                null));
+        }
+        // Warmup
+        for (int i = 0; i < 3; i++) {
+            serialize(FileList.create4Test(foInfo, files, new DiskItemFilter(),
+                false), false);
+            serialize(FileList.create4Test(foInfo, files, new DiskItemFilter(),
+                true), false);
+        }
+        compareFileList("Externalizable", FileList.create4Test(foInfo, files,
+            new DiskItemFilter(), false));
+        compareFileList("Compact", FileList.create4Test(foInfo, files,
+            new DiskItemFilter(), true));
+    }
+
+    private static void compareFileList(String name, Message[] msgs)
+        throws Exception
+    {
+        for (boolean compress : new boolean[]{false, true}) {
+            long start = System.currentTimeMillis();
+            byte[][] data = serialize(msgs, compress);
+            long tookWrite = System.currentTimeMillis() - start;
+            long size = 0;
+            start = System.currentTimeMillis();
+            for (byte[] bytes : data) {
+                size += bytes.length;
+                ByteSerializer.deserializeStatic(bytes, compress);
+            }
+            long tookRead = System.currentTimeMillis() - start;
+            System.out.println("(" + name + (compress ? ", compressed" : "")
+                + ") FileList messages " + msgs.length + ", size: "
+                + Format.formatBytes(size) + ", write took " + tookWrite
+                + "ms, read took " + tookRead + "ms");
+        }
+    }
+
+    private static byte[][] serialize(Message[] msgs, boolean compress)
+        throws IOException
+    {
+        byte[][] data = new byte[msgs.length][];
+        for (int i = 0; i < msgs.length; i++) {
+            data[i] = ByteSerializer.serializeStatic(msgs[i], compress);
+        }
+        return data;
+    }
+
     private static FileInfoSerializable createRandomFileInfo() {
         FileInfoSerializable f = new FileInfoSerializable();
         f.fileName = UUID.randomUUID().toString() + "/"
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.message;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.ScanCommand;
+import de.dal33t.powerfolder.message.SerializedMessage;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+public class SerializedMessageTest extends TestCase {
+
+    public void testSerializeOnce() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Test", IdGenerator.makeFolderId());
+        SerializedMessage msg = new SerializedMessage(new ScanCommand(foInfo));
+
+        for (boolean compressed : new boolean[]{false, true}) {
+            byte[] data = msg.getData(compressed);
+            assertSame(data, msg.getData(compressed));
+            ScanCommand cmd = (ScanCommand) ByteSerializer.deserializeStatic(
+                data, compressed);
+            assertEquals(foInfo, cmd.folder);
+        }
+        assertNotSame(msg.getData(true), msg.getData(false));
+    }
+
+    public void testSerializeWrapper() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Test", IdGenerator.makeFolderId());
+        SerializedMessage msg = new SerializedMessage(new ScanCommand(foInfo));
+
+        // Unaware serializers write the original message
+        byte[] data = ByteSerializer.serializeStatic(msg, false);
+        Object obj = ByteSerializer.deserializeStatic(data, false);
+        assertTrue(obj instanceof ScanCommand);
+        assertEquals(foInfo, ((ScanCommand) obj).folder);
+    }
+
+    public void testWrapUnwrap() {
+        Message cmd = new ScanCommand(new FolderInfo("Test",
+            IdGenerator.makeFolderId()));
+        Message[] wrapped = SerializedMessage.wrap(cmd);
+        assertEquals(1, wrapped.length);
+        assertTrue(wrapped[0] instanceof SerializedMessage);
+        assertSame(cmd, SerializedMessage.unwrap(wrapped[0]));
+        assertSame(cmd, SerializedMessage.unwrap(cmd));
+        // Not wrapped twice
+        assertSame(wrapped[0], SerializedMessage.wrap(wrapped)[0]);
+        assertNull(SerializedMessage.wrap((Message[]) null));
+    }
+}
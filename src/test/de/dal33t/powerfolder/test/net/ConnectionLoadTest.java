@@ -0,0 +1,238 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FolderList;
+import de.dal33t.powerfolder.message.HandshakeCompleted;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.IdentityReply;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Convert;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.VirtualThreads;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Connects many simulated peers to one controller. A simulated peer is a
+ * plain socket, which performs the handshake and stays idle afterwards.
+ * <p>
+ * Checks the time to connect and the number of platform threads the
+ * controller needs for the connections on virtual threads. Only runs on Java
+ * 21+. The default suite connects 100 peers, run with
+ * <code>-Dtest.load.peers=1000</code> for the full load.
+ */
+public class ConnectionLoadTest extends ControllerTestCase {
+
+    private static final int N_PEERS = Integer.getInteger("test.load.peers",
+        100);
+
+    /**
+     * Platform threads allowed to remain from the connections.
+     */
+    private static final int MAX_THREADS_LEFT = Math.max(20, N_PEERS / 10);
+
+    private List<Socket> peers;
+
+    @Override
+    protected void setUp() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        super.setUp();
+        peers = new ArrayList<Socket>();
+    }
+
+    @Override
+    protected void setupConfig(Path config) throws IOException {
+        String entry = "\n"
+            + ConfigurationEntry.VIRTUAL_THREADS_ENABLED.getConfigKey()
+            + "=true\n";
+        Files.write(config, entry.getBytes(Convert.UTF8),
+            StandardOpenOption.APPEND);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        for (Socket peer : peers) {
+            peer.close();
+        }
+        super.tearDown();
+    }
+
+    public void testManySimulatedPeers() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        assertTrue("Virtual threads not enabled",
+            ConfigurationEntry.VIRTUAL_THREADS_ENABLED
+                .getValueBoolean(getController()));
+        final int threadsBefore = ManagementFactory.getThreadMXBean()
+            .getThreadCount();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < N_PEERS; i++) {
+            peers.add(connectSimulatedPeer(i));
+        }
+        TestHelper.waitForCondition(120, new Condition() {
+            @Override
+            public boolean reached() {
+                return getController().getNodeManager().countConnectedNodes() == N_PEERS;
+            }
+        });
+        long took = System.currentTimeMillis() - start;
+        int threadsConnected = ManagementFactory.getThreadMXBean()
+            .getThreadCount();
+        String stats = N_PEERS + " peers connected in " + took
+            + "ms, platform threads: " + threadsBefore + " -> "
+            + threadsConnected;
+        // Connections must not hold platform threads
+        assertTrue("Too many platform threads. " + stats,
+            threadsConnected - threadsBefore < MAX_THREADS_LEFT);
+
+        for (Socket peer : peers) {
+            peer.close();
+        }
+        peers.clear();
+        TestHelper.waitForCondition(60, new Condition() {
+            @Override
+            public boolean reached() {
+                return getController().getNodeManager().countConnectedNodes() == 0;
+            }
+        });
+        // All threads of the connections have to end
+        TestHelper.waitForCondition(60, new ConditionWithMessage() {
+            @Override
+            public boolean reached() {
+                return ManagementFactory.getThreadMXBean().getThreadCount()
+                    - threadsBefore < MAX_THREADS_LEFT;
+            }
+
+            @Override
+            public String message() {
+                return "Platform threads left: "
+                    + ManagementFactory.getThreadMXBean().getThreadCount()
+                    + ", before: " + threadsBefore;
+            }
+        });
+    }
+
+    // Helper *****************************************************************
+
+    /**
+     * Connects a new simulated peer and completes the handshake.
+     */
+    private Socket connectSimulatedPeer(int i) throws Exception {
+        Socket socket = new Socket();
+        socket.connect(getController().getConnectionListener().getAddress());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        MemberInfo peerInfo = new MemberInfo("Peer-" + i,
+            IdGenerator.makeId(), getController().getNodeManager()
+                .getNetworkId());
+        Identity identity = new Identity(getController(), peerInfo,
+            IdGenerator.makeId(), false, false, createLANHandler());
+        write(out, identity);
+        write(out, IdentityReply.accept());
+
+        // Remote identity and acceptance of our one
+        String remoteMagicId = null;
+        while (true) {
+            Object obj = read(in);
+            if (obj instanceof Identity) {
+                remoteMagicId = ((Identity) obj).getMagicId();
+            } else if (obj instanceof IdentityReply) {
+                assertTrue(((IdentityReply) obj).accepted);
+                break;
+            }
+        }
+        assertNotNull(remoteMagicId);
+        write(out, new FolderList(Collections.<FolderInfo> emptyList(),
+            remoteMagicId));
+        // Acknowledge after the remote side completed the handshake
+        while (!(read(in) instanceof HandshakeCompleted)) {
+            // Ignore
+        }
+        write(out, new HandshakeCompleted());
+        return socket;
+    }
+
+    private static void write(OutputStream out, Message message)
+        throws IOException
+    {
+        byte[] data = ByteSerializer.serializeStatic(message, false);
+        out.write(Convert.convert2Bytes(data.length));
+        out.write(data);
+        out.flush();
+    }
+
+    private static Object read(DataInputStream in) throws Exception {
+        byte[] size = new byte[4];
+        in.readFully(size);
+        byte[] data = new byte[Convert.convert2Int(size)];
+        in.readFully(data);
+        return ByteSerializer.deserializeStatic(data, false);
+    }
+
+    /**
+     * @return a handler, which is only good to create the identity of a
+     *         simulated peer on LAN.
+     */
+    private static ConnectionHandler createLANHandler() {
+        return (ConnectionHandler) Proxy.newProxyInstance(
+            ConnectionHandler.class.getClassLoader(),
+            new Class<?>[]{ConnectionHandler.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getReturnType() == boolean.class) {
+                        return method.getName().equals("isOnLAN");
+                    }
+                    return null;
+                }
+            });
+    }
+}
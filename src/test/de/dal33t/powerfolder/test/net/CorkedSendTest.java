@@ -0,0 +1,330 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Problem;
+import de.dal33t.powerfolder.net.AbstractSocketConnectionHandler;
+import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Convert;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Test for the corking of queued messages into one socket write by the
+ * sender of the {@link AbstractSocketConnectionHandler}. The handler works
+ * on a socket, which records the writes.
+ */
+public class CorkedSendTest extends ControllerTestCase {
+    private static final int MAX_CORK_SIZE =
+        AbstractSocketConnectionHandler.MAX_CORK_SIZE;
+
+    private RecordingSocket socket;
+    private ConnectionHandler handler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        socket = new RecordingSocket();
+        final CountDownLatch initialized = new CountDownLatch(1);
+        Thread init = new Thread("Init") {
+            @Override
+            public void run() {
+                try {
+                    handler = getController().getIOProvider()
+                        .getConnectionHandlerFactory()
+                        .createAndInitSocketConnectionHandler(socket, false);
+                    initialized.countDown();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        init.start();
+        MemberInfo peerInfo = new MemberInfo("Peer", IdGenerator.makeId(),
+            getController().getNodeManager().getNetworkId());
+        socket.receive(new Identity(getController(), peerInfo, IdGenerator
+            .makeId(), false, false, createLANHandler()));
+        assertTrue("Handler not initialized",
+            initialized.await(30, TimeUnit.SECONDS));
+        assertTrue(handler instanceof AbstractSocketConnectionHandler);
+        handler.waitForEmptySendQueue(5000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (handler != null) {
+            handler.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testCorkedRoundTrip() throws Exception {
+        // Block the sender in the write of the ping to queue up messages
+        socket.blockWrites();
+        handler.sendMessagesAsynchron(new Ping());
+        assertTrue(socket.awaitBlockedWrite());
+        socket.clearWrites();
+
+        // More than fits into one cork
+        final int nMessages = 20;
+        int messageSize = MAX_CORK_SIZE / (nMessages / 2);
+        Message[] messages = new Message[nMessages];
+        for (int i = 0; i < nMessages; i++) {
+            char[] text = new char[messageSize];
+            Arrays.fill(text, (char) ('a' + i));
+            messages[i] = new Problem(new String(text), false);
+        }
+        handler.sendMessagesAsynchron(messages);
+        socket.unblockWrites();
+        assertTrue(handler.waitForEmptySendQueue(10000));
+
+        TestHelper.waitForCondition(10, new Condition() {
+            @Override
+            public boolean reached() {
+                return countFrames(socket.getWrites()) == 1 + nMessages;
+            }
+        });
+        List<byte[]> writes = socket.getWrites();
+        // Ping: Header and data
+        assertEquals(4, writes.get(0).length);
+        List<byte[]> corked = writes.subList(2, writes.size());
+        assertTrue("Not corked: " + corked.size() + " writes",
+            corked.size() < nMessages);
+        // Rolled over into a new write when the cork was full
+        assertTrue("Not rolled over", corked.size() >= 2);
+        for (int i = 0; i < corked.size() - 1; i++) {
+            assertTrue(corked.get(i).length >= MAX_CORK_SIZE);
+        }
+
+        // Every corked message has its own length header, in order
+        List<Object> received = decode(corked);
+        assertEquals(nMessages, received.size());
+        for (int i = 0; i < nMessages; i++) {
+            assertEquals(((Problem) messages[i]).message,
+                ((Problem) received.get(i)).message);
+        }
+    }
+
+    // Helper *****************************************************************
+
+    private List<Object> decode(List<byte[]> writes) throws Exception {
+        boolean compressed = handler.getMyIdentity().isUseCompressedStream();
+        byte[] stream = concat(writes);
+        List<Object> objects = new ArrayList<Object>();
+        int offset = 0;
+        while (offset < stream.length) {
+            int size = Convert.convert2Int(Arrays.copyOfRange(stream, offset,
+                offset + 4));
+            offset += 4;
+            objects.add(ByteSerializer.deserializeStatic(Arrays.copyOfRange(
+                stream, offset, offset + size), compressed));
+            offset += size;
+        }
+        return objects;
+    }
+
+    private static int countFrames(List<byte[]> writes) {
+        byte[] stream = concat(writes);
+        int frames = 0;
+        int offset = 0;
+        while (offset + 4 <= stream.length) {
+            offset += 4 + Convert.convert2Int(Arrays.copyOfRange(stream,
+                offset, offset + 4));
+            if (offset <= stream.length) {
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    private static byte[] concat(List<byte[]> writes) {
+        int size = 0;
+        for (byte[] write : writes) {
+            size += write.length;
+        }
+        byte[] stream = new byte[size];
+        int offset = 0;
+        for (byte[] write : writes) {
+            System.arraycopy(write, 0, stream, offset, write.length);
+            offset += write.length;
+        }
+        return stream;
+    }
+
+    /**
+     * @return a handler, which is only good to create the identity of a
+     *         simulated peer on LAN.
+     */
+    private static ConnectionHandler createLANHandler() {
+        return (ConnectionHandler) Proxy.newProxyInstance(
+            ConnectionHandler.class.getClassLoader(),
+            new Class<?>[]{ConnectionHandler.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getReturnType() == boolean.class) {
+                        return method.getName().equals("isOnLAN");
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Socket, which records every write into its output stream. Reads what
+     * was passed to {@link #receive(Message)}.
+     */
+    private static class RecordingSocket extends Socket {
+        private final PipedOutputStream toHandler = new PipedOutputStream();
+        private final PipedInputStream in;
+        private final List<byte[]> writes = new ArrayList<byte[]>();
+        private volatile CountDownLatch writeGate;
+        private final CountDownLatch writeBlocked = new CountDownLatch(1);
+        private volatile boolean closed;
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                CountDownLatch gate = writeGate;
+                if (gate != null) {
+                    writeBlocked.countDown();
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                }
+                synchronized (writes) {
+                    writes.add(Arrays.copyOfRange(b, off, off + len));
+                }
+            }
+        };
+
+        RecordingSocket() throws IOException {
+            in = new PipedInputStream(toHandler, 64 * 1024);
+        }
+
+        void receive(Message message) throws IOException {
+            byte[] data = ByteSerializer.serializeStatic(message, false);
+            toHandler.write(Convert.convert2Bytes(data.length));
+            toHandler.write(data);
+            toHandler.flush();
+        }
+
+        void blockWrites() {
+            writeGate = new CountDownLatch(1);
+        }
+
+        boolean awaitBlockedWrite() throws InterruptedException {
+            return writeBlocked.await(10, TimeUnit.SECONDS);
+        }
+
+        void unblockWrites() {
+            CountDownLatch gate = writeGate;
+            writeGate = null;
+            gate.countDown();
+        }
+
+        List<byte[]> getWrites() {
+            synchronized (writes) {
+                return new ArrayList<byte[]>(writes);
+            }
+        }
+
+        void clearWrites() {
+            synchronized (writes) {
+                writes.clear();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            toHandler.close();
+            in.close();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return 1337;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return new InetSocketAddress(getInetAddress(), getPort());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileChunkExt;
+import de.dal33t.powerfolder.message.FileListRequest;
+import de.dal33t.powerfolder.message.HandshakeCompleted;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.net.MessageDispatcher;
+
+/**
+ * Test for the ordering and backpressure of the message dispatch stage.
+ */
+public class MessageDispatcherTest extends TestCase {
+
+    private ExecutorService pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testOrderingKeys() {
+        FolderInfo foInfo = new FolderInfo("testFolder", "id");
+        FileInfo file = createFile(foInfo, "file.txt");
+        assertEquals(foInfo,
+            MessageDispatcher.orderingKey(new FileListRequest(foInfo)));
+        assertEquals(file, MessageDispatcher.orderingKey(new FileChunk(file,
+            0, new byte[0])));
+        // Subclass resolved by the superclass
+        assertEquals(file, MessageDispatcher.orderingKey(new FileChunkExt(
+            file, 0, new byte[0])));
+        assertNull(MessageDispatcher.orderingKey(new Ping()));
+        assertNull(MessageDispatcher.orderingKey(new HandshakeCompleted()));
+    }
+
+    public void testOrderPerKey() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(pool, 50);
+        int nKeys = 8;
+        int nMessages = 2000;
+        final List<List<Integer>> received = new ArrayList<List<Integer>>();
+        for (int k = 0; k < nKeys; k++) {
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(nMessages);
+        for (int i = 0; i < nMessages; i++) {
+            final int key = i % nKeys;
+            final int seq = i;
+            dispatcher.dispatch("key" + key, new Runnable() {
+                public void run() {
+                    received.get(key).add(seq);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int k = 0; k < nKeys; k++) {
+            List<Integer> list = received.get(k);
+            assertEquals(nMessages / nKeys, list.size());
+            for (int i = 1; i < list.size(); i++) {
+                assertTrue(list.get(i - 1) < list.get(i));
+            }
+        }
+        waitForPending(dispatcher, 0);
+    }
+
+    public void testNoConcurrencyPerKey() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(pool, 1000);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            dispatcher.dispatch("key", new Runnable() {
+                public void run() {
+                    int n = running.incrementAndGet();
+                    maxRunning.set(Math.max(maxRunning.get(), n));
+                    Thread.yield();
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+    }
+
+    public void testSlowKeyDoesNotBlockOthers() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(pool, 100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherDone = new CountDownLatch(1);
+        dispatcher.dispatch("transfer", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        dispatcher.dispatch("folder", new Runnable() {
+            public void run() {
+                otherDone.countDown();
+            }
+        });
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        waitForPending(dispatcher, 0);
+    }
+
+    public void testBackpressure() throws Exception {
+        final MessageDispatcher dispatcher = new MessageDispatcher(pool, 3);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch("key", blocking);
+        }
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.dispatch("other", new Runnable() {
+                    public void run() {
+                    }
+                });
+                dispatched.countDown();
+            }
+        };
+        receiver.start();
+        // Limit reached: Receiver has to wait
+        assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+        waitForPending(dispatcher, 0);
+    }
+
+    public void testMayOvertake() {
+        assertTrue(MessageDispatcher.mayOvertake(new Ping()));
+        assertFalse(MessageDispatcher.mayOvertake(new HandshakeCompleted()));
+    }
+
+    public void testAwaitPending() throws Exception {
+        final MessageDispatcher dispatcher = new MessageDispatcher(pool, 100);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch("folder", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final CountDownLatch handled = new CountDownLatch(1);
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.awaitPending();
+                handled.countDown();
+            }
+        };
+        receiver.start();
+        // Message without key waits for the one received before
+        assertFalse(handled.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getPendingCount());
+        // Nothing pending: No wait
+        dispatcher.awaitPending();
+    }
+
+    public void testClear() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher(pool, 100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        Runnable blocking = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executed.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch("key", blocking);
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(5, dispatcher.getPendingCount());
+        dispatcher.clear();
+        // Only the running one stays
+        assertEquals(1, dispatcher.getPendingCount());
+        release.countDown();
+        waitForPending(dispatcher, 0);
+        assertEquals(1, executed.get());
+
+        // Usable afterwards
+        final CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("key", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void waitForPending(MessageDispatcher dispatcher,
+        int expected) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && dispatcher.getPendingCount() != expected; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, dispatcher.getPendingCount());
+    }
+
+    private static FileInfo createFile(FolderInfo foInfo, String name) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, null, 0,
+            new MemberInfo("test", "id", null), null, new Date(), 0, null,
+            false, null);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.net.NIOSocketConnectionHandler;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Test for connections using the non-blocking connection handler. Lisa
+ * connects with non-blocking I/O, Bart accepts with the thread based
+ * connection handler.
+ */
+public class NIOConnectionTest extends TwoControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConfigurationEntry.NET_NIO_ENABLED.setValue(getContollerLisa(), true);
+    }
+
+    public void testConnectAndTransfer() throws Exception {
+        connectBartAndLisa();
+        Member bartAtLisa = getContollerLisa().getNodeManager().getNode(
+            getContollerBart().getMySelf().getInfo());
+        ConnectionHandler peer = bartAtLisa.getPeer();
+        assertTrue("Not a non-blocking connection: " + peer,
+            peer instanceof NIOSocketConnectionHandler);
+
+        joinTestFolder(SyncProfile.HOST_FILES);
+        for (int i = 0; i < 20; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+                100 * 1024);
+        }
+        TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+            5 * 1024 * 1024);
+        scanFolder(getFolderAtBart());
+        getFolderAtLisa().setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+
+        TestHelper.waitForCondition(30, new ConditionWithMessage() {
+            @Override
+            public String message() {
+                return "Files at lisa: "
+                    + getFolderAtLisa().getKnownItemCount();
+            }
+
+            @Override
+            public boolean reached() {
+                return getFolderAtLisa().getKnownItemCount() == 21
+                    && getContollerLisa().getTransferManager()
+                        .countCompletedDownloads() == 21;
+            }
+        });
+        assertTrue(peer.isConnected());
+
+        disconnectBartAndLisa();
+        assertFalse(peer.isConnected());
+    }
+}
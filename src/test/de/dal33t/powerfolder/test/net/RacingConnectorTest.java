@@ -0,0 +1,197 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.net.RacingConnector;
+import de.dal33t.powerfolder.net.RacingConnector.Attempt;
+import de.dal33t.powerfolder.net.RacingConnector.Transport;
+
+/**
+ * Test for the racing of connection attempts.
+ */
+public class RacingConnectorTest extends TestCase {
+
+    private ExecutorService pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testFirstWinsWithoutStartingOthers() throws Exception {
+        RacingConnector connector = new RacingConnector(pool, 500, 10000);
+        TestAttempt tcp = new TestAttempt(Transport.TCP, 10, true);
+        TestAttempt relay = new TestAttempt(Transport.RELAY, 0, true);
+        ConnectionHandler handler = connector.connect(Arrays.asList(tcp,
+            relay));
+        assertSame(tcp.handler.proxy, handler);
+        Thread.sleep(600);
+        assertFalse(relay.started.get());
+        assertFalse(tcp.handler.shutdown.get());
+    }
+
+    public void testStaggeredStart() throws Exception {
+        RacingConnector connector = new RacingConnector(pool, 100, 10000);
+        // Firewalled: Direct connect hangs until cancelled
+        TestAttempt tcp = new TestAttempt(Transport.TCP, 20000, true);
+        TestAttempt udt = new TestAttempt(Transport.UDT, 50, true);
+        TestAttempt relay = new TestAttempt(Transport.RELAY, 10000, true);
+        long start = System.currentTimeMillis();
+        ConnectionHandler handler = connector.connect(Arrays.asList(tcp,
+            udt, relay));
+        long took = System.currentTimeMillis() - start;
+        assertSame(udt.handler.proxy, handler);
+        assertTrue("Took " + took, took >= 100 && took < 5000);
+        assertTrue(tcp.cancelled.await(1, TimeUnit.SECONDS));
+        // Race decided before relay was due
+        Thread.sleep(300);
+        assertFalse(relay.started.get());
+        assertSame(Transport.TCP, Transport.of(handler));
+    }
+
+    public void testFailureStartsNextImmediately() throws Exception {
+        RacingConnector connector = new RacingConnector(pool, 10000, 30000);
+        TestAttempt tcp = new TestAttempt(Transport.TCP, 0, false);
+        TestAttempt relay = new TestAttempt(Transport.RELAY, 0, true);
+        long start = System.currentTimeMillis();
+        ConnectionHandler handler = connector.connect(Arrays.asList(tcp,
+            relay));
+        long took = System.currentTimeMillis() - start;
+        assertSame(relay.handler.proxy, handler);
+        assertTrue("Took " + took, took < 2000);
+    }
+
+    public void testAllFail() {
+        RacingConnector connector = new RacingConnector(pool, 50, 10000);
+        try {
+            connector.connect(Arrays.asList(new TestAttempt(Transport.TCP,
+                10, false), new TestAttempt(Transport.UDT, 0, false),
+                new TestAttempt(Transport.RELAY, 100, false)));
+            fail("Connected, but all attempts failed");
+        } catch (ConnectionException e) {
+            // OK
+        }
+    }
+
+    public void testTimeout() {
+        RacingConnector connector = new RacingConnector(pool, 50, 300);
+        TestAttempt tcp = new TestAttempt(Transport.TCP, 20000, true);
+        long start = System.currentTimeMillis();
+        try {
+            connector.connect(Arrays.asList(tcp));
+            fail("Connected, but attempt hangs");
+        } catch (ConnectionException e) {
+            // OK
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(0, tcp.cancelled.getCount());
+    }
+
+    public void testLateConnectionShutdown() throws Exception {
+        RacingConnector connector = new RacingConnector(pool, 50, 10000);
+        // Not cancellable, connects after the other won
+        TestAttempt tcp = new TestAttempt(Transport.TCP, 300, true) {
+            @Override
+            protected void cancel() {
+            }
+        };
+        TestAttempt udt = new TestAttempt(Transport.UDT, 0, true);
+        ConnectionHandler handler = connector.connect(Arrays.asList(tcp, udt));
+        assertSame(udt.handler.proxy, handler);
+        Thread.sleep(600);
+        assertTrue(tcp.handler.shutdown.get());
+        assertFalse(udt.handler.shutdown.get());
+    }
+
+    private static class TestAttempt extends Attempt {
+        final TestHandler handler = new TestHandler();
+        final AtomicBoolean started = new AtomicBoolean();
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        private final long connectTime;
+        private final boolean success;
+
+        TestAttempt(Transport transport, long connectTime, boolean success) {
+            super(transport);
+            this.connectTime = connectTime;
+            this.success = success;
+        }
+
+        @Override
+        protected ConnectionHandler connect() throws ConnectionException {
+            started.set(true);
+            try {
+                if (cancelled.await(connectTime, TimeUnit.MILLISECONDS)) {
+                    throw new ConnectionException("Cancelled");
+                }
+            } catch (InterruptedException e) {
+                throw new ConnectionException(e);
+            }
+            if (!success) {
+                throw new ConnectionException("Unable to connect");
+            }
+            return handler.proxy;
+        }
+
+        @Override
+        protected void cancel() {
+            cancelled.countDown();
+        }
+    }
+
+    private static class TestHandler implements InvocationHandler {
+        final AtomicBoolean shutdown = new AtomicBoolean();
+        final ConnectionHandler proxy = (ConnectionHandler) Proxy
+            .newProxyInstance(ConnectionHandler.class.getClassLoader(),
+                new Class<?>[]{ConnectionHandler.class}, this);
+
+        public Object invoke(Object p, Method method, Object[] args) {
+            if (method.getName().equals("shutdown")) {
+                shutdown.set(true);
+            } else if (method.getName().equals("equals")) {
+                return p == args[0];
+            } else if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(p);
+            } else if (method.getName().equals("toString")) {
+                return "TestHandler";
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.net.ReconnectScheduler;
+
+/**
+ * Test for the scheduling of reconnection attempts.
+ */
+public class ReconnectSchedulerTest extends TestCase {
+
+    private static final long MIN = 1000;
+    private static final long MAX = 16000;
+
+    private AtomicLong now;
+    private ReconnectScheduler<String> scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        now = new AtomicLong(1000000);
+        scheduler = new ReconnectScheduler<String>(MIN, MAX, now::get);
+    }
+
+    public void testPriorityOrder() {
+        assertTrue(scheduler.schedule("other1", 0));
+        assertTrue(scheduler.schedule("friend", 4));
+        assertTrue(scheduler.schedule("other2", 0));
+        assertTrue(scheduler.schedule("member", 2));
+        assertFalse(scheduler.schedule("friend", 0));
+        assertEquals(4, scheduler.size());
+        assertEquals(4, scheduler.countReady());
+
+        assertEquals("friend", scheduler.poll());
+        assertEquals("member", scheduler.poll());
+        // Same priority: Order of scheduling
+        assertEquals("other1", scheduler.poll());
+        assertEquals("other2", scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testBackoff() {
+        scheduler.schedule("node", 0);
+        long lastMax = 0;
+        for (int i = 1; i <= 8; i++) {
+            assertEquals("node", scheduler.poll());
+            assertFalse(scheduler.contains("node"));
+            assertFalse(scheduler.schedule("node", 0));
+            scheduler.completed("node", false, true);
+            assertEquals(i, scheduler.getFailures("node"));
+            assertTrue(scheduler.contains("node"));
+            assertEquals(1, scheduler.countDelayed());
+
+            long backoff = Math.min(MAX, MIN << (i - 1));
+            // Not due before half of the backoff
+            now.addAndGet(backoff / 2 - 1);
+            assertNull(scheduler.poll());
+            // Due at latest after the backoff
+            now.addAndGet(backoff - backoff / 2 + 1);
+            assertEquals(1, scheduler.countReady());
+            lastMax = backoff;
+        }
+        assertEquals(MAX, lastMax);
+
+        // Success removes the node and its backoff
+        assertEquals("node", scheduler.poll());
+        scheduler.completed("node", true, false);
+        assertEquals(0, scheduler.size());
+        assertTrue(scheduler.schedule("node", 0));
+        assertEquals(0, scheduler.getFailures("node"));
+        assertEquals("node", scheduler.poll());
+
+        // Failure without retry removes the node
+        scheduler.completed("node", false, false);
+        assertEquals(0, scheduler.size());
+
+        assertEquals(10, scheduler.getAttempts());
+        assertEquals(1, scheduler.getSuccesses());
+        assertEquals(9, scheduler.getFailures());
+    }
+
+    public void testBackoffJitter() {
+        for (int i = 1; i <= 10; i++) {
+            long backoff = Math.min(MAX, MIN << (i - 1));
+            for (int j = 0; j < 100; j++) {
+                long b = scheduler.getBackoff(i);
+                assertTrue(b + " < " + backoff / 2, b >= backoff / 2);
+                assertTrue(b + " > " + backoff, b <= backoff);
+            }
+        }
+    }
+
+    public void testScheduleNowIgnoresBackoff() {
+        scheduler.schedule("a", 0);
+        scheduler.schedule("b", 1);
+        assertEquals("b", scheduler.poll());
+        scheduler.completed("b", false, true);
+        assertEquals("a", scheduler.poll());
+        assertNull(scheduler.poll());
+
+        scheduler.scheduleNow("b", 5);
+        assertEquals(0, scheduler.countDelayed());
+        assertEquals("b", scheduler.poll());
+
+        // In progress: Not scheduled again
+        scheduler.scheduleNow("b", 5);
+        assertNull(scheduler.poll());
+        scheduler.cancelled("b");
+        scheduler.completed("a", true, false);
+        assertEquals(2, scheduler.getAttempts());
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testRetainAll() {
+        for (int i = 0; i < 10; i++) {
+            scheduler.schedule("n" + i, i % 3);
+        }
+        assertEquals("n2", scheduler.poll());
+        scheduler.completed("n2", false, true);
+        scheduler.retainAll(new HashSet<String>(Arrays.asList("n1", "n5",
+            "n2")));
+        assertEquals(3, scheduler.size());
+        assertEquals(1, scheduler.countDelayed());
+        assertEquals("n5", scheduler.poll());
+        assertEquals("n1", scheduler.poll());
+        assertNull(scheduler.poll());
+        assertTrue(scheduler.remove("n2"));
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testTakeWaits() throws InterruptedException {
+        scheduler = new ReconnectScheduler<String>(MIN, MAX,
+            System::currentTimeMillis);
+        long start = System.currentTimeMillis();
+        assertNull(scheduler.take(200));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                scheduler.schedule("late", 0);
+            }
+        }.start();
+        assertEquals("late", scheduler.take(10000));
+    }
+
+    public void testManyNodes() {
+        int n = 50000;
+        for (int i = 0; i < n; i++) {
+            scheduler.schedule("n" + i, i % 5);
+        }
+        int lastPriority = 4;
+        for (int i = 0; i < n; i++) {
+            String node = scheduler.poll();
+            int priority = Integer.parseInt(node.substring(1)) % 5;
+            assertTrue(priority <= lastPriority);
+            lastPriority = priority;
+            scheduler.completed(node, false, true);
+        }
+        assertEquals(n, scheduler.size());
+        assertEquals(n, scheduler.countDelayed());
+        now.addAndGet(MIN);
+        assertEquals(n, scheduler.countReady());
+    }
+}
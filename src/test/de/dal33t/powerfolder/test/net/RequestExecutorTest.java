@@ -0,0 +1,142 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.clientserver.RequestExecutor;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageListener;
+import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallRequest;
+import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallResponse;
+import de.dal33t.powerfolder.message.clientserver.Response;
+import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Test for concurrent requests over one connection. Bart answers the requests
+ * of Lisa in reverse order.
+ */
+public class RequestExecutorTest extends TwoControllerTestCase {
+
+    private static final String SERVICE_ID = "TestService";
+    private static final int N_REQUESTS = 20;
+
+    private Member bartAtLisa;
+    private Method method;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connectBartAndLisa();
+        bartAtLisa = getContollerLisa().getNodeManager().getNode(
+            getContollerBart().getMySelf().getInfo());
+        method = String.class.getMethod("valueOf", int.class);
+    }
+
+    public void testConcurrentRequests() throws Exception {
+        final Member lisaAtBart = getContollerBart().getNodeManager().getNode(
+            getContollerLisa().getMySelf().getInfo());
+        final List<RemoteMethodCallRequest> received = new ArrayList<RemoteMethodCallRequest>();
+        lisaAtBart.addMessageListener(RemoteMethodCallRequest.class,
+            new MessageListener() {
+                @Override
+                public void handleMessage(Member source, Message message) {
+                    synchronized (received) {
+                        received.add((RemoteMethodCallRequest) message);
+                        if (received.size() < N_REQUESTS) {
+                            return;
+                        }
+                    }
+                    // All requests pending at Lisa, answer in reverse order
+                    for (int i = received.size() - 1; i >= 0; i--) {
+                        RemoteMethodCallRequest request = received.get(i);
+                        try {
+                            source.sendMessageAsynchron(new RemoteMethodCallResponse(
+                                request, String.valueOf(request.getArgs()[0])));
+                        } catch (Exception e) {
+                            fail(e.toString());
+                        }
+                    }
+                }
+
+                @Override
+                public boolean fireInEventDispatchThread() {
+                    return false;
+                }
+            });
+
+        RequestExecutor executor = bartAtLisa.getRequestExecutor();
+        assertSame(executor, bartAtLisa.getRequestExecutor());
+        List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>();
+        for (int i = 0; i < N_REQUESTS; i++) {
+            futures.add(executor.executeAsync(new RemoteMethodCallRequest(
+                SERVICE_ID, method, i), 30000));
+        }
+        for (int i = 0; i < N_REQUESTS; i++) {
+            RemoteMethodCallResponse response = (RemoteMethodCallResponse) futures
+                .get(i).get();
+            assertEquals(String.valueOf(i), response.getResult());
+        }
+        assertEquals(0, executor.countPendingRequests());
+    }
+
+    public void testTimeout() throws Exception {
+        RequestExecutor executor = bartAtLisa.getRequestExecutor();
+        long start = System.currentTimeMillis();
+        try {
+            executor.execute(new RemoteMethodCallRequest(SERVICE_ID, method,
+                1), 500);
+            fail("Request without response should time out");
+        } catch (ConnectionException e) {
+            // Expected
+        }
+        long took = System.currentTimeMillis() - start;
+        assertTrue("Took " + took + "ms", took >= 500 && took < 10000);
+        assertEquals(0, executor.countPendingRequests());
+    }
+
+    public void testDisconnect() throws Exception {
+        RequestExecutor executor = bartAtLisa.getRequestExecutor();
+        CompletableFuture<Response> future = executor.executeAsync(
+            new RemoteMethodCallRequest(SERVICE_ID, method, 1), 60000);
+        assertEquals(1, executor.countPendingRequests());
+        disconnectBartAndLisa();
+        try {
+            future.get();
+            fail("Request should fail on disconnect");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConnectionException);
+        }
+        assertEquals(0, executor.countPendingRequests());
+        try {
+            executor.execute(new RemoteMethodCallRequest(SERVICE_ID, method,
+                1));
+            fail("Request should fail when not connected");
+        } catch (ConnectionException e) {
+            // Expected
+        }
+    }
+}
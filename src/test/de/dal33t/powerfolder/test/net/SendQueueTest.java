@@ -0,0 +1,192 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.AbortDownload;
+import de.dal33t.powerfolder.message.AbortUpload;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.HandshakeCompleted;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.RequestDownload;
+import de.dal33t.powerfolder.message.StopUpload;
+import de.dal33t.powerfolder.net.SendQueue;
+import de.dal33t.powerfolder.net.SendQueue.Lane;
+
+/**
+ * Test for the priority lanes and the backpressure of the send queue.
+ */
+public class SendQueueTest extends TestCase {
+
+    public void testPriority() {
+        SendQueue queue = new SendQueue();
+        FileChunk chunk = createChunk(1000);
+        HandshakeCompleted completed = new HandshakeCompleted();
+        Ping ping = new Ping();
+        Pong pong = new Pong(ping);
+        queue.offer(chunk);
+        queue.offer(completed);
+        queue.offer(ping);
+        queue.offer(pong);
+        assertEquals(4, queue.size());
+        assertTrue(queue.getBytes(Lane.BULK) >= 1000);
+
+        assertSame(ping, queue.peek());
+        assertSame(ping, queue.poll());
+        assertSame(pong, queue.poll());
+        assertSame(completed, queue.poll());
+        assertSame(chunk, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytes(Lane.BULK));
+        assertEquals(0, queue.getBytes(Lane.CONTROL));
+    }
+
+    public void testAbortUploadAfterChunks() {
+        SendQueue queue = new SendQueue();
+        FileChunk chunk = createChunk(1000);
+        AbortUpload abort = new AbortUpload(chunk.file);
+        queue.offer(chunk);
+        queue.offer(abort);
+        queue.offer(new Ping());
+        assertTrue(queue.poll() instanceof Ping);
+        assertSame(chunk, queue.poll());
+        assertSame(abort, queue.poll());
+    }
+
+    public void testDownloaderKeepsOrder() {
+        SendQueue queue = new SendQueue();
+        FileInfo file = createChunk(0).file;
+        StopUpload stop = new StopUpload(file);
+        AbortDownload abort = new AbortDownload(file);
+        RequestDownload request = new RequestDownload(file);
+        queue.offer(stop);
+        queue.offer(abort);
+        queue.offer(new HandshakeCompleted());
+        queue.offer(request);
+        assertSame(stop, queue.poll());
+        assertSame(abort, queue.poll());
+        assertSame(request, queue.poll());
+    }
+
+    public void testPutBlocksWhileLaneFull() throws Exception {
+        final SendQueue queue = new SendQueue();
+        int chunkSize = (int) Lane.BULK.getMaxBytes() / 4;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.put(createChunk(chunkSize), 1000));
+        }
+        // Lane full
+        assertFalse(queue.put(createChunk(chunkSize), 100));
+        // Other lanes not affected
+        assertTrue(queue.put(new Ping(), 100));
+        // Non blocking always accepted
+        assertTrue(queue.offer(createChunk(chunkSize)));
+
+        final CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (queue.put(createChunk(1000), 10000)) {
+                        added.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        };
+        producer.start();
+        assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+        // Polling other lanes does not free space
+        assertTrue(queue.poll() instanceof Ping);
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(queue.poll() instanceof FileChunk);
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        assertEquals(4, queue.size());
+    }
+
+    public void testBigMessageInEmptyLane() throws Exception {
+        SendQueue queue = new SendQueue();
+        int bigSize = (int) Lane.BULK.getMaxBytes() * 2;
+        assertTrue(queue.put(createChunk(bigSize), 100));
+        assertFalse(queue.put(createChunk(100), 100));
+    }
+
+    public void testCloseReleasesProducers() throws Exception {
+        final SendQueue queue = new SendQueue();
+        queue.offer(createChunk((int) Lane.BULK.getMaxBytes()));
+        final AtomicBoolean result = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.put(createChunk(1000), 60000));
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                done.countDown();
+            }
+        };
+        producer.start();
+        Thread.sleep(100);
+        queue.close();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(result.get());
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.offer(new Ping()));
+    }
+
+    public void testOverfilled() {
+        SendQueue queue = new SendQueue();
+        // Estimated size includes the message overhead
+        int chunkSize = (int) Lane.BULK.getMaxBytes() - 100;
+        for (int i = 0; i < SendQueue.OVERFILL_FACTOR; i++) {
+            assertTrue(queue.offer(createChunk(chunkSize)));
+            assertFalse(queue.isOverfilled());
+        }
+        assertEquals(SendQueue.OVERFILL_FACTOR * Lane.BULK.getMaxBytes(),
+            queue.getBytes());
+        queue.offer(new Ping());
+        assertFalse(queue.isOverfilled());
+        queue.offer(createChunk(chunkSize));
+        assertTrue(queue.isOverfilled());
+        queue.poll();
+        queue.poll();
+        assertFalse(queue.isOverfilled());
+    }
+
+    private static FileChunk createChunk(int size) {
+        FileInfo file = FileInfoFactory.unmarshallExistingFile(new FolderInfo(
+            "testFolder", "id"), "file.txt", null, size, new MemberInfo("test",
+            "id", null), null, new Date(), 0, null, false, null);
+        return new FileChunk(file, 0, new byte[size]);
+    }
+}
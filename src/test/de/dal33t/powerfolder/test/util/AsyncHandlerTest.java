@@ -0,0 +1,165 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.logging.handlers.AsyncHandler;
+import de.dal33t.powerfolder.util.logging.handlers.AsyncHandler.OverflowPolicy;
+
+public class AsyncHandlerTest extends TestCase {
+
+    public void testAllRecordsWritten() throws InterruptedException {
+        final CollectingHandler delegate = new CollectingHandler();
+        final AsyncHandler handler = new AsyncHandler(delegate, 64,
+            OverflowPolicy.BLOCK);
+        final int nThreads = 4;
+        final int nRecords = 20000;
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final String name = "thread-" + t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < nRecords; i++) {
+                        handler.publish(new LogRecord(Level.INFO, name + ':'
+                            + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        assertEquals(0, handler.getDropped());
+        assertEquals(0, handler.getPending());
+        assertTrue(delegate.closed);
+        List<LogRecord> records = delegate.getRecords();
+        assertEquals(nThreads * nRecords, records.size());
+        // The records of one thread keep their order
+        int[] next = new int[nThreads];
+        for (LogRecord record : records) {
+            String[] parts = record.getMessage().split(":");
+            int t = Integer.parseInt(parts[0].substring("thread-".length()));
+            assertEquals(next[t]++, Integer.parseInt(parts[1]));
+        }
+        assertTrue(delegate.flushes > 0);
+        assertTrue("Not flushed in batches: " + delegate.flushes,
+            delegate.flushes < records.size());
+    }
+
+    public void testDropWhenFull() throws InterruptedException {
+        CollectingHandler delegate = new CollectingHandler();
+        delegate.blocker = new CountDownLatch(1);
+        AsyncHandler handler = new AsyncHandler(delegate, 4,
+            OverflowPolicy.DROP);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new LogRecord(Level.INFO, "Record " + i));
+        }
+        assertTrue(handler.getDropped() > 0);
+        long dropped = handler.getDropped();
+        delegate.blocker.countDown();
+        handler.close();
+
+        List<LogRecord> records = delegate.getRecords();
+        LogRecord last = records.get(records.size() - 1);
+        assertEquals(Level.WARNING, last.getLevel());
+        assertTrue(last.getMessage(),
+            last.getMessage().startsWith("Dropped " + dropped + " "));
+        assertEquals(100, records.size() - 1 + dropped);
+        // Still counted after being reported
+        assertEquals(dropped, handler.getDropped());
+    }
+
+    public void testFlush() {
+        CollectingHandler delegate = new CollectingHandler();
+        AsyncHandler handler = new AsyncHandler(delegate,
+            OverflowPolicy.BLOCK);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                handler.publish(new LogRecord(Level.INFO, "Record " + i));
+            }
+            handler.flush();
+            assertEquals(1000, delegate.getRecords().size());
+            assertFalse(delegate.closed);
+        } finally {
+            handler.close();
+        }
+        // Closed handler ignores records
+        handler.publish(new LogRecord(Level.INFO, "After close"));
+        assertEquals(1000, delegate.getRecords().size());
+    }
+
+    public void testLevelOfDelegate() {
+        CollectingHandler delegate = new CollectingHandler();
+        delegate.setLevel(Level.INFO);
+        AsyncHandler handler = new AsyncHandler(delegate,
+            OverflowPolicy.BLOCK);
+        handler.publish(new LogRecord(Level.FINE, "Fine"));
+        assertEquals(0, handler.getPending());
+        handler.publish(new LogRecord(Level.WARNING, "Warning"));
+        handler.close();
+        assertEquals(1, delegate.getRecords().size());
+        assertEquals("Warning", delegate.getRecords().get(0).getMessage());
+    }
+
+    private static class CollectingHandler extends Handler {
+        private final List<LogRecord> records = new ArrayList<LogRecord>();
+        private volatile CountDownLatch blocker;
+        private volatile int flushes;
+        private volatile boolean closed;
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            if (blocker != null) {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (isLoggable(record)) {
+                records.add(record);
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        synchronized List<LogRecord> getRecords() {
+            return new ArrayList<LogRecord>(records);
+        }
+    }
+}
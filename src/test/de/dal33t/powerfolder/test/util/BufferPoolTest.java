@@ -0,0 +1,240 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.util.BufferPool;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.PooledByteArrayOutputStream;
+
+/**
+ * Test for the buffer pool and the pooled serialization.
+ */
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(0).length);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(1).length);
+        assertEquals(1024, pool.acquire(513).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        assertEquals(BufferPool.MAX_BUFFER_SIZE,
+            pool.acquire(BufferPool.MAX_BUFFER_SIZE).length);
+        // Too large: Exact size
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1,
+            pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1).length);
+        assertEquals(6, pool.getAllocatedCount());
+        assertEquals(0, pool.getReusedCount());
+    }
+
+    public void testReuse() {
+        BufferPool pool = new BufferPool();
+        byte[] buffer = pool.acquire(3000);
+        assertEquals(4096, buffer.length);
+        pool.release(buffer);
+        assertEquals(1, pool.getPooledCount());
+        assertSame(buffer, pool.acquire(2049));
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(1, pool.getAllocatedCount());
+
+        // Foreign and too large arrays are not pooled
+        pool.release(new byte[1000]);
+        pool.release(new byte[BufferPool.MAX_BUFFER_SIZE * 2]);
+        pool.release(null);
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(2, pool.getDiscardedCount());
+    }
+
+    public void testLimitPerClass() {
+        BufferPool pool = new BufferPool();
+        List<byte[]> buffers = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            buffers.add(pool.acquire(BufferPool.MAX_BUFFER_SIZE));
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        // Max 4 MB per class
+        assertEquals(4, pool.getPooledCount());
+        assertEquals(96, pool.getDiscardedCount());
+    }
+
+    public void testConcurrentUse() throws Exception {
+        final BufferPool pool = new BufferPool();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final byte marker = (byte) t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        byte[] buffer = pool.acquire(100 + i % 5000);
+                        buffer[0] = marker;
+                        Thread.yield();
+                        if (buffer[0] != marker) {
+                            // Same buffer given out twice
+                            failed.set(true);
+                        }
+                        pool.release(buffer);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertEquals(8 * 20000, pool.getAcquiredCount());
+        assertTrue(pool.getReusedCount() > pool.getAllocatedCount());
+    }
+
+    public void testOutputStream() {
+        BufferPool pool = new BufferPool();
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool);
+        out.write(new byte[4], 0, 4);
+        for (int i = 0; i < 10000; i++) {
+            out.write(i);
+        }
+        out.writeIntAt(0, 10000);
+        assertEquals(10004, out.size());
+        assertEquals(16384, out.getCapacity());
+        byte[] data = out.toByteArray();
+        assertEquals(10004, data.length);
+        assertEquals(0, data[0]);
+        assertEquals(0, data[1]);
+        assertEquals(10000 >>> 8, data[2]);
+        assertEquals((byte) 10000, data[3]);
+        assertEquals((byte) 9999, data[10003]);
+        // Buffers of growth went back into the pool
+        int pooled = pool.getPooledCount();
+        assertTrue(pooled > 0);
+        out.release();
+        assertEquals(pooled + 1, pool.getPooledCount());
+        assertEquals(0, out.size());
+        out.write(1);
+        assertEquals(1, out.size());
+    }
+
+    public void testSerializeRoundtrip() throws Exception {
+        ByteSerializer serializer = new ByteSerializer(new BufferPool());
+        FileChunk chunk = createChunk(10000);
+        for (boolean compress : new boolean[]{false, true}) {
+            PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(
+                serializer.getBufferPool());
+            out.write(7);
+            int len = serializer.serialize(chunk, compress, -1, out);
+            assertEquals(out.size() - 1, len);
+
+            // Read into a pooled buffer larger than the packet
+            byte[] data = serializer.readPooled(new ByteArrayInputStream(
+                out.getBuffer(), 1, len), len);
+            assertTrue(data.length > len);
+            FileChunk read = (FileChunk) ByteSerializer.deserializeStatic(
+                data, len, compress);
+            serializer.release(data);
+            out.release();
+            assertEquals(chunk.file, read.file);
+            assertEquals(chunk.data.length, read.data.length);
+        }
+    }
+
+    /**
+     * Compares the bytes allocated for serializing 32 KB file chunks with the
+     * former serialization into a new stream per message.
+     */
+    public void testAllocationRate() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+        {
+            System.out.println("Allocation counter not available");
+            return;
+        }
+        int nChunks = 2000;
+        FileChunk chunk = createChunk(32 * 1024);
+        BufferPool pool = new BufferPool();
+        ByteSerializer serializer = new ByteSerializer(pool);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool);
+        for (int i = 0; i < 200; i++) {
+            serializeUnpooled(chunk);
+            serializer.serialize(chunk, false, -1, out);
+            out.release();
+        }
+
+        long start = allocatedBytes();
+        for (int i = 0; i < nChunks; i++) {
+            serializeUnpooled(chunk);
+        }
+        long unpooled = allocatedBytes() - start;
+
+        start = allocatedBytes();
+        for (int i = 0; i < nChunks; i++) {
+            serializer.serialize(chunk, false, -1, out);
+            out.release();
+        }
+        long pooled = allocatedBytes() - start;
+
+        System.out.println("Serialized " + nChunks + " chunks. Allocated "
+            + Format.formatBytes(unpooled / nChunks) + "/msg unpooled, "
+            + Format.formatBytes(pooled / nChunks) + "/msg pooled. " + pool);
+        assertTrue("Pooled " + pooled + " unpooled " + unpooled,
+            pooled * 2 < unpooled);
+    }
+
+    private static byte[] serializeUnpooled(FileChunk chunk)
+        throws IOException
+    {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(512);
+        ObjectOutputStream objOut = new ObjectOutputStream(byteOut);
+        objOut.writeUnshared(chunk);
+        objOut.close();
+        return byteOut.toByteArray();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean()).getThreadAllocatedBytes(Thread
+            .currentThread().getId());
+    }
+
+    private static FileChunk createChunk(int size) {
+        FileInfo file = FileInfoFactory.unmarshallExistingFile(new FolderInfo(
+            "testFolder", "id"), "file.txt", null, size, new MemberInfo("test",
+            "id", null), null, new Date(), 0, null, false, null);
+        return new FileChunk(file, 0, new byte[size]);
+    }
+}
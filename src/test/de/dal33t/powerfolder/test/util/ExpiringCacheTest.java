@@ -0,0 +1,154 @@
+/*
+ * Copyright 2004 - 2015 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.util.ExpiringCache;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import junit.framework.TestCase;
+
+public class ExpiringCacheTest extends TestCase {
+
+    public void testValidCache() {
+        Collection<String> expected = new LinkedList<>();
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10000, 100,
+            TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 1000; i++) {
+            String id = IdGenerator.makeId();
+            expected.add(id);
+            cache.put(id, id);
+
+            String aId = cache.getValidEntry(id);
+            assertEquals(id, aId);
+        }
+        assertEquals(1000, cache.getCacheHits());
+        assertEquals(0, cache.getCacheMisses());
+
+        TestHelper.waitMilliSeconds(200);
+
+        for (String eId : expected) {
+            String aId = cache.getValidEntry(eId);
+            assertNull(aId);
+        }
+        assertEquals(1000, cache.getCacheHits());
+        assertEquals(1000, cache.getCacheMisses());
+        assertEquals(1000, cache.getExpirations());
+        assertEquals(0, cache.size());
+    }
+
+    public void testMaximumSize() {
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(100, 1,
+            TimeUnit.MINUTES);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900, cache.getEvictions());
+        // Least recently used evicted first
+        assertNull(cache.getValidEntry(0));
+        assertNull(cache.getValidEntry(899));
+        assertEquals(Integer.valueOf(900), cache.getValidEntry(900));
+        assertEquals(Integer.valueOf(999), cache.getValidEntry(999));
+    }
+
+    public void testHitEntriesSurviveScan() {
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(100, 1,
+            TimeUnit.MINUTES);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i);
+            // Hit: Moves into the protected segment
+            assertNotNull(cache.getValidEntry(i));
+        }
+        // A scan of entries only used once
+        for (int i = 1000; i < 2000; i++) {
+            cache.put(i, i);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), cache.getValidEntry(i));
+        }
+        assertEquals(100, cache.size());
+    }
+
+    public void testReplaceAndInvalidate() {
+        ExpiringCache<String, Boolean> cache = new ExpiringCache<>(10, 1,
+            TimeUnit.MINUTES);
+        cache.put("a", Boolean.TRUE);
+        cache.put("a", Boolean.FALSE);
+        cache.put("b", Boolean.TRUE);
+        cache.put("c", Boolean.TRUE);
+        assertEquals(3, cache.size());
+        assertEquals(Boolean.FALSE, cache.getValidEntry("a"));
+
+        cache.invalidate("a");
+        assertNull(cache.getValidEntry("a"));
+        cache.invalidateEntry(entry -> entry.booleanValue());
+        assertEquals(0, cache.size());
+
+        cache.put("d", Boolean.TRUE);
+        assertNotNull(cache.getValidEntry("d"));
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.getValidEntry("d"));
+        // Usable after invalidating all
+        for (int i = 0; i < 20; i++) {
+            cache.put("e" + i, Boolean.TRUE);
+            cache.getValidEntry("e" + i);
+        }
+        assertEquals(10, cache.size());
+    }
+
+    public void testConcurrentAccess() throws InterruptedException {
+        final ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(64,
+            1, TimeUnit.MINUTES);
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed) % 200;
+                    Integer value = cache.getValidEntry(key);
+                    if (value == null) {
+                        cache.put(key, key);
+                    } else if (value.intValue() != key) {
+                        wrong.incrementAndGet();
+                    }
+                    if (i % 1000 == 0) {
+                        cache.invalidate(key);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrong.get());
+        assertTrue(cache.size() <= 64);
+        assertEquals(80000, cache.getCacheHits() + cache.getCacheMisses());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.net.SendQueue;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Gauge;
+import de.dal33t.powerfolder.util.metrics.Histogram;
+import de.dal33t.powerfolder.util.metrics.MetricsMBean;
+import de.dal33t.powerfolder.util.metrics.MetricsRegistry;
+
+/**
+ * Test for the core metrics.
+ */
+public class MetricsRegistryTest extends TestCase {
+
+    public void testCounterAndGauge() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Counter counter = metrics.counter("c", "A counter");
+        counter.increment();
+        counter.add(10);
+        assertSame(counter, metrics.counter("c", "A counter"));
+        assertEquals(11, counter.get());
+
+        Gauge gauge = metrics.gauge("g", "A gauge");
+        gauge.increment();
+        gauge.increment();
+        gauge.decrement();
+        assertEquals(1.0, gauge.get());
+        assertEquals(42.0, metrics.gauge("s", "Supplied", () -> 42).get());
+        assertEquals(43L, metrics.counter("sc", "Supplied", () -> 43L).get());
+
+        try {
+            metrics.gauge("c", "Not a gauge");
+            fail("Type of metric changed");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    public void testHistogram() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Histogram h = metrics.histogram("h", "A histogram", null, new long[]{
+            10, 100, 1000});
+        assertEquals(0, h.getPercentile(0.5));
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        h.record(5000);
+        assertEquals(101, h.getCount());
+        assertEquals(5050 + 5000, h.getSum());
+        assertEquals(5000, h.getMax());
+        assertEquals(100, h.getPercentile(0.5));
+        assertEquals(10, h.getPercentile(0.05));
+        assertEquals(5000, h.getPercentile(1.0));
+        long[] counts = h.getBucketCounts();
+        assertEquals(10, counts[0]);
+        assertEquals(90, counts[1]);
+        assertEquals(0, counts[2]);
+        assertEquals(1, counts[3]);
+
+        Histogram timer = metrics.histogram("t", "A timer",
+            TimeUnit.MILLISECONDS);
+        timer.recordNanos(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(2000, timer.getMax());
+    }
+
+    public void testFamily() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Histogram ping = metrics.histograms("enc", "Encode", null, "type")
+            .get("Ping");
+        assertSame(ping,
+            metrics.histograms("enc", "Encode", null, "type").get("Ping"));
+        assertNotSame(ping, metrics.histograms("enc", "Encode", null, "type")
+            .get("Pong"));
+        assertSame(ping, metrics.get("enc.Ping"));
+        assertEquals(2, metrics.size());
+    }
+
+    public void testPrometheusFormat() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("pf_c", "Counter").add(3);
+        metrics.counter("pf_s", "Supplied", () -> 4L, "dir", "up");
+        metrics.gauge("pf_g", "Gauge", () -> 1.5, "dir", "up");
+        metrics.gauge("pf_g", "Gauge", () -> 2, "dir", "do\"wn");
+        metrics.histogram("pf_h", "Histogram", null, new long[]{1, 10})
+            .record(5);
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text, text.contains("# TYPE pf_c counter\npf_c 3\n"));
+        assertTrue(text, text.contains(
+            "# TYPE pf_s counter\npf_s{dir=\"up\"} 4\n"));
+        assertTrue(text, text.contains("pf_g{dir=\"up\"} 1.500\n"));
+        assertTrue(text, text.contains("pf_g{dir=\"do\\\"wn\"} 2\n"));
+        assertEquals(text, text.indexOf("# TYPE pf_g"),
+            text.lastIndexOf("# TYPE pf_g"));
+        assertTrue(text, text.contains("pf_h_bucket{le=\"1\"} 0\n"));
+        assertTrue(text, text.contains("pf_h_bucket{le=\"10\"} 1\n"));
+        assertTrue(text, text.contains("pf_h_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text, text.contains("pf_h_sum 5\npf_h_count 1\n"));
+
+        out = new StringWriter();
+        metrics.writeText(out);
+        assertTrue(out.toString(), out.toString().contains(
+            "pf_h count=1 sum=5 p50=5 p99=5 max=5\n"));
+    }
+
+    public void testSendQueueDepth() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        SendQueue q1 = new SendQueue(SendQueue.depthGauge(metrics));
+        SendQueue q2 = new SendQueue(SendQueue.depthGauge(metrics));
+        q1.offer(new Ping());
+        q1.offer(new Ping());
+        q2.offer(new Ping());
+        assertEquals(3.0, SendQueue.depthGauge(metrics).get());
+        q1.poll();
+        assertEquals(2.0, SendQueue.depthGauge(metrics).get());
+        q2.close();
+        assertEquals(1.0, SendQueue.depthGauge(metrics).get());
+    }
+
+    public void testMBean() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("pf_c", "Counter").add(7);
+        metrics.histogram("pf_h", "Histogram", null, "lock", "send")
+            .record(20);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+            "de.dal33t.powerfolder:type=Metrics,name=test");
+        server.registerMBean(new MetricsMBean(metrics), name);
+        try {
+            assertEquals(7L, server.getAttribute(name, "pf_c"));
+            assertEquals(1L, server.getAttribute(name, "pf_h.send.count"));
+            assertEquals(20L, server.getAttribute(name, "pf_h.send.p99"));
+            assertEquals(6,
+                server.getMBeanInfo(name).getAttributes().length);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    public void testRecordingPerformance() throws InterruptedException {
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final int n = 1000000;
+        Thread[] threads = new Thread[4];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                Histogram h = metrics.histograms("pf_h", "Histogram",
+                    TimeUnit.MICROSECONDS, "type").get("Ping");
+                Counter c = metrics.counter("pf_c", "Counter");
+                for (int i = 0; i < n; i++) {
+                    h.record(i & 1023);
+                    c.increment();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(4L * n, metrics.counter("pf_c", "Counter").get());
+        System.out.println("Recorded " + 4 * n + " values in 4 threads in "
+            + took + "ms");
+    }
+}
@@ -19,6 +19,11 @@
  */
 package de.dal33t.powerfolder.test.util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import de.dal33t.powerfolder.Constants;
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.util.Profiling;
@@ -30,6 +35,7 @@ import de.dal33t.powerfolder.util.pattern.ExactMatchPattern;
 import de.dal33t.powerfolder.util.pattern.OfficeTempFilesMatchPattern;
 import de.dal33t.powerfolder.util.pattern.Pattern;
 import de.dal33t.powerfolder.util.pattern.PatternFactory;
+import de.dal33t.powerfolder.util.pattern.PatternSet;
 import de.dal33t.powerfolder.util.pattern.StartMatchPattern;
 
 public class PatternMatchTest extends TestCase {
@@ -292,4 +298,99 @@ public class PatternMatchTest extends TestCase {
         Profiling.end(pe);
         System.err.println(Profiling.dumpStats());
     }
+
+    public void testPatternSet() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        patterns.add(PatternFactory.createPattern("sdf*g*h"));
+        patterns.add(PatternFactory.createPattern("c:/test*"));
+        patterns.add(PatternFactory.createPattern("*thumbs.db"));
+        patterns.add(PatternFactory.createPattern("exact.txt"));
+        PatternSet set = PatternSet.compile(patterns);
+        assertEquals(4, set.size());
+        assertTrue(set.isMatch("sdfgkjh"));
+        assertTrue(set.isMatch("SdFgKjH"));
+        assertTrue(set.isMatch("c:/test/file.name"));
+        assertTrue(set.isMatch("c:/test/file.name/Thumbs.db"));
+        assertTrue(set.isMatch("EXACT.txt"));
+        assertFalse(set.isMatch("exact.txt2"));
+        assertFalse(set.isMatch("c:/tes"));
+        assertFalse(set.isMatch("sdfgkj"));
+        assertFalse(set.isMatch(""));
+
+        // Later occurrence of the last part
+        assertTrue(PatternSet.compile(
+            Collections.singleton(PatternFactory.createPattern("a*b")))
+            .isMatch("axbxb"));
+        assertTrue(PatternSet.compile(
+            Collections.singleton(PatternFactory.createPattern("*")))
+            .isMatch(""));
+        assertTrue(PatternSet.compile(
+            Collections.singleton(PatternFactory.createPattern("a**b")))
+            .isMatch("ab"));
+        assertFalse(PatternSet.compile(Collections.<Pattern> emptyList())
+            .isMatch("a"));
+
+        // Resume after a directory
+        PatternSet.State dir = set.start().next("c:/", 0, 3);
+        assertFalse(dir.isMatch());
+        assertFalse(dir.isMatchAll());
+        PatternSet.State testDir = dir.next("test/", 0, 5);
+        assertTrue(testDir.isMatchAll());
+        assertTrue(PatternSet.compile(patterns).start().next("xyz", 0, 3)
+            .next("/thumbs.db", 0, 10).isMatch());
+        assertTrue(PatternSet.compile(
+            Collections.singleton(PatternFactory.createPattern("exact.txt")))
+            .start().next("other", 0, 5).isNoMatch());
+    }
+
+    /**
+     * The pattern set matches like the single patterns.
+     */
+    public void testPatternSetLikeSinglePatterns() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (DefaultExcludes exclude : DefaultExcludes.values()) {
+            patterns.add(PatternFactory.createPattern(exclude.getPattern()
+                .toLowerCase()));
+        }
+        String[] dirs = {"projects", "Documents", "Archive", "2018", "~tmp",
+            "node_modules", "Build", "Photos"};
+        String[] names = {"Report.docx", "~$Report.docx", "~WRL0001.tmp",
+            ".~lock.Budget.xlsx#", "Thumbs.db", ".DS_Store", "setup.part",
+            "IMG_001.JPG", "notes.txt", "data.bak", "x.iso", "desktop.ini"};
+        for (int i = 0; i < 100; i++) {
+            patterns.add(PatternFactory.createPattern("*.ext" + i));
+            patterns.add(PatternFactory.createPattern("projects/p" + i + "/*"));
+            patterns.add(PatternFactory.createPattern("*/build" + i + "/*"));
+        }
+        patterns.add(PatternFactory.createPattern("*.bak"));
+        patterns.add(PatternFactory.createPattern("archive/*"));
+        patterns.add(PatternFactory.createPattern("*/node_modules/*"));
+        patterns.add(PatternFactory.createPattern("photos/*.jpg"));
+        PatternSet set = PatternSet.compile(patterns);
+
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder b = new StringBuilder();
+            int depth = r.nextInt(4);
+            for (int d = 0; d < depth; d++) {
+                b.append(dirs[r.nextInt(dirs.length)]).append('/');
+            }
+            if (r.nextInt(10) == 0) {
+                b.append("p").append(r.nextInt(120)).append('/');
+            }
+            b.append(names[r.nextInt(names.length)]);
+            if (r.nextInt(10) == 0) {
+                b.append(".ext").append(r.nextInt(120));
+            }
+            String name = b.toString();
+            boolean expected = false;
+            for (Pattern pattern : patterns) {
+                if (pattern.isMatch(name)) {
+                    expected = true;
+                    break;
+                }
+            }
+            assertEquals(name, expected, set.isMatch(name));
+        }
+    }
 }
@@ -19,12 +19,20 @@
  */
 package de.dal33t.powerfolder.test.util;
 
+import java.util.Map;
+
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.util.Profiling;
 import de.dal33t.powerfolder.util.ProfilingEntry;
+import de.dal33t.powerfolder.util.ProfilingStat;
 
 public class ProfilingTest extends TestCase {
 
+    /**
+     * Maximum cost of one start/end pair.
+     */
+    private static final long MAX_OVERHEAD_NANOS = 2000;
+
     protected void tearDown() throws Exception {
         super.tearDown();
         Profiling.setEnabled(false);
@@ -87,4 +95,108 @@ public class ProfilingTest extends TestCase {
         assertTrue(Profiling.dumpStats().contains("ProfilingTest"));
         assertTrue(Profiling.dumpStats().contains("testAutoOperationName"));
     }
-}
\ No newline at end of file
+
+    public void testPercentiles() {
+        ProfilingStat stat = new ProfilingStat("op");
+        assertEquals(0, stat.getPercentileNanos(0.5));
+        for (int i = 1; i <= 1000; i++) {
+            stat.record(i * 1000L);
+        }
+        assertEquals(1000, stat.getCount());
+        assertEquals(1000L * 1001 / 2 * 1000, stat.getTotalNanos());
+        assertEquals(1000, stat.getMinNanos());
+        assertEquals(1000000, stat.getMaxNanos());
+        assertAbout(500000, stat.getPercentileNanos(0.5));
+        assertAbout(990000, stat.getPercentileNanos(0.99));
+        assertAbout(999000, stat.getPercentileNanos(0.999));
+        assertEquals(1000000, stat.getPercentileNanos(1.0));
+
+        // Small values are exact
+        ProfilingStat small = new ProfilingStat("small");
+        for (int i = 0; i < 8; i++) {
+            small.record(i);
+        }
+        assertEquals(3, small.getPercentileNanos(0.5));
+    }
+
+    public void testMerge() {
+        ProfilingStat a = new ProfilingStat("op");
+        ProfilingStat b = new ProfilingStat("op");
+        for (int i = 0; i < 99; i++) {
+            a.record(1000);
+        }
+        b.record(1000000000L);
+        a.merge(b);
+        assertEquals(100, a.getCount());
+        assertEquals(1000000000L, a.getMaxNanos());
+        assertAbout(1000, a.getPercentileNanos(0.99));
+        assertEquals(1000000000L, a.getPercentileNanos(0.999));
+    }
+
+    public void testThreadsMerged() throws InterruptedException {
+        Profiling.setEnabled(true);
+        Profiling.reset();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    Profiling.end(Profiling.start("Test threads"));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Profiling.end(Profiling.start("Test threads"));
+        Map<String, ProfilingStat> stats = Profiling.getStats();
+        assertEquals(4001, stats.get("Test threads").getCount());
+        assertTrue(Profiling.dumpStats().contains("p999"));
+
+        Profiling.reset();
+        assertNull(Profiling.getStats().get("Test threads"));
+    }
+
+    /**
+     * The profiler has to be cheap enough to stay enabled.
+     */
+    public void testOverhead() throws InterruptedException {
+        Profiling.setEnabled(true);
+        Profiling.reset();
+        final int n = 1000000;
+        Thread[] threads = new Thread[4];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < n; i++) {
+                    Profiling.end(Profiling.start("Test overhead"));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long took = System.nanoTime() - start;
+        ProfilingStat stat = Profiling.getStats().get("Test overhead");
+        assertEquals(4L * n, stat.getCount());
+        // Wall time per invocation, even if the threads run one after another
+        long nanosPerInvocation = took / (4L * n);
+        assertTrue("Profiling took " + nanosPerInvocation
+            + "ns per invocation", nanosPerInvocation < MAX_OVERHEAD_NANOS);
+    }
+
+    public void testEnabledAfterStart() {
+        Profiling.setEnabled(false);
+        Profiling.reset();
+        ProfilingEntry entry = Profiling.start("Test enabled");
+        Profiling.setEnabled(true);
+        Profiling.end(entry);
+        assertNull(Profiling.getStats().get("Test enabled"));
+    }
+
+    private static void assertAbout(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but got " + actual,
+            Math.abs(expected - actual) <= expected / 8);
+    }
+}
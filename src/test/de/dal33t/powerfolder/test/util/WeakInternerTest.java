@@ -0,0 +1,121 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.intern.FolderInfoInternalizer;
+import de.dal33t.powerfolder.util.intern.WeakInterner;
+import junit.framework.TestCase;
+
+public class WeakInternerTest extends TestCase {
+
+    public void testIntern() {
+        WeakInterner<String> interner = new WeakInterner<>();
+        String a = new String("abc");
+        String b = new String("abc");
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(b));
+        assertSame(a, interner.get(b));
+        assertNull(interner.get("xyz"));
+        assertEquals(1, interner.size());
+
+        interner.replace(b);
+        assertSame(b, interner.intern(a));
+        assertEquals(1, interner.size());
+    }
+
+    public void testFolderInfoInternalizer() {
+        FolderInfoInternalizer internalizer = new FolderInfoInternalizer();
+        FolderInfo foInfo = new FolderInfo("Folder", "id");
+        assertSame(foInfo, internalizer.intern(foInfo));
+        assertSame(foInfo, internalizer.intern(new FolderInfo("Folder", "id")));
+
+        // Without name: Returns known instance, but does not intern.
+        FolderInfo noName = new FolderInfo("", "id2");
+        assertSame(noName, internalizer.intern(noName));
+        assertSame(foInfo, internalizer.intern(new FolderInfo("", "id")));
+
+        // Rename
+        FolderInfo renamed = new FolderInfo("Renamed", "id");
+        assertSame(renamed, internalizer.rename(renamed));
+        assertSame(renamed, internalizer.intern(foInfo));
+        assertSame(renamed, internalizer.rename(new FolderInfo("Renamed",
+            "id")));
+    }
+
+    public void testCollected() throws InterruptedException {
+        WeakInterner<String> interner = new WeakInterner<>();
+        String kept = interner.intern(new String("kept"));
+        for (int i = 0; i < 10000; i++) {
+            interner.intern(new String("item" + i));
+        }
+        for (int i = 0; i < 100 && interner.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertEquals(1, interner.size());
+        assertSame(kept, interner.intern(new String("kept")));
+        // Interning again after collection
+        String again = new String("item1");
+        assertSame(again, interner.intern(again));
+    }
+
+    public void testConcurrentIntern() throws InterruptedException {
+        final WeakInterner<FolderInfo> interner = new WeakInterner<>();
+        final int nThreads = 8;
+        final int nFolders = 500;
+        final FolderInfo[][] results = new FolderInfo[nThreads][nFolders];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final int n = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < nFolders; i++) {
+                        results[n][i] = interner.intern(new FolderInfo(
+                            "Folder" + i, "id" + i));
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        for (int i = 0; i < nFolders; i++) {
+            for (int t = 1; t < nThreads; t++) {
+                assertSame(results[0][i], results[t][i]);
+            }
+        }
+        assertEquals(nFolders, interner.size());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import junit.framework.TestCase;
+
+public class BandwidthEstimatorTest extends TestCase {
+
+    private BandwidthLimiter output;
+    private BandwidthLimiter input;
+    private BandwidthEstimator estimator;
+    private BandwidthEstimator.ConnectionRTT connection;
+    private long now;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        output = new BandwidthLimiter(BandwidthLimiterInfo.WAN_OUTPUT);
+        input = new BandwidthLimiter(BandwidthLimiterInfo.WAN_INPUT);
+        estimator = new BandwidthEstimator(output, input);
+        connection = new BandwidthEstimator.ConnectionRTT();
+        now = 1000000;
+        estimator.update(now);
+    }
+
+    public void testNoSamplesNoChange() throws InterruptedException {
+        transfer(output, 500 * 1024);
+        assertFalse(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(0, estimator.getUploadCPS());
+        assertEquals(0, estimator.getDownloadCPS());
+    }
+
+    public void testCongestionLimitsUpload() throws InterruptedException {
+        estimator.rttSample(connection, 20);
+        // 100 KiB/s upload
+        transfer(output, 500 * 1024);
+        for (int i = 0; i < 20; i++) {
+            estimator.rttSample(connection, 800);
+        }
+        assertTrue(estimator.getQueueDelay() > BandwidthEstimator.TARGET_QUEUE_DELAY);
+        assertTrue(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(100 * 1024 * 85 / 100, estimator.getUploadCPS());
+        // Download idle: Not the cause
+        assertEquals(0, estimator.getDownloadCPS());
+    }
+
+    public void testBaseDelayPerConnection() throws InterruptedException {
+        // Near peer
+        estimator.rttSample(connection, 5);
+        // Far peer with a constant high RTT is not congested
+        BandwidthEstimator.ConnectionRTT far =
+            new BandwidthEstimator.ConnectionRTT();
+        transfer(output, 500 * 1024);
+        for (int i = 0; i < 20; i++) {
+            estimator.rttSample(far, 400);
+            estimator.rttSample(connection, 5);
+        }
+        assertEquals(0, estimator.getQueueDelay());
+        assertFalse(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(0, estimator.getUploadCPS());
+
+        // Queue builds up at the far peer
+        for (int i = 0; i < 20; i++) {
+            estimator.rttSample(far, 1200);
+        }
+        assertTrue(estimator.getQueueDelay() > BandwidthEstimator.TARGET_QUEUE_DELAY);
+        transfer(output, 500 * 1024);
+        assertTrue(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertTrue(estimator.getUploadCPS() > 0);
+    }
+
+    public void testProbeUpWithoutCongestion() throws InterruptedException {
+        estimator.rttSample(connection, 20);
+        estimator.setLimits(100 * 1024, 0);
+        // Upload uses up the limit
+        transfer(output, 500 * 1024);
+        assertTrue(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertTrue(estimator.getUploadCPS() > 100 * 1024);
+    }
+
+    public void testSendStallLimitsUpload() throws InterruptedException {
+        transfer(output, 250 * 1024);
+        transfer(input, 250 * 1024);
+        estimator.sendStallSample(BandwidthEstimator.MAX_SEND_STALL + 1, 100);
+        assertTrue(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(50 * 1024 * 85 / 100, estimator.getUploadCPS());
+        assertEquals(0, estimator.getDownloadCPS());
+    }
+
+    public void testLargeWriteNoStall() throws InterruptedException {
+        transfer(output, 250 * 1024);
+        // E.g. a big filelist on a slow line
+        estimator.sendStallSample(BandwidthEstimator.MAX_SEND_STALL * 10,
+            BandwidthEstimator.MAX_SEND_STALL_BYTES + 1);
+        assertFalse(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(0, estimator.getUploadCPS());
+    }
+
+    public void testIdleUploadNotLimited() throws InterruptedException {
+        estimator.rttSample(connection, 20);
+        transfer(output, 1024);
+        estimator.sendStallSample(BandwidthEstimator.MAX_SEND_STALL * 2, 100);
+        assertFalse(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(0, estimator.getUploadCPS());
+    }
+
+    public void testMinimumRate() throws InterruptedException {
+        estimator.rttSample(connection, 20);
+        // Just busy: 6 KiB/s
+        transfer(output, 30 * 1024);
+        estimator.sendStallSample(BandwidthEstimator.MAX_SEND_STALL * 2, 100);
+        assertTrue(estimator.update(now += BandwidthEstimator.PERIOD));
+        assertEquals(BandwidthEstimator.MIN_RATE, estimator.getUploadCPS());
+    }
+
+    private static void transfer(BandwidthLimiter limiter, long bytes)
+        throws InterruptedException
+    {
+        assertEquals(bytes, limiter.requestBandwidth(bytes));
+    }
+}
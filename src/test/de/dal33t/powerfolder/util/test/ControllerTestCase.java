@@ -87,6 +87,7 @@ public abstract class ControllerTestCase extends TestCase {
 
         Files.copy(source, target);
         assertTrue(Files.exists(target));
+        setupConfig(target);
 
         controller.startConfig("ControllerBart");
         waitForStart(controller);
@@ -116,6 +117,15 @@ public abstract class ControllerTestCase extends TestCase {
         assertFalse(controller.isStarted());
     }
 
+    /**
+     * Override to change the config of the controller before it starts.
+     *
+     * @param config
+     *            the config file of the controller.
+     */
+    protected void setupConfig(Path config) throws IOException {
+    }
+
     // For subtest ************************************************************
 
     protected Controller getController() {